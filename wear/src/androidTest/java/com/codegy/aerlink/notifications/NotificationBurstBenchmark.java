@@ -0,0 +1,157 @@
+package com.codegy.aerlink.notifications;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Replays the burst of pre-existing notifications the iOS device sends after a reconnection through
+ * NotificationAttributesFetcher and NotificationPacketProcessor, the way NotificationServiceHandler
+ * uses them: every response arrives in 20 byte packets and its first packet takes the request.
+ * It runs on the watch, where the SparseArrays and timers are real.
+ */
+public class NotificationBurstBenchmark extends AndroidTestCase {
+
+    private static final String LOG_TAG = NotificationBurstBenchmark.class.getSimpleName();
+
+    private static final int NOTIFICATIONS = 200;
+    private static final int PACKET_LENGTH = 20;
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASUREMENT_ITERATIONS = 20;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+
+    private byte[][] mEvents;
+    private List<List<byte[]>> mResponses;
+
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mEvents = new byte[NOTIFICATIONS][];
+        mResponses = new ArrayList<>(NOTIFICATIONS);
+
+        for (int i = 0; i < NOTIFICATIONS; i++) {
+            byte[] UID = { (byte) i, (byte) (i >> 8), 0, 0 };
+
+            // Notification Added, pre-existing with a positive action, Social category
+            mEvents[i] = new byte[] {
+                    ANCSConstants.EventIDNotificationAdded, 4 | 8, 4, 1,
+                    UID[0], UID[1], UID[2], UID[3]
+            };
+
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            response.write(ANCSConstants.CommandIDGetNotificationAttributes);
+            response.write(UID, 0, UID.length);
+            writeAttribute(response, ANCSConstants.NotificationAttributeIDAppIdentifier, "com.apple.MobileSMS");
+            writeAttribute(response, ANCSConstants.NotificationAttributeIDTitle, "Contact " + i);
+            writeAttribute(response, ANCSConstants.NotificationAttributeIDMessage, "Message number " + i + ", long enough to need a few packets to arrive");
+            writeAttribute(response, ANCSConstants.NotificationAttributeIDMessageSize, "64");
+            writeAttribute(response, ANCSConstants.NotificationAttributeIDPositiveActionLabel, "Reply");
+
+            byte[] data = response.toByteArray();
+            List<byte[]> packets = new ArrayList<>();
+
+            for (int offset = 0; offset < data.length; offset += PACKET_LENGTH) {
+                byte[] packet = new byte[Math.min(PACKET_LENGTH, data.length - offset)];
+                System.arraycopy(data, offset, packet, 0, packet.length);
+                packets.add(packet);
+            }
+
+            mResponses.add(packets);
+        }
+    }
+
+    public void testBurstThroughput() {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            assertEquals(NOTIFICATIONS, replayBurst());
+        }
+
+        long best = Long.MAX_VALUE;
+        long total = 0;
+
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            assertEquals(NOTIFICATIONS, replayBurst());
+            long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+
+            best = Math.min(best, elapsed);
+            total += elapsed;
+        }
+
+        long average = total / MEASUREMENT_ITERATIONS;
+
+        Log.i(LOG_TAG, String.format(Locale.US, "%d notifications: %d us avg, %d us best, %d notifications/s",
+                NOTIFICATIONS, average / 1000, best / 1000, NOTIFICATIONS * 1000000000L / average));
+    }
+
+    /**
+     * @return notifications received with all their attributes
+     */
+    private int replayBurst() {
+        // Requests written to the control point, answered in order
+        final ArrayDeque<Integer> requests = new ArrayDeque<>();
+
+        NotificationAttributesFetcher fetcher = new NotificationAttributesFetcher(Looper.getMainLooper(), new NotificationAttributesFetcher.FetcherCallback() {
+            @Override
+            public void onRequestAttributes(NotificationData notificationData) {
+                requests.add(notificationData.getUIDValue());
+            }
+        });
+        NotificationPacketProcessor processor = new NotificationPacketProcessor(new AppProfileRegistry(new HashMap<String, AppProfileRegistry.AppProfile>()));
+
+        for (byte[] event : mEvents) {
+            fetcher.add(new NotificationData(event));
+        }
+
+        int received = 0;
+
+        while (!requests.isEmpty()) {
+            int UID = requests.poll();
+
+            for (byte[] packet : mResponses.get(UID)) {
+                if (processor.hasFinishedProcessing()) {
+                    NotificationData notificationData = fetcher.take(NotificationData.readUID(packet, 1));
+                    assertNotNull(notificationData);
+
+                    processor.reset(notificationData);
+                }
+
+                processor.process(packet);
+            }
+
+            assertTrue(processor.hasFinishedProcessing());
+            assertEquals("Contact " + UID, processor.getNotificationData().getTitle());
+            processor.reset(null);
+
+            received++;
+        }
+
+        assertEquals(0, fetcher.getPendingCount());
+        fetcher.clear();
+
+        return received;
+    }
+
+    private static void writeAttribute(ByteArrayOutputStream response, byte attributeId, String value) {
+        byte[] bytes = value.getBytes(UTF8);
+
+        response.write(attributeId);
+        // Little endian
+        response.write(bytes.length & 0xff);
+        response.write((bytes.length >> 8) & 0xff);
+        response.write(bytes, 0, bytes.length);
+    }
+
+}
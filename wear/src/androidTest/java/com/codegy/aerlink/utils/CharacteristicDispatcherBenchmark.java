@@ -0,0 +1,182 @@
+package com.codegy.aerlink.utils;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import com.codegy.aerlink.ALSConstants;
+import com.codegy.aerlink.battery.BASConstants;
+import com.codegy.aerlink.currenttime.CTSConstants;
+import com.codegy.aerlink.media.AMSConstants;
+import com.codegy.aerlink.notifications.ANCSConstants;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Dispatch cost per packet of CharacteristicDispatcher against the string comparison loop MainService
+ * used before, with warmup iterations and then timed iterations.
+ * Packets follow a reconnection burst, mostly ANCS Data Source with some AMS and battery.
+ * It runs on the watch, where the cost of the strings allocated for each packet is the one that matters.
+ */
+public class CharacteristicDispatcherBenchmark extends AndroidTestCase {
+
+    private static final String LOG_TAG = CharacteristicDispatcherBenchmark.class.getSimpleName();
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASUREMENT_ITERATIONS = 10;
+    private static final int PACKETS_PER_ITERATION = 50000;
+
+
+    private static class CountingHandler extends ServiceHandler {
+        private final List<String> mCharacteristics;
+        int mHandled;
+
+        CountingHandler(String... characteristics) {
+            mCharacteristics = Arrays.asList(characteristics);
+        }
+
+        @Override
+        public List<String> getCharacteristicsToSubscribe() {
+            return mCharacteristics;
+        }
+
+        @Override
+        public void handleCharacteristic(UUID characteristicUUID, byte[] value) {
+            mHandled++;
+        }
+
+        // What every handler did for each packet before the dispatch table
+        boolean canHandleCharacteristic(UUID characteristicUUID) {
+            String characteristicUUIDString = characteristicUUID.toString().toLowerCase(Locale.US);
+
+            for (String characteristic : mCharacteristics) {
+                if (characteristic.equals(characteristicUUIDString)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+
+
+    private final List<CountingHandler> mHandlers = new ArrayList<>();
+
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        // Same order MainService registers them in
+        mHandlers.clear();
+        mHandlers.add(new CountingHandler(ANCSConstants.CHARACTERISTIC_DATA_SOURCE, ANCSConstants.CHARACTERISTIC_NOTIFICATION_SOURCE));
+        mHandlers.add(new CountingHandler(AMSConstants.CHARACTERISTIC_ENTITY_UPDATE, AMSConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE));
+        mHandlers.add(new CountingHandler(BASConstants.CHARACTERISTIC_BATTERY_LEVEL));
+        mHandlers.add(new CountingHandler(CTSConstants.CHARACTERISTIC_CURRENT_TIME));
+        mHandlers.add(new CountingHandler(ALSConstants.CHARACTERISTIC_REMINDERS_DATA));
+        mHandlers.add(new CountingHandler(ALSConstants.CHARACTERISTIC_CAMERA_REMOTE_DATA, ALSConstants.CHARACTERISTIC_CAMERA_REMOTE_ACTION));
+    }
+
+    public void testDispatchCost() {
+        final CharacteristicDispatcher dispatcher = new CharacteristicDispatcher();
+        final UUID[] packets = createBurst();
+        final byte[] value = new byte[20];
+
+        for (CountingHandler handler : mHandlers) {
+            dispatcher.register(handler);
+        }
+
+        long stringLoop = measure("string loop", new Runnable() {
+            @Override
+            public void run() {
+                for (UUID characteristicUUID : packets) {
+                    for (CountingHandler handler : mHandlers) {
+                        if (handler.canHandleCharacteristic(characteristicUUID)) {
+                            handler.handleCharacteristic(characteristicUUID, value);
+                            break;
+                        }
+                    }
+                }
+            }
+        });
+
+        long table = measure("dispatch table", new Runnable() {
+            @Override
+            public void run() {
+                for (UUID characteristicUUID : packets) {
+                    dispatcher.dispatch(characteristicUUID, value);
+                }
+            }
+        });
+
+        Log.i(LOG_TAG, String.format(Locale.US, "Dispatch table is %.1fx faster", (double) stringLoop / table));
+
+        // A map lookup against up to six string allocations and comparisons
+        assertTrue(table < stringLoop);
+
+        int handled = 0;
+        for (CountingHandler handler : mHandlers) {
+            handled += handler.mHandled;
+        }
+        assertEquals(2 * (WARMUP_ITERATIONS + MEASUREMENT_ITERATIONS) * PACKETS_PER_ITERATION, handled);
+    }
+
+
+    private static UUID[] createBurst() {
+        UUID dataSource = UUID.fromString(ANCSConstants.CHARACTERISTIC_DATA_SOURCE);
+        UUID notificationSource = UUID.fromString(ANCSConstants.CHARACTERISTIC_NOTIFICATION_SOURCE);
+        UUID entityUpdate = UUID.fromString(AMSConstants.CHARACTERISTIC_ENTITY_UPDATE);
+        UUID batteryLevel = UUID.fromString(BASConstants.CHARACTERISTIC_BATTERY_LEVEL);
+
+        UUID[] packets = new UUID[PACKETS_PER_ITERATION];
+
+        for (int i = 0; i < packets.length; i++) {
+            if (i % 100 == 99) {
+                packets[i] = batteryLevel;
+            }
+            else if (i % 10 == 9) {
+                packets[i] = entityUpdate;
+            }
+            else if (i % 5 == 0) {
+                packets[i] = notificationSource;
+            }
+            else {
+                packets[i] = dataSource;
+            }
+        }
+
+        return packets;
+    }
+
+    /**
+     * @return average nanoseconds per packet
+     */
+    private static long measure(String name, Runnable iteration) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration.run();
+        }
+
+        long best = Long.MAX_VALUE;
+        long total = 0;
+
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            iteration.run();
+            long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+
+            best = Math.min(best, elapsed);
+            total += elapsed;
+        }
+
+        long average = total / MEASUREMENT_ITERATIONS / PACKETS_PER_ITERATION;
+
+        Log.i(LOG_TAG, String.format(Locale.US, "%-15s %4d ns/packet avg, %4d ns/packet best",
+                name, average, best / PACKETS_PER_ITERATION));
+
+        return Math.max(1, average);
+    }
+
+}
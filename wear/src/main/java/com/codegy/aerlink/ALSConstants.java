@@ -14,5 +14,8 @@ public class ALSConstants {
     public static final String CHARACTERISTIC_REMINDERS_DATA       = "1e082d2c-c279-4f49-a63c-a70c74f562d6";
     public static final String CHARACTERISTIC_REMINDERS_ACTION     = "b708a912-5d7e-4baf-8a63-f915c6717050";
     public static final String CHARACTERISTIC_FIND_DEVICE          = "e476843e-02c9-4ac5-9ca8-6bda217b225f";
+    // Compared with the UUID of every packet received
+    public static final UUID CAMERA_REMOTE_DATA_UUID   = UUID.fromString(CHARACTERISTIC_CAMERA_REMOTE_DATA);
+    public static final UUID CAMERA_REMOTE_ACTION_UUID = UUID.fromString(CHARACTERISTIC_CAMERA_REMOTE_ACTION);
 
 }
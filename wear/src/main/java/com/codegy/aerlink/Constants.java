@@ -12,6 +12,10 @@ public class Constants {
     public static final String SPK_BATTERY_UPDATES             = "SPK_BATTERY_UPDATES";
     public static final String SPK_COMPLETE_BATTERY_INFO = "SPK_COMPLETE_BATTERY_INFO";
     public static final String SPK_REMINDERS_DATA               = "SPK_REMINDERS_DATA";
+    public static final String SPK_APP_PROFILES                 = "SPK_APP_PROFILES";
+    public static final String SPK_LAST_DEVICE                   = "SPK_LAST_DEVICE";
+    // Followed by the device address
+    public static final String SPK_DATABASE_HASH                = "SPK_DATABASE_HASH_";
 
     // Intent Actions
     public static final String IA_SERVICE_READY                         = "com.codegy.IA_SERVICE_READY";
@@ -25,6 +29,7 @@ public class Constants {
     public static final String IA_HIDE_MEDIA                               = "com.codegy.IA_HIDE_MEDIA";
     public static final String IA_HIDE_BATTERY                           = "com.codegy.IA_HIDE_BATTERY";
     public static final String IA_END_CALL                                   = "com.codegy.IA_END_CALL";
+    public static final String IA_EXPAND                                       = "com.codegy.IA_EXPAND";
 
     // Intent Extras
     public static final String IE_NOTIFICATION_UID         = "IE_NOTIFICATION_UID";
@@ -3,14 +3,12 @@ package com.codegy.aerlink;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.Service;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
 import android.content.*;
 import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.PowerManager;
-import android.os.Vibrator;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import com.codegy.aerlink.battery.BASConstants;
@@ -24,12 +22,17 @@ import com.codegy.aerlink.media.MediaServiceHandler;
 import com.codegy.aerlink.notifications.ANCSConstants;
 import com.codegy.aerlink.notifications.NotificationServiceHandler;
 import com.codegy.aerlink.reminders.ReminderServiceHandler;
+import com.codegy.aerlink.utils.BitmapCache;
+import com.codegy.aerlink.utils.CharacteristicDispatcher;
+import com.codegy.aerlink.utils.PacketQueue;
+import com.codegy.aerlink.utils.PowerBudget;
 import com.codegy.aerlink.utils.ServiceHandler;
 import com.codegy.aerlink.utils.ServiceUtils;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 
 public class MainService extends Service implements ServiceUtils, ConnectionHandlerCallback {
@@ -42,15 +45,21 @@ public class MainService extends Service implements ServiceUtils, ConnectionHand
     private IBinder mBinder = new ServiceBinder();
 
     private ConnectionHelper connectionHelper;
-    private ConnectionHandler connectionHandler;
+    private volatile ConnectionHandler connectionHandler;
     private NotificationManager notificationManager;
 
-    private Vibrator vibrator;
-    private PowerManager.WakeLock wakeLock;
+    private PowerBudget mPowerBudget;
 
     private boolean colorBackgrounds;
 
-    private List<ServiceHandler> mServiceHandlers;
+    // Service handlers parse packets and build notifications on their own thread, away from GATT and the UI
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+    private PacketQueue mPacketQueue;
+
+    // Only changed on the handler thread, read from the UI
+    private volatile List<ServiceHandler> mServiceHandlers;
+    private final CharacteristicDispatcher mCharacteristicDispatcher = new CharacteristicDispatcher();
 
 
     @Override
@@ -62,6 +71,22 @@ public class MainService extends Service implements ServiceUtils, ConnectionHand
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
         colorBackgrounds = sp.getBoolean(Constants.SPK_COLOR_BACKGROUNDS, true);
 
+        mPowerBudget = PowerBudget.getInstance(this);
+
+        mHandlerThread = new HandlerThread("ServiceHandlers");
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+        mPacketQueue = new PacketQueue(mHandlerThread.getLooper(), mCharacteristicDispatcher);
+
+        // The connection card and the first notifications shouldn't wait for a decode
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                BitmapCache.prewarm(MainService.this,
+                        new int[] { R.drawable.bg_texture },
+                        new int[] { 0, MediaServiceHandler.BACKGROUND_COLOR });
+            }
+        });
 
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(Constants.IA_TRY_CONNECTING);
@@ -80,11 +105,30 @@ public class MainService extends Service implements ServiceUtils, ConnectionHand
 
         stop();
 
+        // Lets the service handlers close first
+        mHandlerThread.quitSafely();
+
         getNotificationManager().cancelAll();
 
+        Log.i(LOG_TAG, "Power budget:\n" + mPowerBudget.getDiagnostics());
+
         super.onDestroy();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        BitmapCache.trimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+
+        BitmapCache.trimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         Log.v(LOG_TAG, "in onBind");
@@ -96,7 +140,7 @@ public class MainService extends Service implements ServiceUtils, ConnectionHand
         // Just in case, try to close everything
         stop();
 
-        mServiceHandlers = new ArrayList<>();
+        mServiceHandlers = new CopyOnWriteArrayList<>();
 
         connectionHandler = new ConnectionHandler(this, this);
     }
@@ -104,12 +148,22 @@ public class MainService extends Service implements ServiceUtils, ConnectionHand
     private void stop() {
         try {
             if (mServiceHandlers != null) {
-                for (ServiceHandler serviceHandler : mServiceHandlers) {
-                    serviceHandler.close();
-                }
-
-                mServiceHandlers.clear();
+                final List<ServiceHandler> serviceHandlers = mServiceHandlers;
                 mServiceHandlers = null;
+
+                mPacketQueue.clear();
+
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (ServiceHandler serviceHandler : serviceHandlers) {
+                            serviceHandler.close();
+                        }
+
+                        serviceHandlers.clear();
+                        mCharacteristicDispatcher.clear();
+                    }
+                });
             }
         }
         catch (Exception e) {
@@ -134,9 +188,10 @@ public class MainService extends Service implements ServiceUtils, ConnectionHand
 
     public ServiceHandler getServiceHandler(Class serviceHandlerClass) {
         ServiceHandler serviceHandler = null;
+        List<ServiceHandler> serviceHandlers = mServiceHandlers;
 
-        if (mServiceHandlers != null) {
-            for (ServiceHandler handler : mServiceHandlers) {
+        if (serviceHandlers != null) {
+            for (ServiceHandler handler : serviceHandlers) {
                 if (handler.getClass().equals(serviceHandlerClass)) {
                     serviceHandler = handler;
                     break;
@@ -158,11 +213,22 @@ public class MainService extends Service implements ServiceUtils, ConnectionHand
 
     @Override
     public void addCommandToQueue(Command command) {
+        ConnectionHandler connectionHandler = this.connectionHandler;
+
         if (connectionHandler != null) {
             connectionHandler.addCommandToQueue(command);
         }
     }
 
+    @Override
+    public void removeCommandFromQueue(Command command) {
+        ConnectionHandler connectionHandler = this.connectionHandler;
+
+        if (connectionHandler != null) {
+            connectionHandler.removeCommandFromQueue(command);
+        }
+    }
+
     @Override
     public void notify(String tag, int id, Notification notification) {
         getNotificationManager().notify(tag, id, notification);
@@ -174,25 +240,18 @@ public class MainService extends Service implements ServiceUtils, ConnectionHand
     }
 
     @Override
-    public void vibrate(long[] pattern, int repeat) {
-        if (vibrator == null) {
-            vibrator = (Vibrator) getSystemService(VIBRATOR_SERVICE);
-        }
-
-        vibrator.vibrate(pattern, repeat);
+    public boolean vibrate(PowerBudget.Reason reason, long[] pattern) {
+        return mPowerBudget.vibrate(reason, pattern);
     }
 
     @Override
-    public void wakeScreen() {
-        if (wakeLock == null) {
-            PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
-            wakeLock = powerManager.newWakeLock((PowerManager.SCREEN_BRIGHT_WAKE_LOCK | PowerManager.FULL_WAKE_LOCK | PowerManager.ACQUIRE_CAUSES_WAKEUP), "Aerlink_TAG");
-        }
+    public boolean requestVibration(PowerBudget.Reason reason, long[] pattern) {
+        return mPowerBudget.requestVibration(reason, pattern);
+    }
 
-        if (!wakeLock.isHeld()) {
-            Log.i(LOG_TAG, "Waking Screen");
-            wakeLock.acquire(SCREEN_TIME_OUT);
-        }
+    @Override
+    public boolean wakeScreen(PowerBudget.Reason reason) {
+        return mPowerBudget.wakeScreen(reason, SCREEN_TIME_OUT);
     }
 
     @Override
@@ -200,6 +259,18 @@ public class MainService extends Service implements ServiceUtils, ConnectionHand
         return colorBackgrounds;
     }
 
+    @Override
+    public int getMtu() {
+        ConnectionHandler connectionHandler = this.connectionHandler;
+
+        return connectionHandler != null ? connectionHandler.getMtu() : GattTransport.DEFAULT_MTU;
+    }
+
+    @Override
+    public Looper getLooper() {
+        return mHandlerThread.getLooper();
+    }
+
 
     @Override
     public void onConnectionStateChange(ConnectionHandler.ConnectionState state) {
@@ -226,67 +297,100 @@ public class MainService extends Service implements ServiceUtils, ConnectionHand
     }
 
     @Override
-    public void onReadyToSubscribe(BluetoothGatt bluetoothGatt) {
+    public void onReadyToSubscribe(final GattTransport transport) {
         Log.i(LOG_TAG, "Ready to Subscribe");
-        for (ServiceHandler handler : mServiceHandlers) {
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                prepareServiceHandlers(transport);
+            }
+        });
+    }
+
+    private void prepareServiceHandlers(GattTransport transport) {
+        ConnectionHandler connectionHandler = this.connectionHandler;
+        List<ServiceHandler> serviceHandlers = mServiceHandlers;
+
+        if (connectionHandler == null || serviceHandlers == null) {
+            // Stopped in the meantime
+            return;
+        }
+
+        for (ServiceHandler handler : serviceHandlers) {
             handler.reset();
         }
 
 
-        BluetoothGattService notificationService = bluetoothGatt.getService(ANCSConstants.SERVICE_UUID);
-        if (notificationService != null) {
+        if (transport.hasService(ANCSConstants.SERVICE_UUID)) {
             if (getServiceHandler(NotificationServiceHandler.class) == null) {
-                mServiceHandlers.add(new NotificationServiceHandler(this, this));
+                serviceHandlers.add(new NotificationServiceHandler(this, this));
             }
         }
-        BluetoothGattService mediaService = bluetoothGatt.getService(AMSConstants.SERVICE_UUID);
-        if (mediaService != null) {
+        if (transport.hasService(AMSConstants.SERVICE_UUID)) {
             if (getServiceHandler(MediaServiceHandler.class) == null) {
-                mServiceHandlers.add(new MediaServiceHandler(this, this));
+                serviceHandlers.add(new MediaServiceHandler(this, this));
             }
 
             Command trackCommand = new Command(AMSConstants.SERVICE_UUID, AMSConstants.CHARACTERISTIC_ENTITY_UPDATE, new byte[] {
                     AMSConstants.EntityIDTrack,
                     AMSConstants.TrackAttributeIDTitle,
-                    AMSConstants.TrackAttributeIDArtist
+                    AMSConstants.TrackAttributeIDArtist,
+                    AMSConstants.TrackAttributeIDAlbum,
+                    AMSConstants.TrackAttributeIDDuration
             });
             trackCommand.setImportance(Command.IMPORTANCE_MAX);
+            trackCommand.setPriority(Command.PRIORITY_MEDIA);
 
             Command playerCommand = new Command(AMSConstants.SERVICE_UUID, AMSConstants.CHARACTERISTIC_ENTITY_UPDATE, new byte[] {
                     AMSConstants.EntityIDPlayer,
-                    AMSConstants.PlayerAttributeIDPlaybackInfo
+                    AMSConstants.PlayerAttributeIDPlaybackInfo,
+                    AMSConstants.PlayerAttributeIDVolume,
+                    AMSConstants.PlayerAttributeIDName
             });
             playerCommand.setImportance(Command.IMPORTANCE_MAX);
+            playerCommand.setPriority(Command.PRIORITY_MEDIA);
+
+            Command queueCommand = new Command(AMSConstants.SERVICE_UUID, AMSConstants.CHARACTERISTIC_ENTITY_UPDATE, new byte[] {
+                    AMSConstants.EntityIDQueue,
+                    AMSConstants.QueueAttributeIDIndex,
+                    AMSConstants.QueueAttributeIDCount,
+                    AMSConstants.QueueAttributeIDShuffleMode,
+                    AMSConstants.QueueAttributeIDRepeatMode
+            });
+            queueCommand.setImportance(Command.IMPORTANCE_MAX);
+            queueCommand.setPriority(Command.PRIORITY_MEDIA);
 
 
             connectionHandler.addCommandToQueue(trackCommand);
             connectionHandler.addCommandToQueue(playerCommand);
+            connectionHandler.addCommandToQueue(queueCommand);
         }
-        BluetoothGattService batteryService = bluetoothGatt.getService(BASConstants.SERVICE_UUID);
-        if (batteryService != null) {
+        if (transport.hasService(BASConstants.SERVICE_UUID)) {
             if (getServiceHandler(BatteryServiceHandler.class) == null) {
-                mServiceHandlers.add(new BatteryServiceHandler(this, this));
+                serviceHandlers.add(new BatteryServiceHandler(this, this));
             }
         }
-        BluetoothGattService currentTimeService = bluetoothGatt.getService(CTSConstants.SERVICE_UUID);
-        if (currentTimeService != null) {
+        if (transport.hasService(CTSConstants.SERVICE_UUID)) {
             if (getServiceHandler(CurrentTimeServiceHandler.class) == null) {
-                mServiceHandlers.add(new CurrentTimeServiceHandler(this, this));
+                serviceHandlers.add(new CurrentTimeServiceHandler(this, this));
             }
         }
-        BluetoothGattService aerlinkService = bluetoothGatt.getService(ALSConstants.SERVICE_UUID);
-        if (aerlinkService != null) {
+        if (transport.hasService(ALSConstants.SERVICE_UUID)) {
             if (getServiceHandler(ReminderServiceHandler.class) == null) {
-                mServiceHandlers.add(new ReminderServiceHandler(this, this));
+                serviceHandlers.add(new ReminderServiceHandler(this, this));
             }
             if (getServiceHandler(CameraRemoteServiceHandler.class) == null) {
-                mServiceHandlers.add(new CameraRemoteServiceHandler(this, this));
+                serviceHandlers.add(new CameraRemoteServiceHandler(this, this));
             }
         }
 
         List<CharacteristicIdentifier> requests = new ArrayList<>();
+        mCharacteristicDispatcher.clear();
+
+        for (ServiceHandler serviceHandler : serviceHandlers) {
+            mCharacteristicDispatcher.register(serviceHandler);
 
-        for (ServiceHandler serviceHandler : mServiceHandlers) {
             UUID serviceUUID = serviceHandler.getServiceUUID();
             List<String> characteristics = serviceHandler.getCharacteristicsToSubscribe();
 
@@ -303,15 +407,9 @@ public class MainService extends Service implements ServiceUtils, ConnectionHand
     }
 
     @Override
-    public void onCharacteristicChanged(BluetoothGattCharacteristic characteristic) {
-        if (mServiceHandlers != null) {
-            for (ServiceHandler serviceHandler : mServiceHandlers) {
-                if (serviceHandler.canHandleCharacteristic(characteristic)) {
-                    serviceHandler.handleCharacteristic(characteristic);
-                    break;
-                }
-            }
-        }
+    public void onCharacteristicChanged(UUID characteristicUUID, byte[] value) {
+        // Called on the GATT I/O thread, handled on the service handler thread
+        mPacketQueue.offer(characteristicUUID, value);
     }
     
 
@@ -2,13 +2,15 @@ package com.codegy.aerlink.battery;
 
 import android.app.Notification;
 import android.app.PendingIntent;
-import android.bluetooth.BluetoothGattCharacteristic;
 import android.content.*;
 import android.graphics.Bitmap;
+import android.os.Handler;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import com.codegy.aerlink.Constants;
 import com.codegy.aerlink.R;
+import com.codegy.aerlink.utils.BitmapCache;
+import com.codegy.aerlink.utils.PowerBudget;
 import com.codegy.aerlink.utils.ServiceHandler;
 import com.codegy.aerlink.utils.ServiceUtils;
 
@@ -44,7 +46,8 @@ public class BatteryServiceHandler extends ServiceHandler {
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(Constants.IA_HIDE_BATTERY);
         intentFilter.addAction(Constants.IA_BATTERY_UPDATES_CHANGED);
-        context.registerReceiver(mBroadcastReceiver, intentFilter);
+        // Received on the service handler thread like the packets
+        context.registerReceiver(mBroadcastReceiver, intentFilter, null, new Handler(serviceUtils.getLooper()));
     }
 
 
@@ -70,19 +73,17 @@ public class BatteryServiceHandler extends ServiceHandler {
     }
 
     @Override
-    public boolean canHandleCharacteristic(BluetoothGattCharacteristic characteristic) {
-        String characteristicUUID = characteristic.getUuid().toString().toLowerCase();
-        return characteristicUUID.equals(BASConstants.CHARACTERISTIC_BATTERY_LEVEL);
-    }
+    public void handleCharacteristic(UUID characteristicUUID, byte[] value) {
+        if (value == null || value.length < 1) {
+            return;
+        }
 
-    @Override
-    public void handleCharacteristic(BluetoothGattCharacteristic characteristic) {
-        int newBatteryLevel = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
+        int newBatteryLevel = value[0] & 0xff;
         Log.d(LOG_TAG, "Battery level: " + newBatteryLevel);
 
         // If the battery is running down, vibrate at 20, 15, 10 and 5
         if (batteryLevel > newBatteryLevel && newBatteryLevel <= 20 && newBatteryLevel % 5 == 0) {
-            mServiceUtils.vibrate(SILENT_VIBRATION_PATTERN, -1);
+            mServiceUtils.vibrate(PowerBudget.Reason.Battery, SILENT_VIBRATION_PATTERN);
         }
 
         batteryLevel = newBatteryLevel;
@@ -103,8 +104,7 @@ public class BatteryServiceHandler extends ServiceHandler {
             return;
         }
 
-        Bitmap background = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
-        background.eraseColor(0);
+        Bitmap background = BitmapCache.getSolidColor(0);
 
         int batteryIcon;
 
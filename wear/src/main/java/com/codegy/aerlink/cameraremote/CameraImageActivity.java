@@ -21,7 +21,7 @@ public class CameraImageActivity extends Activity {
 
 
         if (getIntent() != null) {
-            final Bitmap cameraImage = getIntent().getParcelableExtra(Constants.IE_CAMERA_IMAGE);
+            final Bitmap cameraImage = CameraImageCache.get(getIntent().getIntExtra(Constants.IE_CAMERA_IMAGE, -1));
 
             if (cameraImage != null) {
                 final WatchViewStub stub = (WatchViewStub) findViewById(R.id.watch_view_stub);
@@ -47,9 +47,9 @@ public class CameraImageActivity extends Activity {
         super.onNewIntent(intent);
 
         if (intent != null) {
-            final Bitmap cameraImage = intent.getParcelableExtra(Constants.IE_CAMERA_IMAGE);
+            final Bitmap cameraImage = CameraImageCache.get(intent.getIntExtra(Constants.IE_CAMERA_IMAGE, -1));
 
-            if (cameraImage != null) {
+            if (cameraImage != null && mCameraImageView != null) {
                 mCameraImageView.setImageBitmap(cameraImage);
             }
         }
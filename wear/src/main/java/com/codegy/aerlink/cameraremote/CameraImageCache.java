@@ -0,0 +1,42 @@
+package com.codegy.aerlink.cameraremote;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+/**
+ * Keeps decoded camera images in memory so activities can share them by id,
+ * Bitmaps sent in an Intent are copied through Binder and limited in size.
+ */
+public class CameraImageCache {
+
+    // Size in bytes, a few sampled down images
+    private static final int MAX_SIZE = 4 * 1024 * 1024;
+
+
+    private static int sNextId = 0;
+    private static final LruCache<Integer, Bitmap> sImages = new LruCache<Integer, Bitmap>(MAX_SIZE) {
+        @Override
+        protected int sizeOf(Integer key, Bitmap value) {
+            return value.getByteCount();
+        }
+    };
+
+
+    /**
+     * @return the id to get the image back with
+     */
+    public static synchronized int put(Bitmap image) {
+        int id = sNextId++;
+        sImages.put(id, image);
+
+        return id;
+    }
+
+    /**
+     * @return the image, null if it was evicted or the id is unknown
+     */
+    public static synchronized Bitmap get(int id) {
+        return id >= 0 ? sImages.get(id) : null;
+    }
+
+}
@@ -0,0 +1,181 @@
+package com.codegy.aerlink.cameraremote;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+/**
+ * Decodes camera images on a background thread, sampled down to the size of the screen.
+ * Results are delivered on the main thread.
+ */
+public class CameraImageDecoder {
+
+    public interface DecoderCallback {
+        void onImageDecoded(Bitmap image, boolean partial);
+    }
+
+    private static final String LOG_TAG = CameraImageDecoder.class.getSimpleName();
+
+
+    private HandlerThread mDecoderThread;
+    private Handler mDecoderHandler;
+    private Handler mCallbackHandler;
+    private DecoderCallback mCallback;
+
+    private int mTargetWidth;
+    private int mTargetHeight;
+
+    // Increased for every image, partial results of an older image are dropped
+    private volatile int mImageNumber;
+    // Sample size of the current image, found with the first decode that can read its bounds
+    private int mSampleSize;
+    // Partial decodes are skipped while one is already waiting
+    private volatile boolean mPartialDecodePending;
+
+
+    public CameraImageDecoder(Context context, DecoderCallback callback) {
+        this.mCallback = callback;
+
+        DisplayMetrics displayMetrics = context.getResources().getDisplayMetrics();
+        mTargetWidth = displayMetrics.widthPixels;
+        mTargetHeight = displayMetrics.heightPixels;
+
+        mDecoderThread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mDecoderThread.start();
+
+        mDecoderHandler = new Handler(mDecoderThread.getLooper());
+        mCallbackHandler = new Handler(context.getMainLooper());
+    }
+
+    public void close() {
+        mCallback = null;
+        mDecoderThread.quit();
+    }
+
+    /**
+     * Call before feeding the data of a new image
+     */
+    public void startImage() {
+        mImageNumber++;
+
+        final int imageNumber = mImageNumber;
+        mDecoderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (imageNumber == mImageNumber) {
+                    mSampleSize = 0;
+                }
+            }
+        });
+    }
+
+    /**
+     * Decodes what has arrived of the image so far, missing scans are left blank.
+     * Ignored if the previous partial decode hasn't finished yet.
+     *
+     * @param data buffer of the image, the first length bytes must not change anymore
+     */
+    public void decodePartial(byte[] data, int length) {
+        if (mPartialDecodePending) {
+            return;
+        }
+
+        mPartialDecodePending = true;
+        decode(data, length, true);
+    }
+
+    /**
+     * @param data buffer of the complete image
+     */
+    public void decode(byte[] data, int length) {
+        decode(data, length, false);
+    }
+
+    private void decode(final byte[] data, final int length, final boolean partial) {
+        final int imageNumber = mImageNumber;
+
+        mDecoderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (partial) {
+                    mPartialDecodePending = false;
+                }
+
+                // Complete images are always decoded, they were queued before the next image started
+                if (partial && imageNumber != mImageNumber) {
+                    return;
+                }
+
+                final Bitmap image = decodeSampled(data, length);
+
+                if (image == null) {
+                    return;
+                }
+
+                mCallbackHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // A partial image is stale once another image started
+                        if (mCallback != null && (!partial || imageNumber == mImageNumber)) {
+                            mCallback.onImageDecoded(image, partial);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private Bitmap decodeSampled(byte[] data, int length) {
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+
+            if (mSampleSize == 0) {
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeByteArray(data, 0, length, options);
+
+                if (options.outWidth <= 0 || options.outHeight <= 0) {
+                    // Header not complete yet
+                    return null;
+                }
+
+                mSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, mTargetWidth, mTargetHeight);
+                Log.d(LOG_TAG, "Image " + options.outWidth + "x" + options.outHeight + ", sample size " + mSampleSize);
+
+                options.inJustDecodeBounds = false;
+            }
+
+            options.inSampleSize = mSampleSize;
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+
+            return BitmapFactory.decodeByteArray(data, 0, length, options);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the largest power of 2 that keeps both sides at least as big as requested
+     */
+    public static int calculateInSampleSize(int width, int height, int requestedWidth, int requestedHeight) {
+        int sampleSize = 1;
+
+        if (requestedWidth <= 0 || requestedHeight <= 0) {
+            return sampleSize;
+        }
+
+        while (width / (sampleSize * 2) >= requestedWidth && height / (sampleSize * 2) >= requestedHeight) {
+            sampleSize *= 2;
+        }
+
+        return sampleSize;
+    }
+
+}
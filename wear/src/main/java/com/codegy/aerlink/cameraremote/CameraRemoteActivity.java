@@ -3,7 +3,7 @@ package com.codegy.aerlink.cameraremote;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.os.Bundle;
-import android.os.PowerManager;
+import android.os.SystemClock;
 import android.support.wearable.view.WatchViewStub;
 import android.view.View;
 import android.widget.ImageView;
@@ -12,16 +12,21 @@ import android.widget.TextView;
 import com.codegy.aerlink.Constants;
 import com.codegy.aerlink.R;
 import com.codegy.aerlink.utils.AerlinkActivity;
+import com.codegy.aerlink.utils.PowerBudget;
 import com.codegy.aerlink.utils.ScheduledTask;
 
-public class CameraRemoteActivity extends AerlinkActivity implements CameraRemoteServiceHandler.CameraRemoteCallback {
+public class CameraRemoteActivity extends AerlinkActivity implements CameraRemoteServiceHandler.CameraRemoteCallback, ViewfinderDecoder.FrameCallback {
 
     private int mCountdown = 0;
+    // Viewfinder frame on screen, given back to the pool when the next one replaces it
+    private Bitmap mViewfinderFrame;
+    private boolean mReceivingImage;
 
     private ImageView mShutterImageView;
+    private ImageView mPreviewImageView;
     private TextView mCountdownTextView;
+    private TextView mViewfinderInfoTextView;
     private RelativeLayout mShutterRelativeLayout;
-    private PowerManager.WakeLock wakeLock;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -37,7 +42,9 @@ public class CameraRemoteActivity extends AerlinkActivity implements CameraRemot
                 tryToConnect();
 
                 mShutterImageView = (ImageView) stub.findViewById(R.id.shutterImageView);
+                mPreviewImageView = (ImageView) stub.findViewById(R.id.previewImageView);
                 mCountdownTextView = (TextView) stub.findViewById(R.id.countdownTextView);
+                mViewfinderInfoTextView = (TextView) stub.findViewById(R.id.viewfinderInfoTextView);
                 mShutterRelativeLayout = (RelativeLayout) stub.findViewById(R.id.shutterRelativeLayout);
                 mShutterRelativeLayout.setOnClickListener(new View.OnClickListener() {
                     @Override
@@ -72,26 +79,25 @@ public class CameraRemoteActivity extends AerlinkActivity implements CameraRemot
         try {
             mCountdownTextView.setVisibility(View.GONE);
             mShutterImageView.setVisibility(View.VISIBLE);
+            mPreviewImageView.setVisibility(View.GONE);
+            mPreviewImageView.setImageBitmap(null);
         }
         catch (Exception e) {
             e.printStackTrace();
         }
 
-        PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
+        PowerBudget.getInstance(this).acquireScreen(PowerBudget.Reason.Camera);
 
-        if (powerManager != null) {
-            wakeLock = powerManager.newWakeLock((PowerManager.SCREEN_BRIGHT_WAKE_LOCK | PowerManager.FULL_WAKE_LOCK | PowerManager.ACQUIRE_CAUSES_WAKEUP), "CameraRemoteActivity_TAG");
-            wakeLock.acquire();
-        }
+        startViewfinder();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
 
-        if (wakeLock != null) {
-            wakeLock.release();
-        }
+        stopViewfinder();
+
+        PowerBudget.getInstance(this).releaseScreen(PowerBudget.Reason.Camera);
     }
 
     @Override
@@ -103,6 +109,7 @@ public class CameraRemoteActivity extends AerlinkActivity implements CameraRemot
 
                 if (serviceHandler.isCameraOpen()) {
                     hideInfoTextView();
+                    startViewfinder();
                 } else {
                     showCameraClosed();
                 }
@@ -120,6 +127,7 @@ public class CameraRemoteActivity extends AerlinkActivity implements CameraRemot
     public void disconnect() {
         mCountdown = 0;
         cancelCountdownTask();
+        stopViewfinder();
 
         if (getService() != null) {
             CameraRemoteServiceHandler serviceHandler = (CameraRemoteServiceHandler) getService().getServiceHandler(CameraRemoteServiceHandler.class);
@@ -144,6 +152,63 @@ public class CameraRemoteActivity extends AerlinkActivity implements CameraRemot
         }
     }
 
+    private CameraRemoteServiceHandler getCameraServiceHandler() {
+        if (getService() == null) {
+            return null;
+        }
+
+        return (CameraRemoteServiceHandler) getService().getServiceHandler(CameraRemoteServiceHandler.class);
+    }
+
+    private void startViewfinder() {
+        CameraRemoteServiceHandler serviceHandler = getCameraServiceHandler();
+
+        if (serviceHandler != null && serviceHandler.isCameraOpen()) {
+            serviceHandler.startViewfinder(this);
+        }
+    }
+
+    private void stopViewfinder() {
+        CameraRemoteServiceHandler serviceHandler = getCameraServiceHandler();
+
+        if (serviceHandler != null) {
+            serviceHandler.stopViewfinder();
+        }
+
+        // The decoder is closed, the frame on screen is not reused anymore
+        mViewfinderFrame = null;
+
+        if (mViewfinderInfoTextView != null) {
+            mViewfinderInfoTextView.setVisibility(View.GONE);
+        }
+        if (mPreviewImageView != null && !mReceivingImage) {
+            mPreviewImageView.setImageBitmap(null);
+            mPreviewImageView.setVisibility(View.GONE);
+        }
+    }
+
+    @Override
+    public void onFrameDecoded(Bitmap frame, int sequence, long firstPacketTime) {
+        CameraRemoteServiceHandler serviceHandler = getCameraServiceHandler();
+
+        if (mPreviewImageView == null || serviceHandler == null || mReceivingImage) {
+            if (serviceHandler != null) {
+                serviceHandler.releaseViewfinderFrame(frame);
+            }
+
+            return;
+        }
+
+        mPreviewImageView.setImageBitmap(frame);
+        mPreviewImageView.setVisibility(View.VISIBLE);
+
+        serviceHandler.releaseViewfinderFrame(mViewfinderFrame);
+        mViewfinderFrame = frame;
+
+        mViewfinderInfoTextView.setText(serviceHandler.getViewfinderStats().getSummary(SystemClock.uptimeMillis()));
+        mViewfinderInfoTextView.setVisibility(View.VISIBLE);
+    }
+
     private void showCameraClosed() {
         showInfoText("Camare closed.\nStart the camera on \"Aerlink\" on your iOS device.");
         mCountdown = 0;
@@ -162,6 +227,7 @@ public class CameraRemoteActivity extends AerlinkActivity implements CameraRemot
     public void onCameraChangedOpen(boolean open) {
         if (open) {
             hideInfoTextView();
+            startViewfinder();
         }
         else {
             showCameraClosed();
@@ -198,19 +264,42 @@ public class CameraRemoteActivity extends AerlinkActivity implements CameraRemot
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
+                mReceivingImage = true;
+
                 mCountdownTextView.setVisibility(View.GONE);
                 mShutterImageView.setVisibility(View.GONE);
             }
         });
     }
 
+    @Override
+    public void onImagePreview(final Bitmap partialImage) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mPreviewImageView != null) {
+                    mPreviewImageView.setImageBitmap(partialImage);
+                    mPreviewImageView.setVisibility(View.VISIBLE);
+                }
+            }
+        });
+    }
+
     @Override
     public void onImageTransferFinished(final Bitmap cameraImage) {
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
+                mReceivingImage = false;
+
+                if (mPreviewImageView != null) {
+                    mPreviewImageView.setVisibility(View.GONE);
+                    mPreviewImageView.setImageBitmap(null);
+                }
+
+                // The image stays in this process, only its id goes in the Intent
                 Intent cameraImageIntent = new Intent(CameraRemoteActivity.this, CameraImageActivity.class);
-                cameraImageIntent.putExtra(Constants.IE_CAMERA_IMAGE, cameraImage);
+                cameraImageIntent.putExtra(Constants.IE_CAMERA_IMAGE, CameraImageCache.put(cameraImage));
                 startActivity(cameraImageIntent);
             }
         });
@@ -225,23 +314,20 @@ public class CameraRemoteActivity extends AerlinkActivity implements CameraRemot
                 public void run() {
                     mCountdown--;
 
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            if (mCountdown > 0) {
-                                mCountdownTextView.setText(Integer.toString(mCountdown));
-                                mCountdownTextView.setVisibility(View.VISIBLE);
-                                mShutterImageView.setVisibility(View.GONE);
+                    if (mCountdown > 0) {
+                        mCountdownTextView.setText(Integer.toString(mCountdown));
+                        mCountdownTextView.setVisibility(View.VISIBLE);
+                        mShutterImageView.setVisibility(View.GONE);
 
-                                scheduleCountdownTask();
-                            }
-                            else {
-                                mCountdownTextView.setVisibility(View.GONE);
-                            }
-                        }
-                    });
+                        scheduleCountdownTask();
+                    }
+                    else {
+                        mCountdownTextView.setVisibility(View.GONE);
+                    }
                 }
             });
+            // Scheduled again every second, any delay would add up on the countdown
+            mCountdownTask.setTolerance(0);
         }
         else {
             mCountdownTask.cancel();
@@ -1,8 +1,9 @@
 package com.codegy.aerlink.cameraremote;
 
-import android.bluetooth.BluetoothGattCharacteristic;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import com.codegy.aerlink.ALSConstants;
 import com.codegy.aerlink.connection.Command;
@@ -23,6 +24,7 @@ public class CameraRemoteServiceHandler extends ServiceHandler {
         void onCameraChangedOpen(boolean open);
         void onCountdownStarted(int countdown);
         void onImageTransferStarted();
+        void onImagePreview(Bitmap partialImage);
         void onImageTransferFinished(Bitmap cameraImage);
     }
 
@@ -30,6 +32,13 @@ public class CameraRemoteServiceHandler extends ServiceHandler {
 
     private static final int NOTIFICATION_CAMERA = 2001;
 
+    // A new preview is decoded every time this part of the image arrives, at least 2 KB
+    private static final int PREVIEW_STEPS = 8;
+    private static final int PREVIEW_MIN_BYTES = 2048;
+
+    // Written on the camera action characteristic followed by 0x01 to start the viewfinder or 0x00 to stop it
+    private static final byte ACTION_VIEWFINDER = 0x02;
+
 
     private Context mContext;
     private ServiceUtils mServiceUtils;
@@ -38,10 +47,38 @@ public class CameraRemoteServiceHandler extends ServiceHandler {
     private boolean cameraOpen = false;
     private PacketProcessor mPacketProcessor;
 
+    private CameraImageDecoder mImageDecoder;
+    private boolean progressivePreview = true;
+    // Image bytes that had arrived when the last preview was requested
+    private int mLastPreviewLength;
+
+    // The viewfinder is only touched on the service handler thread, where its packets arrive
+    private final Handler mHandler;
+    private final ViewfinderStats mViewfinderStats = new ViewfinderStats();
+    private ViewfinderFrameAssembler mViewfinderAssembler;
+    private ViewfinderDecoder mViewfinderDecoder;
+
 
     public CameraRemoteServiceHandler(Context context, ServiceUtils serviceUtils) {
         this.mContext = context;
         this.mServiceUtils = serviceUtils;
+
+        mHandler = new Handler(serviceUtils.getLooper());
+        mImageDecoder = new CameraImageDecoder(context, new CameraImageDecoder.DecoderCallback() {
+            @Override
+            public void onImageDecoded(Bitmap image, boolean partial) {
+                if (cameraRemoteCallback == null) {
+                    return;
+                }
+
+                if (partial) {
+                    cameraRemoteCallback.onImagePreview(image);
+                }
+                else {
+                    cameraRemoteCallback.onImageTransferFinished(image);
+                }
+            }
+        });
     }
 
 
@@ -50,10 +87,100 @@ public class CameraRemoteServiceHandler extends ServiceHandler {
                 (byte) 0x01,
         });
         cameraCommand.setImportance(Command.IMPORTANCE_MIN);
+        cameraCommand.setPriority(Command.PRIORITY_USER_ACTION);
 
         mServiceUtils.addCommandToQueue(cameraCommand);
     }
 
+    /**
+     * Asks the phone for a stream of low resolution frames, decoded frames go to the callback
+     * until stopViewfinder is called
+     */
+    public void startViewfinder(final ViewfinderDecoder.FrameCallback frameCallback) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                openViewfinder(frameCallback);
+            }
+        });
+    }
+
+    public void stopViewfinder() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeViewfinder();
+            }
+        });
+    }
+
+    /**
+     * Gives back a viewfinder frame once it has been replaced on screen
+     */
+    public void releaseViewfinderFrame(final Bitmap frame) {
+        if (frame == null) {
+            return;
+        }
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mViewfinderDecoder != null) {
+                    mViewfinderDecoder.releaseFrame(frame);
+                }
+                else {
+                    // Stopped, the pool is gone
+                    frame.recycle();
+                }
+            }
+        });
+    }
+
+    public ViewfinderStats getViewfinderStats() {
+        return mViewfinderStats;
+    }
+
+    private void openViewfinder(ViewfinderDecoder.FrameCallback frameCallback) {
+        closeViewfinder();
+
+        mViewfinderStats.reset();
+
+        ViewfinderDecoder viewfinderDecoder = new ViewfinderDecoder(mContext, mViewfinderStats, frameCallback);
+        ViewfinderFrameAssembler viewfinderAssembler = new ViewfinderFrameAssembler(mViewfinderStats, viewfinderDecoder);
+        viewfinderDecoder.setAssembler(viewfinderAssembler);
+
+        mViewfinderDecoder = viewfinderDecoder;
+        mViewfinderAssembler = viewfinderAssembler;
+
+        sendViewfinderCommand(true);
+    }
+
+    private void closeViewfinder() {
+        if (mViewfinderDecoder == null) {
+            return;
+        }
+
+        sendViewfinderCommand(false);
+
+        mViewfinderAssembler = null;
+        mViewfinderDecoder.close();
+        mViewfinderDecoder = null;
+
+        Log.d(LOG_TAG, "Viewfinder stopped, received: " + mViewfinderStats.getFramesReceived()
+                + " dropped: " + mViewfinderStats.getFramesDropped()
+                + " displayed: " + mViewfinderStats.getFramesDisplayed());
+    }
+
+    private void sendViewfinderCommand(boolean start) {
+        Command viewfinderCommand = new Command(ALSConstants.SERVICE_UUID, ALSConstants.CHARACTERISTIC_CAMERA_REMOTE_ACTION, new byte[] {
+                ACTION_VIEWFINDER,
+                (byte) (start ? 0x01 : 0x00)
+        });
+        viewfinderCommand.setPriority(Command.PRIORITY_USER_ACTION);
+
+        mServiceUtils.addCommandToQueue(viewfinderCommand);
+    }
+
     public void setCameraCallback(CameraRemoteCallback cameraRemoteCallback) {
         this.cameraRemoteCallback = cameraRemoteCallback;
     }
@@ -109,10 +236,30 @@ public class CameraRemoteServiceHandler extends ServiceHandler {
         return cameraOpen;
     }
 
+    /**
+     * @param progressivePreview true to show the image while it's still being received
+     */
+    public void setProgressivePreview(boolean progressivePreview) {
+        this.progressivePreview = progressivePreview;
+    }
+
+
+    @Override
+    public void close() {
+        reset();
+
+        mHandler.removeCallbacksAndMessages(null);
+        closeViewfinder();
+        mImageDecoder.close();
+    }
 
     @Override
     public void reset() {
         mPacketProcessor = null;
+
+        if (mViewfinderAssembler != null) {
+            mViewfinderAssembler.reset();
+        }
     }
 
     @Override
@@ -131,61 +278,66 @@ public class CameraRemoteServiceHandler extends ServiceHandler {
     }
 
     @Override
-    public boolean canHandleCharacteristic(BluetoothGattCharacteristic characteristic) {
-        String characteristicUUID = characteristic.getUuid().toString().toLowerCase();
-        return characteristicUUID.equals(ALSConstants.CHARACTERISTIC_CAMERA_REMOTE_DATA) | characteristicUUID.equals(ALSConstants.CHARACTERISTIC_CAMERA_REMOTE_ACTION);
-    }
-
-    @Override
-    public void handleCharacteristic(BluetoothGattCharacteristic characteristic) {
-        byte[] packet = characteristic.getValue();
-
-        switch (characteristic.getUuid().toString().toLowerCase()) {
-            case ALSConstants.CHARACTERISTIC_CAMERA_REMOTE_DATA:
-                if (mPacketProcessor == null) {
-                    mPacketProcessor = new PacketProcessor(packet);
+    public void handleCharacteristic(UUID characteristicUUID, byte[] packet) {
+        if (characteristicUUID.equals(ALSConstants.CAMERA_REMOTE_DATA_UUID)) {
+            // Viewfinder frames never interrupt a picture being received
+            if (mPacketProcessor == null && mViewfinderAssembler != null
+                    && mViewfinderAssembler.process(packet, SystemClock.uptimeMillis())) {
+                return;
+            }
+
+            if (mPacketProcessor == null) {
+                mPacketProcessor = new PacketProcessor(packet);
+
+                if (mPacketProcessor.getStatus() != 0x01) {
+                    mPacketProcessor = null;
+                }
+                else {
+                    mImageDecoder.startImage();
+                    mLastPreviewLength = 0;
 
-                    if (mPacketProcessor.getStatus() != 0x01) {
-                        mPacketProcessor = null;
-                    }
-                    else if (cameraRemoteCallback != null) {
+                    if (cameraRemoteCallback != null) {
                         cameraRemoteCallback.onImageTransferStarted();
                     }
                 }
-                else {
-                    mPacketProcessor.process(packet);
-                }
+            }
+            else {
+                mPacketProcessor.process(packet);
+            }
 
-                if (mPacketProcessor != null && mPacketProcessor.isFinished()) {
-                    Bitmap cameraImage = mPacketProcessor.getBitmapValue();
+            if (mPacketProcessor != null) {
+                int processedLength = mPacketProcessor.getProcessedLength();
 
-                    if (cameraImage != null && cameraRemoteCallback != null) {
-                        cameraRemoteCallback.onImageTransferFinished(cameraImage);
-                    }
+                if (mPacketProcessor.isFinished()) {
+                    // Decoded off this thread, the result comes through onImageDecoded
+                    mImageDecoder.decode(mPacketProcessor.getData(), processedLength);
 
                     mPacketProcessor = null;
                 }
-
-                break;
-            case ALSConstants.CHARACTERISTIC_CAMERA_REMOTE_ACTION:
-                try {
-                    switch (packet[0]) {
-                        case 0x01:
-                            setCameraOpen(packet[1] == 0x01);
-
-                            break;
-                        case 0x02:
-                            if (cameraRemoteCallback != null) {
-                                cameraRemoteCallback.onCountdownStarted(packet[1]);
-                            }
-                            break;
-                    }
+                else if (progressivePreview && cameraRemoteCallback != null
+                        && processedLength - mLastPreviewLength >= Math.max(PREVIEW_MIN_BYTES, mPacketProcessor.getLength() / PREVIEW_STEPS)) {
+                    mImageDecoder.decodePartial(mPacketProcessor.getData(), processedLength);
+                    mLastPreviewLength = processedLength;
                 }
-                catch (Exception e) {
-                    e.printStackTrace();
+            }
+        }
+        else if (characteristicUUID.equals(ALSConstants.CAMERA_REMOTE_ACTION_UUID)) {
+            try {
+                switch (packet[0]) {
+                    case 0x01:
+                        setCameraOpen(packet[1] == 0x01);
+
+                        break;
+                    case 0x02:
+                        if (cameraRemoteCallback != null) {
+                            cameraRemoteCallback.onCountdownStarted(packet[1]);
+                        }
+                        break;
                 }
-
-                break;
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
         }
     }
 
@@ -0,0 +1,234 @@
+package com.codegy.aerlink.cameraremote;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * Decodes viewfinder frames into two reused Bitmaps, one on screen and one being decoded.
+ *
+ * Only the newest frame waits to be decoded, older ones are dropped. When both Bitmaps are in use
+ * the frame waits until the screen releases the one it replaced.
+ */
+public class ViewfinderDecoder implements ViewfinderFrameAssembler.FrameListener {
+
+    public interface FrameCallback {
+        /**
+         * Called on the main thread, the frame shown before has to be given back with releaseFrame()
+         */
+        void onFrameDecoded(Bitmap frame, int sequence, long firstPacketTime);
+    }
+
+    private static final String LOG_TAG = ViewfinderDecoder.class.getSimpleName();
+
+    private static final int POOL_SIZE = 2;
+
+
+    private HandlerThread mDecoderThread;
+    private Handler mDecoderHandler;
+    private Handler mCallbackHandler;
+    // Null once closed, read on every thread
+    private volatile FrameCallback mCallback;
+
+    private ViewfinderFrameAssembler mAssembler;
+    private ViewfinderStats mStats;
+
+    private final ArrayDeque<Bitmap> mFreeBitmaps = new ArrayDeque<>();
+    private int mBitmapsCreated;
+
+    // Newest frame waiting to be decoded, guarded by this
+    private byte[] mPendingData;
+    private int mPendingLength;
+    private int mPendingSequence;
+    private long mPendingFirstPacketTime;
+    private boolean mDecodeScheduled;
+
+
+    public ViewfinderDecoder(Context context, ViewfinderStats stats, FrameCallback callback) {
+        this.mStats = stats;
+        this.mCallback = callback;
+
+        mDecoderThread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_DISPLAY);
+        mDecoderThread.start();
+
+        mDecoderHandler = new Handler(mDecoderThread.getLooper());
+        mCallbackHandler = new Handler(context.getMainLooper());
+    }
+
+    public void setAssembler(ViewfinderFrameAssembler assembler) {
+        this.mAssembler = assembler;
+    }
+
+    public void close() {
+        mCallback = null;
+        mDecoderThread.quit();
+
+        synchronized (this) {
+            mPendingData = null;
+
+            for (Bitmap bitmap : mFreeBitmaps) {
+                bitmap.recycle();
+            }
+            mFreeBitmaps.clear();
+        }
+    }
+
+    @Override
+    public void onFrameAssembled(int sequence, byte[] data, int length, long firstPacketTime) {
+        synchronized (this) {
+            if (mPendingData != null) {
+                // The decoder is behind, the waiting frame is already stale
+                mStats.onFrameDropped();
+                mAssembler.recycleBuffer(mPendingData);
+            }
+
+            mPendingData = data;
+            mPendingLength = length;
+            mPendingSequence = sequence;
+            mPendingFirstPacketTime = firstPacketTime;
+        }
+
+        scheduleDecode();
+    }
+
+    /**
+     * Gives back a frame that is not on screen anymore
+     */
+    public void releaseFrame(Bitmap frame) {
+        if (frame == null) {
+            return;
+        }
+
+        synchronized (this) {
+            if (mCallback == null) {
+                frame.recycle();
+                return;
+            }
+
+            mFreeBitmaps.add(frame);
+        }
+
+        scheduleDecode();
+    }
+
+    private void scheduleDecode() {
+        synchronized (this) {
+            if (mDecodeScheduled || mPendingData == null) {
+                return;
+            }
+
+            mDecodeScheduled = true;
+        }
+
+        mDecoderHandler.post(mDecodeRunnable);
+    }
+
+    private final Runnable mDecodeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            byte[] data;
+            int length;
+            final int sequence;
+            final long firstPacketTime;
+            Bitmap reusedBitmap = null;
+
+            synchronized (ViewfinderDecoder.this) {
+                mDecodeScheduled = false;
+
+                if (mPendingData == null) {
+                    return;
+                }
+
+                if (!mFreeBitmaps.isEmpty()) {
+                    reusedBitmap = mFreeBitmaps.poll();
+                }
+                else if (mBitmapsCreated >= POOL_SIZE) {
+                    // Both Bitmaps are in use, wait for releaseFrame
+                    return;
+                }
+
+                data = mPendingData;
+                length = mPendingLength;
+                sequence = mPendingSequence;
+                firstPacketTime = mPendingFirstPacketTime;
+                mPendingData = null;
+            }
+
+            final Bitmap frame = decode(data, length, reusedBitmap);
+            mAssembler.recycleBuffer(data);
+
+            if (frame == null) {
+                mStats.onFrameDropped();
+
+                if (reusedBitmap != null && !reusedBitmap.isRecycled()) {
+                    releaseFrame(reusedBitmap);
+                }
+
+                return;
+            }
+
+            mCallbackHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    FrameCallback callback = mCallback;
+
+                    if (callback != null) {
+                        mStats.onFrameDisplayed(firstPacketTime, SystemClock.uptimeMillis());
+                        callback.onFrameDecoded(frame, sequence, firstPacketTime);
+                    }
+                    else {
+                        // Decoded while closing, it was never shown
+                        frame.recycle();
+                    }
+                }
+            });
+
+            // A newer frame may have arrived while decoding
+            scheduleDecode();
+        }
+    };
+
+    private Bitmap decode(byte[] data, int length, Bitmap reusedBitmap) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        options.inBitmap = reusedBitmap;
+
+        try {
+            Bitmap frame = BitmapFactory.decodeByteArray(data, 0, length, options);
+
+            if (frame != null && reusedBitmap == null) {
+                synchronized (this) {
+                    mBitmapsCreated++;
+                }
+            }
+
+            return frame;
+        }
+        catch (IllegalArgumentException e) {
+            // Frame size changed and the old Bitmap can't hold it, the next frame gets a new one
+            Log.w(LOG_TAG, "Frame doesn't fit in the reused Bitmap");
+
+            if (reusedBitmap != null) {
+                reusedBitmap.recycle();
+
+                synchronized (this) {
+                    mBitmapsCreated--;
+                }
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+}
@@ -0,0 +1,170 @@
+package com.codegy.aerlink.cameraremote;
+
+import java.util.ArrayDeque;
+
+/**
+ * Puts together the viewfinder frames sent on the camera data characteristic.
+ *
+ * A frame starts with a header: status 0x02, sequence number (2 bytes) and length (2 bytes),
+ * both little endian, followed by the JPEG data in as many packets as the MTU requires, each
+ * one starting with status 0x03. Any other packet before the frame is complete, like the 0x01
+ * header of a picture, means part of the frame was lost and it's given up.
+ * Frames older than the last one assembled are dropped.
+ */
+public class ViewfinderFrameAssembler {
+
+    public interface FrameListener {
+        /**
+         * The listener owns the buffer until it gives it back with recycleBuffer()
+         */
+        void onFrameAssembled(int sequence, byte[] data, int length, long firstPacketTime);
+    }
+
+    public static final byte STATUS_FRAME = 0x02;
+    public static final byte STATUS_FRAME_DATA = 0x03;
+
+    // Status (1 byte) + Sequence number (2 bytes) + Length (2 bytes)
+    private static final int HEADER_LENGTH = 5;
+    // Status (1 byte)
+    private static final int DATA_HEADER_LENGTH = 1;
+
+
+    private FrameListener mListener;
+    private ViewfinderStats mStats;
+
+    // Buffers are handed to the listener and come back through recycleBuffer
+    private final ArrayDeque<byte[]> mFreeBuffers = new ArrayDeque<>();
+
+    private boolean mAssembling;
+    private byte[] mBuffer;
+    private int mLength;
+    private int mReceivedLength;
+    private int mSequence;
+    private long mFirstPacketTime;
+    private int mLastSequence = -1;
+
+
+    public ViewfinderFrameAssembler(ViewfinderStats stats, FrameListener listener) {
+        this.mStats = stats;
+        this.mListener = listener;
+    }
+
+    public static boolean isFrameHeader(byte[] packet) {
+        return packet != null && packet.length >= HEADER_LENGTH && packet[0] == STATUS_FRAME;
+    }
+
+    public boolean isAssembling() {
+        return mAssembling;
+    }
+
+    public void reset() {
+        if (mAssembling) {
+            mStats.onFrameDropped();
+        }
+
+        mAssembling = false;
+        mLastSequence = -1;
+    }
+
+    /**
+     * @return false if the packet is not part of a frame
+     */
+    public boolean process(byte[] packet, long now) {
+        if (packet == null || packet.length == 0) {
+            return false;
+        }
+
+        if (packet[0] == STATUS_FRAME_DATA) {
+            if (!mAssembling) {
+                // The header of this frame was lost
+                return true;
+            }
+
+            append(packet, DATA_HEADER_LENGTH);
+        }
+        else {
+            if (mAssembling) {
+                // Part of the frame was lost
+                mAssembling = false;
+                mStats.onFrameDropped();
+            }
+
+            if (!isFrameHeader(packet)) {
+                return false;
+            }
+
+            startFrame(packet, now);
+        }
+
+        if (mAssembling && mReceivedLength >= mLength) {
+            finishFrame();
+        }
+
+        return true;
+    }
+
+    public void recycleBuffer(byte[] buffer) {
+        synchronized (mFreeBuffers) {
+            // Assembling, pending and decoding
+            if (mFreeBuffers.size() < 3) {
+                mFreeBuffers.add(buffer);
+            }
+        }
+    }
+
+    private void startFrame(byte[] packet, long now) {
+        mSequence = (packet[1] & 0xff) | ((packet[2] & 0xff) << 8);
+        mLength = (packet[3] & 0xff) | ((packet[4] & 0xff) << 8);
+        mReceivedLength = 0;
+        mFirstPacketTime = now;
+        mAssembling = true;
+
+        if (mBuffer == null || mBuffer.length < mLength) {
+            mBuffer = obtainBuffer(mLength);
+        }
+
+        append(packet, HEADER_LENGTH);
+    }
+
+    private void append(byte[] packet, int offset) {
+        int bytesToCopy = Math.min(packet.length - offset, mLength - mReceivedLength);
+
+        if (bytesToCopy > 0) {
+            System.arraycopy(packet, offset, mBuffer, mReceivedLength, bytesToCopy);
+            mReceivedLength += bytesToCopy;
+        }
+    }
+
+    private void finishFrame() {
+        mAssembling = false;
+        mStats.onFrameReceived();
+
+        // Sequence numbers wrap around, a frame is old if it's up to half the range behind
+        if (mLastSequence != -1 && (((mSequence - mLastSequence) & 0xffff) >= 0x8000 || mSequence == mLastSequence)) {
+            mStats.onFrameDropped();
+            return;
+        }
+
+        mLastSequence = mSequence;
+
+        byte[] frame = mBuffer;
+        mBuffer = null;
+
+        mListener.onFrameAssembled(mSequence, frame, mLength, mFirstPacketTime);
+    }
+
+    private byte[] obtainBuffer(int length) {
+        synchronized (mFreeBuffers) {
+            while (!mFreeBuffers.isEmpty()) {
+                byte[] buffer = mFreeBuffers.poll();
+
+                if (buffer.length >= length) {
+                    return buffer;
+                }
+            }
+        }
+
+        return new byte[length];
+    }
+
+}
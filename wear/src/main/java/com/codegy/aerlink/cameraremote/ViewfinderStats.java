@@ -0,0 +1,87 @@
+package com.codegy.aerlink.cameraremote;
+
+import java.util.Locale;
+
+/**
+ * Frame rate and latency of the viewfinder, latency goes from the first packet of a frame to it being shown
+ */
+public class ViewfinderStats {
+
+    // Frames per second are counted over this window
+    private static final long WINDOW = 2000;
+    private static final int MAX_FRAMES_IN_WINDOW = 64;
+
+
+    private final long[] mDisplayTimes = new long[MAX_FRAMES_IN_WINDOW];
+    private int mDisplayTimesStart;
+    private int mDisplayTimesCount;
+
+    private int mFramesReceived;
+    private int mFramesDropped;
+    private int mFramesDisplayed;
+    private long mAverageLatency = -1;
+
+
+    public synchronized void onFrameReceived() {
+        mFramesReceived++;
+    }
+
+    public synchronized void onFrameDropped() {
+        mFramesDropped++;
+    }
+
+    public synchronized void onFrameDisplayed(long firstPacketTime, long now) {
+        mFramesDisplayed++;
+
+        long latency = now - firstPacketTime;
+        // Smoothed so the overlay doesn't jump with every frame
+        mAverageLatency = mAverageLatency < 0 ? latency : (mAverageLatency * 7 + latency) / 8;
+
+        if (mDisplayTimesCount == MAX_FRAMES_IN_WINDOW) {
+            mDisplayTimesStart = (mDisplayTimesStart + 1) % MAX_FRAMES_IN_WINDOW;
+            mDisplayTimesCount--;
+        }
+
+        mDisplayTimes[(mDisplayTimesStart + mDisplayTimesCount) % MAX_FRAMES_IN_WINDOW] = now;
+        mDisplayTimesCount++;
+    }
+
+    public synchronized float getFramesPerSecond(long now) {
+        while (mDisplayTimesCount > 0 && now - mDisplayTimes[mDisplayTimesStart] > WINDOW) {
+            mDisplayTimesStart = (mDisplayTimesStart + 1) % MAX_FRAMES_IN_WINDOW;
+            mDisplayTimesCount--;
+        }
+
+        return mDisplayTimesCount * 1000f / WINDOW;
+    }
+
+    public synchronized long getAverageLatency() {
+        return mAverageLatency;
+    }
+
+    public synchronized int getFramesReceived() {
+        return mFramesReceived;
+    }
+
+    public synchronized int getFramesDropped() {
+        return mFramesDropped;
+    }
+
+    public synchronized int getFramesDisplayed() {
+        return mFramesDisplayed;
+    }
+
+    public synchronized void reset() {
+        mDisplayTimesStart = 0;
+        mDisplayTimesCount = 0;
+        mFramesReceived = 0;
+        mFramesDropped = 0;
+        mFramesDisplayed = 0;
+        mAverageLatency = -1;
+    }
+
+    public String getSummary(long now) {
+        return String.format(Locale.US, "%.1f fps  %d ms", getFramesPerSecond(now), Math.max(0, getAverageLatency()));
+    }
+
+}
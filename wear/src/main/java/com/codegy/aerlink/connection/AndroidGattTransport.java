@@ -0,0 +1,323 @@
+package com.codegy.aerlink.connection;
+
+import android.bluetooth.*;
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * GattTransport backed by the Android Bluetooth stack.
+ * The stack calls back on a binder thread, every callback is posted to the handler given.
+ */
+public class AndroidGattTransport implements GattTransport {
+
+    private static final String LOG_TAG = AndroidGattTransport.class.getSimpleName();
+
+    private static final UUID DESCRIPTOR_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+
+    private Context mContext;
+    private BluetoothDevice mDevice;
+    private volatile BluetoothGatt mBluetoothGatt;
+    private volatile Callback mCallback;
+    private Handler mHandler;
+    // Waits in the background until the device is in range instead of failing after a while
+    private boolean mAutoConnect;
+
+
+    public AndroidGattTransport(Context context, BluetoothDevice device, Handler handler) {
+        this(context, device, handler, false);
+    }
+
+    public AndroidGattTransport(Context context, BluetoothDevice device, Handler handler, boolean autoConnect) {
+        this.mContext = context;
+        this.mDevice = device;
+        this.mHandler = handler;
+        this.mAutoConnect = autoConnect;
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    @Override
+    public void connect(Callback callback) {
+        this.mCallback = callback;
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCallback != null) {
+                    mBluetoothGatt = mDevice.connectGatt(mContext, mAutoConnect, mBluetoothGattCallback);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        mCallback = null;
+
+        try {
+            if (mBluetoothGatt != null) {
+                mBluetoothGatt.close();
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+        finally {
+            mBluetoothGatt = null;
+        }
+    }
+
+    @Override
+    public boolean reconnect() {
+        BluetoothGatt bluetoothGatt = mBluetoothGatt;
+
+        // Only a bonded device can be trusted to come back with the same services
+        if (bluetoothGatt == null || mCallback == null || mDevice.getBondState() != BluetoothDevice.BOND_BONDED) {
+            return false;
+        }
+
+        // Always a background connection, the discovered services are kept
+        return bluetoothGatt.connect();
+    }
+
+    @Override
+    public String getDeviceName() {
+        return mDevice.getName();
+    }
+
+    @Override
+    public String getDeviceAddress() {
+        return mDevice.getAddress();
+    }
+
+    @Override
+    public boolean isBonding() {
+        return mDevice.getBondState() == BluetoothDevice.BOND_BONDING;
+    }
+
+    @Override
+    public void recreateBond() {
+        Log.d(LOG_TAG, mDevice.getName() + ": Unpairing...");
+
+        try {
+            Method m = mDevice.getClass().getMethod("removeBond", (Class[]) null);
+            m.invoke(mDevice, (Object[]) null);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        mDevice.createBond();
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return mBluetoothGatt != null && mBluetoothGatt.discoverServices();
+    }
+
+    @Override
+    public boolean hasService(UUID serviceUUID) {
+        return mBluetoothGatt != null && mBluetoothGatt.getService(serviceUUID) != null;
+    }
+
+    @Override
+    public boolean hasCachedServices() {
+        BluetoothGatt bluetoothGatt = mBluetoothGatt;
+
+        if (bluetoothGatt == null) {
+            return false;
+        }
+
+        List<BluetoothGattService> services = bluetoothGatt.getServices();
+
+        return services != null && !services.isEmpty();
+    }
+
+    @Override
+    public boolean refreshServices() {
+        BluetoothGatt bluetoothGatt = mBluetoothGatt;
+
+        if (bluetoothGatt == null) {
+            return false;
+        }
+
+        // Hidden, clears the cache the stack keeps for bonded devices too
+        try {
+            Method m = bluetoothGatt.getClass().getMethod("refresh", (Class[]) null);
+            return (Boolean) m.invoke(bluetoothGatt, (Object[]) null);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        return false;
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        return mBluetoothGatt != null && mBluetoothGatt.requestMtu(mtu);
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(UUID serviceUUID, UUID characteristicUUID, boolean enable) {
+        BluetoothGattCharacteristic characteristic = getCharacteristic(serviceUUID, characteristicUUID);
+
+        if (characteristic == null) {
+            return false;
+        }
+
+        mBluetoothGatt.setCharacteristicNotification(characteristic, enable);
+
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(DESCRIPTOR_CONFIG);
+
+        if (descriptor == null) {
+            return false;
+        }
+
+        descriptor.setValue(enable ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+
+        return mBluetoothGatt.writeDescriptor(descriptor);
+    }
+
+    @Override
+    public boolean writeCharacteristic(UUID serviceUUID, UUID characteristicUUID, byte[] value) {
+        BluetoothGattCharacteristic characteristic = getCharacteristic(serviceUUID, characteristicUUID);
+
+        if (characteristic == null) {
+            return false;
+        }
+
+        characteristic.setValue(value);
+
+        return mBluetoothGatt.writeCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean readCharacteristic(UUID serviceUUID, UUID characteristicUUID) {
+        BluetoothGattCharacteristic characteristic = getCharacteristic(serviceUUID, characteristicUUID);
+
+        return characteristic != null && mBluetoothGatt.readCharacteristic(characteristic);
+    }
+
+
+    private BluetoothGattCharacteristic getCharacteristic(UUID serviceUUID, UUID characteristicUUID) {
+        if (mBluetoothGatt == null) {
+            return null;
+        }
+
+        BluetoothGattService service = mBluetoothGatt.getService(serviceUUID);
+
+        if (service == null) {
+            return null;
+        }
+
+        return service.getCharacteristic(characteristicUUID);
+    }
+
+    private final BluetoothGattCallback mBluetoothGattCallback = new BluetoothGattCallback() {
+
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, final int status, final int newState) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCallback != null) {
+                        mCallback.onConnectionStateChange(status, newState);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, final int status) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCallback != null) {
+                        mCallback.onServicesDiscovered(status);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, final int mtu, final int status) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCallback != null) {
+                        mCallback.onMtuChanged(mtu, status);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, final int status) {
+            final UUID characteristicUUID = descriptor.getCharacteristic().getUuid();
+
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCallback != null) {
+                        mCallback.onDescriptorWrite(characteristicUUID, status);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, final int status) {
+            final UUID characteristicUUID = characteristic.getUuid();
+
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCallback != null) {
+                        mCallback.onCharacteristicWrite(characteristicUUID, status);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, final int status) {
+            final UUID characteristicUUID = characteristic.getUuid();
+            final byte[] value = characteristic.getValue();
+
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCallback != null) {
+                        mCallback.onCharacteristicRead(characteristicUUID, value, status);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            // The stack sets a new array for every packet, taken here before the next one arrives
+            final UUID characteristicUUID = characteristic.getUuid();
+            final byte[] value = characteristic.getValue();
+
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCallback != null) {
+                        mCallback.onCharacteristicChanged(characteristicUUID, value);
+                    }
+                }
+            });
+        }
+    };
+
+}
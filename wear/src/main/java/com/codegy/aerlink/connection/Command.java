@@ -12,11 +12,22 @@ public class Command {
     public static final int IMPORTANCE_NORMAL = 3;
     public static final int IMPORTANCE_MAX = 500;
 
+    // Lanes of the command scheduler, lower values are sent first
+    public static final int PRIORITY_USER_ACTION = 0;
+    public static final int PRIORITY_NOTIFICATION = 1;
+    public static final int PRIORITY_MEDIA = 2;
+
     private UUID serviceUUID;
     private String characteristic;
     private byte[] packet;
     private int retryCount = 0;
     private int importance = IMPORTANCE_NORMAL;
+    private int priority = PRIORITY_NOTIFICATION;
+    // The characteristic is read once the write succeeds, its value is the response
+    private boolean readAfterWrite;
+    // Times used by the scheduler
+    private long queuedTime;
+    private long notBeforeTime;
     //private int writeType = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
 
     public Command(UUID serviceUUID, String characteristic, byte[] packet) {
@@ -45,6 +56,38 @@ public class Command {
         this.importance = importance;
     }
 
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public boolean shouldReadAfterWrite() {
+        return readAfterWrite;
+    }
+
+    public void setReadAfterWrite(boolean readAfterWrite) {
+        this.readAfterWrite = readAfterWrite;
+    }
+
+    long getQueuedTime() {
+        return queuedTime;
+    }
+
+    void setQueuedTime(long queuedTime) {
+        this.queuedTime = queuedTime;
+    }
+
+    long getNotBeforeTime() {
+        return notBeforeTime;
+    }
+
+    void setNotBeforeTime(long notBeforeTime) {
+        this.notBeforeTime = notBeforeTime;
+    }
+
     /*
     public int getWriteType() {
         return writeType;
@@ -77,4 +120,12 @@ public class Command {
         }
         return false;
     }
+
+    @Override
+    public int hashCode() {
+        int result = serviceUUID.hashCode();
+        result = 31 * result + characteristic.hashCode();
+        result = 31 * result + Arrays.hashCode(packet);
+        return result;
+    }
 }
@@ -0,0 +1,263 @@
+package com.codegy.aerlink.connection;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Orders the commands waiting to be written.
+ *
+ * Every priority has its own lane and lanes are drained in priority order.
+ * A failed command waits an exponential backoff with jitter before being sent again
+ * but it doesn't block the commands behind it.
+ * Commands outside the user action lane are coalesced with equal queued commands.
+ *
+ * All times are given by the caller, so it doesn't depend on any clock.
+ */
+public class CommandScheduler {
+
+    private static final int LANE_COUNT = Command.PRIORITY_MEDIA + 1;
+
+    static final long BACKOFF_BASE = 100;
+    static final long BACKOFF_MAX = 1600;
+
+
+    private final ArrayDeque<Command>[] mLanes;
+    // How many equal commands are queued, the user action lane can have more than one
+    private final Map<Command, Integer> mQueuedCommands = new HashMap<>();
+    private final Random mRandom;
+
+    // Metrics
+    private int mCoalescedCount = 0;
+    private final int[] mSentCount = new int[LANE_COUNT];
+    private final long[] mTotalWaitTime = new long[LANE_COUNT];
+    private final long[] mMaxWaitTime = new long[LANE_COUNT];
+
+
+    public CommandScheduler() {
+        this(new Random());
+    }
+
+    @SuppressWarnings("unchecked")
+    public CommandScheduler(Random random) {
+        this.mRandom = random;
+
+        mLanes = new ArrayDeque[LANE_COUNT];
+        for (int i = 0; i < LANE_COUNT; i++) {
+            mLanes[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Queues a command
+     *
+     * @return false if an equal command was already queued and this one was dropped
+     */
+    public boolean add(Command command, long now) {
+        int lane = getLane(command);
+
+        if (lane != Command.PRIORITY_USER_ACTION && mQueuedCommands.containsKey(command)) {
+            mCoalescedCount++;
+            return false;
+        }
+
+        command.setQueuedTime(now);
+        command.setNotBeforeTime(now);
+
+        mLanes[lane].add(command);
+        addQueued(command);
+
+        return true;
+    }
+
+    /**
+     * Queues again a command whose write failed, if it has retries left
+     *
+     * @return true if the command will be sent again
+     */
+    public boolean retry(Command command, long now) {
+        if (!command.shouldRetryAgain()) {
+            return false;
+        }
+
+        int lane = getLane(command);
+
+        if (lane != Command.PRIORITY_USER_ACTION && mQueuedCommands.containsKey(command)) {
+            // An equal command was queued meanwhile, it will be sent instead
+            mCoalescedCount++;
+            return true;
+        }
+
+        command.setNotBeforeTime(now + getBackoff(command.getRetryCount()));
+
+        // Keep its turn in the lane
+        mLanes[lane].addFirst(command);
+        addQueued(command);
+
+        return true;
+    }
+
+    /**
+     * Removes the command that should be written now
+     *
+     * @return the first ready command of the highest priority lane or null if none is ready
+     */
+    public Command next(long now) {
+        for (int lane = 0; lane < LANE_COUNT; lane++) {
+            Iterator<Command> iterator = mLanes[lane].iterator();
+
+            while (iterator.hasNext()) {
+                Command command = iterator.next();
+
+                if (command.getNotBeforeTime() <= now) {
+                    iterator.remove();
+                    removeQueued(command);
+
+                    long waitTime = now - command.getQueuedTime();
+                    mSentCount[lane]++;
+                    mTotalWaitTime[lane] += waitTime;
+                    mMaxWaitTime[lane] = Math.max(mMaxWaitTime[lane], waitTime);
+
+                    return command;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the time to wait until a command is ready, 0 if one is ready now or -1 if the queue is empty
+     */
+    public long getDelayUntilNextCommand(long now) {
+        long delay = -1;
+
+        for (ArrayDeque<Command> lane : mLanes) {
+            for (Command command : lane) {
+                long commandDelay = Math.max(0, command.getNotBeforeTime() - now);
+
+                if (delay == -1 || commandDelay < delay) {
+                    delay = commandDelay;
+                }
+            }
+        }
+
+        return delay;
+    }
+
+    /**
+     * Removes a queued command that is not needed anymore
+     *
+     * @return false if it wasn't queued, it may be being written
+     */
+    public boolean remove(Command command) {
+        if (!removeQueued(command)) {
+            return false;
+        }
+
+        // An equal copy in the user action lane is as good as this one
+        mLanes[getLane(command)].remove(command);
+
+        return true;
+    }
+
+    public void clear() {
+        for (ArrayDeque<Command> lane : mLanes) {
+            lane.clear();
+        }
+
+        mQueuedCommands.clear();
+    }
+
+    public boolean isEmpty() {
+        return mQueuedCommands.isEmpty();
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+
+        for (ArrayDeque<Command> lane : mLanes) {
+            depth += lane.size();
+        }
+
+        return depth;
+    }
+
+    public int getQueueDepth(int priority) {
+        return mLanes[priority].size();
+    }
+
+    public int getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    public int getSentCount(int priority) {
+        return mSentCount[priority];
+    }
+
+    public long getAverageWaitTime(int priority) {
+        return mSentCount[priority] > 0 ? mTotalWaitTime[priority] / mSentCount[priority] : 0;
+    }
+
+    public long getMaxWaitTime(int priority) {
+        return mMaxWaitTime[priority];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("Queue depth: ").append(getQueueDepth())
+                .append(", coalesced: ").append(mCoalescedCount);
+
+        for (int lane = 0; lane < LANE_COUNT; lane++) {
+            builder.append(" | lane ").append(lane)
+                    .append(": sent ").append(mSentCount[lane])
+                    .append(", avg wait ").append(getAverageWaitTime(lane))
+                    .append(" ms, max wait ").append(mMaxWaitTime[lane]).append(" ms");
+        }
+
+        return builder.toString();
+    }
+
+
+    private void addQueued(Command command) {
+        Integer count = mQueuedCommands.get(command);
+
+        mQueuedCommands.put(command, count != null ? count + 1 : 1);
+    }
+
+    /**
+     * @return false if no equal command was queued
+     */
+    private boolean removeQueued(Command command) {
+        Integer count = mQueuedCommands.get(command);
+
+        if (count == null) {
+            return false;
+        }
+
+        if (count > 1) {
+            mQueuedCommands.put(command, count - 1);
+        }
+        else {
+            mQueuedCommands.remove(command);
+        }
+
+        return true;
+    }
+
+    private int getLane(Command command) {
+        return Math.max(0, Math.min(LANE_COUNT - 1, command.getPriority()));
+    }
+
+    private long getBackoff(int retryCount) {
+        // The first retry waits the base backoff
+        long backoff = BACKOFF_BASE << Math.max(0, Math.min(retryCount - 1, 4));
+        backoff = Math.min(backoff, BACKOFF_MAX);
+
+        // Jitter between half and the whole backoff
+        return backoff / 2 + (long) (mRandom.nextDouble() * (backoff / 2));
+    }
+
+}
@@ -3,22 +3,28 @@ package com.codegy.aerlink.connection;
 import android.bluetooth.*;
 import android.content.Context;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import com.codegy.aerlink.battery.BASConstants;
 import com.codegy.aerlink.currenttime.CTSConstants;
 import com.codegy.aerlink.utils.ScheduledTask;
 
-import java.lang.reflect.Method;
 import java.util.*;
 
 /**
  * Created by Guiye on 18/5/15.
+ *
+ * The connection state is only touched on its own I/O thread, public methods can be called from any thread.
  */
 public class ConnectionHandler implements DiscoveryHelper.DiscoveryCallback {
 
     private static final String LOG_TAG = ConnectionHandler.class.getSimpleName();
 
-    private static final String DESCRIPTOR_CONFIG = "00002902-0000-1000-8000-00805f9b34fb";
+    // Time to wait for the result of a write before considering it failed
+    private static final long WRITE_TIMEOUT = 1600;
 
 
     public enum ConnectionState {
@@ -37,13 +43,36 @@ public class ConnectionHandler implements DiscoveryHelper.DiscoveryCallback {
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
 
-    private ConnectionState state;
+    private HandlerThread mIoThread;
+    private Handler mIoHandler;
+
+    private volatile ConnectionState state;
 
     private int mBondsFailed = 0;
-    private int mConnectionsFailed = 0;
+    private final ConnectionRecovery mRecovery;
+
+    private volatile int mMtu = GattTransport.DEFAULT_MTU;
+    private boolean mNegotiatingMtu;
+
+    private final GattCache mGattCache;
+    // Waiting for the last phone in the background, the state stays Disconnected meanwhile
+    private boolean mAutoConnecting;
+    // Services of this connection were discovered, not kept from the previous one
+    private boolean mServicesDiscovered;
+    private boolean mServicesRefreshed;
+    private boolean mReadingDatabaseHash;
+    // The current command was written and its response is being read
+    private boolean mReadingCommandResponse;
+
+    // Reconnect metrics, from losing the phone (or starting) until ready
+    private long mDisconnectedAt;
+    private int mReconnectCount;
+    private int mFastReconnectCount;
+    private long mTotalReconnectTime;
+    private long mLastReconnectTime;
 
     private Command mCurrentCommand;
-    private List<Command> pendingCommands = new ArrayList<>();
+    private CommandScheduler mCommandScheduler = new CommandScheduler();
     private List<CharacteristicIdentifier> subscribeRequests;
     private List<CharacteristicIdentifier> readRequests;
 
@@ -52,6 +81,14 @@ public class ConnectionHandler implements DiscoveryHelper.DiscoveryCallback {
         this.mContext = context;
         this.mCallback = callback;
 
+        mIoThread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_FOREGROUND);
+        mIoThread.start();
+        mIoHandler = new Handler(mIoThread.getLooper());
+
+        mGattCache = new GattCache(context);
+        mRecovery = new ConnectionRecovery(mRecoveryActions);
+        mDisconnectedAt = SystemClock.elapsedRealtime();
+
         mBluetoothManager = (BluetoothManager) mContext.getSystemService(Context.BLUETOOTH_SERVICE);
 
         // Checks if Bluetooth is supported on the device.
@@ -65,12 +102,19 @@ public class ConnectionHandler implements DiscoveryHelper.DiscoveryCallback {
             }
 
             // Start by checking for bonded device
-            checkForBondedDevice();
+            runOnIoThread(new Runnable() {
+                @Override
+                public void run() {
+                    checkForBondedDevice();
+                }
+            });
         }
         else {
             Log.w(LOG_TAG, "Bluetooth not supported");
 
             setState(ConnectionState.NoBluetooth);
+
+            mIoThread.quitSafely();
         }
     }
 
@@ -90,28 +134,121 @@ public class ConnectionHandler implements DiscoveryHelper.DiscoveryCallback {
     }
 
 
+    /**
+     * @return the MTU negotiated for the current connection, a packet carries up to MTU - 3 bytes
+     */
+    public int getMtu() {
+        return mMtu;
+    }
+
+
+    public int getReconnectCount() {
+        return mReconnectCount;
+    }
+
+    /**
+     * @return reconnections that skipped service discovery because the database hash didn't change
+     */
+    public int getFastReconnectCount() {
+        return mFastReconnectCount;
+    }
+
+    public long getAverageReconnectTime() {
+        return mReconnectCount > 0 ? mTotalReconnectTime / mReconnectCount : 0;
+    }
+
+    public long getLastReconnectTime() {
+        return mLastReconnectTime;
+    }
+
+    /**
+     * Only to be used on the I/O thread
+     */
+    public ConnectionRecovery getRecovery() {
+        return mRecovery;
+    }
+
+
+    /**
+     * Runs the task on the I/O thread, right away if already on it
+     */
+    private void runOnIoThread(Runnable task) {
+        if (Looper.myLooper() == mIoHandler.getLooper()) {
+            task.run();
+        }
+        else {
+            mIoHandler.post(task);
+        }
+    }
+
+
     private void checkForBondedDevice() {
         Log.i(LOG_TAG, "Checking for previously bonded device");
 
         if (mDiscoveryHelper == null) {
-            mDiscoveryHelper = new DiscoveryHelper(mContext, this);
-        }
-/*
-        if (getBondedDevice() == null) {
-            // No previously bonded device, start bonding activity
-*/
-            mDiscoveryHelper.startScanningAndAdvertising();
-            /*
+            mDiscoveryHelper = new DiscoveryHelper(mContext, this, mIoHandler.getLooper());
         }
-        else {
-            mDiscoveryHelper.startScanningAndAdvertising();
+
+        if (mTransport == null) {
+            BluetoothDevice bondedDevice = getBondedDevice();
+
+            if (bondedDevice != null) {
+                // Connects as soon as the phone is in range, without waiting for the scan
+                Log.i(LOG_TAG, "Waiting for bonded device: " + bondedDevice.getAddress());
+
+                mTransport = new AndroidGattTransport(mContext, bondedDevice, mIoHandler, true);
+                mAutoConnecting = true;
+                mTransport.connect(mTransportCallback);
+            }
         }
-        */
+
+        // Still looks for it, in case the phone changed or the bond was lost
+        mDiscoveryHelper.startScanningAndAdvertising();
     }
 
+    /**
+     * Waits for the same phone in the background, or looks for it from scratch if the transport can't
+     */
+    private void onDisconnected() {
+        GattTransport transport = mTransport;
+        // Kept away from reset
+        mTransport = null;
+
+        if (mDisconnectedAt == -1) {
+            mDisconnectedAt = SystemClock.elapsedRealtime();
+        }
+
+        reset();
+
+        if (transport != null) {
+            if (transport.reconnect()) {
+                Log.i(LOG_TAG, "Reconnecting in the background");
+
+                mTransport = transport;
+                mAutoConnecting = true;
+            }
+            else {
+                transport.close();
+            }
+        }
+
+        checkForBondedDevice();
+    }
 
 
     public void close() {
+        runOnIoThread(new Runnable() {
+            @Override
+            public void run() {
+                closeConnection();
+            }
+        });
+
+        // Tasks already posted still run, anything after this is ignored
+        mIoThread.quitSafely();
+    }
+
+    private void closeConnection() {
         // Check if already closed
         if (mCallback == null && state == null) {
             return;
@@ -129,6 +266,9 @@ public class ConnectionHandler implements DiscoveryHelper.DiscoveryCallback {
             mDiscoveryHelper = null;
         }
 
+        Log.i(LOG_TAG, "Recovery: " + mRecovery);
+        mRecovery.cancel();
+
         state = null;
 
         mCallback = null;
@@ -142,23 +282,26 @@ public class ConnectionHandler implements DiscoveryHelper.DiscoveryCallback {
 
         mDiscoveryHelper.stopScanningAndAdvertising();
 
-        try {
-            if (mBluetoothGatt != null) {
-                mBluetoothGatt.close();
-            }
-        }
-        catch (Exception e) {
-            e.printStackTrace();
-        }
-        finally {
-            mBluetoothGatt = null;
+        if (mTransport != null) {
+            mTransport.close();
+            mTransport = null;
         }
 
+        mAutoConnecting = false;
+        mServicesDiscovered = false;
+        mServicesRefreshed = false;
+        mReadingDatabaseHash = false;
+
+        mMtu = GattTransport.DEFAULT_MTU;
+        mNegotiatingMtu = false;
+
         mCurrentCommand = null;
+        mReadingCommandResponse = false;
 
-        if (pendingCommands != null) {
-            pendingCommands.clear();
+        if (mCommandScheduler.getQueueDepth() > 0) {
+            Log.d(LOG_TAG, "Dropping commands: " + mCommandScheduler);
         }
+        mCommandScheduler.clear();
 
         if (subscribeRequests != null) {
             subscribeRequests.clear();
@@ -170,33 +313,91 @@ public class ConnectionHandler implements DiscoveryHelper.DiscoveryCallback {
 
     @Override
     public void connectToDevice(final BluetoothDevice device) {
+        if (Looper.myLooper() != mIoHandler.getLooper()) {
+            // Found while scanning or connected from the GATT server callback
+            mIoHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    connectToDevice(device);
+                }
+            });
+
+            return;
+        }
+
         if (mDiscoveryHelper != null) {
+            mDiscoveryHelper.onDeviceFound(device.getAddress());
             mDiscoveryHelper.stopScanningAndAdvertising();
         }
 
         if (state == ConnectionState.Disconnected) {
-            try {
-                if (mBluetoothGatt != null) {
-                    mBluetoothGatt.close();
+            // Found by the scan, a direct connection is faster than the background one
+            connect(new AndroidGattTransport(mContext, device, mIoHandler));
+        }
+    }
+
+    /**
+     * The phone connected to the GATT server, the link is up
+     */
+    private void onDeviceConnected(final BluetoothDevice device) {
+        if (Looper.myLooper() != mIoHandler.getLooper()) {
+            mIoHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onDeviceConnected(device);
                 }
+            });
+
+            return;
+        }
+
+        if (mAutoConnecting && mTransport != null && device.getAddress().equals(mTransport.getDeviceAddress())) {
+            // The background connection uses the same link and keeps the services, it follows right away
+            if (mDiscoveryHelper != null) {
+                mDiscoveryHelper.onDeviceFound(device.getAddress());
+                mDiscoveryHelper.stopScanningAndAdvertising();
             }
-            catch (Exception e) {
-                e.printStackTrace();
-            }
 
-            Handler handler = new Handler(mContext.getMainLooper());
-            handler.post(new Runnable() {
+            setState(ConnectionState.Connecting);
+            scheduleConnectingTimeoutTask();
+
+            return;
+        }
+
+        connectToDevice(device);
+    }
+
+    /**
+     * Connects through the given transport, the Android one is used for devices found by the DiscoveryHelper
+     */
+    public void connect(final GattTransport transport) {
+        if (Looper.myLooper() != mIoHandler.getLooper()) {
+            mIoHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    mBluetoothGatt = device.connectGatt(mContext, false, mBluetoothGattCallback);
+                    connect(transport);
                 }
             });
 
-            Log.i(LOG_TAG, "Connecting...: " + device.getName());
-            setState(ConnectionState.Connecting);
+            return;
+        }
 
-            scheduleConnectingTimeoutTask();
+        if (mTransport != null) {
+            mTransport.close();
         }
+
+        mAutoConnecting = false;
+        mServicesDiscovered = false;
+        mServicesRefreshed = false;
+        mReadingDatabaseHash = false;
+
+        mTransport = transport;
+        mTransport.connect(mTransportCallback);
+
+        Log.i(LOG_TAG, "Connecting...: " + transport.getDeviceName());
+        setState(ConnectionState.Connecting);
+
+        scheduleConnectingTimeoutTask();
     }
 
     private BluetoothGattServer mBluetoothGattServer;
@@ -208,7 +409,7 @@ public class ConnectionHandler implements DiscoveryHelper.DiscoveryCallback {
                 if (newState == BluetoothGatt.STATE_CONNECTED) {
                     Log.i(LOG_TAG, "Connected to device: " + device.getAddress());
 
-                    connectToDevice(device);
+                    onDeviceConnected(device);
                 }
                 else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
                     Log.v(LOG_TAG, "Disconnected from device");
@@ -245,30 +446,49 @@ public class ConnectionHandler implements DiscoveryHelper.DiscoveryCallback {
         }
     };
 
-    private BluetoothGatt mBluetoothGatt;
-    private final BluetoothGattCallback mBluetoothGattCallback = new BluetoothGattCallback() {
+    private GattTransport mTransport;
+    private final GattTransport.Callback mTransportCallback = new GattTransport.Callback() {
 
         @Override
-        public void onConnectionStateChange(final BluetoothGatt gatt, int status, int newState) {
+        public void onConnectionStateChange(int status, int newState) {
             Log.d(LOG_TAG, "onConnectionStateChange: " + status + " -> " + newState);
 
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                if (newState == BluetoothProfile.STATE_CONNECTED) {
+            if (status == GattTransport.STATUS_SUCCESS) {
+                if (newState == GattTransport.STATE_CONNECTED) {
                     Log.i(LOG_TAG, "Connected");
 
-                    gatt.discoverServices();
+                    if (mAutoConnecting) {
+                        mAutoConnecting = false;
+
+                        if (mDiscoveryHelper != null) {
+                            mDiscoveryHelper.onDeviceFound(mTransport.getDeviceAddress());
+                            mDiscoveryHelper.stopScanningAndAdvertising();
+                        }
+
+                        setState(ConnectionState.Connecting);
+                    }
+
+                    // Services kept from the last connection are used if the database didn't change
+                    if (!mTransport.hasCachedServices() || !readDatabaseHash()) {
+                        mTransport.discoverServices();
+                    }
 
                     scheduleConnectingTimeoutTask();
                 }
-                else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                else if (newState == GattTransport.STATE_DISCONNECTED) {
                     Log.e(LOG_TAG, "Disconnected");
                     Log.w(LOG_TAG, "Trying to reconnect");
 
                     // TODO: check if the disconnection is started by the user
-                    reset();
-                    checkForBondedDevice();
+                    onDisconnected();
                 }
             }
+            else if (newState == GattTransport.STATE_DISCONNECTED) {
+                // Link loss is reported with an error status
+                Log.w(LOG_TAG, "Disconnected with status: " + status);
+
+                onDisconnected();
+            }
             else {
                 Log.wtf(LOG_TAG, "ON CONNECTION STATE CHANGED ERROR: " + status);
 
@@ -278,38 +498,52 @@ public class ConnectionHandler implements DiscoveryHelper.DiscoveryCallback {
         }
 
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+        public void onServicesDiscovered(int status) {
             Log.d(LOG_TAG, "onServicesDiscovered: " + status);
 
-            if (status == BluetoothGatt.GATT_SUCCESS) {
+            if (status == GattTransport.STATUS_SUCCESS) {
+                mServicesDiscovered = true;
+
                 scheduleConnectingTimeoutTask();
 
-                mCallback.onReadyToSubscribe(gatt);
+                // The stack may have answered from a stale cache, the hash tells
+                if (!readDatabaseHash()) {
+                    negotiateMtu();
+                }
             }
         }
 
         @Override
-        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
-            super.onMtuChanged(gatt, mtu, status);
-            Log.i(LOG_TAG, "MTU Changed: " + mtu);
+        public void onMtuChanged(int mtu, int status) {
+            Log.i(LOG_TAG, "MTU Changed: " + mtu + " status: " + status);
+
+            if (status == GattTransport.STATUS_SUCCESS) {
+                mMtu = mtu;
+            }
+
+            if (mNegotiatingMtu) {
+                mNegotiatingMtu = false;
+
+                scheduleConnectingTimeoutTask();
+
+                mCallback.onReadyToSubscribe(mTransport);
+            }
         }
 
         @Override
-        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        public void onDescriptorWrite(UUID characteristicUUID, int status) {
             cancelConnectingTimeoutTask();
 
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.d(LOG_TAG, "Descriptor write successful: " + descriptor.getCharacteristic().getUuid().toString());
+            if (status == GattTransport.STATUS_SUCCESS) {
+                Log.d(LOG_TAG, "Descriptor write successful: " + characteristicUUID.toString());
 
                 subscribeNextRequest();
             }
             else {
                 Log.e(LOG_TAG, "Status: write not permitted");
 
-                mConnectionsFailed = 0;
-
-                unpairDevice(gatt.getDevice());
-                gatt.getDevice().createBond();
+                mGattCache.remove(mTransport.getDeviceAddress());
+                mTransport.recreateBond();
 
                 // Check if bond is successful
                 scheduleConnectingTimeoutTask();
@@ -317,34 +551,35 @@ public class ConnectionHandler implements DiscoveryHelper.DiscoveryCallback {
         }
 
         @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            super.onCharacteristicWrite(gatt, characteristic, status);
-
+        public void onCharacteristicWrite(UUID characteristicUUID, int status) {
             try {
-                if (mCurrentCommand != null) {
-                    pendingCommands.remove(mCurrentCommand);
-                }
+                if (status == GattTransport.STATUS_SUCCESS) {
+                    Log.d(LOG_TAG, "Characteristic write successful: " + characteristicUUID.toString());
 
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    Log.d(LOG_TAG, "Characteristic write successful: " + characteristic.getUuid().toString());
+                    if (mCurrentCommand != null && mCurrentCommand.shouldReadAfterWrite()) {
+                        // Nothing else is written until the response is read, it would replace the request
+                        mReadingCommandResponse = mTransport.readCharacteristic(mCurrentCommand.getServiceUUID(), characteristicUUID);
 
-                    mCurrentCommand = null;
+                        if (mReadingCommandResponse) {
+                            scheduleNextCommandTask(WRITE_TIMEOUT);
+                            return;
+                        }
 
-                    sendNextCommand();
+                        mCommandScheduler.retry(mCurrentCommand, SystemClock.uptimeMillis());
+                    }
                 }
                 else {
-                    Log.w(LOG_TAG, "Characteristic write error: " + status + " :: " + characteristic.getUuid().toString());
+                    Log.w(LOG_TAG, "Characteristic write error: " + status + " :: " + characteristicUUID.toString());
 
-                    if (mCurrentCommand != null && mCurrentCommand.shouldRetryAgain()) {
-                        pendingCommands.add(mCurrentCommand);
+                    if (mCurrentCommand != null) {
+                        // Only this command waits, the rest of the queue goes on
+                        mCommandScheduler.retry(mCurrentCommand, SystemClock.uptimeMillis());
                     }
-
-                    mCurrentCommand = null;
-
-                    scheduleNextCommandTask();
                 }
 
-                Log.d(LOG_TAG, "Characteristic value: " + new String(characteristic.getValue()));
+                mCurrentCommand = null;
+
+                sendNextCommand();
             }
             catch (Exception e) {
                 e.printStackTrace();
@@ -352,26 +587,122 @@ public class ConnectionHandler implements DiscoveryHelper.DiscoveryCallback {
         }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            super.onCharacteristicRead(gatt, characteristic, status);
+        public void onCharacteristicRead(UUID characteristicUUID, byte[] value, int status) {
             Log.d(LOG_TAG, "onCharacteristicRead status:: " + status);
 
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                mCallback.onCharacteristicChanged(characteristic);
+            if (mReadingDatabaseHash && GattCache.DATABASE_HASH_UUID.equals(characteristicUUID)) {
+                mReadingDatabaseHash = false;
+
+                onDatabaseHashRead(status == GattTransport.STATUS_SUCCESS && value != null ? GattCache.toHex(value) : null);
+                return;
+            }
+
+            if (mReadingCommandResponse && mCurrentCommand != null && mCurrentCommand.getCharacteristic().equalsIgnoreCase(characteristicUUID.toString())) {
+                mReadingCommandResponse = false;
+
+                if (status == GattTransport.STATUS_SUCCESS) {
+                    mCallback.onCharacteristicChanged(characteristicUUID, value);
+                }
+                else {
+                    // The request is written again before reading
+                    mCommandScheduler.retry(mCurrentCommand, SystemClock.uptimeMillis());
+                }
+
+                mCurrentCommand = null;
+                sendNextCommand();
+
+                return;
+            }
+
+            if (status == GattTransport.STATUS_SUCCESS) {
+                mCallback.onCharacteristicChanged(characteristicUUID, value);
             }
 
             readNextCharacteristic();
         }
 
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            Log.d(LOG_TAG, "onCharacteristicChanged: " + characteristic.getUuid().toString());
-            
-            mCallback.onCharacteristicChanged(characteristic);
+        public void onCharacteristicChanged(UUID characteristicUUID, byte[] value) {
+            // Called for every packet, nothing is logged here to avoid building strings
+            mCallback.onCharacteristicChanged(characteristicUUID, value);
         }
     };
 
-    public void addSubscribeRequests(List<CharacteristicIdentifier> requests) {
+    /**
+     * @return false if the hash can't be read, the services have to be used as they are
+     */
+    private boolean readDatabaseHash() {
+        if (!mTransport.hasService(GattCache.GATT_SERVICE_UUID)) {
+            return false;
+        }
+
+        mReadingDatabaseHash = mTransport.readCharacteristic(GattCache.GATT_SERVICE_UUID, GattCache.DATABASE_HASH_UUID);
+
+        return mReadingDatabaseHash;
+    }
+
+    /**
+     * @param hash null if it couldn't be read
+     */
+    private void onDatabaseHashRead(String hash) {
+        String address = mTransport.getDeviceAddress();
+        String cachedHash = mGattCache.getDatabaseHash(address);
+        boolean unchanged = hash != null && hash.equals(cachedHash);
+
+        if (!mServicesDiscovered) {
+            // Services kept from the previous connection
+            if (unchanged) {
+                Log.i(LOG_TAG, "Database unchanged, skipping discovery");
+
+                negotiateMtu();
+            }
+            else {
+                if (hash != null) {
+                    mServicesRefreshed = mTransport.refreshServices();
+                }
+
+                mTransport.discoverServices();
+            }
+        }
+        else if (hash != null && cachedHash != null && !unchanged && !mServicesRefreshed) {
+            // Discovered from the stack's cache of the old database
+            Log.i(LOG_TAG, "Database changed, refreshing services");
+
+            mServicesRefreshed = true;
+            mServicesDiscovered = false;
+            mTransport.refreshServices();
+            mTransport.discoverServices();
+        }
+        else {
+            mGattCache.setDatabaseHash(address, hash);
+
+            negotiateMtu();
+        }
+    }
+
+    private void negotiateMtu() {
+        // Bigger packets before subscribing, so the first notifications already use them
+        mNegotiatingMtu = mTransport.requestMtu(GattTransport.MAX_MTU);
+
+        if (!mNegotiatingMtu) {
+            Log.w(LOG_TAG, "MTU request failed, using " + mMtu);
+
+            mCallback.onReadyToSubscribe(mTransport);
+        }
+    }
+
+    public void addSubscribeRequests(final List<CharacteristicIdentifier> requests) {
+        if (Looper.myLooper() != mIoHandler.getLooper()) {
+            mIoHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    addSubscribeRequests(requests);
+                }
+            });
+
+            return;
+        }
+
         if (requests != null && requests.size() > 0) {
             subscribeRequests = new ArrayList<>(requests);
         }
@@ -384,7 +715,7 @@ public class ConnectionHandler implements DiscoveryHelper.DiscoveryCallback {
             CharacteristicIdentifier characteristicIdentifier = subscribeRequests.get(0);
             subscribeRequests.remove(0);
 
-            subscribeCharacteristic(mBluetoothGatt, characteristicIdentifier.getServiceUUID(), characteristicIdentifier.getCharacteristicUUID());
+            subscribeCharacteristic(characteristicIdentifier.getServiceUUID(), characteristicIdentifier.getCharacteristicUUID());
 
             scheduleConnectingTimeoutTask();
         }
@@ -399,7 +730,29 @@ public class ConnectionHandler implements DiscoveryHelper.DiscoveryCallback {
             subscribeRequests = null;
 
             mBondsFailed = 0;
-            mConnectionsFailed = 0;
+
+            if (mRecovery.isRecovering()) {
+                ConnectionRecovery.Stage stage = mRecovery.getStage();
+                long timeToRecover = mRecovery.onRecovered(SystemClock.elapsedRealtime());
+
+                Log.i(LOG_TAG, "Recovered at " + stage + " in " + timeToRecover + "ms");
+            }
+
+            mGattCache.setLastDevice(mTransport.getDeviceAddress());
+
+            if (mDisconnectedAt != -1) {
+                mLastReconnectTime = SystemClock.elapsedRealtime() - mDisconnectedAt;
+                mDisconnectedAt = -1;
+
+                mReconnectCount++;
+                mTotalReconnectTime += mLastReconnectTime;
+                if (!mServicesDiscovered) {
+                    mFastReconnectCount++;
+                }
+
+                Log.i(LOG_TAG, "Ready in " + mLastReconnectTime + "ms" + (mServicesDiscovered ? "" : " without discovery")
+                        + ", average " + getAverageReconnectTime() + "ms over " + mReconnectCount);
+            }
 
             addCharacteristicReadRequest(new CharacteristicIdentifier(BASConstants.SERVICE_UUID, BASConstants.CHARACTERISTIC_BATTERY_LEVEL));
             addCharacteristicReadRequest(new CharacteristicIdentifier(CTSConstants.SERVICE_UUID, CTSConstants.CHARACTERISTIC_CURRENT_TIME));
@@ -409,7 +762,7 @@ public class ConnectionHandler implements DiscoveryHelper.DiscoveryCallback {
         }
     }
 
-    public void addCharacteristicReadRequest(CharacteristicIdentifier characteristicIdentifier) {
+    private void addCharacteristicReadRequest(CharacteristicIdentifier characteristicIdentifier) {
         if (readRequests == null) {
             readRequests = new ArrayList<>();
         }
@@ -417,49 +770,99 @@ public class ConnectionHandler implements DiscoveryHelper.DiscoveryCallback {
         readRequests.add(characteristicIdentifier);
     }
 
-    public void addCommandToQueue(Command command) {
-        pendingCommands.add(command);
+    public void addCommandToQueue(final Command command) {
+        if (Looper.myLooper() != mIoHandler.getLooper()) {
+            // Service handlers and the UI queue commands from their own threads
+            mIoHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    addCommandToQueue(command);
+                }
+            });
+
+            return;
+        }
+
+        mCommandScheduler.add(command, SystemClock.uptimeMillis());
 
         if (mCurrentCommand == null) {
             sendNextCommand();
         }
     }
 
+    /**
+     * Drops a command that is still queued, i.e. because its response isn't needed anymore
+     */
+    public void removeCommandFromQueue(final Command command) {
+        if (Looper.myLooper() != mIoHandler.getLooper()) {
+            mIoHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    removeCommandFromQueue(command);
+                }
+            });
+
+            return;
+        }
+
+        mCommandScheduler.remove(command);
+    }
+
+    /**
+     * Only to be used on the I/O thread
+     */
+    public CommandScheduler getCommandScheduler() {
+        return mCommandScheduler;
+    }
+
     private void sendNextCommand() {
         cancelNextCommandTask();
 
-        if (state != ConnectionState.Ready || pendingCommands.size() == 0) {
+        if (state != ConnectionState.Ready) {
             mCurrentCommand = null;
             return;
         }
 
-        mCurrentCommand = pendingCommands.get(0);
+        long now = SystemClock.uptimeMillis();
+        mCurrentCommand = mCommandScheduler.next(now);
 
-        try {
-            BluetoothGattService service = mBluetoothGatt.getService(mCurrentCommand.getServiceUUID());
+        if (mCurrentCommand == null) {
+            // Nothing ready, wake up when the next command's backoff ends
+            scheduleNextCommandTask(mCommandScheduler.getDelayUntilNextCommand(now));
+            return;
+        }
+
+        boolean result = false;
 
-            if (service != null) {
-                BluetoothGattCharacteristic bluetoothGattCharacteristic = service.getCharacteristic(UUID.fromString(mCurrentCommand.getCharacteristic()));
+        try {
+            if (mTransport.hasService(mCurrentCommand.getServiceUUID())) {
+                UUID characteristicUUID = UUID.fromString(mCurrentCommand.getCharacteristic());
 
-                if (bluetoothGattCharacteristic != null) {
-                    // not being used
-                    // mBluetoothGattCharacteristic.setWriteType(command.getWriteType());
+                result = mTransport.writeCharacteristic(mCurrentCommand.getServiceUUID(), characteristicUUID, mCurrentCommand.getPacket());
+                Log.d(LOG_TAG, "Started writing command: " + result);
 
-                    bluetoothGattCharacteristic.setValue(mCurrentCommand.getPacket());
-                    boolean result = mBluetoothGatt.writeCharacteristic(bluetoothGattCharacteristic);
-                    Log.d(LOG_TAG, "Started writing command: " + result);
+                if (!result) {
+                    // The stack is busy, try again later
+                    mCommandScheduler.retry(mCurrentCommand, now);
                 }
             }
+            else {
+                Log.w(LOG_TAG, "Dropping command, service not found: " + mCurrentCommand.getServiceUUID());
+            }
         }
         catch (Exception e) {
             e.printStackTrace();
+        }
 
+        if (result) {
+            // Consider the write failed if there is no answer
+            scheduleNextCommandTask(WRITE_TIMEOUT);
+        }
+        else {
             // If something failed there is no current command being sent
             mCurrentCommand = null;
-        }
 
-        if (pendingCommands.size() > 0) {
-            scheduleNextCommandTask();
+            scheduleNextCommandTask(mCommandScheduler.getDelayUntilNextCommand(now));
         }
     }
 
@@ -469,16 +872,10 @@ public class ConnectionHandler implements DiscoveryHelper.DiscoveryCallback {
             readRequests.remove(0);
 
             try {
-                BluetoothGattService service = mBluetoothGatt.getService(characteristicIdentifier.getServiceUUID());
+                UUID characteristicUUID = UUID.fromString(characteristicIdentifier.getCharacteristicUUID());
 
-                if (service != null) {
-                    BluetoothGattCharacteristic bluetoothGattCharacteristic = service.getCharacteristic(UUID.fromString(characteristicIdentifier.getCharacteristicUUID()));
-
-                    if (bluetoothGattCharacteristic != null) {
-                        boolean result = mBluetoothGatt.readCharacteristic(bluetoothGattCharacteristic);
-                        Log.d(LOG_TAG, "Started reading characteristic: " + result);
-                    }
-                }
+                boolean result = mTransport.readCharacteristic(characteristicIdentifier.getServiceUUID(), characteristicUUID);
+                Log.d(LOG_TAG, "Started reading characteristic: " + result);
             }
             catch (Exception e) {
                 e.printStackTrace();
@@ -486,65 +883,21 @@ public class ConnectionHandler implements DiscoveryHelper.DiscoveryCallback {
         }
     }
 
-    private void subscribeCharacteristic(BluetoothGatt bluetoothGatt, UUID serviceUUID, String characteristicUUIDString) {
-        setCharacteristicNotification(bluetoothGatt, serviceUUID, characteristicUUIDString, true);
+    private void subscribeCharacteristic(UUID serviceUUID, String characteristicUUIDString) {
+        setCharacteristicNotification(serviceUUID, characteristicUUIDString, true);
     }
 
-    private void unsubscribeCharacteristic(BluetoothGatt bluetoothGatt, UUID serviceUUID, String characteristicUUIDString) {
-        setCharacteristicNotification(bluetoothGatt, serviceUUID, characteristicUUIDString, false);
+    private void unsubscribeCharacteristic(UUID serviceUUID, String characteristicUUIDString) {
+        setCharacteristicNotification(serviceUUID, characteristicUUIDString, false);
     }
 
-    private void setCharacteristicNotification(BluetoothGatt bluetoothGatt, UUID serviceUUID, String characteristicUUIDString, boolean subscribe) {
-        if (bluetoothGatt == null || serviceUUID == null || characteristicUUIDString == null ) {
+    private void setCharacteristicNotification(UUID serviceUUID, String characteristicUUIDString, boolean subscribe) {
+        if (mTransport == null || serviceUUID == null || characteristicUUIDString == null ) {
             return;
         }
 
         try {
-            BluetoothGattService service = bluetoothGatt.getService(serviceUUID);
-
-            if (service != null) {
-                BluetoothGattCharacteristic characteristic = service.getCharacteristic(UUID.fromString(characteristicUUIDString));
-
-                if (characteristic != null) {
-                    bluetoothGatt.setCharacteristicNotification(characteristic, subscribe);
-
-                    BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUID.fromString(DESCRIPTOR_CONFIG));
-
-                    if (descriptor != null) {
-                        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                        bluetoothGatt.writeDescriptor(descriptor);
-                    }
-
-                }
-            }
-        }
-        catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-
-
-    /**
-     * Last resort to prepare for a new connection
-     *
-     * Reset bonded devices
-     * Switch bluetooth off and on
-     */
-    public void connectionHardReset() {
-        resetBondedDevices();
-
-        try {
-            if (mBluetoothAdapter != null) {
-                if (mBluetoothAdapter.isEnabled()) {
-                    mBluetoothAdapter.disable();
-
-                    Log.d(LOG_TAG, "Bluetooth disabled");
-                }
-
-                mBluetoothAdapter.enable();
-
-                Log.d(LOG_TAG, "Bluetooth enabled");
-            }
+            mTransport.setCharacteristicNotification(serviceUUID, UUID.fromString(characteristicUUIDString), subscribe);
         }
         catch (Exception e) {
             e.printStackTrace();
@@ -557,6 +910,16 @@ public class ConnectionHandler implements DiscoveryHelper.DiscoveryCallback {
 
         if (mBluetoothAdapter != null) {
             try {
+                // The last phone first, it may not be using any of the known names
+                String lastDevice = mGattCache.getLastDevice();
+                if (lastDevice != null && BluetoothAdapter.checkBluetoothAddress(lastDevice)) {
+                    BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(lastDevice);
+
+                    if (device.getBondState() == BluetoothDevice.BOND_BONDED) {
+                        return device;
+                    }
+                }
+
                 Set<BluetoothDevice> devices = mBluetoothAdapter.getBondedDevices();
                 if (devices != null) {
                     for (BluetoothDevice device : devices) {
@@ -576,45 +939,18 @@ public class ConnectionHandler implements DiscoveryHelper.DiscoveryCallback {
         return bondedDevice;
     }
 
-    private void resetBondedDevices() {
-        if (mBluetoothAdapter != null) {
-            try {
-                Set<BluetoothDevice> devices = mBluetoothAdapter.getBondedDevices();
-                if (devices != null) {
-                    for (BluetoothDevice device : devices) {
-                        String deviceName = device.getName();
-                        if (deviceName != null && (deviceName.equals("Aerlink") || deviceName.equals("BLE Utility") || deviceName.equals("Blank"))) {
-                            unpairDevice(device);
-                        }
-                    }
-                }
-
-                Log.d(LOG_TAG, "Bonded devices reset");
-            }
-            catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
-    }
-
-    private void unpairDevice(BluetoothDevice device) {
-        Log.d(LOG_TAG, device.getName() + ": Unpairing...");
-
+    private void toggleAdapter() {
         try {
-            Method m = device.getClass().getMethod("removeBond", (Class[]) null);
-            m.invoke(device, (Object[]) null);
-        }
-        catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
+            if (mBluetoothAdapter != null) {
+                if (mBluetoothAdapter.isEnabled()) {
+                    mBluetoothAdapter.disable();
 
-    private void disableBluetooth() {
-        try {
-            if (mBluetoothAdapter != null && mBluetoothAdapter.isEnabled()) {
-                mBluetoothAdapter.disable();
+                    Log.d(LOG_TAG, "Bluetooth disabled");
+                }
 
-                Log.d(LOG_TAG, "Disabling bluetooth");
+                mBluetoothAdapter.enable();
+
+                Log.d(LOG_TAG, "Bluetooth enabled");
             }
         }
         catch (Exception e) {
@@ -629,43 +965,31 @@ public class ConnectionHandler implements DiscoveryHelper.DiscoveryCallback {
 
     private void scheduleConnectingTimeoutTask() {
         if (mConnectingTimeoutTask == null) {
-            mConnectingTimeoutTask = new ScheduledTask(5000, mContext.getMainLooper(), new Runnable() {
+            mConnectingTimeoutTask = new ScheduledTask(ConnectionRecovery.DEFAULT_TIMEOUT, mIoHandler.getLooper(), new Runnable() {
                 @Override
                 public void run() {
                     if (state == ConnectionState.Connecting) {
                         Log.w(LOG_TAG, "Connecting timed out");
 
-                        if (mBluetoothGatt != null && mBluetoothGatt.getDevice() != null) {
-                            BluetoothDevice device = mBluetoothGatt.getDevice();
-                            int bondState = device.getBondState();
-
+                        if (mTransport != null) {
                             // Don't do anything while bonding
-                            if (bondState == BluetoothDevice.BOND_BONDING && mBondsFailed < 30) {
+                            if (mTransport.isBonding() && mBondsFailed < 30) {
                                 Log.w(LOG_TAG, "Waiting for bond...");
                                 mBondsFailed++;
 
-                                // If the bond is not successful do a connection hard reset
-                                mConnectionsFailed = 10;
-
-                                // Check again in 5 seconds
+                                // Check again in a moment
                                 scheduleConnectingTimeoutTask();
                             }
                             else {
                                 mBondsFailed = 0;
-                                mConnectionsFailed++;
 
-                                reset();
+                                ConnectionRecovery.Stage stage = mRecovery.onFailure(SystemClock.elapsedRealtime());
+                                Log.w(LOG_TAG, "Recovering: " + stage);
 
-                                if (mConnectionsFailed < 10) {
-                                    disableBluetooth();
+                                if (state == ConnectionState.Connecting) {
+                                    // Still on the same connection, give the action its time
+                                    scheduleConnectingTimeoutTask();
                                 }
-                                else {
-                                    mConnectionsFailed = 0;
-
-                                    connectionHardReset();
-                                }
-
-                                checkForBondedDevice();
                             }
                         }
                         else {
@@ -677,7 +1001,6 @@ public class ConnectionHandler implements DiscoveryHelper.DiscoveryCallback {
                     }
                     else {
                         mBondsFailed = 0;
-                        mConnectionsFailed = 0;
                     }
                 }
             });
@@ -686,9 +1009,42 @@ public class ConnectionHandler implements DiscoveryHelper.DiscoveryCallback {
             mConnectingTimeoutTask.cancel();
         }
 
+        mConnectingTimeoutTask.setDelay(mRecovery.getTimeout());
         mConnectingTimeoutTask.schedule();
     }
 
+    private final ConnectionRecovery.Actions mRecoveryActions = new ConnectionRecovery.Actions() {
+        @Override
+        public void retryGatt() {
+            reset();
+            checkForBondedDevice();
+        }
+
+        @Override
+        public void refreshCache() {
+            // Needs the client still open
+            mTransport.refreshServices();
+            mGattCache.remove(mTransport.getDeviceAddress());
+
+            reset();
+            checkForBondedDevice();
+        }
+
+        @Override
+        public void recreateBond() {
+            // The connection goes on once the phone accepts the new bond
+            mGattCache.remove(mTransport.getDeviceAddress());
+            mTransport.recreateBond();
+        }
+
+        @Override
+        public void toggleAdapter() {
+            reset();
+            ConnectionHandler.this.toggleAdapter();
+            checkForBondedDevice();
+        }
+    };
+
     private void cancelConnectingTimeoutTask() {
         if (mConnectingTimeoutTask != null) {
             mConnectingTimeoutTask.cancel();
@@ -698,22 +1054,33 @@ public class ConnectionHandler implements DiscoveryHelper.DiscoveryCallback {
 
     private ScheduledTask mNextCommandTask;
 
-    private void scheduleNextCommandTask() {
-        if (state != ConnectionState.Ready || pendingCommands.size() == 0) {
+    private void scheduleNextCommandTask(long delay) {
+        if (state != ConnectionState.Ready || delay < 0) {
             return;
         }
 
         if (mNextCommandTask == null) {
-            mNextCommandTask = new ScheduledTask(1600, mContext.getMainLooper(), new Runnable() {
+            mNextCommandTask = new ScheduledTask(delay, mIoHandler.getLooper(), new Runnable() {
                 @Override
                 public void run() {
+                    if (mCurrentCommand != null) {
+                        Log.w(LOG_TAG, mReadingCommandResponse ? "Command response read timed out" : "Command write timed out");
+
+                        mCommandScheduler.retry(mCurrentCommand, SystemClock.uptimeMillis());
+                        mCurrentCommand = null;
+                        mReadingCommandResponse = false;
+                    }
+
                     Log.d(LOG_TAG, "Sending next command");
                     sendNextCommand();
                 }
             });
+            // Commands wait for backoffs and write timeouts, running them late only slows the queue down
+            mNextCommandTask.setTolerance(0);
         }
         else {
             mNextCommandTask.cancel();
+            mNextCommandTask.setDelay(delay);
         }
 
         mNextCommandTask.schedule();
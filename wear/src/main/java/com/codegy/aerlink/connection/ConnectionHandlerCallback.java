@@ -1,7 +1,6 @@
 package com.codegy.aerlink.connection;
 
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCharacteristic;
+import java.util.UUID;
 
 /**
  * Created by Guiye on 19/5/15.
@@ -9,7 +8,7 @@ import android.bluetooth.BluetoothGattCharacteristic;
 public interface ConnectionHandlerCallback {
 
     void onConnectionStateChange(ConnectionHandler.ConnectionState state);
-    void onReadyToSubscribe(BluetoothGatt bluetoothGatt);
-    void onCharacteristicChanged(BluetoothGattCharacteristic characteristic);
+    void onReadyToSubscribe(GattTransport transport);
+    void onCharacteristicChanged(UUID characteristicUUID, byte[] value);
 
 }
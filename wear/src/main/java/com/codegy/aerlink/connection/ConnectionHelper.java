@@ -5,9 +5,10 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import com.codegy.aerlink.Constants;
 import com.codegy.aerlink.R;
+import com.codegy.aerlink.utils.BitmapCache;
+import com.codegy.aerlink.utils.PowerBudget;
 import com.codegy.aerlink.utils.ServiceUtils;
 
 /**
@@ -31,7 +32,7 @@ public class ConnectionHelper {
     public void showHelpForState(ConnectionHandler.ConnectionState state) {
         //Bitmap background = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
         //background.eraseColor(0);
-        Bitmap background = BitmapFactory.decodeResource(mContext.getResources(), R.drawable.bg_texture);
+        Bitmap background = BitmapCache.getResource(mContext, R.drawable.bg_texture);
 
         Notification.WearableExtender wearableExtender = new Notification.WearableExtender()
                 .setBackground(background);
@@ -88,9 +89,8 @@ public class ConnectionHelper {
         }
 
         if (state == ConnectionHandler.ConnectionState.Disconnected || state == ConnectionHandler.ConnectionState.NoBluetooth) {
-            mServiceUtils.vibrate(DISCONNECTION_PATTERN, -1);
-
-            builder.setVibrate(DISCONNECTION_PATTERN);
+            // Only through the power budget, the notification itself doesn't vibrate
+            mServiceUtils.vibrate(PowerBudget.Reason.Connection, DISCONNECTION_PATTERN);
         }
 */
 
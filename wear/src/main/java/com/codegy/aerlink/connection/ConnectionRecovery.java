@@ -0,0 +1,196 @@
+package com.codegy.aerlink.connection;
+
+import java.util.Locale;
+
+/**
+ * Decides what to do when connecting to the phone keeps failing, from the cheapest fix to the most disruptive.
+ *
+ * Each failed attempt runs the action of the current stage, once a stage used all its attempts the next
+ * one starts. Toggling the adapter drops every other BLE client on the watch, so it is only reached
+ * after everything else failed, and then it repeats. Time is passed in by the caller.
+ */
+public class ConnectionRecovery {
+
+    public interface Actions {
+        // Closes the GATT client and connects again
+        void retryGatt();
+        // Forgets the services cached for the phone and connects again
+        void refreshCache();
+        // Removes the bond and creates it again
+        void recreateBond();
+        // Switches Bluetooth off and on
+        void toggleAdapter();
+    }
+
+    public enum Stage {
+        RetryGatt,
+        RefreshCache,
+        RecreateBond,
+        ToggleAdapter
+    }
+
+    // Time given to a connection attempt when nothing failed yet
+    public static final long DEFAULT_TIMEOUT = 5000;
+
+
+    private final Actions mActions;
+
+    private final long[] mTimeouts = new long[Stage.values().length];
+    private final int[] mAttempts = new int[Stage.values().length];
+
+    // null while not recovering
+    private Stage mStage;
+    private int mAttempt;
+    private long mFailedAt;
+
+    // Metrics
+    private final int[] mRecoveredCount = new int[Stage.values().length];
+    private int mFailureCount;
+    private long mTotalTimeToRecover;
+    private long mMaxTimeToRecover;
+
+
+    public ConnectionRecovery(Actions actions) {
+        this.mActions = actions;
+
+        setStage(Stage.RetryGatt, 5000, 3);
+        setStage(Stage.RefreshCache, 8000, 1);
+        // Bonding needs the user to accept it on the phone
+        setStage(Stage.RecreateBond, 30000, 1);
+        // The adapter takes a few seconds to come back
+        setStage(Stage.ToggleAdapter, 15000, 1);
+    }
+
+    /**
+     * @param timeout time given to each attempt of the stage
+     * @param attempts attempts before moving to the next stage, the last stage repeats
+     */
+    public void setStage(Stage stage, long timeout, int attempts) {
+        mTimeouts[stage.ordinal()] = timeout;
+        mAttempts[stage.ordinal()] = Math.max(1, attempts);
+    }
+
+    public boolean isRecovering() {
+        return mStage != null;
+    }
+
+    /**
+     * @return the current stage, null while not recovering
+     */
+    public Stage getStage() {
+        return mStage;
+    }
+
+    /**
+     * @return time to give the current connection attempt before it is considered failed
+     */
+    public long getTimeout() {
+        return mStage != null ? mTimeouts[mStage.ordinal()] : DEFAULT_TIMEOUT;
+    }
+
+    /**
+     * Moves on after a failed connection attempt and runs the action of the stage reached
+     */
+    public Stage onFailure(long now) {
+        mFailureCount++;
+
+        if (mStage == null) {
+            mStage = Stage.RetryGatt;
+            mAttempt = 1;
+            mFailedAt = now;
+        }
+        else if (mAttempt < mAttempts[mStage.ordinal()] || mStage == Stage.ToggleAdapter) {
+            mAttempt++;
+        }
+        else {
+            mStage = Stage.values()[mStage.ordinal() + 1];
+            mAttempt = 1;
+        }
+
+        switch (mStage) {
+            case RetryGatt:
+                mActions.retryGatt();
+                break;
+            case RefreshCache:
+                mActions.refreshCache();
+                break;
+            case RecreateBond:
+                mActions.recreateBond();
+                break;
+            case ToggleAdapter:
+                mActions.toggleAdapter();
+                break;
+        }
+
+        return mStage;
+    }
+
+    /**
+     * The connection is ready, the stage it was at gets the credit
+     *
+     * @return time it took since the first failure, 0 if it wasn't recovering
+     */
+    public long onRecovered(long now) {
+        if (mStage == null) {
+            return 0;
+        }
+
+        long timeToRecover = now - mFailedAt;
+
+        mRecoveredCount[mStage.ordinal()]++;
+        mTotalTimeToRecover += timeToRecover;
+        mMaxTimeToRecover = Math.max(mMaxTimeToRecover, timeToRecover);
+
+        mStage = null;
+        mAttempt = 0;
+
+        return timeToRecover;
+    }
+
+    /**
+     * Stops recovering without counting it, when the connection is closed
+     */
+    public void cancel() {
+        mStage = null;
+        mAttempt = 0;
+    }
+
+    /**
+     * @return recoveries that succeeded at each stage, indexed by Stage.ordinal()
+     */
+    public int[] getRecoveredHistogram() {
+        return mRecoveredCount.clone();
+    }
+
+    public int getFailureCount() {
+        return mFailureCount;
+    }
+
+    public long getMeanTimeToRecover() {
+        int recoveries = 0;
+        for (int count : mRecoveredCount) {
+            recoveries += count;
+        }
+
+        return recoveries > 0 ? mTotalTimeToRecover / recoveries : 0;
+    }
+
+    public long getMaxTimeToRecover() {
+        return mMaxTimeToRecover;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("recovered");
+
+        for (Stage stage : Stage.values()) {
+            builder.append(' ').append(stage).append('=').append(mRecoveredCount[stage.ordinal()]);
+        }
+
+        builder.append(String.format(Locale.US, ", %d failures, mean %.1fs max %.1fs",
+                mFailureCount, getMeanTimeToRecover() / 1000f, mMaxTimeToRecover / 1000f));
+
+        return builder.toString();
+    }
+
+}
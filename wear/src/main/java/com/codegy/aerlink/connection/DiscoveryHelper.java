@@ -6,15 +6,22 @@ import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.*;
 import android.content.Context;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 import com.codegy.aerlink.ALSConstants;
+import com.codegy.aerlink.notifications.ANCSConstants;
 import com.codegy.aerlink.utils.ScheduledTask;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Created by Guiye on 28/8/15.
+ *
+ * Scans for the phone and advertises to it with a duty cycle that backs off while it is away,
+ * see DiscoveryPolicy.
  */
 public class DiscoveryHelper {
 
@@ -24,14 +31,22 @@ public class DiscoveryHelper {
 
     private static final String LOG_TAG = DiscoveryHelper.class.getSimpleName();
 
+    // Names the phone advertises with, from the Aerlink app or the generic BLE utilities
+    private static final String[] DEVICE_NAMES = { "Aerlink", "BLE Utility", "Blank" };
+    // Time to wait before trying again when the scanner couldn't start
+    private static final long RETRY_DELAY = 3000;
+
     private Context mContext;
     private DiscoveryCallback mCallback;
 
     private boolean mScanning;
+    // Searching, even while the radio is off between windows
+    private boolean mSearching;
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
 
+    private List<ScanFilter> mScanFilters;
     private ScanSettings mScanSettings;
     private BluetoothLeScanner mScanner;
 
@@ -39,33 +54,85 @@ public class DiscoveryHelper {
     private AdvertiseSettings mAdvertiseSettings;
     private BluetoothLeAdvertiser mAdvertiser;
 
+    private final DiscoveryPolicy mPolicy = new DiscoveryPolicy();
+    private Handler mHandler;
+    private ScheduledTask mCycleTask;
+
 
-    public DiscoveryHelper(Context mContext, DiscoveryCallback mCallback) {
+    /**
+     * @param looper looper of the thread that calls the helper, the duty cycle runs on it
+     */
+    public DiscoveryHelper(Context mContext, DiscoveryCallback mCallback, Looper looper) {
         this.mContext = mContext;
         this.mCallback = mCallback;
 
         mBluetoothManager = (BluetoothManager) mContext.getSystemService(Context.BLUETOOTH_SERVICE);
         mBluetoothAdapter = mBluetoothManager.getAdapter();
+
+        mHandler = new Handler(looper);
+        mCycleTask = new ScheduledTask(RETRY_DELAY, looper, new Runnable() {
+            @Override
+            public void run() {
+                if (mScanning) {
+                    endWindow();
+                }
+                else {
+                    startWindow();
+                }
+            }
+        });
     }
 
     public void close() {
         stopScanningAndAdvertising();
+
+        Log.i(LOG_TAG, "Discovery: " + mPolicy);
+    }
+
+    public DiscoveryPolicy getPolicy() {
+        return mPolicy;
     }
 
 
+    /**
+     * Starts looking for the phone from the fastest step of the duty cycle
+     */
     public void startScanningAndAdvertising() {
+        if (mSearching) {
+            // Already looking, maybe between windows
+            return;
+        }
+
+        mSearching = true;
+        mPolicy.start(SystemClock.elapsedRealtime());
+
+        startWindow();
+    }
+
+    public void stopScanningAndAdvertising() {
+        mCycleTask.cancel();
+
+        if (mSearching) {
+            mSearching = false;
+            mPolicy.stop(SystemClock.elapsedRealtime());
+        }
+
+        mScanning = false;
+
+        stopScanning();
+        stopAdvertising();
+    }
+
+
+    private void startWindow() {
         // If disabled -> enable bluetooth
         if (!mBluetoothAdapter.isEnabled()) {
             mBluetoothAdapter.enable();
             Log.wtf(LOG_TAG, "Bluetooth was disabled");
 
-            stopScanningAndAdvertising();
-        }
-        else if (mScanning && mScanner != null) {
-            // Scanner is already running
-            // Don't start anything
-
-            return;
+            mScanning = false;
+            stopScanning();
+            stopAdvertising();
         }
 
 
@@ -89,55 +156,88 @@ public class DiscoveryHelper {
 
                 stopAdvertising();
             }
+
+            mPolicy.onRadioOn(SystemClock.elapsedRealtime());
+
+            mCycleTask.setDelay(mPolicy.getWindow());
         }
         else {
             // Scanning did not work, try again in a moment
-
-            Handler handler = new Handler(mContext.getMainLooper());
-            handler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    startScanningAndAdvertising();
-                }
-            }, 3000);
+            mCycleTask.setDelay(RETRY_DELAY);
         }
+
+        mCycleTask.schedule();
     }
 
-    public void stopScanningAndAdvertising() {
-        mScanning = false;
+    private void endWindow() {
+        long pause = mPolicy.getPause();
 
+        mScanning = false;
         stopScanning();
         stopAdvertising();
+
+        mPolicy.next(SystemClock.elapsedRealtime());
+
+        if (pause > 0) {
+            Log.d(LOG_TAG, "Discovery paused for " + pause + "ms");
+
+            mCycleTask.setDelay(pause);
+            mCycleTask.schedule();
+        }
+        else {
+            startWindow();
+        }
+    }
+
+    /**
+     * Ends the search counting it as found, whether it was by the scan, by the phone connecting to the watch or by a background connection
+     */
+    public void onDeviceFound(String address) {
+        if (!mSearching) {
+            return;
+        }
+
+        long latency = mPolicy.onFound(SystemClock.elapsedRealtime());
+        Log.i(LOG_TAG, "Found " + address + " after " + latency + "ms, radio " + mPolicy.getSearchRadioTime() + "ms");
+
+        stopScanningAndAdvertising();
     }
 
 
     private boolean startScanning() throws Exception {
         boolean result = false;
 
-        if (mScanning && mScanner != null) {
-            // Scanner is already running
-            result = true;
-        }
-        else {
-            mScanner = mBluetoothAdapter.getBluetoothLeScanner();
+        mScanner = mBluetoothAdapter.getBluetoothLeScanner();
 
-            // If bluetooth was disabled, the scanner may be null
-            if (mScanner != null) {
-                if (mScanSettings == null) {
-                    mScanSettings = new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_LOW_POWER).build();
+        // If bluetooth was disabled, the scanner may be null
+        if (mScanner != null) {
+            if (mScanFilters == null) {
+                mScanFilters = new ArrayList<>();
+
+                // The controller drops everything else, so the app isn't woken up for other devices
+                mScanFilters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(ALSConstants.SERVICE_UUID)).build());
+                mScanFilters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(ANCSConstants.SERVICE_UUID)).build());
+                for (String deviceName : DEVICE_NAMES) {
+                    mScanFilters.add(new ScanFilter.Builder().setDeviceName(deviceName).build());
                 }
+            }
 
-                        try {
-                            mScanner.startScan(null, mScanSettings, mScanCallback);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
+            ScanSettings.Builder builder = new ScanSettings.Builder().setScanMode(mPolicy.getScanMode());
+            if (mPolicy.getReportDelay() > 0 && mBluetoothAdapter.isOffloadedScanBatchingSupported()) {
+                builder.setReportDelay(mPolicy.getReportDelay());
+            }
+            mScanSettings = builder.build();
 
+            try {
+                mScanner.startScan(mScanFilters, mScanSettings, mScanCallback);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
 
-                Log.d(LOG_TAG, "Scanning started");
 
-                result = true;
-            }
+            Log.d(LOG_TAG, "Scanning started, mode: " + mPolicy.getScanMode());
+
+            result = true;
         }
 
         return result;
@@ -159,23 +259,34 @@ public class DiscoveryHelper {
     }
 
 
+    // Called on a binder thread, the helper is only used from the looper it was given
     private final ScanCallback mScanCallback = new ScanCallback() {
 
         @Override
-        public void onScanResult(int callbackType, android.bluetooth.le.ScanResult result) {
-            Log.d(LOG_TAG, "Scan Result: " + result.toString());
-
-            BluetoothDevice device = result.getDevice();
-            String deviceName = device != null ? device.getName() : null;
-
-            if (mCallback != null && deviceName != null && (deviceName.equals("Aerlink") || deviceName.equals("BLE Utility") || deviceName.equals("Blank"))) {
-                mCallback.connectToDevice(device);
+        public void onScanResult(int callbackType, final ScanResult result) {
+            // Filtered by the controller, anything that arrives is the phone
+            final BluetoothDevice device = result.getDevice();
+
+            if (device != null) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mSearching && mCallback != null) {
+                            mCallback.connectToDevice(device);
+                        }
+                    }
+                });
             }
         }
 
         @Override
         public void onBatchScanResults(List<ScanResult> results) {
-            Log.i(LOG_TAG, "Batch Scan Results: " + results.toString());
+            Log.d(LOG_TAG, "Batch Scan Results: " + results.size());
+
+            if (!results.isEmpty()) {
+                // The newest one is the most likely to be in range
+                onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, results.get(results.size() - 1));
+            }
         }
 
         @Override
@@ -183,8 +294,21 @@ public class DiscoveryHelper {
             super.onScanFailed(errorCode);
             Log.d(LOG_TAG, "Scan Failed: " + errorCode);
 
-            stopScanning();
-            startScanningAndAdvertising();
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mSearching) {
+                        mPolicy.onRadioOff(SystemClock.elapsedRealtime());
+
+                        mScanning = false;
+                        stopScanning();
+                        stopAdvertising();
+
+                        mCycleTask.setDelay(RETRY_DELAY);
+                        mCycleTask.schedule();
+                    }
+                }
+            });
         }
 
     };
@@ -201,13 +325,11 @@ public class DiscoveryHelper {
             mAdvertiser = mBluetoothAdapter.getBluetoothLeAdvertiser();
 
             if (mAdvertiser != null) {
-                if (mAdvertiseSettings == null) {
-                    mAdvertiseSettings = new AdvertiseSettings.Builder()
-                            .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_BALANCED)
-                            .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_MEDIUM)
-                            .setConnectable(true)
-                            .build();
-                }
+                mAdvertiseSettings = new AdvertiseSettings.Builder()
+                        .setAdvertiseMode(mPolicy.getAdvertiseMode())
+                        .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_MEDIUM)
+                        .setConnectable(true)
+                        .build();
                 if (mAdvertiseData == null) {
                     mAdvertiseData = new AdvertiseData.Builder()
                             .setIncludeDeviceName(false)
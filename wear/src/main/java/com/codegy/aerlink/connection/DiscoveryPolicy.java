@@ -0,0 +1,213 @@
+package com.codegy.aerlink.connection;
+
+import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.ScanSettings;
+
+import java.util.Locale;
+
+/**
+ * How hard to look for the phone since it was lost.
+ *
+ * Right after a disconnect it scans and advertises as fast as possible, because the phone is
+ * usually still around. Then it scans continuously at a lower rate for a while, and after that
+ * only in short windows with pauses that double until MAX_PAUSE while the phone stays away.
+ * Time is passed in by the caller, it also keeps the reconnect latency and radio time to tune this.
+ */
+public class DiscoveryPolicy {
+
+    private static final long FAST_WINDOW = 30000;
+    private static final long BALANCED_WINDOW = 60000;
+    private static final long SLOW_WINDOW = 10000;
+    private static final long MIN_PAUSE = 10000;
+    private static final long MAX_PAUSE = 300000;
+    // Batched results only arrive after this, too slow for the fast steps
+    private static final long SLOW_REPORT_DELAY = 5000;
+
+    // Part of the time each scan mode keeps the radio listening, from its scan window and interval
+    private static final float LOW_LATENCY_DUTY = 1f;
+    private static final float BALANCED_DUTY = 1024f / 4096f;
+    private static final float LOW_POWER_DUTY = 512f / 5120f;
+
+
+    private int mStep;
+    // -1 while not searching
+    private long mSearchStart = -1;
+    // -1 while the radio is off
+    private long mWindowStart = -1;
+
+    private long mSearchRadioTime;
+
+    // Metrics
+    private int mFoundCount;
+    private long mTotalLatency;
+    private long mMaxLatency;
+    private long mTotalRadioTime;
+
+
+    /**
+     * Starts a new search from the fastest step
+     */
+    public void start(long now) {
+        mStep = 0;
+        mSearchStart = now;
+        mWindowStart = -1;
+        mSearchRadioTime = 0;
+    }
+
+    public boolean isSearching() {
+        return mSearchStart != -1;
+    }
+
+    public int getScanMode() {
+        switch (mStep) {
+            case 0:
+                return ScanSettings.SCAN_MODE_LOW_LATENCY;
+            case 1:
+                return ScanSettings.SCAN_MODE_BALANCED;
+            default:
+                return ScanSettings.SCAN_MODE_LOW_POWER;
+        }
+    }
+
+    public int getAdvertiseMode() {
+        switch (mStep) {
+            case 0:
+                return AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY;
+            case 1:
+                return AdvertiseSettings.ADVERTISE_MODE_BALANCED;
+            default:
+                return AdvertiseSettings.ADVERTISE_MODE_LOW_POWER;
+        }
+    }
+
+    /**
+     * @return how long results can be batched, if the controller supports it
+     */
+    public long getReportDelay() {
+        return mStep < 2 ? 0 : SLOW_REPORT_DELAY;
+    }
+
+    /**
+     * @return how long to keep the radio on in the current step
+     */
+    public long getWindow() {
+        switch (mStep) {
+            case 0:
+                return FAST_WINDOW;
+            case 1:
+                return BALANCED_WINDOW;
+            default:
+                return SLOW_WINDOW;
+        }
+    }
+
+    /**
+     * @return how long to keep the radio off after the current step
+     */
+    public long getPause() {
+        if (mStep < 2) {
+            return 0;
+        }
+
+        int doublings = Math.min(mStep - 2, 30);
+
+        return Math.min(MIN_PAUSE << doublings, MAX_PAUSE);
+    }
+
+    public void onRadioOn(long now) {
+        if (mWindowStart == -1) {
+            mWindowStart = now;
+        }
+    }
+
+    public void onRadioOff(long now) {
+        if (mWindowStart != -1) {
+            long radioTime = (long) ((now - mWindowStart) * getDuty());
+            mSearchRadioTime += radioTime;
+            mTotalRadioTime += radioTime;
+
+            mWindowStart = -1;
+        }
+    }
+
+    /**
+     * Moves to the next step, once its window ended
+     */
+    public void next(long now) {
+        onRadioOff(now);
+
+        mStep++;
+    }
+
+    /**
+     * Ends the search because the phone was found
+     *
+     * @return how long it took
+     */
+    public long onFound(long now) {
+        if (mSearchStart == -1) {
+            return 0;
+        }
+
+        onRadioOff(now);
+
+        long latency = now - mSearchStart;
+        mFoundCount++;
+        mTotalLatency += latency;
+        mMaxLatency = Math.max(mMaxLatency, latency);
+
+        mSearchStart = -1;
+
+        return latency;
+    }
+
+    /**
+     * Ends the search without finding the phone
+     */
+    public void stop(long now) {
+        onRadioOff(now);
+
+        mSearchStart = -1;
+    }
+
+    /**
+     * @return estimated milliseconds the radio listened during the current or last search
+     */
+    public long getSearchRadioTime() {
+        return mSearchRadioTime;
+    }
+
+    public int getFoundCount() {
+        return mFoundCount;
+    }
+
+    public long getAverageLatency() {
+        return mFoundCount > 0 ? mTotalLatency / mFoundCount : 0;
+    }
+
+    public long getMaxLatency() {
+        return mMaxLatency;
+    }
+
+    public long getTotalRadioTime() {
+        return mTotalRadioTime;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "found %d times, latency avg %.1fs max %.1fs, radio %.1fs",
+                mFoundCount, getAverageLatency() / 1000f, mMaxLatency / 1000f, mTotalRadioTime / 1000f);
+    }
+
+    private float getDuty() {
+        switch (getScanMode()) {
+            case ScanSettings.SCAN_MODE_LOW_LATENCY:
+                return LOW_LATENCY_DUTY;
+            case ScanSettings.SCAN_MODE_BALANCED:
+                return BALANCED_DUTY;
+            default:
+                return LOW_POWER_DUTY;
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.codegy.aerlink.connection;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import com.codegy.aerlink.Constants;
+
+import java.util.UUID;
+
+/**
+ * Remembers the last phone and the GATT database hash of each phone.
+ *
+ * The handles themselves live in the transport, which keeps them across reconnections to the same
+ * phone. The hash tells if they, or the ones the Bluetooth stack cached for a bonded phone, are still valid.
+ */
+public class GattCache {
+
+    public static final UUID GATT_SERVICE_UUID = UUID.fromString("00001801-0000-1000-8000-00805f9b34fb");
+    // Changes whenever the phone adds or removes services, iOS 13 and later
+    public static final UUID DATABASE_HASH_UUID = UUID.fromString("00002b2a-0000-1000-8000-00805f9b34fb");
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+
+    private final SharedPreferences mSharedPreferences;
+
+
+    public GattCache(Context context) {
+        mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+    }
+
+    /**
+     * @return address of the last phone that was ready, null if there is none
+     */
+    public String getLastDevice() {
+        return mSharedPreferences.getString(Constants.SPK_LAST_DEVICE, null);
+    }
+
+    public void setLastDevice(String address) {
+        if (address != null && !address.equals(getLastDevice())) {
+            mSharedPreferences.edit().putString(Constants.SPK_LAST_DEVICE, address).apply();
+        }
+    }
+
+    /**
+     * @return the hash seen the last time, null if unknown
+     */
+    public String getDatabaseHash(String address) {
+        return mSharedPreferences.getString(Constants.SPK_DATABASE_HASH + address, null);
+    }
+
+    public void setDatabaseHash(String address, String hash) {
+        if (hash != null && !hash.equals(getDatabaseHash(address))) {
+            mSharedPreferences.edit().putString(Constants.SPK_DATABASE_HASH + address, hash).apply();
+        }
+    }
+
+    public void remove(String address) {
+        mSharedPreferences.edit().remove(Constants.SPK_DATABASE_HASH + address).apply();
+    }
+
+    public static String toHex(byte[] value) {
+        char[] hex = new char[value.length * 2];
+
+        for (int i = 0; i < value.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(value[i] >> 4) & 0x0f];
+            hex[i * 2 + 1] = HEX_DIGITS[value[i] & 0x0f];
+        }
+
+        return new String(hex);
+    }
+
+}
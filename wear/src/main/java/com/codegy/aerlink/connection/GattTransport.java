@@ -0,0 +1,65 @@
+package com.codegy.aerlink.connection;
+
+import java.util.UUID;
+
+/**
+ * GATT client operations used by ConnectionHandler.
+ *
+ * Every operation is asynchronous, its result is delivered to the callback given on connect.
+ * Only one operation can be in progress at a time, as with BluetoothGatt.
+ */
+public interface GattTransport {
+
+    // Same values as BluetoothGatt and BluetoothProfile
+    int STATUS_SUCCESS = 0;
+    int STATUS_FAILURE = 257;
+    int STATE_DISCONNECTED = 0;
+    int STATE_CONNECTED = 2;
+
+    // MTU every connection starts with, 20 bytes of payload per packet
+    int DEFAULT_MTU = 23;
+    int MAX_MTU = 517;
+
+    /**
+     * Called on the ConnectionHandler I/O thread, or on the thread driving the transport for simulated ones
+     */
+    interface Callback {
+        void onConnectionStateChange(int status, int newState);
+        void onServicesDiscovered(int status);
+        void onMtuChanged(int mtu, int status);
+        void onDescriptorWrite(UUID characteristicUUID, int status);
+        void onCharacteristicWrite(UUID characteristicUUID, int status);
+        void onCharacteristicRead(UUID characteristicUUID, byte[] value, int status);
+        void onCharacteristicChanged(UUID characteristicUUID, byte[] value);
+    }
+
+
+    void connect(Callback callback);
+    void close();
+    /**
+     * Connects again in the background after the link was lost, keeping the services already discovered
+     *
+     * @return false if the transport can't, it has to be closed
+     */
+    boolean reconnect();
+
+    String getDeviceName();
+    String getDeviceAddress();
+    boolean isBonding();
+    void recreateBond();
+
+    boolean discoverServices();
+    boolean hasService(UUID serviceUUID);
+    // Services known from a previous connection, usable without discovering them again
+    boolean hasCachedServices();
+    /**
+     * Forgets the services cached by the transport and the Bluetooth stack, they have to be discovered again
+     */
+    boolean refreshServices();
+
+    boolean requestMtu(int mtu);
+    boolean setCharacteristicNotification(UUID serviceUUID, UUID characteristicUUID, boolean enable);
+    boolean writeCharacteristic(UUID serviceUUID, UUID characteristicUUID, byte[] value);
+    boolean readCharacteristic(UUID serviceUUID, UUID characteristicUUID);
+
+}
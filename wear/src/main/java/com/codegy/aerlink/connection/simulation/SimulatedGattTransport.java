@@ -0,0 +1,901 @@
+package com.codegy.aerlink.connection.simulation;
+
+import com.codegy.aerlink.battery.BASConstants;
+import com.codegy.aerlink.connection.GattCache;
+import com.codegy.aerlink.connection.GattTransport;
+import com.codegy.aerlink.currenttime.CTSConstants;
+import com.codegy.aerlink.media.AMSConstants;
+import com.codegy.aerlink.notifications.ANCSConstants;
+
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * Scripted iOS peripheral with ANCS, AMS, BAS and CTS, running on a virtual clock.
+ *
+ * Nothing happens until the simulation is advanced with advance() or runUntilIdle(),
+ * callbacks are delivered on the thread that advances it. Fragment loss is drawn from a
+ * seeded Random so the same script always produces the same packets.
+ */
+public class SimulatedGattTransport implements GattTransport {
+
+    public interface WriteListener {
+        void onCharacteristicWritten(UUID characteristicUUID, byte[] value);
+    }
+
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // ATT opcode (1 byte) + Attribute handle (2 bytes)
+    private static final int ATT_HEADER_LENGTH = 3;
+
+    // ANCS error returned when the UID of a request is unknown
+    public static final int ERROR_INVALID_PARAMETER = 0xA2;
+
+    private static final byte CATEGORY_OTHER = 0;
+    private static final byte CATEGORY_INCOMING_CALL = 1;
+
+    private static final byte EVENT_FLAG_PRE_EXISTING = 4;
+    private static final byte EVENT_FLAG_POSITIVE_ACTION = 8;
+    private static final byte EVENT_FLAG_NEGATIVE_ACTION = 16;
+
+    private static final UUID NOTIFICATION_SOURCE = UUID.fromString(ANCSConstants.CHARACTERISTIC_NOTIFICATION_SOURCE);
+    private static final UUID DATA_SOURCE = UUID.fromString(ANCSConstants.CHARACTERISTIC_DATA_SOURCE);
+    private static final UUID CONTROL_POINT = UUID.fromString(ANCSConstants.CHARACTERISTIC_CONTROL_POINT);
+    private static final UUID ENTITY_UPDATE = UUID.fromString(AMSConstants.CHARACTERISTIC_ENTITY_UPDATE);
+    private static final UUID ENTITY_ATTRIBUTE = UUID.fromString(AMSConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE);
+
+
+    private static class Event implements Comparable<Event> {
+        final long time;
+        final long sequence;
+        final Runnable action;
+
+        Event(long time, long sequence, Runnable action) {
+            this.time = time;
+            this.sequence = sequence;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event another) {
+            if (time != another.time) {
+                return time < another.time ? -1 : 1;
+            }
+
+            return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+        }
+    }
+
+    private static class SimulatedNotification {
+        int UID;
+        byte categoryId;
+        byte eventFlags;
+        String appId;
+        String title;
+        String subtitle = "";
+        String message;
+        String date;
+        String positiveAction;
+        String negativeAction;
+        long postTime;
+    }
+
+
+    private final Random mRandom;
+    private final PriorityQueue<Event> mEvents = new PriorityQueue<>();
+    private long mCurrentTime;
+    private long mNextSequence;
+
+    private Callback mCallback;
+    private WriteListener mWriteListener;
+    private String mDeviceName = "Simulated iPhone";
+    private String mDeviceAddress = "5E:00:00:00:00:01";
+    private final Set<UUID> mServices = new HashSet<>();
+    private final Set<UUID> mSubscriptions = new HashSet<>();
+    private final Map<UUID, byte[]> mReadValues = new HashMap<>();
+
+    private boolean mConnected;
+    // Services discovered on a previous connection, kept until the transport is closed or refreshed
+    private boolean mServicesKnown;
+    private long mReconnectDelay = 15;
+    // Connection attempts left that never complete, as when the stack is stuck
+    private int mFailingConnections;
+    private boolean mOperationInProgress;
+    private int mMaxMtu = DEFAULT_MTU;
+    private int mMtu = DEFAULT_MTU;
+    private long mLatency = 15;
+    private long mPacketInterval = 8;
+    private double mLossRate = 0;
+    // Fragments are sent one after another, the link is busy until this time
+    private long mLinkFreeTime;
+    private long mMaxBacklog = 100;
+
+    private final Map<Integer, SimulatedNotification> mNotifications = new LinkedHashMap<>();
+    private int mNextUID;
+
+    // Entity ID -> attribute ID -> value
+    private final Map<Byte, Map<Byte, String>> mMediaAttributes = new HashMap<>();
+    private final Map<Byte, Set<Byte>> mMediaRegistrations = new HashMap<>();
+
+    private int mFragmentsSent;
+    private int mFragmentsDropped;
+    private long mBytesSent;
+
+
+    public SimulatedGattTransport(long seed) {
+        mRandom = new Random(seed);
+
+        mServices.add(ANCSConstants.SERVICE_UUID);
+        mServices.add(AMSConstants.SERVICE_UUID);
+        mServices.add(BASConstants.SERVICE_UUID);
+        mServices.add(CTSConstants.SERVICE_UUID);
+
+        mServices.add(GattCache.GATT_SERVICE_UUID);
+        setDatabaseHash(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 });
+
+        setBatteryLevel(100);
+        // 2015-05-18 12:00:00
+        mReadValues.put(UUID.fromString(CTSConstants.CHARACTERISTIC_CURRENT_TIME), new byte[] {
+                (byte) 0xdf, 0x07, 5, 18, 12, 0, 0, 1, 0, 0
+        });
+    }
+
+
+    // CONFIGURATION
+
+    public void setDeviceName(String deviceName) {
+        this.mDeviceName = deviceName;
+    }
+
+    public void setDeviceAddress(String deviceAddress) {
+        this.mDeviceAddress = deviceAddress;
+    }
+
+    /**
+     * Changes the database hash as the phone does when its services change
+     */
+    public void setDatabaseHash(byte[] hash) {
+        mReadValues.put(GattCache.DATABASE_HASH_UUID, hash);
+    }
+
+    /**
+     * Makes the next connection attempts never complete, the caller has to time out
+     */
+    public void failConnections(int count) {
+        this.mFailingConnections = count;
+    }
+
+    /**
+     * Time the phone takes to come back in range after a disconnect
+     */
+    public void setReconnectDelay(long reconnectDelay) {
+        this.mReconnectDelay = reconnectDelay;
+    }
+
+    public void addService(UUID serviceUUID) {
+        mServices.add(serviceUUID);
+    }
+
+    public void removeService(UUID serviceUUID) {
+        mServices.remove(serviceUUID);
+    }
+
+    /**
+     * @param maxMtu the largest MTU the peripheral accepts when one is requested
+     */
+    public void setMaxMtu(int maxMtu) {
+        this.mMaxMtu = Math.max(DEFAULT_MTU, maxMtu);
+    }
+
+    /**
+     * @param latency time in ms for a packet to reach the other side
+     */
+    public void setLatency(long latency) {
+        this.mLatency = latency;
+    }
+
+    /**
+     * @param packetInterval time in ms between consecutive fragments of the same response
+     */
+    public void setPacketInterval(long packetInterval) {
+        this.mPacketInterval = packetInterval;
+    }
+
+    /**
+     * @param lossRate probability between 0 and 1 of a notification fragment being lost
+     */
+    public void setLossRate(double lossRate) {
+        this.mLossRate = lossRate;
+    }
+
+    /**
+     * @param maxBacklog time in ms of queued fragments after which isTransmitQueueFull() returns true
+     */
+    public void setMaxBacklog(long maxBacklog) {
+        this.mMaxBacklog = maxBacklog;
+    }
+
+    public void setWriteListener(WriteListener writeListener) {
+        this.mWriteListener = writeListener;
+    }
+
+
+    // CLOCK
+
+    public long getCurrentTime() {
+        return mCurrentTime;
+    }
+
+    /**
+     * Runs every event due in the next milliseconds
+     */
+    public void advance(long millis) {
+        long endTime = mCurrentTime + millis;
+
+        while (!mEvents.isEmpty() && mEvents.peek().time <= endTime) {
+            runNextEvent();
+        }
+
+        mCurrentTime = endTime;
+    }
+
+    /**
+     * Runs events until there are none left, including the ones scheduled while running
+     */
+    public void runUntilIdle() {
+        while (!mEvents.isEmpty()) {
+            runNextEvent();
+        }
+    }
+
+    private void runNextEvent() {
+        Event event = mEvents.poll();
+        mCurrentTime = Math.max(mCurrentTime, event.time);
+        event.action.run();
+    }
+
+    /**
+     * Runs an action on the virtual clock, for scripts and for the timers of whatever drives the transport
+     */
+    public void schedule(long delay, Runnable action) {
+        mEvents.add(new Event(mCurrentTime + delay, mNextSequence++, action));
+    }
+
+
+    // SCRIPT
+
+    /**
+     * Posts a notification on the phone
+     *
+     * @param positiveAction label of the positive action, null if there is none
+     * @param negativeAction label of the negative action, null if there is none
+     * @return the UID of the new notification
+     */
+    public int postNotification(String appId, String title, String message, String positiveAction, String negativeAction) {
+        return postNotification(CATEGORY_OTHER, appId, title, message, positiveAction, negativeAction);
+    }
+
+    public int postIncomingCall(String caller) {
+        return postNotification(CATEGORY_INCOMING_CALL, "com.apple.mobilephone", caller, "Incoming Call", "Answer", "Decline");
+    }
+
+    private int postNotification(byte categoryId, String appId, String title, String message, String positiveAction, String negativeAction) {
+        SimulatedNotification notification = new SimulatedNotification();
+        notification.UID = mNextUID++;
+        notification.categoryId = categoryId;
+        notification.appId = appId;
+        notification.title = title;
+        notification.message = message;
+        notification.date = String.format(Locale.US, "20150518T12%02d%02d", (mCurrentTime / 60000) % 60, (mCurrentTime / 1000) % 60);
+        notification.positiveAction = positiveAction;
+        notification.negativeAction = negativeAction;
+        notification.postTime = mCurrentTime;
+
+        if (positiveAction != null) {
+            notification.eventFlags |= EVENT_FLAG_POSITIVE_ACTION;
+        }
+        if (negativeAction != null) {
+            notification.eventFlags |= EVENT_FLAG_NEGATIVE_ACTION;
+        }
+
+        mNotifications.put(notification.UID, notification);
+        sendNotificationEvent(ANCSConstants.EventIDNotificationAdded, notification, (byte) 0);
+
+        return notification.UID;
+    }
+
+    public void modifyNotification(int UID, String title, String message) {
+        SimulatedNotification notification = mNotifications.get(UID);
+
+        if (notification == null) {
+            return;
+        }
+
+        notification.title = title;
+        notification.message = message;
+        sendNotificationEvent(ANCSConstants.EventIDNotificationModified, notification, (byte) 0);
+    }
+
+    public void removeNotification(int UID) {
+        SimulatedNotification notification = mNotifications.remove(UID);
+
+        if (notification != null) {
+            sendNotificationEvent(ANCSConstants.EventIDNotificationRemoved, notification, (byte) 0);
+        }
+    }
+
+    /**
+     * @return the virtual time the notification was posted at, -1 if it doesn't exist
+     */
+    public long getPostTime(int UID) {
+        SimulatedNotification notification = mNotifications.get(UID);
+
+        return notification != null ? notification.postTime : -1;
+    }
+
+    public void setMediaAttribute(byte entityId, byte attributeId, String value) {
+        Map<Byte, String> attributes = mMediaAttributes.get(entityId);
+
+        if (attributes == null) {
+            attributes = new HashMap<>();
+            mMediaAttributes.put(entityId, attributes);
+        }
+
+        attributes.put(attributeId, value);
+
+        Set<Byte> registeredAttributes = mMediaRegistrations.get(entityId);
+
+        if (registeredAttributes != null && registeredAttributes.contains(attributeId)) {
+            sendEntityUpdate(entityId, attributeId, value);
+        }
+    }
+
+    /**
+     * Sends data on an Aerlink characteristic with the ALS framing: status 0x01, 2 bytes of
+     * little endian length and the data, split in packets as big as the negotiated MTU allows
+     */
+    public void sendAerlinkData(UUID characteristicUUID, byte[] data) {
+        byte[] framedData = new byte[data.length + 3];
+        framedData[0] = 0x01;
+        framedData[1] = (byte) (data.length & 0xff);
+        framedData[2] = (byte) ((data.length >> 8) & 0xff);
+        System.arraycopy(data, 0, framedData, 3, data.length);
+
+        sendFragmented(characteristicUUID, framedData);
+    }
+
+    /**
+     * Sends a viewfinder frame: status 0x02, 2 bytes of sequence number and 2 of length, all little endian,
+     * and the rest of the frame in packets starting with status 0x03
+     *
+     * @return false if the frame was skipped because the link is behind, as the phone does
+     */
+    public boolean sendCameraFrame(UUID characteristicUUID, int sequence, byte[] frame) {
+        if (isTransmitQueueFull()) {
+            return false;
+        }
+
+        byte[] framedData = new byte[frame.length + 5];
+        framedData[0] = 0x02;
+        framedData[1] = (byte) (sequence & 0xff);
+        framedData[2] = (byte) ((sequence >> 8) & 0xff);
+        framedData[3] = (byte) (frame.length & 0xff);
+        framedData[4] = (byte) ((frame.length >> 8) & 0xff);
+        System.arraycopy(frame, 0, framedData, 5, frame.length);
+
+        sendFragmented(characteristicUUID, framedData, 0x03);
+
+        return true;
+    }
+
+    /**
+     * @return true if more fragments are queued than the max backlog allows
+     */
+    public boolean isTransmitQueueFull() {
+        return mLinkFreeTime - mCurrentTime > mMaxBacklog;
+    }
+
+    public void setBatteryLevel(int batteryLevel) {
+        mReadValues.put(UUID.fromString(BASConstants.CHARACTERISTIC_BATTERY_LEVEL), new byte[] { (byte) batteryLevel });
+    }
+
+    public void setReadValue(UUID characteristicUUID, byte[] value) {
+        mReadValues.put(characteristicUUID, value);
+    }
+
+    /**
+     * Drops the link as if the phone went out of range
+     */
+    public void disconnect() {
+        if (!mConnected) {
+            return;
+        }
+
+        mConnected = false;
+        mOperationInProgress = false;
+        mSubscriptions.clear();
+        mMediaRegistrations.clear();
+        mMtu = DEFAULT_MTU;
+
+        schedule(mLatency, new Runnable() {
+            @Override
+            public void run() {
+                if (mCallback != null) {
+                    mCallback.onConnectionStateChange(STATUS_SUCCESS, STATE_DISCONNECTED);
+                }
+            }
+        });
+    }
+
+
+    // METRICS
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    public int getFragmentsSent() {
+        return mFragmentsSent;
+    }
+
+    public int getFragmentsDropped() {
+        return mFragmentsDropped;
+    }
+
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+
+    // TRANSPORT
+
+    @Override
+    public void connect(Callback callback) {
+        this.mCallback = callback;
+
+        if (mFailingConnections > 0) {
+            mFailingConnections--;
+            return;
+        }
+
+        schedule(mLatency, new Runnable() {
+            @Override
+            public void run() {
+                if (mCallback != null) {
+                    mConnected = true;
+                    mCallback.onConnectionStateChange(STATUS_SUCCESS, STATE_CONNECTED);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean reconnect() {
+        if (mCallback == null || mConnected) {
+            return false;
+        }
+
+        if (mFailingConnections > 0) {
+            mFailingConnections--;
+            return true;
+        }
+
+        schedule(mReconnectDelay, new Runnable() {
+            @Override
+            public void run() {
+                if (mCallback != null && !mConnected) {
+                    mConnected = true;
+                    mCallback.onConnectionStateChange(STATUS_SUCCESS, STATE_CONNECTED);
+                }
+            }
+        });
+
+        return true;
+    }
+
+    @Override
+    public void close() {
+        mCallback = null;
+        mConnected = false;
+        mServicesKnown = false;
+        mOperationInProgress = false;
+        mSubscriptions.clear();
+        mMediaRegistrations.clear();
+        mMtu = DEFAULT_MTU;
+    }
+
+    @Override
+    public String getDeviceName() {
+        return mDeviceName;
+    }
+
+    @Override
+    public String getDeviceAddress() {
+        return mDeviceAddress;
+    }
+
+    @Override
+    public boolean isBonding() {
+        return false;
+    }
+
+    @Override
+    public void recreateBond() {}
+
+    @Override
+    public boolean discoverServices() {
+        if (!startOperation()) {
+            return false;
+        }
+
+        respond(new Runnable() {
+            @Override
+            public void run() {
+                mServicesKnown = true;
+                mCallback.onServicesDiscovered(STATUS_SUCCESS);
+            }
+        });
+
+        return true;
+    }
+
+    @Override
+    public boolean hasService(UUID serviceUUID) {
+        return mServices.contains(serviceUUID);
+    }
+
+    @Override
+    public boolean hasCachedServices() {
+        return mServicesKnown;
+    }
+
+    @Override
+    public boolean refreshServices() {
+        mServicesKnown = false;
+
+        return true;
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        if (!startOperation()) {
+            return false;
+        }
+
+        mMtu = Math.max(DEFAULT_MTU, Math.min(mtu, mMaxMtu));
+
+        respond(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onMtuChanged(mMtu, STATUS_SUCCESS);
+            }
+        });
+
+        return true;
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(UUID serviceUUID, final UUID characteristicUUID, final boolean enable) {
+        if (!mServices.contains(serviceUUID) || !startOperation()) {
+            return false;
+        }
+
+        respond(new Runnable() {
+            @Override
+            public void run() {
+                if (enable) {
+                    mSubscriptions.add(characteristicUUID);
+                }
+                else {
+                    mSubscriptions.remove(characteristicUUID);
+                }
+
+                mCallback.onDescriptorWrite(characteristicUUID, STATUS_SUCCESS);
+
+                if (enable && characteristicUUID.equals(NOTIFICATION_SOURCE)) {
+                    // iOS sends the notifications that are already on the phone right after subscribing
+                    for (SimulatedNotification notification : mNotifications.values()) {
+                        sendNotificationEvent(ANCSConstants.EventIDNotificationAdded, notification, EVENT_FLAG_PRE_EXISTING);
+                    }
+                }
+            }
+        });
+
+        return true;
+    }
+
+    @Override
+    public boolean writeCharacteristic(UUID serviceUUID, final UUID characteristicUUID, final byte[] value) {
+        if (!mServices.contains(serviceUUID) || value == null || !startOperation()) {
+            return false;
+        }
+
+        final byte[] packet = Arrays.copyOf(value, value.length);
+
+        respond(new Runnable() {
+            @Override
+            public void run() {
+                int status = handleWrite(characteristicUUID, packet);
+
+                mCallback.onCharacteristicWrite(characteristicUUID, status);
+
+                if (mWriteListener != null) {
+                    mWriteListener.onCharacteristicWritten(characteristicUUID, packet);
+                }
+            }
+        });
+
+        return true;
+    }
+
+    @Override
+    public boolean readCharacteristic(UUID serviceUUID, final UUID characteristicUUID) {
+        if (!mServices.contains(serviceUUID) || !startOperation()) {
+            return false;
+        }
+
+        respond(new Runnable() {
+            @Override
+            public void run() {
+                byte[] value = mReadValues.get(characteristicUUID);
+
+                if (value != null) {
+                    mCallback.onCharacteristicRead(characteristicUUID, Arrays.copyOf(value, value.length), STATUS_SUCCESS);
+                }
+                else {
+                    mCallback.onCharacteristicRead(characteristicUUID, null, STATUS_FAILURE);
+                }
+            }
+        });
+
+        return true;
+    }
+
+
+    private boolean startOperation() {
+        if (!mConnected || mOperationInProgress) {
+            return false;
+        }
+
+        mOperationInProgress = true;
+
+        return true;
+    }
+
+    /**
+     * Delivers the result of the operation in progress after a round trip
+     */
+    private void respond(final Runnable response) {
+        schedule(mLatency * 2, new Runnable() {
+            @Override
+            public void run() {
+                mOperationInProgress = false;
+
+                if (mConnected && mCallback != null) {
+                    response.run();
+                }
+            }
+        });
+    }
+
+    private int handleWrite(UUID characteristicUUID, byte[] packet) {
+        if (characteristicUUID.equals(CONTROL_POINT) && packet.length >= 5) {
+            int UID = readInt(packet, 1);
+            SimulatedNotification notification = mNotifications.get(UID);
+
+            if (notification == null) {
+                return ERROR_INVALID_PARAMETER;
+            }
+
+            switch (packet[0]) {
+                case ANCSConstants.CommandIDGetNotificationAttributes:
+                    sendFragmented(DATA_SOURCE, buildAttributesResponse(notification, packet));
+                    break;
+                case ANCSConstants.CommandIDPerformNotificationAction:
+                    // Any action dismisses the notification on the phone
+                    removeNotification(UID);
+                    break;
+            }
+        }
+        else if (characteristicUUID.equals(ENTITY_UPDATE) && packet.length >= 1) {
+            byte entityId = packet[0];
+            Set<Byte> registeredAttributes = new HashSet<>();
+
+            for (int i = 1; i < packet.length; i++) {
+                registeredAttributes.add(packet[i]);
+            }
+
+            mMediaRegistrations.put(entityId, registeredAttributes);
+
+            // Current values are sent right after registering
+            for (Byte attributeId : registeredAttributes) {
+                sendEntityUpdate(entityId, attributeId, getMediaAttribute(entityId, attributeId));
+            }
+        }
+        else if (characteristicUUID.equals(ENTITY_ATTRIBUTE) && packet.length >= 2) {
+            mReadValues.put(ENTITY_ATTRIBUTE, getMediaAttribute(packet[0], packet[1]).getBytes(UTF8));
+        }
+
+        return STATUS_SUCCESS;
+    }
+
+    private byte[] buildAttributesResponse(SimulatedNotification notification, byte[] request) {
+        byte[] response = new byte[512];
+        int length = 0;
+
+        System.arraycopy(request, 0, response, 0, 5);
+        length += 5;
+
+        int cursor = 5;
+
+        while (cursor < request.length) {
+            byte attributeId = request[cursor++];
+            int maxLength = Integer.MAX_VALUE;
+
+            if (attributeId == ANCSConstants.NotificationAttributeIDTitle
+                    || attributeId == ANCSConstants.NotificationAttributeIDSubtitle
+                    || attributeId == ANCSConstants.NotificationAttributeIDMessage) {
+                if (cursor + 2 > request.length) {
+                    break;
+                }
+
+                maxLength = readShort(request, cursor);
+                cursor += 2;
+            }
+
+            byte[] value = getNotificationAttribute(notification, attributeId).getBytes(UTF8);
+            int valueLength = Math.min(value.length, maxLength);
+
+            if (response.length < length + 3 + valueLength) {
+                response = Arrays.copyOf(response, Math.max(response.length * 2, length + 3 + valueLength));
+            }
+
+            response[length++] = attributeId;
+            response[length++] = (byte) (valueLength & 0xff);
+            response[length++] = (byte) ((valueLength >> 8) & 0xff);
+            System.arraycopy(value, 0, response, length, valueLength);
+            length += valueLength;
+        }
+
+        return Arrays.copyOf(response, length);
+    }
+
+    private String getNotificationAttribute(SimulatedNotification notification, byte attributeId) {
+        String value = null;
+
+        switch (attributeId) {
+            case ANCSConstants.NotificationAttributeIDAppIdentifier:
+                value = notification.appId;
+                break;
+            case ANCSConstants.NotificationAttributeIDTitle:
+                value = notification.title;
+                break;
+            case ANCSConstants.NotificationAttributeIDSubtitle:
+                value = notification.subtitle;
+                break;
+            case ANCSConstants.NotificationAttributeIDMessage:
+                value = notification.message;
+                break;
+            case ANCSConstants.NotificationAttributeIDMessageSize:
+                value = notification.message != null ? String.valueOf(notification.message.getBytes(UTF8).length) : "0";
+                break;
+            case ANCSConstants.NotificationAttributeIDDate:
+                value = notification.date;
+                break;
+            case ANCSConstants.NotificationAttributeIDPositiveActionLabel:
+                value = notification.positiveAction;
+                break;
+            case ANCSConstants.NotificationAttributeIDNegativeActionLabel:
+                value = notification.negativeAction;
+                break;
+        }
+
+        return value != null ? value : "";
+    }
+
+    private String getMediaAttribute(byte entityId, byte attributeId) {
+        Map<Byte, String> attributes = mMediaAttributes.get(entityId);
+        String value = attributes != null ? attributes.get(attributeId) : null;
+
+        return value != null ? value : "";
+    }
+
+    private void sendNotificationEvent(byte eventId, SimulatedNotification notification, byte extraFlags) {
+        sendFragmented(NOTIFICATION_SOURCE, new byte[] {
+                eventId,
+                (byte) (notification.eventFlags | extraFlags),
+                notification.categoryId,
+                1,
+                (byte) (notification.UID & 0xff),
+                (byte) ((notification.UID >> 8) & 0xff),
+                (byte) ((notification.UID >> 16) & 0xff),
+                (byte) ((notification.UID >> 24) & 0xff)
+        });
+    }
+
+    private void sendEntityUpdate(byte entityId, byte attributeId, String value) {
+        byte[] bytes = value.getBytes(UTF8);
+        // Entity updates are never fragmented, the value is truncated to fit in one packet
+        int maxLength = mMtu - ATT_HEADER_LENGTH - 3;
+        boolean truncated = bytes.length > maxLength;
+        int valueLength = truncated ? maxLength : bytes.length;
+
+        byte[] packet = new byte[3 + valueLength];
+        packet[0] = entityId;
+        packet[1] = attributeId;
+        packet[2] = (byte) (truncated ? 1 : 0);
+        System.arraycopy(bytes, 0, packet, 3, valueLength);
+
+        sendFragmented(ENTITY_UPDATE, packet);
+    }
+
+    /**
+     * Splits the data in notifications that fit the current MTU, some of them may be lost
+     */
+    private void sendFragmented(final UUID characteristicUUID, byte[] data) {
+        sendFragmented(characteristicUUID, data, -1);
+    }
+
+    /**
+     * @param continuationStatus status byte every fragment after the first one starts with, -1 for none
+     */
+    private void sendFragmented(final UUID characteristicUUID, byte[] data, int continuationStatus) {
+        if (!mConnected || !mSubscriptions.contains(characteristicUUID)) {
+            return;
+        }
+
+        int fragmentLength = mMtu - ATT_HEADER_LENGTH;
+        // Wait for the fragments already queued
+        long delay = Math.max(mLatency, mLinkFreeTime - mCurrentTime);
+
+        for (int offset = 0; offset < data.length; ) {
+            final byte[] fragment;
+
+            if (offset > 0 && continuationStatus != -1) {
+                int length = Math.min(data.length - offset, fragmentLength - 1);
+                fragment = new byte[length + 1];
+                fragment[0] = (byte) continuationStatus;
+                System.arraycopy(data, offset, fragment, 1, length);
+                offset += length;
+            }
+            else {
+                fragment = Arrays.copyOfRange(data, offset, Math.min(data.length, offset + fragmentLength));
+                offset += fragment.length;
+            }
+
+            if (mLossRate > 0 && mRandom.nextDouble() < mLossRate) {
+                mFragmentsDropped++;
+            }
+            else {
+                mFragmentsSent++;
+                mBytesSent += fragment.length;
+
+                schedule(delay, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mConnected && mCallback != null && mSubscriptions.contains(characteristicUUID)) {
+                            mCallback.onCharacteristicChanged(characteristicUUID, fragment);
+                        }
+                    }
+                });
+            }
+
+            delay += mPacketInterval;
+        }
+
+        mLinkFreeTime = mCurrentTime + delay;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff)
+                | ((bytes[offset + 1] & 0xff) << 8)
+                | ((bytes[offset + 2] & 0xff) << 16)
+                | ((bytes[offset + 3] & 0xff) << 24);
+    }
+
+    private static int readShort(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | ((bytes[offset + 1] & 0xff) << 8);
+    }
+
+}
@@ -3,13 +3,13 @@ package com.codegy.aerlink.currenttime;
 import android.app.AlarmManager;
 import android.app.Notification;
 import android.app.PendingIntent;
-import android.bluetooth.BluetoothGattCharacteristic;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.util.Log;
 import com.codegy.aerlink.Constants;
 import com.codegy.aerlink.R;
+import com.codegy.aerlink.utils.BitmapCache;
 import com.codegy.aerlink.utils.ServiceHandler;
 import com.codegy.aerlink.utils.ServiceUtils;
 
@@ -56,19 +56,18 @@ public class CurrentTimeServiceHandler extends ServiceHandler {
     }
 
     @Override
-    public boolean canHandleCharacteristic(BluetoothGattCharacteristic characteristic) {
-        String characteristicUUID = characteristic.getUuid().toString().toLowerCase();
-        return characteristicUUID.equals(CTSConstants.CHARACTERISTIC_CURRENT_TIME);
-    }
+    public void handleCharacteristic(UUID characteristicUUID, byte[] value) {
+        if (value == null || value.length < 7) {
+            return;
+        }
 
-    @Override
-    public void handleCharacteristic(BluetoothGattCharacteristic characteristic) {
-        int year = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, 0);
-        int month = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 2);
-        int day = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 3);
-        int hours = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 4);
-        int minutes = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 5);
-        int seconds = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 6);
+        // Year is little endian
+        int year = (value[0] & 0xff) | ((value[1] & 0xff) << 8);
+        int month = value[2] & 0xff;
+        int day = value[3] & 0xff;
+        int hours = value[4] & 0xff;
+        int minutes = value[5] & 0xff;
+        int seconds = value[6] & 0xff;
 
         if (currentTime == null) {
             currentTime = Calendar.getInstance();
@@ -98,8 +97,7 @@ public class CurrentTimeServiceHandler extends ServiceHandler {
             return;
         }
 
-        Bitmap background = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
-        background.eraseColor(0);
+        Bitmap background = BitmapCache.getSolidColor(0);
 
 
         // Build pending intent for when the user swipes the card away
@@ -13,6 +13,9 @@ public class AMSConstants {
     public static final String CHARACTERISTIC_ENTITY_UPDATE    = "2f7cabce-808d-411f-9a0c-bb92ba96c102";
     public static final String CHARACTERISTIC_ENTITY_ATTRIBUTE = "c6b2f38c-23ab-46d8-a6ab-a3a870bbd5d7";
 
+    // Compared with the UUID of every packet received
+    public static final UUID ENTITY_ATTRIBUTE_UUID = UUID.fromString(CHARACTERISTIC_ENTITY_ATTRIBUTE);
+
     public static final byte RemoteCommandIDPlay               = 0x00;
     public static final byte RemoteCommandIDPause              = 0x01;
     public static final byte RemoteCommandIDTogglePlayPause    = 0x02;
@@ -38,4 +41,24 @@ public class AMSConstants {
     public static final byte PlayerAttributeIDPlaybackInfo = 0x01;
     public static final byte PlayerAttributeIDVolume       = 0x02;
 
+    public static final byte QueueAttributeIDIndex       = 0x00;
+    public static final byte QueueAttributeIDCount       = 0x01;
+    public static final byte QueueAttributeIDShuffleMode = 0x02;
+    public static final byte QueueAttributeIDRepeatMode  = 0x03;
+
+    public static final byte EntityUpdateFlagTruncated = 1;
+
+    public static final int PlaybackStatePaused        = 0;
+    public static final int PlaybackStatePlaying       = 1;
+    public static final int PlaybackStateRewinding     = 2;
+    public static final int PlaybackStateFastForwarding = 3;
+
+    public static final int ShuffleModeOff = 0;
+    public static final int ShuffleModeOne = 1;
+    public static final int ShuffleModeAll = 2;
+
+    public static final int RepeatModeOff = 0;
+    public static final int RepeatModeOne = 1;
+    public static final int RepeatModeAll = 2;
+
 }
@@ -0,0 +1,218 @@
+package com.codegy.aerlink.media;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import com.codegy.aerlink.connection.Command;
+import com.codegy.aerlink.utils.ScheduledTask;
+import com.codegy.aerlink.utils.ServiceUtils;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Gets the full value of track attributes that AMS truncated in their Entity Update.
+ *
+ * The Entity Attribute characteristic holds a single request and its value is read back without saying
+ * which attribute it belongs to, so only one request is in flight. The same truncated value again doesn't
+ * request it again, and a request is dropped from the queue once the attribute changes. A value read that
+ * doesn't start with the truncated one is the response to a request dropped too late and is discarded.
+ */
+public class MediaAttributeFetcher {
+
+    public interface FetcherCallback {
+        void onAttributeFetched(byte attributeId, String value);
+    }
+
+    private static final String LOG_TAG = MediaAttributeFetcher.class.getSimpleName();
+
+    // Time a request can wait for its response before being dropped
+    private static final long REQUEST_TIMEOUT = 4000;
+
+
+    private final ServiceUtils mServiceUtils;
+    private final FetcherCallback mCallback;
+
+    // Attributes waiting to be requested, in arrival order
+    private final ArrayDeque<Byte> mQueuedAttributes = new ArrayDeque<>();
+    // Truncated value of every attribute waiting, requested or not, by attribute ID
+    private final String[] mTruncatedValues = new String[AMSConstants.TrackAttributeIDDuration + 1];
+
+    private Command mCurrentRequest;
+    private byte mCurrentAttribute;
+    private long mRequestTime;
+
+    private final ScheduledTask mTimeoutTask;
+
+    // Metrics
+    private int mFetchCount;
+    private int mDuplicateCount;
+    private int mCancelledCount;
+    private int mStaleCount;
+    private long mTotalRoundTrip;
+
+
+    public MediaAttributeFetcher(ServiceUtils serviceUtils, Looper looper, FetcherCallback callback) {
+        this.mServiceUtils = serviceUtils;
+        this.mCallback = callback;
+
+        mTimeoutTask = new ScheduledTask(REQUEST_TIMEOUT, looper, new Runnable() {
+            @Override
+            public void run() {
+                Log.i(LOG_TAG, "Attribute request timed out: " + mCurrentAttribute);
+
+                mTruncatedValues[mCurrentAttribute] = null;
+                mCurrentRequest = null;
+
+                sendNextRequest();
+            }
+        });
+    }
+
+    public void clear() {
+        mTimeoutTask.cancel();
+
+        mQueuedAttributes.clear();
+        for (int i = 0; i < mTruncatedValues.length; i++) {
+            mTruncatedValues[i] = null;
+        }
+
+        mCurrentRequest = null;
+    }
+
+    /**
+     * Called with every Entity Update of a track attribute, requests it if it was truncated
+     * and forgets the previous request if it wasn't sent yet
+     */
+    public void onAttributeUpdated(byte attributeId, String value, boolean truncated) {
+        if (attributeId < 0 || attributeId >= mTruncatedValues.length) {
+            return;
+        }
+
+        String waitingValue = mTruncatedValues[attributeId];
+
+        if (truncated && value.equals(waitingValue)) {
+            mDuplicateCount++;
+            return;
+        }
+
+        if (waitingValue != null) {
+            // Another track, its value would be discarded
+            cancel(attributeId);
+        }
+
+        if (truncated) {
+            mTruncatedValues[attributeId] = value;
+            mQueuedAttributes.add(attributeId);
+
+            sendNextRequest();
+        }
+    }
+
+    /**
+     * Called with every value read from the Entity Attribute characteristic
+     */
+    public void onAttributeRead(String value) {
+        if (mCurrentRequest == null) {
+            return;
+        }
+
+        byte attributeId = mCurrentAttribute;
+
+        if (!value.startsWith(trimIncompleteCharacter(mTruncatedValues[attributeId]))) {
+            // The current request is still waiting for its own response
+            mStaleCount++;
+            Log.d(LOG_TAG, "Discarding stale attribute value");
+
+            return;
+        }
+
+        mTimeoutTask.cancel();
+        mCurrentRequest = null;
+        mTruncatedValues[attributeId] = null;
+
+        mFetchCount++;
+        mTotalRoundTrip += SystemClock.uptimeMillis() - mRequestTime;
+
+        mCallback.onAttributeFetched(attributeId, value);
+
+        sendNextRequest();
+    }
+
+    public int getFetchCount() {
+        return mFetchCount;
+    }
+
+    public int getDuplicateCount() {
+        return mDuplicateCount;
+    }
+
+    public int getCancelledCount() {
+        return mCancelledCount;
+    }
+
+    public int getStaleCount() {
+        return mStaleCount;
+    }
+
+    public long getAverageRoundTrip() {
+        return mFetchCount > 0 ? mTotalRoundTrip / mFetchCount : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d fetched in %dms avg, %d duplicates, %d cancelled, %d stale",
+                mFetchCount, getAverageRoundTrip(), mDuplicateCount, mCancelledCount, mStaleCount);
+    }
+
+    private void cancel(byte attributeId) {
+        mTruncatedValues[attributeId] = null;
+        mCancelledCount++;
+
+        if (mCurrentRequest != null && mCurrentAttribute == attributeId) {
+            // Dropped if it wasn't written yet, otherwise its response is ignored
+            mServiceUtils.removeCommandFromQueue(mCurrentRequest);
+            mTimeoutTask.cancel();
+            mCurrentRequest = null;
+
+            sendNextRequest();
+        }
+        else {
+            mQueuedAttributes.remove(attributeId);
+        }
+    }
+
+    private void sendNextRequest() {
+        while (mCurrentRequest == null && !mQueuedAttributes.isEmpty()) {
+            byte attributeId = mQueuedAttributes.poll();
+
+            if (mTruncatedValues[attributeId] == null) {
+                continue;
+            }
+
+            mCurrentRequest = new Command(AMSConstants.SERVICE_UUID, AMSConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE, new byte[] {
+                    AMSConstants.EntityIDTrack,
+                    attributeId
+            });
+            mCurrentRequest.setImportance(Command.IMPORTANCE_MIN);
+            mCurrentRequest.setPriority(Command.PRIORITY_MEDIA);
+            mCurrentRequest.setReadAfterWrite(true);
+
+            mCurrentAttribute = attributeId;
+            mRequestTime = SystemClock.uptimeMillis();
+
+            mServiceUtils.addCommandToQueue(mCurrentRequest);
+            mTimeoutTask.schedule();
+        }
+    }
+
+    // Entity Updates are cut at a byte count, the last character may be incomplete
+    private static String trimIncompleteCharacter(String value) {
+        if (value.length() > 0 && value.charAt(value.length() - 1) == '\uFFFD') {
+            return value.substring(0, value.length() - 1);
+        }
+
+        return value;
+    }
+
+}
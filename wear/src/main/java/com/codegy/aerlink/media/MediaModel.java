@@ -0,0 +1,292 @@
+package com.codegy.aerlink.media;
+
+/**
+ * Player, queue and track entities of AMS, as last reported by the phone.
+ *
+ * AMS only sends the elapsed time when playback starts, stops or seeks, the position in between
+ * is computed from it, the playback rate and when it was received. Not thread safe.
+ */
+public class MediaModel {
+
+    // Player
+    private String mPlayerName;
+    // -1 while there is no player
+    private int mPlaybackState = -1;
+    private float mPlaybackRate;
+    // Seconds, -1 if unknown
+    private float mElapsedTime = -1;
+    private long mElapsedTimeUpdatedAt;
+    // From 0 to 1, -1 if unknown
+    private float mVolume = -1;
+
+    // Queue, -1 if unknown
+    private int mQueueIndex = -1;
+    private int mQueueCount = -1;
+    private int mShuffleMode = -1;
+    private int mRepeatMode = -1;
+
+    // Track
+    private String mArtist;
+    private String mAlbum;
+    private String mTitle;
+    // Seconds, -1 if unknown
+    private float mDuration = -1;
+    private boolean mArtistTruncated;
+    private boolean mTitleTruncated;
+
+
+    /**
+     * Applies an Entity Update
+     *
+     * @param now elapsedRealtime() when it was received, the position is computed from it
+     * @return true if anything changed
+     */
+    public boolean update(byte entityId, byte attributeId, byte flags, String value, long now) {
+        boolean truncated = (flags & AMSConstants.EntityUpdateFlagTruncated) != 0;
+
+        switch (entityId) {
+            case AMSConstants.EntityIDPlayer:
+                switch (attributeId) {
+                    case AMSConstants.PlayerAttributeIDName:
+                        return !equals(mPlayerName, mPlayerName = emptyToNull(value));
+                    case AMSConstants.PlayerAttributeIDPlaybackInfo:
+                        return updatePlaybackInfo(value, now);
+                    case AMSConstants.PlayerAttributeIDVolume:
+                        return mVolume != (mVolume = parseFloat(value, -1));
+                }
+
+                break;
+            case AMSConstants.EntityIDQueue:
+                switch (attributeId) {
+                    case AMSConstants.QueueAttributeIDIndex:
+                        return mQueueIndex != (mQueueIndex = parseInt(value, -1));
+                    case AMSConstants.QueueAttributeIDCount:
+                        return mQueueCount != (mQueueCount = parseInt(value, -1));
+                    case AMSConstants.QueueAttributeIDShuffleMode:
+                        return mShuffleMode != (mShuffleMode = parseInt(value, -1));
+                    case AMSConstants.QueueAttributeIDRepeatMode:
+                        return mRepeatMode != (mRepeatMode = parseInt(value, -1));
+                }
+
+                break;
+            case AMSConstants.EntityIDTrack:
+                switch (attributeId) {
+                    case AMSConstants.TrackAttributeIDArtist:
+                        boolean artistTruncationChanged = mArtistTruncated != truncated;
+                        mArtistTruncated = truncated;
+                        return !equals(mArtist, mArtist = emptyToNull(value)) || artistTruncationChanged;
+                    case AMSConstants.TrackAttributeIDAlbum:
+                        return !equals(mAlbum, mAlbum = emptyToNull(value));
+                    case AMSConstants.TrackAttributeIDTitle:
+                        boolean titleTruncationChanged = mTitleTruncated != truncated;
+                        mTitleTruncated = truncated;
+                        return !equals(mTitle, mTitle = emptyToNull(value)) || titleTruncationChanged;
+                    case AMSConstants.TrackAttributeIDDuration:
+                        return mDuration != (mDuration = parseFloat(value, -1));
+                }
+
+                break;
+        }
+
+        return false;
+    }
+
+    /**
+     * Replaces a truncated track attribute with its full value, read from the Entity Attribute characteristic
+     *
+     * @return true if anything changed
+     */
+    public boolean setFullAttribute(byte attributeId, String value) {
+        switch (attributeId) {
+            case AMSConstants.TrackAttributeIDArtist:
+                mArtistTruncated = false;
+                mArtist = emptyToNull(value);
+                return true;
+            case AMSConstants.TrackAttributeIDTitle:
+                mTitleTruncated = false;
+                mTitle = emptyToNull(value);
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Forgets everything, when the connection is lost
+     */
+    public void clear() {
+        mPlayerName = null;
+        mPlaybackState = -1;
+        mPlaybackRate = 0;
+        mElapsedTime = -1;
+        mVolume = -1;
+        mQueueIndex = -1;
+        mQueueCount = -1;
+        mShuffleMode = -1;
+        mRepeatMode = -1;
+        mArtist = null;
+        mAlbum = null;
+        mTitle = null;
+        mDuration = -1;
+        mArtistTruncated = false;
+        mTitleTruncated = false;
+    }
+
+    /**
+     * @return false if no app is playing media on the phone
+     */
+    public boolean hasPlayer() {
+        return mPlaybackState != -1;
+    }
+
+    public boolean isPlaying() {
+        return mPlaybackState != -1 && mPlaybackState != AMSConstants.PlaybackStatePaused;
+    }
+
+    public String getPlayerName() {
+        return mPlayerName;
+    }
+
+    /**
+     * @return one of the AMS playback states, -1 if there is no player
+     */
+    public int getPlaybackState() {
+        return mPlaybackState;
+    }
+
+    public float getPlaybackRate() {
+        return mPlaybackRate;
+    }
+
+    /**
+     * @return milliseconds into the track at the time given, -1 if unknown
+     */
+    public long getPosition(long now) {
+        if (mElapsedTime < 0) {
+            return -1;
+        }
+
+        long position = (long) (mElapsedTime * 1000 + mPlaybackRate * (now - mElapsedTimeUpdatedAt));
+
+        if (mDuration > 0) {
+            position = Math.min(position, (long) (mDuration * 1000));
+        }
+
+        return Math.max(0, position);
+    }
+
+    /**
+     * @return milliseconds into the track when the elapsed time was received, -1 if unknown
+     */
+    public long getElapsedTime() {
+        return mElapsedTime >= 0 ? (long) (mElapsedTime * 1000) : -1;
+    }
+
+    /**
+     * @return elapsedRealtime() when the elapsed time was received
+     */
+    public long getElapsedTimeUpdatedAt() {
+        return mElapsedTimeUpdatedAt;
+    }
+
+    public float getVolume() {
+        return mVolume;
+    }
+
+    public int getQueueIndex() {
+        return mQueueIndex;
+    }
+
+    public int getQueueCount() {
+        return mQueueCount;
+    }
+
+    public int getShuffleMode() {
+        return mShuffleMode;
+    }
+
+    public int getRepeatMode() {
+        return mRepeatMode;
+    }
+
+    public String getArtist() {
+        return mArtist;
+    }
+
+    public String getAlbum() {
+        return mAlbum;
+    }
+
+    public String getTitle() {
+        return mTitle;
+    }
+
+    /**
+     * @return milliseconds, -1 if unknown
+     */
+    public long getDuration() {
+        return mDuration >= 0 ? (long) (mDuration * 1000) : -1;
+    }
+
+    public boolean isArtistTruncated() {
+        return mArtistTruncated;
+    }
+
+    public boolean isTitleTruncated() {
+        return mTitleTruncated;
+    }
+
+
+    // "PlaybackState,PlaybackRate,ElapsedTime", all empty when there is no player
+    private boolean updatePlaybackInfo(String value, long now) {
+        int firstComma = value.indexOf(',');
+        int secondComma = firstComma != -1 ? value.indexOf(',', firstComma + 1) : -1;
+
+        int playbackState = -1;
+        float playbackRate = 0;
+        float elapsedTime = -1;
+
+        if (secondComma != -1) {
+            playbackState = parseInt(value.substring(0, firstComma), -1);
+            playbackRate = parseFloat(value.substring(firstComma + 1, secondComma), 0);
+            elapsedTime = parseFloat(value.substring(secondComma + 1), -1);
+        }
+
+        // The same info again still moves the reference point of the position
+        boolean changed = playbackState != mPlaybackState || playbackRate != mPlaybackRate || elapsedTime != mElapsedTime;
+
+        mPlaybackState = playbackState;
+        mPlaybackRate = playbackRate;
+        mElapsedTime = elapsedTime;
+        mElapsedTimeUpdatedAt = now;
+
+        return changed;
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.length() == 0 ? null : value;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        try {
+            return value.length() > 0 ? Integer.parseInt(value) : defaultValue;
+        }
+        catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static float parseFloat(String value, float defaultValue) {
+        try {
+            return value.length() > 0 ? Float.parseFloat(value) : defaultValue;
+        }
+        catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+}
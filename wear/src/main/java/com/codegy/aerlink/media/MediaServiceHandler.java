@@ -2,7 +2,6 @@ package com.codegy.aerlink.media;
 
 import android.app.Notification;
 import android.app.PendingIntent;
-import android.bluetooth.BluetoothGattCharacteristic;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -14,15 +13,19 @@ import android.media.VolumeProvider;
 import android.media.session.MediaSession;
 import android.media.session.PlaybackState;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import com.codegy.aerlink.Constants;
 import com.codegy.aerlink.R;
 import com.codegy.aerlink.connection.Command;
+import com.codegy.aerlink.utils.BitmapCache;
+import com.codegy.aerlink.utils.ScheduledTask;
 import com.codegy.aerlink.utils.ServiceHandler;
 import com.codegy.aerlink.utils.ServiceUtils;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.UUID;
 
 /**
@@ -33,24 +36,97 @@ public class MediaServiceHandler extends ServiceHandler {
     private static final String LOG_TAG = MediaServiceHandler.class.getSimpleName();
 
     public static final int NOTIFICATION_MEDIA = 1001;
+    public static final int BACKGROUND_COLOR = Color.rgb(230, 16, 71);
+    // Steps of the volume shown on the watch, AMS reports it from 0 to 1
+    private static final int VOLUME_MAX = 100;
+    // A track change arrives as several attributes a few milliseconds apart
+    private static final long PUBLISH_DELAY = 50;
 
     private Context mContext;
     private ServiceUtils mServiceUtils;
     
     private MediaSession mSession;
-    private boolean mediaPlaying;
+    private VolumeProvider mVolumeProvider;
+    private final MediaModel mModel = new MediaModel();
+    private final MediaAttributeFetcher mAttributeFetcher;
+    private final VolumeController mVolumeController;
+    // Sends the next volume step when the controller asks for it
+    private final ScheduledTask mVolumeSendTask;
+    // Runs on the service handler thread
+    private final Handler mHandler;
     private boolean mediaHidden = true;
-    private String mediaTitle;
-    private String mediaArtist;
+
+    // Last state given to the session, null if none was
+    private MediaState mPublishedState;
+    private boolean mNotificationPosted;
+    private boolean mNotificationColored;
+
+    private ScheduledTask mPublishTask;
+    private boolean mPublishPending;
+    // Updates since the last publish
+    private int mPendingUpdateCount;
+
+    // Metrics
+    private int mUpdateCount;
+    private int mPublishCount;
+    private int mSkippedCount;
 
 
     public MediaServiceHandler(Context context, ServiceUtils serviceUtils) {
         this.mContext = context;
         this.mServiceUtils = serviceUtils;
 
+        mPublishTask = new ScheduledTask(PUBLISH_DELAY, serviceUtils.getLooper(), new Runnable() {
+            @Override
+            public void run() {
+                mPublishPending = false;
+                publish();
+            }
+        });
+
+        mAttributeFetcher = new MediaAttributeFetcher(serviceUtils, serviceUtils.getLooper(), new MediaAttributeFetcher.FetcherCallback() {
+            @Override
+            public void onAttributeFetched(byte attributeId, String value) {
+                if (mModel.setFullAttribute(attributeId, value)) {
+                    mUpdateCount++;
+                    mPendingUpdateCount++;
+
+                    schedulePublishTask();
+                }
+            }
+        });
+
+        mVolumeController = new VolumeController(new VolumeController.Callback() {
+            @Override
+            public void onSendStep(boolean up) {
+                sendRemoteCommand(up ? AMSConstants.RemoteCommandIDVolumeUp : AMSConstants.RemoteCommandIDVolumeDown);
+            }
+
+            @Override
+            public void onVolumePredicted(float volume) {
+                VolumeProvider volumeProvider = mVolumeProvider;
+
+                if (volumeProvider != null) {
+                    volumeProvider.setCurrentVolume(Math.round(volume * VOLUME_MAX));
+                }
+            }
+        });
+
+        mVolumeSendTask = new ScheduledTask(0, serviceUtils.getLooper(), new Runnable() {
+            @Override
+            public void run() {
+                mVolumeController.send(SystemClock.uptimeMillis());
+                scheduleVolumeSendTask();
+            }
+        });
+        mVolumeSendTask.setTolerance(0);
+
+        mHandler = new Handler(serviceUtils.getLooper());
+
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(Constants.IA_HIDE_MEDIA);
-        context.registerReceiver(mBroadcastReceiver, intentFilter);
+        // Received on the service handler thread like the packets
+        context.registerReceiver(mBroadcastReceiver, intentFilter, null, mHandler);
 
         // Run on main thread
         final Handler handler = new Handler(mContext.getMainLooper());
@@ -67,8 +143,19 @@ public class MediaServiceHandler extends ServiceHandler {
 
     @Override
     public void close() {
-        mediaTitle = null;
-        mediaArtist = null;
+        Log.i(LOG_TAG, String.format(Locale.US, "%d updates, published %d times, %d rebuilds avoided",
+                mUpdateCount, mPublishCount, getRebuildsAvoided()));
+        Log.i(LOG_TAG, "Attributes " + mAttributeFetcher);
+        Log.i(LOG_TAG, "Volume " + mVolumeController);
+
+        cancelPublishTask();
+        mAttributeFetcher.clear();
+        mVolumeController.clear();
+        mVolumeSendTask.cancel();
+        mHandler.removeCallbacksAndMessages(null);
+        mModel.clear();
+        mPublishedState = null;
+        mNotificationPosted = false;
 
         if (mSession != null) {
             mSession.release();
@@ -93,88 +180,55 @@ public class MediaServiceHandler extends ServiceHandler {
     }
 
     @Override
-    public boolean canHandleCharacteristic(BluetoothGattCharacteristic characteristic) {
-        String characteristicUUID = characteristic.getUuid().toString().toLowerCase();
-        return characteristicUUID.equals(AMSConstants.CHARACTERISTIC_ENTITY_UPDATE) || characteristicUUID.equals(AMSConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE);
+    public List<String> getCharacteristicsToHandle() {
+        List<String> characteristics = getCharacteristicsToSubscribe();
+
+        // Read after writing to the entity attribute characteristic
+        characteristics.add(AMSConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE);
+
+        return characteristics;
     }
 
     @Override
-    public void handleCharacteristic(BluetoothGattCharacteristic characteristic) {
+    public void handleCharacteristic(UUID characteristicUUID, byte[] packet) {
         try {
-            byte[] packet = characteristic.getValue();
-            if (packet != null) {
-                String attribute = characteristic.getStringValue(3);
+            if (packet == null) {
+                return;
+            }
+
+            if (AMSConstants.ENTITY_ATTRIBUTE_UUID.equals(characteristicUUID)) {
+                // Only the value, the stack already read all of it if it was longer than the MTU
+                mAttributeFetcher.onAttributeRead(new String(packet, "UTF-8"));
+                return;
+            }
+
+            if (packet.length >= 3) {
+                String attribute = new String(packet, 3, packet.length - 3, "UTF-8");
                 Log.d(LOG_TAG, "AMS ATTRIBUTE: " + attribute);
 
-                switch (packet[0]) {
-                    case 0:
-                        switch (packet[1]) {
-                            case 1:
-                                if (attribute.length() > 0) {
-                                    mediaPlaying = !attribute.substring(0, 1).equals("0");
-
-                                    if (attribute.equals("0,,")) {
-                                        mediaHidden = true;
-                                        mServiceUtils.cancelNotification(null, NOTIFICATION_MEDIA);
-                                    }
-                                }
-
-                                break;
-                        }
-
-                        updatePlaybackState();
-                        break;
-                    case 2:
-                        boolean truncated = (packet[2] & 1) != 0;
-
-                        switch (packet[1]) {
-                            case 0:
-                                mediaArtist = attribute;
-
-                                if (truncated) {
-                                    mediaArtist += "...";
-                                    Command attributeCommand = new Command(AMSConstants.SERVICE_UUID, AMSConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE, new byte[] {
-                                            AMSConstants.EntityIDTrack,
-                                            AMSConstants.TrackAttributeIDArtist
-                                    });
-                                    attributeCommand.setImportance(Command.IMPORTANCE_MIN);
-
-                                    mServiceUtils.addCommandToQueue(attributeCommand);
-                                }
-                                else if (attribute.length() == 0) {
-                                    mediaArtist = null;
-                                }
-
-                                break;
-                            case 2:
-                                mediaTitle = attribute;
-
-                                if (truncated) {
-                                    mediaTitle += "...";
-                                    Command attributeCommand = new Command(AMSConstants.SERVICE_UUID, AMSConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE, new byte[] {
-                                            AMSConstants.EntityIDTrack,
-                                            AMSConstants.TrackAttributeIDTitle
-                                    });
-                                    attributeCommand.setImportance(Command.IMPORTANCE_MIN);
-
-                                    mServiceUtils.addCommandToQueue(attributeCommand);
-                                }
-                                else if (attribute.length() == 0) {
-                                    mediaTitle = null;
-                                }
-
-                                break;
-                        }
-
-                        updateMetadata();
-
-                        break;
+                byte entityId = packet[0];
+                byte attributeId = packet[1];
+                byte flags = packet[2];
+
+                if (!mModel.update(entityId, attributeId, flags, attribute, SystemClock.elapsedRealtime())) {
+                    return;
                 }
 
+                mUpdateCount++;
+                mPendingUpdateCount++;
 
-                if (mediaPlaying || !mediaHidden) {
-                    buildMediaNotification();
+                if (entityId == AMSConstants.EntityIDPlayer && attributeId == AMSConstants.PlayerAttributeIDVolume && mModel.getVolume() >= 0) {
+                    // Not delayed by the publish window, the next volume step waits for it
+                    mVolumeController.onVolumeReported(mModel.getVolume(), SystemClock.uptimeMillis());
+                    scheduleVolumeSendTask();
                 }
+
+                if (entityId == AMSConstants.EntityIDTrack
+                        && (attributeId == AMSConstants.TrackAttributeIDArtist || attributeId == AMSConstants.TrackAttributeIDTitle)) {
+                    mAttributeFetcher.onAttributeUpdated(attributeId, attribute, (flags & AMSConstants.EntityUpdateFlagTruncated) != 0);
+                }
+
+                schedulePublishTask();
             }
         }
         catch (Exception e) {
@@ -183,45 +237,134 @@ public class MediaServiceHandler extends ServiceHandler {
     }
 
     public void sendPlay() {
-        Command remoteCommand = new Command(AMSConstants.SERVICE_UUID, AMSConstants.CHARACTERISTIC_REMOTE_COMMAND, new byte[]{
-                AMSConstants.RemoteCommandIDTogglePlayPause
-        });
-        remoteCommand.setImportance(Command.IMPORTANCE_MIN);
-
-        mServiceUtils.addCommandToQueue(remoteCommand);
+        sendRemoteCommand(AMSConstants.RemoteCommandIDTogglePlayPause);
     }
 
     public void sendNext() {
-        Command remoteCommand = new Command(AMSConstants.SERVICE_UUID, AMSConstants.CHARACTERISTIC_REMOTE_COMMAND, new byte[]{
-                AMSConstants.RemoteCommandIDNextTrack
-        });
-        remoteCommand.setImportance(Command.IMPORTANCE_MIN);
+        sendRemoteCommand(AMSConstants.RemoteCommandIDNextTrack);
+    }
 
-        mServiceUtils.addCommandToQueue(remoteCommand);
+    public void sendPrevious() {
+        sendRemoteCommand(AMSConstants.RemoteCommandIDPreviousTrack);
     }
 
+    public void sendSkipForward() {
+        sendRemoteCommand(AMSConstants.RemoteCommandIDSkipForward);
+    }
 
-    public void sendPrevious() {
-        Command remoteCommand = new Command(AMSConstants.SERVICE_UUID, AMSConstants.CHARACTERISTIC_REMOTE_COMMAND, new byte[]{
-                AMSConstants.RemoteCommandIDPreviousTrack
+    public void sendSkipBackward() {
+        sendRemoteCommand(AMSConstants.RemoteCommandIDSkipBackward);
+    }
+
+    public void sendAdvanceShuffleMode() {
+        sendRemoteCommand(AMSConstants.RemoteCommandIDAdvanceShuffleMode);
+    }
+
+    public void sendAdvanceRepeatMode() {
+        sendRemoteCommand(AMSConstants.RemoteCommandIDAdvanceRepeatMode);
+    }
+
+    /**
+     * Only to be used on the service handler thread
+     */
+    public MediaModel getModel() {
+        return mModel;
+    }
+
+    /**
+     * @return session and notification updates saved by coalescing and comparing the updates
+     */
+    public int getRebuildsAvoided() {
+        return mSkippedCount;
+    }
+
+    private void sendRemoteCommand(byte remoteCommandId) {
+        Command remoteCommand = new Command(AMSConstants.SERVICE_UUID, AMSConstants.CHARACTERISTIC_REMOTE_COMMAND, new byte[] {
+                remoteCommandId
         });
         remoteCommand.setImportance(Command.IMPORTANCE_MIN);
+        remoteCommand.setPriority(Command.PRIORITY_USER_ACTION);
 
         mServiceUtils.addCommandToQueue(remoteCommand);
     }
 
-    private void buildMediaNotification() {
-        mediaHidden = false;
+    // Gives the session and the notification only what changed since the last time
+    private void publish() {
+        if (mSession == null) {
+            // Published once it is ready
+            return;
+        }
 
-        Bitmap background = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+        MediaState state = new MediaState(mModel);
+        int changes = state.diff(mPublishedState);
+        // Each update used to rebuild part of the session and the whole notification
+        int rebuilds = 0;
 
-        if (mServiceUtils.getColorBackgrounds()) {
-            background.eraseColor(Color.rgb(230, 16, 71));
+        if ((changes & MediaState.CHANGED_METADATA) != 0) {
+            updateMetadata(state);
+            rebuilds++;
         }
-        else {
-            background.eraseColor(0);
+
+        if ((changes & MediaState.CHANGED_PLAYBACK) != 0) {
+            updatePlaybackState(state);
+            rebuilds++;
         }
 
+        if (!state.hasPlayer()) {
+            if (mPublishedState != null && mPublishedState.hasPlayer()) {
+                mediaHidden = true;
+                mNotificationPosted = false;
+                mServiceUtils.cancelNotification(null, NOTIFICATION_MEDIA);
+                rebuilds++;
+            }
+        }
+        else if (state.isPlaying() || !mediaHidden) {
+            // The card shows the session, it only has to be posted again if the card itself changed
+            if (!mNotificationPosted || mNotificationColored != mServiceUtils.getColorBackgrounds()) {
+                buildMediaNotification();
+                rebuilds++;
+            }
+        }
+
+        mPublishedState = state;
+        mPublishCount++;
+        mSkippedCount += Math.max(0, 2 * mPendingUpdateCount - rebuilds);
+        mPendingUpdateCount = 0;
+    }
+
+    private void schedulePublishTask() {
+        // Not moved by later updates, so a steady stream of them can't hold everything back
+        if (!mPublishPending) {
+            mPublishPending = true;
+            mPublishTask.schedule();
+        }
+    }
+
+    private void cancelPublishTask() {
+        mPublishPending = false;
+        mPublishTask.cancel();
+    }
+
+    private void scheduleVolumeSendTask() {
+        long sendTime = mVolumeController.getNextSendTime();
+
+        mVolumeSendTask.cancel();
+
+        if (sendTime == -1) {
+            return;
+        }
+
+        mVolumeSendTask.setDelay(Math.max(0, sendTime - SystemClock.uptimeMillis()));
+        mVolumeSendTask.schedule();
+    }
+
+    private void buildMediaNotification() {
+        mediaHidden = false;
+        mNotificationPosted = true;
+        mNotificationColored = mServiceUtils.getColorBackgrounds();
+
+        Bitmap background = BitmapCache.getSolidColor(mNotificationColored ? BACKGROUND_COLOR : 0);
+
         // Build pending intent for when the user swipes the card away
         Intent deleteIntent = new Intent(Constants.IA_HIDE_MEDIA);
         PendingIntent deleteAction = PendingIntent.getBroadcast(mContext, 0, deleteIntent, PendingIntent.FLAG_UPDATE_CURRENT);
@@ -248,31 +391,28 @@ public class MediaServiceHandler extends ServiceHandler {
         mSession = new MediaSession(mContext, "Aerlink_session");
         mSession.setActive(true);
         mSession.setFlags(MediaSession.FLAG_HANDLES_TRANSPORT_CONTROLS | MediaSession.FLAG_HANDLES_MEDIA_BUTTONS);
-        mSession.setPlaybackToRemote(new VolumeProvider(VolumeProvider.VOLUME_CONTROL_RELATIVE, 50, 100) {
+        mVolumeProvider = new VolumeProvider(VolumeProvider.VOLUME_CONTROL_RELATIVE, VOLUME_MAX / 2, VOLUME_MAX) {
 
             @Override
-            public void onAdjustVolume(int direction) {
+            public void onAdjustVolume(final int direction) {
                 super.onAdjustVolume(direction);
 
-                try {
-                    Command volumeCommand;
-                    if (direction == 1) {
-                        volumeCommand = new Command(AMSConstants.SERVICE_UUID, AMSConstants.CHARACTERISTIC_REMOTE_COMMAND, new byte[]{
-                                AMSConstants.RemoteCommandIDVolumeUp
-                        });
-                    } else {
-                        volumeCommand = new Command(AMSConstants.SERVICE_UUID, AMSConstants.CHARACTERISTIC_REMOTE_COMMAND, new byte[]{
-                                AMSConstants.RemoteCommandIDVolumeDown
-                        });
-                    }
-
-                    mServiceUtils.addCommandToQueue(volumeCommand);
-                } catch (Exception e) {
-                    e.printStackTrace();
+                if (direction == 0) {
+                    return;
                 }
+
+                // One call per crown tick, the controller decides what is sent
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mVolumeController.onAdjust(direction > 0, SystemClock.uptimeMillis());
+                        scheduleVolumeSendTask();
+                    }
+                });
             }
 
-        });
+        };
+        mSession.setPlaybackToRemote(mVolumeProvider);
 
         mSession.setCallback(new MediaSession.Callback() {
             @Override
@@ -280,12 +420,7 @@ public class MediaServiceHandler extends ServiceHandler {
                 super.onPlay();
                 Log.e(LOG_TAG, "onPlay");
 
-                Command remoteCommand = new Command(AMSConstants.SERVICE_UUID, AMSConstants.CHARACTERISTIC_REMOTE_COMMAND, new byte[]{
-                        AMSConstants.RemoteCommandIDTogglePlayPause
-                });
-                remoteCommand.setImportance(Command.IMPORTANCE_MIN);
-
-                mServiceUtils.addCommandToQueue(remoteCommand);
+                sendRemoteCommand(AMSConstants.RemoteCommandIDTogglePlayPause);
             }
 
             @Override
@@ -293,12 +428,7 @@ public class MediaServiceHandler extends ServiceHandler {
                 super.onPause();
                 Log.e(LOG_TAG, "onPause");
 
-                Command remoteCommand = new Command(AMSConstants.SERVICE_UUID, AMSConstants.CHARACTERISTIC_REMOTE_COMMAND, new byte[]{
-                        AMSConstants.RemoteCommandIDTogglePlayPause
-                });
-                remoteCommand.setImportance(Command.IMPORTANCE_MIN);
-
-                mServiceUtils.addCommandToQueue(remoteCommand);
+                sendRemoteCommand(AMSConstants.RemoteCommandIDTogglePlayPause);
             }
 
             @Override
@@ -306,12 +436,7 @@ public class MediaServiceHandler extends ServiceHandler {
                 super.onSkipToNext();
                 Log.e(LOG_TAG, "onSkipToNext");
 
-                Command remoteCommand = new Command(AMSConstants.SERVICE_UUID, AMSConstants.CHARACTERISTIC_REMOTE_COMMAND, new byte[]{
-                        AMSConstants.RemoteCommandIDNextTrack
-                });
-                remoteCommand.setImportance(Command.IMPORTANCE_MIN);
-
-                mServiceUtils.addCommandToQueue(remoteCommand);
+                sendRemoteCommand(AMSConstants.RemoteCommandIDNextTrack);
             }
 
             @Override
@@ -319,12 +444,23 @@ public class MediaServiceHandler extends ServiceHandler {
                 super.onSkipToPrevious();
                 Log.e(LOG_TAG, "onSkipToPrevious");
 
-                Command remoteCommand = new Command(AMSConstants.SERVICE_UUID, AMSConstants.CHARACTERISTIC_REMOTE_COMMAND, new byte[]{
-                        AMSConstants.RemoteCommandIDPreviousTrack
-                });
-                remoteCommand.setImportance(Command.IMPORTANCE_MIN);
+                sendRemoteCommand(AMSConstants.RemoteCommandIDPreviousTrack);
+            }
 
-                mServiceUtils.addCommandToQueue(remoteCommand);
+            @Override
+            public void onFastForward() {
+                super.onFastForward();
+                Log.e(LOG_TAG, "onFastForward");
+
+                sendRemoteCommand(AMSConstants.RemoteCommandIDSkipForward);
+            }
+
+            @Override
+            public void onRewind() {
+                super.onRewind();
+                Log.e(LOG_TAG, "onRewind");
+
+                sendRemoteCommand(AMSConstants.RemoteCommandIDSkipBackward);
             }
 
             @Override
@@ -334,33 +470,66 @@ public class MediaServiceHandler extends ServiceHandler {
 
         });
 
-        updatePlaybackState();
-        updateMetadata();
+        // Back on the service handler thread with whatever arrived in the meantime
+        mPublishTask.schedule();
     }
 
-    private void updatePlaybackState() {
-        long position = PlaybackState.PLAYBACK_POSITION_UNKNOWN;
+    private void updatePlaybackState(MediaState mediaState) {
+        int state;
+        switch (mediaState.getPlaybackState()) {
+            case AMSConstants.PlaybackStatePlaying:
+                state = PlaybackState.STATE_PLAYING;
+                break;
+            case AMSConstants.PlaybackStateRewinding:
+                state = PlaybackState.STATE_REWINDING;
+                break;
+            case AMSConstants.PlaybackStateFastForwarding:
+                state = PlaybackState.STATE_FAST_FORWARDING;
+                break;
+            default:
+                state = PlaybackState.STATE_PAUSED;
+                break;
+        }
+
+        long position = mediaState.getElapsedTime();
+        if (position < 0) {
+            position = PlaybackState.PLAYBACK_POSITION_UNKNOWN;
+        }
+
         PlaybackState.Builder stateBuilder = new PlaybackState.Builder()
                 .setActions(PlaybackState.ACTION_PLAY_PAUSE
                         | PlaybackState.ACTION_SKIP_TO_PREVIOUS
-                        | PlaybackState.ACTION_SKIP_TO_NEXT);
-        stateBuilder.setState(mediaPlaying ? PlaybackState.STATE_PLAYING : PlaybackState.STATE_PAUSED, position, 1.0f);
+                        | PlaybackState.ACTION_SKIP_TO_NEXT
+                        | PlaybackState.ACTION_FAST_FORWARD
+                        | PlaybackState.ACTION_REWIND);
+        // The session moves the position on from the time it was received, no need to ask the phone again
+        stateBuilder.setState(state, position, mediaState.getPlaybackRate(), mediaState.getElapsedTimeUpdatedAt());
         mSession.setPlaybackState(stateBuilder.build());
     }
 
-    private void updateMetadata() {
+    private void updateMetadata(MediaState mediaState) {
         MediaMetadata.Builder metadataBuilder = new MediaMetadata.Builder();
 
-        if (mediaTitle == null && mediaArtist == null) {
+        if (mediaState.getTitle() == null && mediaState.getArtist() == null) {
             metadataBuilder.putString(MediaMetadata.METADATA_KEY_ARTIST, "No info");
         }
         else {
             // And at minimum the title and artist for legacy support
-            metadataBuilder.putString(MediaMetadata.METADATA_KEY_TITLE, mediaTitle);
-            metadataBuilder.putString(MediaMetadata.METADATA_KEY_ARTIST, mediaArtist);
+            metadataBuilder.putString(MediaMetadata.METADATA_KEY_TITLE, mediaState.getTitle());
+            metadataBuilder.putString(MediaMetadata.METADATA_KEY_ARTIST, mediaState.getArtist());
+        }
+
+        if (mediaState.getAlbum() != null) {
+            metadataBuilder.putString(MediaMetadata.METADATA_KEY_ALBUM, mediaState.getAlbum());
+        }
+        if (mediaState.getDuration() >= 0) {
+            metadataBuilder.putLong(MediaMetadata.METADATA_KEY_DURATION, mediaState.getDuration());
+        }
+        if (mediaState.getTrackNumber() > 0) {
+            metadataBuilder.putLong(MediaMetadata.METADATA_KEY_TRACK_NUMBER, mediaState.getTrackNumber());
+            metadataBuilder.putLong(MediaMetadata.METADATA_KEY_NUM_TRACKS, mediaState.getTrackCount());
         }
 
-        // Add any other fields you have for your data as well
         mSession.setMetadata(metadataBuilder.build());
     }
 
@@ -370,8 +539,9 @@ public class MediaServiceHandler extends ServiceHandler {
         @Override
         public void onReceive(Context context, Intent intent) {
             mediaHidden = true;
+            mNotificationPosted = false;
 
-            if (mediaPlaying) {
+            if (mModel.isPlaying()) {
                 buildMediaNotification();
             }
         }
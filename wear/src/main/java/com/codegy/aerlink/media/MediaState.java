@@ -0,0 +1,159 @@
+package com.codegy.aerlink.media;
+
+/**
+ * What the watch shows of the media playing on the phone, taken from a MediaModel at some point.
+ *
+ * Immutable, so the last one published can be compared with a new one to only update the parts
+ * of the session and the notification that changed.
+ */
+public class MediaState {
+
+    public static final int CHANGED_METADATA = 1;
+    public static final int CHANGED_PLAYBACK = 1 << 1;
+    // Player appeared, went away, or started or stopped playing
+    public static final int CHANGED_PLAYER = 1 << 2;
+    public static final int CHANGED_ALL = CHANGED_METADATA | CHANGED_PLAYBACK | CHANGED_PLAYER;
+
+
+    // Metadata
+    private final String title;
+    private final String artist;
+    private final String album;
+    private final long duration;
+    private final int trackNumber;
+    private final int trackCount;
+
+    // Playback
+    private final int playbackState;
+    private final float playbackRate;
+    private final long elapsedTime;
+    private final long elapsedTimeUpdatedAt;
+
+
+    public MediaState(MediaModel model) {
+        this.title = model.getTitle() != null && model.isTitleTruncated() ? model.getTitle() + "..." : model.getTitle();
+        this.artist = model.getArtist() != null && model.isArtistTruncated() ? model.getArtist() + "..." : model.getArtist();
+        this.album = model.getAlbum();
+        this.duration = model.getDuration();
+
+        if (model.getQueueIndex() >= 0 && model.getQueueCount() > 0) {
+            this.trackNumber = model.getQueueIndex() + 1;
+            this.trackCount = model.getQueueCount();
+        }
+        else {
+            this.trackNumber = -1;
+            this.trackCount = -1;
+        }
+
+        this.playbackState = model.getPlaybackState();
+        this.playbackRate = model.getPlaybackRate();
+        this.elapsedTime = model.getElapsedTime();
+        this.elapsedTimeUpdatedAt = model.getElapsedTimeUpdatedAt();
+    }
+
+    /**
+     * @param previous state published before, null if none was
+     * @return CHANGED_* flags of what is different
+     */
+    public int diff(MediaState previous) {
+        if (previous == null) {
+            return CHANGED_ALL;
+        }
+
+        int changes = 0;
+
+        if (!equals(title, previous.title)
+                || !equals(artist, previous.artist)
+                || !equals(album, previous.album)
+                || duration != previous.duration
+                || trackNumber != previous.trackNumber
+                || trackCount != previous.trackCount) {
+            changes |= CHANGED_METADATA;
+        }
+
+        if (playbackState != previous.playbackState
+                || playbackRate != previous.playbackRate
+                || elapsedTime != previous.elapsedTime
+                || elapsedTimeUpdatedAt != previous.elapsedTimeUpdatedAt) {
+            changes |= CHANGED_PLAYBACK;
+        }
+
+        if (hasPlayer() != previous.hasPlayer() || isPlaying() != previous.isPlaying()) {
+            changes |= CHANGED_PLAYER;
+        }
+
+        return changes;
+    }
+
+    public boolean hasPlayer() {
+        return playbackState != -1;
+    }
+
+    public boolean isPlaying() {
+        return playbackState != -1 && playbackState != AMSConstants.PlaybackStatePaused;
+    }
+
+    /**
+     * @return title to show, with "..." if it was truncated
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * @return artist to show, with "..." if it was truncated
+     */
+    public String getArtist() {
+        return artist;
+    }
+
+    public String getAlbum() {
+        return album;
+    }
+
+    /**
+     * @return milliseconds, -1 if unknown
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return position in the queue starting at 1, -1 if unknown
+     */
+    public int getTrackNumber() {
+        return trackNumber;
+    }
+
+    public int getTrackCount() {
+        return trackCount;
+    }
+
+    /**
+     * @return one of the AMS playback states, -1 if there is no player
+     */
+    public int getPlaybackState() {
+        return playbackState;
+    }
+
+    public float getPlaybackRate() {
+        return playbackRate;
+    }
+
+    /**
+     * @return milliseconds, -1 if unknown
+     */
+    public long getElapsedTime() {
+        return elapsedTime;
+    }
+
+    public long getElapsedTimeUpdatedAt() {
+        return elapsedTimeUpdatedAt;
+    }
+
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+}
@@ -0,0 +1,223 @@
+package com.codegy.aerlink.media;
+
+import java.util.Locale;
+
+/**
+ * Turns crown ticks into AMS volume commands.
+ *
+ * AMS can only move the volume one step up or down, so ticks are added into a net number of steps
+ * during a short window and then sent one at a time, each one after the previous was seen in a volume
+ * update or timed out. Ticks in the other direction cancel steps not sent yet, and steps past the
+ * ends are never sent. The volume shown is the last one reported plus the steps still on their way,
+ * nothing is predicted until AMS reported a volume. Latency is measured from the last tick until the
+ * phone reported every step, inputs with a step that timed out are counted as timeouts instead.
+ * Time is passed in by the caller, send() has to be called at getNextSendTime().
+ */
+public class VolumeController {
+
+    public interface Callback {
+        void onSendStep(boolean up);
+        void onVolumePredicted(float volume);
+    }
+
+    // iOS moves the volume in 16 steps
+    public static final float STEP = 1f / 16;
+
+    // Ticks arriving this close together are added up before sending anything
+    static final long WINDOW = 40;
+    // Time a step can take to show up in a volume update before sending the next one anyway
+    static final long STEP_TIMEOUT = 250;
+
+
+    private final Callback mCallback;
+
+    // Last volume reported by AMS, -1 if unknown
+    private float mReportedVolume = -1;
+    // Steps sent and not seen in a volume update yet, negative when going down
+    private int mSentSteps;
+    // Steps not sent yet
+    private int mPendingSteps;
+    // When the window or the step timeout ends, -1 if neither is running
+    private long mSendTime = -1;
+    // When the last tick not seen on the phone yet happened, -1 if none
+    private long mInputTime = -1;
+
+    // Metrics
+    private int mTickCount;
+    private int mStepCount;
+    private int mSettledCount;
+    private int mTimeoutCount;
+    private long mTotalLatency;
+    private long mMaxLatency;
+
+
+    public VolumeController(Callback callback) {
+        this.mCallback = callback;
+    }
+
+    public void clear() {
+        mSendTime = -1;
+
+        mReportedVolume = -1;
+        mSentSteps = 0;
+        mPendingSteps = 0;
+        mInputTime = -1;
+    }
+
+    /**
+     * A crown tick or volume key press
+     */
+    public void onAdjust(boolean up, long now) {
+        mTickCount++;
+
+        int steps = mPendingSteps + (up ? 1 : -1);
+
+        if (mReportedVolume >= 0) {
+            float volume = getVolume(mSentSteps + steps);
+
+            // The phone reports any volume, not only whole steps
+            if (volume < -STEP / 2 || volume > 1 + STEP / 2) {
+                // Already at the end, there is nothing to send
+                return;
+            }
+
+            mCallback.onVolumePredicted(clamp(volume));
+        }
+        // Otherwise the ends are unknown, the phone ignores steps past them
+
+        mInputTime = now;
+        mPendingSteps = steps;
+
+        if (mSendTime == -1) {
+            // Not moved by later ticks, so scrolling doesn't hold the first step back
+            mSendTime = now + WINDOW;
+        }
+    }
+
+    /**
+     * Sends the next step if the window or the step timeout is over
+     */
+    public void send(long now) {
+        if (mSendTime == -1 || mSendTime > now) {
+            return;
+        }
+
+        mSendTime = -1;
+
+        if (mSentSteps != 0) {
+            // The last step wasn't seen, don't wait for it anymore
+            mTimeoutCount++;
+            mSentSteps = 0;
+            // The phone never reported every step of this input
+            mInputTime = -1;
+        }
+
+        sendNextStep(now);
+    }
+
+    /**
+     * @return when send() has to be called, -1 if it doesn't
+     */
+    public long getNextSendTime() {
+        return mSendTime;
+    }
+
+    /**
+     * A volume update from AMS, the phone may have moved it on its own
+     */
+    public void onVolumeReported(float volume, long now) {
+        boolean stepSeen = false;
+
+        if (mReportedVolume >= 0 && mSentSteps != 0) {
+            int movedSteps = Math.round((volume - mReportedVolume) / STEP);
+            stepSeen = Integer.signum(movedSteps) == Integer.signum(mSentSteps);
+        }
+
+        mReportedVolume = volume;
+
+        if (stepSeen) {
+            // No need to wait for its timeout
+            mSendTime = -1;
+            mSentSteps = 0;
+
+            sendNextStep(now);
+
+            if (mSentSteps == 0 && mInputTime != -1) {
+                // That was the last step
+                recordLatency(now - mInputTime);
+                mInputTime = -1;
+            }
+        }
+
+        mCallback.onVolumePredicted(clamp(getVolume(mSentSteps + mPendingSteps)));
+    }
+
+    /**
+     * @return the volume shown, from 0 to 1, -1 if unknown
+     */
+    public float getPredictedVolume() {
+        return mReportedVolume >= 0 ? clamp(getVolume(mSentSteps + mPendingSteps)) : -1;
+    }
+
+    public int getTickCount() {
+        return mTickCount;
+    }
+
+    public int getStepCount() {
+        return mStepCount;
+    }
+
+    /**
+     * @return steps the phone didn't report before STEP_TIMEOUT
+     */
+    public int getTimeoutCount() {
+        return mTimeoutCount;
+    }
+
+    /**
+     * @return average time from the last tick to the phone reporting every step
+     */
+    public long getAverageLatency() {
+        return mSettledCount > 0 ? mTotalLatency / mSettledCount : 0;
+    }
+
+    public long getMaxLatency() {
+        return mMaxLatency;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d ticks sent as %d steps, %d timed out, latency avg %dms max %dms",
+                mTickCount, mStepCount, mTimeoutCount, getAverageLatency(), mMaxLatency);
+    }
+
+    private void sendNextStep(long now) {
+        if (mPendingSteps == 0) {
+            return;
+        }
+
+        boolean up = mPendingSteps > 0;
+        mPendingSteps -= up ? 1 : -1;
+        mSentSteps = up ? 1 : -1;
+        mStepCount++;
+
+        mCallback.onSendStep(up);
+
+        mSendTime = now + STEP_TIMEOUT;
+    }
+
+    private void recordLatency(long latency) {
+        mSettledCount++;
+        mTotalLatency += latency;
+        mMaxLatency = Math.max(mMaxLatency, latency);
+    }
+
+    private float getVolume(int steps) {
+        return mReportedVolume + steps * STEP;
+    }
+
+    private static float clamp(float volume) {
+        return Math.max(0, Math.min(1, volume));
+    }
+
+}
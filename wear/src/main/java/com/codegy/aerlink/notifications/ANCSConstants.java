@@ -12,6 +12,9 @@ public class ANCSConstants {
     public static final String CHARACTERISTIC_NOTIFICATION_SOURCE = "9fbf120d-6301-42d9-8c58-25e699a21dbd";
     public static final String CHARACTERISTIC_DATA_SOURCE         = "22eac6e9-24d6-4bb5-be44-b36ace7c7bfb";
     public static final String CHARACTERISTIC_CONTROL_POINT       = "69d1d8f3-45e1-49a8-9821-9bbdfdaad9d9";
+    // Compared with the UUID of every packet received
+    public static final UUID NOTIFICATION_SOURCE_UUID = UUID.fromString(CHARACTERISTIC_NOTIFICATION_SOURCE);
+    public static final UUID DATA_SOURCE_UUID         = UUID.fromString(CHARACTERISTIC_DATA_SOURCE);
 
     public static final byte EventIDNotificationAdded    = 0x00;
     public static final byte EventIDNotificationModified = 0x01;
@@ -0,0 +1,307 @@
+package com.codegy.aerlink.notifications;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Color;
+import android.preference.PreferenceManager;
+import com.codegy.aerlink.Constants;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Icon, background color and message format of the iOS apps, by bundle id.
+ *
+ * Profiles are loaded once from assets/app_profiles.json, entries with the same format saved in
+ * the SPK_APP_PROFILES preference replace or add to them. Lookups use a perfect hash built when
+ * the profiles are loaded, so a bundle id is hashed once and compared with a single key.
+ */
+public class AppProfileRegistry {
+
+    public static class AppProfile {
+        // 0 keeps the default icon
+        private final int appIcon;
+        private final boolean hasBackgroundColor;
+        private final int backgroundColor;
+        private final int splitRule;
+
+        public AppProfile(int appIcon, boolean hasBackgroundColor, int backgroundColor, int splitRule) {
+            this.appIcon = appIcon;
+            this.hasBackgroundColor = hasBackgroundColor;
+            this.backgroundColor = backgroundColor;
+            this.splitRule = splitRule;
+        }
+
+        public int getAppIcon() {
+            return appIcon;
+        }
+
+        public boolean hasBackgroundColor() {
+            return hasBackgroundColor;
+        }
+
+        public int getBackgroundColor() {
+            return backgroundColor;
+        }
+
+        public int getSplitRule() {
+            return splitRule;
+        }
+    }
+
+    public static final int SPLIT_NONE = 0;
+    // Message apps send "Sender: message", the sender becomes the title
+    public static final int SPLIT_SENDER = 1;
+
+    private static final String ASSET_NAME = "app_profiles.json";
+    // Seeds tried for each table size before making it bigger
+    private static final int SEED_ATTEMPTS = 1024;
+
+    private static AppProfileRegistry sInstance;
+
+
+    private final String[] mKeys;
+    private final AppProfile[] mProfiles;
+    private final int mSeed;
+    private final int mShift;
+    // Keys with the same String hash as another one can't be told apart by the table
+    private final HashMap<String, AppProfile> mCollisions = new HashMap<>();
+
+
+    public static synchronized AppProfileRegistry getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = load(context);
+        }
+
+        return sInstance;
+    }
+
+    /**
+     * Saves the user profiles, they are used from the next time the registry is needed
+     *
+     * @param profiles a JSON array like the one in the assets, null to remove them
+     */
+    public static synchronized void setUserProfiles(Context context, String profiles) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        sp.edit().putString(Constants.SPK_APP_PROFILES, profiles).apply();
+
+        sInstance = null;
+    }
+
+    AppProfileRegistry(Map<String, AppProfile> profiles) {
+        // Distinct keys by hash, at most one per slot
+        HashMap<Integer, String> keysByHash = new HashMap<>();
+        for (String appId : profiles.keySet()) {
+            if (keysByHash.containsKey(appId.hashCode())) {
+                mCollisions.put(appId, profiles.get(appId));
+            }
+            else {
+                keysByHash.put(appId.hashCode(), appId);
+            }
+        }
+
+        // Sparse enough that a seed without collisions is found quickly
+        int bits = 1;
+        while ((1 << bits) < keysByHash.size() * 4) {
+            bits++;
+        }
+
+        int seed = 0;
+        while (true) {
+            int shift = 32 - bits;
+            boolean[] used = new boolean[1 << bits];
+
+            for (int attempt = 0; attempt < SEED_ATTEMPTS && seed == 0; attempt++) {
+                // Odd multipliers spread the hash over the top bits
+                int candidate = (0x9e3779b9 * (attempt + 1)) | 1;
+                Arrays.fill(used, false);
+
+                boolean perfect = true;
+                for (int hash : keysByHash.keySet()) {
+                    int index = (hash * candidate) >>> shift;
+
+                    if (used[index]) {
+                        perfect = false;
+                        break;
+                    }
+
+                    used[index] = true;
+                }
+
+                if (perfect) {
+                    seed = candidate;
+                }
+            }
+
+            if (seed != 0) {
+                break;
+            }
+
+            bits++;
+        }
+
+        mSeed = seed;
+        mShift = 32 - bits;
+        mKeys = new String[1 << bits];
+        mProfiles = new AppProfile[1 << bits];
+
+        for (String appId : keysByHash.values()) {
+            int index = (appId.hashCode() * mSeed) >>> mShift;
+            mKeys[index] = appId;
+            mProfiles[index] = profiles.get(appId);
+        }
+    }
+
+    /**
+     * @return the profile of the app, null if it has none
+     */
+    public AppProfile get(String appId) {
+        if (appId == null) {
+            return null;
+        }
+
+        int index = (appId.hashCode() * mSeed) >>> mShift;
+        if (appId.equals(mKeys[index])) {
+            return mProfiles[index];
+        }
+
+        return mCollisions.isEmpty() ? null : mCollisions.get(appId);
+    }
+
+    /**
+     * Sets the icon and color of the notification's app, and splits the sender from the message for message apps
+     */
+    public void apply(NotificationData notificationData) {
+        AppProfile profile = get(notificationData.getAppId());
+
+        if (profile == null) {
+            return;
+        }
+
+        if (profile.appIcon != 0) {
+            notificationData.setAppIcon(profile.appIcon);
+        }
+
+        if (profile.hasBackgroundColor) {
+            notificationData.setBackgroundColor(profile.backgroundColor);
+        }
+
+        if (profile.splitRule == SPLIT_SENDER) {
+            String message = notificationData.getMessage();
+            int index = message != null ? findSenderEnd(message) : -1;
+
+            if (index > 0) {
+                notificationData.setTitle(message.substring(0, index));
+                notificationData.setMessage(message.substring(index + 2));
+            }
+        }
+    }
+
+    /**
+     * Finds the sender in a single pass, it ends at the first ": " or if there is none at the first ":\n"
+     *
+     * @return where the sender ends, -1 if there is no sender
+     */
+    public static int findSenderEnd(CharSequence message) {
+        int newLineIndex = -1;
+        int length = message.length();
+
+        // The sender can't be empty
+        for (int i = 1; i < length - 1; i++) {
+            if (message.charAt(i) != ':') {
+                continue;
+            }
+
+            char next = message.charAt(i + 1);
+
+            if (next == ' ') {
+                return i;
+            }
+
+            if (next == '\n' && newLineIndex == -1) {
+                newLineIndex = i;
+            }
+        }
+
+        return newLineIndex;
+    }
+
+    private static AppProfileRegistry load(Context context) {
+        HashMap<String, AppProfile> profiles = new HashMap<>();
+
+        try {
+            parse(context, readAsset(context), profiles);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        String userProfiles = sp.getString(Constants.SPK_APP_PROFILES, null);
+
+        if (userProfiles != null) {
+            try {
+                parse(context, userProfiles, profiles);
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        return new AppProfileRegistry(profiles);
+    }
+
+    private static void parse(Context context, String json, Map<String, AppProfile> profiles) throws JSONException {
+        JSONArray entries = new JSONArray(json);
+
+        for (int i = 0; i < entries.length(); i++) {
+            JSONObject entry = entries.getJSONObject(i);
+
+            int appIcon = 0;
+            String icon = entry.optString("icon", null);
+            if (icon != null) {
+                // Resolved once here, the lookup by name is slow
+                appIcon = context.getResources().getIdentifier(icon, "drawable", context.getPackageName());
+            }
+
+            String color = entry.optString("color", null);
+            int backgroundColor = color != null ? Color.parseColor(color) : 0;
+
+            int splitRule = "sender".equals(entry.optString("split", null)) ? SPLIT_SENDER : SPLIT_NONE;
+
+            AppProfile profile = new AppProfile(appIcon, color != null, backgroundColor, splitRule);
+
+            JSONArray appIds = entry.getJSONArray("appIds");
+            for (int j = 0; j < appIds.length(); j++) {
+                profiles.put(appIds.getString(j), profile);
+            }
+        }
+    }
+
+    private static String readAsset(Context context) throws IOException {
+        InputStream inputStream = context.getAssets().open(ASSET_NAME);
+
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int length;
+
+            while ((length = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, length);
+            }
+
+            return outputStream.toString("UTF-8");
+        }
+        finally {
+            inputStream.close();
+        }
+    }
+
+}
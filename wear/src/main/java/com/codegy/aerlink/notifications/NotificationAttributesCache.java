@@ -0,0 +1,146 @@
+package com.codegy.aerlink.notifications;
+
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Attributes of the notifications received recently, by UID.
+ *
+ * The iOS device sends every notification again as pre existing when the connection is restored,
+ * if it was received before its attributes don't need to be requested again.
+ * The least recently used entries are evicted once the cache goes over its size.
+ */
+public class NotificationAttributesCache {
+
+    private static class Entry {
+        private NotificationData notificationData;
+        private int size;
+        // Bytes that went over the air to get the attributes, saved on every hit
+        private int transferredBytes;
+    }
+
+    private static final String LOG_TAG = NotificationAttributesCache.class.getSimpleName();
+
+    private static final int MAX_ENTRIES = 256;
+    private static final int MAX_SIZE = 128 * 1024;
+    // Object headers, fields and the map entry, roughly
+    private static final int ENTRY_OVERHEAD = 128;
+
+
+    private final LinkedHashMap<Integer, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private int mSize;
+
+    // Metrics
+    private int mHitCount;
+    private int mMissCount;
+    private long mBytesSaved;
+    private long mSessionBytesSaved;
+    private int mSessionHitCount;
+
+
+    /**
+     * Fills a pre existing notification with the cached attributes
+     *
+     * @return false if they have to be requested
+     */
+    public boolean restore(NotificationData notificationData) {
+        Entry entry = mEntries.get(notificationData.getUIDValue());
+
+        // UIDs start over when the iOS device restarts, a different category means it's not the same notification
+        if (entry == null || entry.notificationData.getCategoryId() != notificationData.getCategoryId()) {
+            mMissCount++;
+            return false;
+        }
+
+        notificationData.copyAttributes(entry.notificationData);
+
+        mHitCount++;
+        mSessionHitCount++;
+        mBytesSaved += entry.transferredBytes;
+        mSessionBytesSaved += entry.transferredBytes;
+
+        return true;
+    }
+
+    /**
+     * @param transferredBytes bytes of the request and its response
+     */
+    public void put(NotificationData notificationData, int transferredBytes) {
+        Entry entry = new Entry();
+        entry.notificationData = notificationData;
+        entry.transferredBytes = transferredBytes;
+        entry.size = ENTRY_OVERHEAD + 2 * (length(notificationData.getAppId())
+                + length(notificationData.getTitle())
+                + length(notificationData.getMessage())
+                + length(notificationData.getPositiveAction())
+                + length(notificationData.getNegativeAction()));
+
+        remove(notificationData.getUIDValue());
+
+        mEntries.put(notificationData.getUIDValue(), entry);
+        mSize += entry.size;
+
+        Iterator<Map.Entry<Integer, Entry>> iterator = mEntries.entrySet().iterator();
+        while ((mSize > MAX_SIZE || mEntries.size() > MAX_ENTRIES) && iterator.hasNext()) {
+            // Least recently used first
+            mSize -= iterator.next().getValue().size;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Forgets a notification because it was removed or modified
+     */
+    public void remove(int UID) {
+        Entry entry = mEntries.remove(UID);
+
+        if (entry != null) {
+            mSize -= entry.size;
+        }
+    }
+
+    public void clear() {
+        mEntries.clear();
+        mSize = 0;
+    }
+
+    /**
+     * Call when a connection starts, logs what the cache saved during the previous one
+     */
+    public void startSession() {
+        if (mSessionHitCount > 0) {
+            Log.i(LOG_TAG, "Last connection skipped " + mSessionHitCount + " requests, saved " + mSessionBytesSaved + " bytes");
+        }
+
+        mSessionHitCount = 0;
+        mSessionBytesSaved = 0;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    public int getHitCount() {
+        return mHitCount;
+    }
+
+    public int getMissCount() {
+        return mMissCount;
+    }
+
+    public long getBytesSaved() {
+        return mBytesSaved;
+    }
+
+    public long getSessionBytesSaved() {
+        return mSessionBytesSaved;
+    }
+
+    private static int length(String value) {
+        return value != null ? value.length() : 0;
+    }
+
+}
@@ -0,0 +1,238 @@
+package com.codegy.aerlink.notifications;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseLongArray;
+import com.codegy.aerlink.utils.ScheduledTask;
+
+import java.util.ArrayDeque;
+
+/**
+ * Keeps the notifications waiting for their attributes indexed by UID and
+ * limits how many GetNotificationAttributes requests are sent at the same time,
+ * so the next request is already queued while a response is being received.
+ *
+ * Only one request per UID is sent at a time. A notification added while its UID is requested
+ * waits for that response, so a Modified event during an expansion is fetched right after it.
+ */
+public class NotificationAttributesFetcher {
+
+    public interface FetcherCallback {
+        void onRequestAttributes(NotificationData notificationData);
+    }
+
+    /**
+     * Requests for one UID, at most one of each kind waiting
+     */
+    private static class PendingRequests {
+        final int UID;
+        // Added or Modified event
+        NotificationData preview;
+        // Full message asked for by the user
+        NotificationData expansion;
+        // Sent and waiting for its response
+        NotificationData requested;
+        // In mQueue, never while requested
+        boolean queued;
+
+        PendingRequests(int UID) {
+            this.UID = UID;
+        }
+
+        boolean hasWaiting() {
+            return preview != null || expansion != null;
+        }
+    }
+
+    private static final String LOG_TAG = NotificationAttributesFetcher.class.getSimpleName();
+
+    private static final int MAX_REQUESTS_IN_FLIGHT = 2;
+    // Time a request can wait for its response before being dropped
+    private static final long REQUEST_TIMEOUT = 2000;
+
+
+    private FetcherCallback mCallback;
+
+    // Every UID waiting for its attributes, requested or not
+    private final SparseArray<PendingRequests> mPendingRequests = new SparseArray<>();
+    // Requests not sent yet, in arrival order, the same objects so UIDs aren't boxed
+    private final ArrayDeque<PendingRequests> mQueue = new ArrayDeque<>();
+    // Deadline of every request sent, by UID
+    private final SparseLongArray mRequestDeadlines = new SparseLongArray();
+
+    private ScheduledTask mTimeoutTask;
+
+
+    public NotificationAttributesFetcher(Looper looper, FetcherCallback callback) {
+        this.mCallback = callback;
+
+        mTimeoutTask = new ScheduledTask(REQUEST_TIMEOUT, looper, new Runnable() {
+            @Override
+            public void run() {
+                checkTimeouts();
+            }
+        });
+    }
+
+    public void clear() {
+        mTimeoutTask.cancel();
+
+        mPendingRequests.clear();
+        mQueue.clear();
+        mRequestDeadlines.clear();
+    }
+
+    public int getPendingCount() {
+        return mPendingRequests.size();
+    }
+
+    /**
+     * Adds a notification to the queue, replacing the waiting one with the same UID and kind.
+     * If its UID is requested it's sent once that response arrives.
+     */
+    public void add(NotificationData notificationData) {
+        int UID = notificationData.getUIDValue();
+        PendingRequests pendingRequests = mPendingRequests.get(UID);
+
+        if (pendingRequests == null) {
+            pendingRequests = new PendingRequests(UID);
+            mPendingRequests.put(UID, pendingRequests);
+        }
+
+        if (notificationData.isExpansion()) {
+            pendingRequests.expansion = notificationData;
+        }
+        else {
+            pendingRequests.preview = notificationData;
+        }
+
+        queue(pendingRequests);
+
+        sendNextRequests();
+    }
+
+    /**
+     * Removes a requested notification because its response started arriving, frees its request slot
+     *
+     * @return the notification requested with that UID or null if none was
+     */
+    public NotificationData take(int UID) {
+        PendingRequests pendingRequests = mPendingRequests.get(UID);
+
+        if (pendingRequests == null || pendingRequests.requested == null) {
+            return null;
+        }
+
+        NotificationData notificationData = pendingRequests.requested;
+        finishRequest(UID, pendingRequests);
+
+        sendNextRequests();
+
+        return notificationData;
+    }
+
+    /**
+     * Forgets a notification, i.e. because it was removed on the iOS device
+     */
+    public void remove(int UID) {
+        if (mPendingRequests.get(UID) != null) {
+            mPendingRequests.remove(UID);
+            mRequestDeadlines.delete(UID);
+
+            // Queued requests no longer in mPendingRequests are skipped when sending
+            sendNextRequests();
+        }
+    }
+
+    private void queue(PendingRequests pendingRequests) {
+        // A requested UID is queued again when its response arrives
+        if (!pendingRequests.queued && pendingRequests.requested == null) {
+            pendingRequests.queued = true;
+            mQueue.add(pendingRequests);
+        }
+    }
+
+    private void finishRequest(int UID, PendingRequests pendingRequests) {
+        pendingRequests.requested = null;
+        mRequestDeadlines.delete(UID);
+
+        if (pendingRequests.hasWaiting()) {
+            // Added while it was requested
+            queue(pendingRequests);
+        }
+        else {
+            mPendingRequests.remove(UID);
+        }
+    }
+
+    private void sendNextRequests() {
+        while (mRequestDeadlines.size() < MAX_REQUESTS_IN_FLIGHT && !mQueue.isEmpty()) {
+            PendingRequests pendingRequests = mQueue.poll();
+            int UID = pendingRequests.UID;
+
+            if (mPendingRequests.get(UID) != pendingRequests) {
+                // Removed, the UID may have been added again with new requests
+                continue;
+            }
+
+            // New attributes first, the full message of the latest ones after
+            NotificationData notificationData;
+            if (pendingRequests.preview != null) {
+                notificationData = pendingRequests.preview;
+                pendingRequests.preview = null;
+            }
+            else {
+                notificationData = pendingRequests.expansion;
+                pendingRequests.expansion = null;
+            }
+
+            pendingRequests.requested = notificationData;
+            pendingRequests.queued = false;
+
+            mRequestDeadlines.put(UID, SystemClock.uptimeMillis() + REQUEST_TIMEOUT);
+
+            mCallback.onRequestAttributes(notificationData);
+        }
+
+        scheduleTimeoutTask();
+    }
+
+    private void checkTimeouts() {
+        long now = SystemClock.uptimeMillis();
+
+        for (int i = mRequestDeadlines.size() - 1; i >= 0; i--) {
+            if (mRequestDeadlines.valueAt(i) <= now) {
+                int UID = mRequestDeadlines.keyAt(i);
+                Log.i(LOG_TAG, "Attributes request timed out: " + UID);
+
+                mRequestDeadlines.removeAt(i);
+
+                PendingRequests pendingRequests = mPendingRequests.get(UID);
+                if (pendingRequests != null) {
+                    finishRequest(UID, pendingRequests);
+                }
+            }
+        }
+
+        sendNextRequests();
+    }
+
+    private void scheduleTimeoutTask() {
+        mTimeoutTask.cancel();
+
+        if (mRequestDeadlines.size() == 0) {
+            return;
+        }
+
+        long nextDeadline = Long.MAX_VALUE;
+        for (int i = 0; i < mRequestDeadlines.size(); i++) {
+            nextDeadline = Math.min(nextDeadline, mRequestDeadlines.valueAt(i));
+        }
+
+        mTimeoutTask.setDelay(Math.max(0, nextDeadline - SystemClock.uptimeMillis()));
+        mTimeoutTask.schedule();
+    }
+
+}
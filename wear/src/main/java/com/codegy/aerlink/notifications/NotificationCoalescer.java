@@ -0,0 +1,215 @@
+package com.codegy.aerlink.notifications;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Batches the notifications of each app that arrive close to each other.
+ *
+ * The first notification of an app is posted right away and opens a window, the ones that arrive
+ * during it are posted together when it closes. At most one of them alerts per window,
+ * and the group summary of the app is updated once per window.
+ * Time is passed in by the caller, flush() has to be called at getNextFlushTime().
+ */
+public class NotificationCoalescer {
+
+    public interface Callback {
+        void onPost(NotificationData notificationData, boolean alert);
+        /**
+         * @param notifications notifications of the app on the watch, oldest first, the summary is removed if there are less than 2
+         */
+        void onSummaryChanged(String appId, List<NotificationData> notifications);
+    }
+
+    private static class Pending {
+        private final NotificationData notificationData;
+        private final boolean alert;
+
+        private Pending(NotificationData notificationData, boolean alert) {
+            this.notificationData = notificationData;
+            this.alert = alert;
+        }
+    }
+
+    private static class Batch {
+        private final String appId;
+        // -1 while closed
+        private long windowEnd = -1;
+        private boolean alerted;
+        private boolean summaryChanged;
+        private final LinkedHashMap<Integer, Pending> queued = new LinkedHashMap<>();
+        private final LinkedHashMap<Integer, NotificationData> posted = new LinkedHashMap<>();
+
+        private Batch(String appId) {
+            this.appId = appId;
+        }
+    }
+
+    public static final long WINDOW = 1500;
+
+
+    private final Callback mCallback;
+    private final HashMap<String, Batch> mBatches = new HashMap<>();
+
+    // Metrics
+    private int mPostCount;
+    private int mAlertCount;
+    private int mSummaryCount;
+
+
+    public NotificationCoalescer(Callback callback) {
+        this.mCallback = callback;
+    }
+
+    /**
+     * @param alert whether the notification would alert on its own
+     */
+    public void offer(NotificationData notificationData, boolean alert, long now) {
+        String appId = notificationData.getAppId() != null ? notificationData.getAppId() : "";
+        Batch batch = mBatches.get(appId);
+
+        if (batch == null) {
+            batch = new Batch(appId);
+            mBatches.put(appId, batch);
+        }
+
+        if (batch.windowEnd == -1) {
+            batch.windowEnd = now + WINDOW;
+            batch.alerted = alert;
+
+            post(batch, notificationData, alert);
+            // Alone it doesn't need a summary, otherwise it waits for the window
+            if (batch.posted.size() > 1) {
+                batch.summaryChanged = true;
+            }
+        }
+        else {
+            // A modified notification replaces the queued one
+            batch.queued.remove(notificationData.getUIDValue());
+            batch.queued.put(notificationData.getUIDValue(), new Pending(notificationData, alert));
+        }
+    }
+
+    /**
+     * Forgets a notification removed from the watch
+     */
+    public void remove(int UID) {
+        for (Batch batch : mBatches.values()) {
+            batch.queued.remove(UID);
+
+            if (batch.posted.remove(UID) != null) {
+                if (batch.windowEnd == -1) {
+                    updateSummary(batch);
+
+                    if (batch.posted.isEmpty()) {
+                        mBatches.remove(batch.appId);
+                    }
+                }
+                else {
+                    batch.summaryChanged = true;
+                }
+
+                return;
+            }
+        }
+    }
+
+    /**
+     * Posts what was waiting on the windows that ended
+     */
+    public void flush(long now) {
+        Iterator<Batch> iterator = mBatches.values().iterator();
+
+        while (iterator.hasNext()) {
+            Batch batch = iterator.next();
+
+            if (batch.windowEnd == -1 || batch.windowEnd > now) {
+                continue;
+            }
+
+            // Only the newest one alerts, and only if nothing did in this window
+            Pending alerting = null;
+            if (!batch.alerted) {
+                for (Pending pending : batch.queued.values()) {
+                    if (pending.alert) {
+                        alerting = pending;
+                    }
+                }
+            }
+
+            for (Pending pending : batch.queued.values()) {
+                post(batch, pending.notificationData, pending == alerting);
+            }
+
+            if (!batch.queued.isEmpty()) {
+                batch.summaryChanged = true;
+                batch.queued.clear();
+            }
+
+            batch.windowEnd = -1;
+            batch.alerted = false;
+
+            if (batch.summaryChanged) {
+                updateSummary(batch);
+            }
+
+            if (batch.posted.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return when flush() has to be called, -1 if no window is open
+     */
+    public long getNextFlushTime() {
+        long nextFlushTime = -1;
+
+        for (Batch batch : mBatches.values()) {
+            if (batch.windowEnd != -1 && (nextFlushTime == -1 || batch.windowEnd < nextFlushTime)) {
+                nextFlushTime = batch.windowEnd;
+            }
+        }
+
+        return nextFlushTime;
+    }
+
+    public void clear() {
+        mBatches.clear();
+    }
+
+    public int getPostCount() {
+        return mPostCount;
+    }
+
+    public int getAlertCount() {
+        return mAlertCount;
+    }
+
+    public int getSummaryCount() {
+        return mSummaryCount;
+    }
+
+    private void post(Batch batch, NotificationData notificationData, boolean alert) {
+        batch.posted.remove(notificationData.getUIDValue());
+        batch.posted.put(notificationData.getUIDValue(), notificationData);
+
+        mPostCount++;
+        if (alert) {
+            mAlertCount++;
+        }
+
+        mCallback.onPost(notificationData, alert);
+    }
+
+    private void updateSummary(Batch batch) {
+        batch.summaryChanged = false;
+        mSummaryCount++;
+
+        mCallback.onSummaryChanged(batch.appId, new ArrayList<>(batch.posted.values()));
+    }
+
+}
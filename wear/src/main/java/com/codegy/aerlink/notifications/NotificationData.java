@@ -15,17 +15,25 @@ public class NotificationData {
     //    private int backgroundColor = Color.rgb(140, 140, 145);
     private int backgroundColor = Color.rgb(0, 0, 0);
     private byte[] UID;
+    private int UIDValue;
+    private byte categoryId;
     private String appId;
     private String title;
     private String message;
     private String positiveAction;
     private String negativeAction;
+    // Size of the whole message on the iOS device, -1 if unknown
+    private int messageSize = -1;
+    // Requests the full message of a notification that was shown with a preview
+    private boolean expansion;
     boolean silent;
     boolean preExisting;
     boolean incomingCall;
     boolean hasPositiveAction;
     boolean hasNegativeAction;
 
+    private NotificationData() {}
+
     public NotificationData(byte[] packet) {
         int eventFlags = packet[1];
         this.silent = (eventFlags & 1) != 0; // EventFlagSilent
@@ -34,15 +42,19 @@ public class NotificationData {
         this.hasPositiveAction = (eventFlags & 8) != 0; // EventFlagPositiveAction
         this.hasNegativeAction = (eventFlags & 16) != 0; // EventFlagNegativeAction
 
+        this.categoryId = packet[2];
+
         if (packet[2] == 1) {
             this.incomingCall = true;
         }
 
         this.UID = Arrays.copyOfRange(packet, 4, 8);
+        this.UIDValue = readUID(packet, 4);
     }
 
     public NotificationData(byte[] UID, String appId, String title, String message, String positiveAction, String negativeAction) {
         this.UID = UID;
+        this.UIDValue = readUID(UID, 0);
         this.appId = appId;
         this.title = title;
         this.message = message;
@@ -59,6 +71,52 @@ public class NotificationData {
         return UID;
     }
 
+    public int getUIDValue() {
+        return UIDValue;
+    }
+
+    public byte getCategoryId() {
+        return categoryId;
+    }
+
+    /**
+     * Copies the attributes received for another notification, the event flags are kept
+     */
+    public void copyAttributes(NotificationData notificationData) {
+        this.appIcon = notificationData.appIcon;
+        this.background = notificationData.background;
+        this.backgroundColor = notificationData.backgroundColor;
+        this.appId = notificationData.appId;
+        this.title = notificationData.title;
+        this.message = notificationData.message;
+        this.positiveAction = notificationData.positiveAction;
+        this.negativeAction = notificationData.negativeAction;
+        this.messageSize = notificationData.messageSize;
+    }
+
+    /**
+     * @return a copy of this notification to request its full message
+     */
+    public NotificationData createExpansion() {
+        NotificationData notificationData = new NotificationData();
+        notificationData.UID = UID;
+        notificationData.UIDValue = UIDValue;
+        notificationData.categoryId = categoryId;
+        notificationData.silent = silent;
+        notificationData.preExisting = preExisting;
+        notificationData.incomingCall = incomingCall;
+        notificationData.hasPositiveAction = hasPositiveAction;
+        notificationData.hasNegativeAction = hasNegativeAction;
+        notificationData.copyAttributes(this);
+        notificationData.expansion = true;
+
+        return notificationData;
+    }
+
+    public boolean isExpansion() {
+        return expansion;
+    }
+
     public String getUIDString() {
         return new String(UID);
     }
@@ -111,6 +169,14 @@ public class NotificationData {
         this.message = message;
     }
 
+    public int getMessageSize() {
+        return messageSize;
+    }
+
+    public void setMessageSize(int messageSize) {
+        this.messageSize = messageSize;
+    }
+
     public String getPositiveAction() {
         return positiveAction;
     }
@@ -157,6 +223,20 @@ public class NotificationData {
         return hasNegativeAction;
     }
 
+    /**
+     * Reads a 4 bytes little endian notification UID
+     *
+     * @param bytes the packet containing the UID
+     * @param offset the index of the first byte of the UID
+     * @return the UID as an int, so it can be used as a key without allocations
+     */
+    public static int readUID(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff)
+                | ((bytes[offset + 1] & 0xff) << 8)
+                | ((bytes[offset + 2] & 0xff) << 16)
+                | ((bytes[offset + 3] & 0xff) << 24);
+    }
+
     public boolean compareUID(byte[] UID) {
         boolean result = false;
 
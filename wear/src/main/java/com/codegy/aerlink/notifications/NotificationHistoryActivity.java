@@ -0,0 +1,38 @@
+package com.codegy.aerlink.notifications;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.support.wearable.view.WatchViewStub;
+import android.view.View;
+import android.widget.ListView;
+import android.widget.TextView;
+import com.codegy.aerlink.R;
+
+/**
+ * Notifications received before, read from the store a page at a time without connecting to the iOS device
+ */
+public class NotificationHistoryActivity extends Activity {
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        setContentView(R.layout.activity_notification_history);
+        final WatchViewStub stub = (WatchViewStub) findViewById(R.id.watch_view_stub);
+        stub.setOnLayoutInflatedListener(new WatchViewStub.OnLayoutInflatedListener() {
+            @Override
+            public void onLayoutInflated(WatchViewStub stub) {
+                NotificationHistoryAdapter adapter = new NotificationHistoryAdapter(NotificationHistoryActivity.this, NotificationStore.getInstance(NotificationHistoryActivity.this));
+
+                TextView infoTextView = (TextView) stub.findViewById(R.id.infoTextView);
+                if (adapter.getCount() == 0) {
+                    infoTextView.setVisibility(View.VISIBLE);
+                }
+
+                ListView listView = (ListView) stub.findViewById(R.id.listView);
+                listView.setAdapter(adapter);
+            }
+        });
+    }
+
+}
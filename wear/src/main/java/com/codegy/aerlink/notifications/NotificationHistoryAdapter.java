@@ -0,0 +1,122 @@
+package com.codegy.aerlink.notifications;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+import com.codegy.aerlink.R;
+
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Shows the history newest first, the next page is read from the store when the list gets close to the end
+ */
+public class NotificationHistoryAdapter extends BaseAdapter {
+
+    private static final int layoutResourceId = R.layout.list_item_notification;
+
+    private static final int PAGE_SIZE = 20;
+
+    private final NotificationStore mStore;
+    private final LayoutInflater mInflater;
+    private final DateFormat mDateFormat;
+
+    private final List<NotificationStore.Record> mRecords = new ArrayList<>();
+    // Sequence of the oldest record loaded, the next page starts before it
+    private long mNextSequence;
+    private boolean mFinished;
+
+
+    public NotificationHistoryAdapter(Context context, NotificationStore store) {
+        mStore = store;
+        mInflater = LayoutInflater.from(context);
+        mDateFormat = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+
+        mNextSequence = store.getEndSequence();
+        loadNextPage();
+    }
+
+    @Override
+    public int getCount() {
+        return mRecords.size();
+    }
+
+    @Override
+    public NotificationStore.Record getItem(int position) {
+        return mRecords.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mRecords.get(position).getSequence();
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        final ItemViewHolder holder;
+
+        if (convertView == null) {
+            convertView = mInflater.inflate(layoutResourceId, parent, false);
+
+            holder = new ItemViewHolder(convertView);
+
+            convertView.setTag(holder);
+        }
+        else {
+            holder = (ItemViewHolder) convertView.getTag();
+        }
+
+        NotificationStore.Record record = getItem(position);
+        holder.titleTextView.setText(record.getTitle());
+        holder.messageTextView.setText(record.getMessage());
+        holder.timeTextView.setText(mDateFormat.format(new Date(record.getTime())));
+
+        if (position >= mRecords.size() - PAGE_SIZE / 2) {
+            loadNextPage();
+        }
+
+        return convertView;
+    }
+
+    private void loadNextPage() {
+        if (mFinished) {
+            return;
+        }
+
+        List<NotificationStore.Record> page = mStore.getPage(mNextSequence, PAGE_SIZE, null);
+
+        if (page.size() < PAGE_SIZE) {
+            mFinished = true;
+        }
+
+        if (!page.isEmpty()) {
+            mRecords.addAll(page);
+            mNextSequence = page.get(page.size() - 1).getSequence();
+
+            notifyDataSetChanged();
+        }
+    }
+
+    public static class ItemViewHolder {
+        private TextView titleTextView;
+        private TextView messageTextView;
+        private TextView timeTextView;
+
+        public ItemViewHolder(View itemView) {
+            titleTextView = (TextView) itemView.findViewById(R.id.titleTextView);
+            messageTextView = (TextView) itemView.findViewById(R.id.messageTextView);
+            timeTextView = (TextView) itemView.findViewById(R.id.timeTextView);
+        }
+    }
+
+}
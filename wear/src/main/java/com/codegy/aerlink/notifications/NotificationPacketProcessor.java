@@ -2,10 +2,7 @@ package com.codegy.aerlink.notifications;
 
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
-import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
-import java.util.Arrays;
+import java.nio.charset.Charset;
 
 /**
  * Created by Guiye on 18/5/15.
@@ -13,248 +10,225 @@ import java.util.Arrays;
 public class NotificationPacketProcessor {
 
     private enum PacketProcessingStatus {
-        Init,
-        AppId,
-        Title,
-        Message,
-        PositiveAction,
-        NegativeAction,
+        ResponseHeader,
+        AttributeHeader,
+        AttributeValue,
         Finished
     }
 
     private static final String LOG_TAG = NotificationPacketProcessor.class.getSimpleName();
 
+    private static final Charset UTF8 = Charset.forName("UTF-8");
 
-    private NotificationData notificationData;
-    private ByteArrayOutputStream processingAttribute;
+    // CommandID (1 byte) + NotificationUID (4 bytes)
+    private static final int RESPONSE_HEADER_LENGTH = 5;
+    // AttributeID (1 byte) + Attribute length (2 bytes)
+    private static final int ATTRIBUTE_HEADER_LENGTH = 3;
+    private static final int INITIAL_ATTRIBUTE_CAPACITY = 256;
 
-    private byte[] bytesFromPreviousPacket;
-    // The number of bytes left to process on the current packet
-    private int bytesLeftToProcess;
-    // The number of bytes of the current attribute being processed that are in the next packet
-    private int attributeBytesInNextPacket;
 
+    private final AppProfileRegistry appProfiles;
+    private NotificationData notificationData;
     private PacketProcessingStatus processingStatus;
+    // The number of attributes requested that have not been received yet
+    private int attributesLeft;
 
+    // Header bytes are kept here while they are split between packets
+    private final byte[] headerBuffer = new byte[RESPONSE_HEADER_LENGTH];
+    private int headerBufferLength;
 
-    public NotificationPacketProcessor(NotificationData notificationData) {
-        processingStatus = PacketProcessingStatus.Init;
+    // Reused for every attribute, it only grows when an attribute doesn't fit
+    private byte[] attributeBuffer = new byte[INITIAL_ATTRIBUTE_CAPACITY];
+    private byte attributeId;
+    private int attributeLength;
+    private int attributeBufferLength;
+    // Bytes of the Message attribute received, -1 if it wasn't in the response
+    private int messageLength;
 
-        bytesLeftToProcess = 0;
-        attributeBytesInNextPacket = 0;
-        bytesFromPreviousPacket = new byte[] {};
 
-        processingAttribute = new ByteArrayOutputStream();
+    public NotificationPacketProcessor(AppProfileRegistry appProfiles) {
+        this.appProfiles = appProfiles;
+        reset(null);
+    }
+
+    public NotificationPacketProcessor(AppProfileRegistry appProfiles, NotificationData notificationData) {
+        this.appProfiles = appProfiles;
+        reset(notificationData);
+    }
 
+    /**
+     * Prepares the processor for the response of another notification,
+     * keeping the buffers that were already allocated
+     *
+     * @param notificationData the notification the next packets belong to, null to leave the processor idle
+     */
+    public void reset(NotificationData notificationData) {
         this.notificationData = notificationData;
+
+        processingStatus = PacketProcessingStatus.ResponseHeader;
+        headerBufferLength = 0;
+        attributeBufferLength = 0;
+        attributeLength = 0;
+        messageLength = -1;
+
+        if (notificationData != null && notificationData.isExpansion()) {
+            // App Identifier and Message
+            attributesLeft = 2;
+        }
+        else if (notificationData != null) {
+            // App Identifier, Title, Message and Message Size are always requested
+            attributesLeft = 4;
+
+            if (notificationData.hasPositiveAction()) {
+                attributesLeft++;
+            }
+            if (notificationData.hasNegativeAction()) {
+                attributesLeft++;
+            }
+        }
+        else {
+            attributesLeft = 0;
+        }
     }
 
     public NotificationData getNotificationData() {
         return notificationData;
     }
 
-    public boolean hasFinishedProcessing() {
-        return processingStatus == PacketProcessingStatus.Finished || notificationData == null;
-    }
-
-    private int getAttributeLength(byte[] packet, int lengthIndex){
-        //get att0's length
-        byte[] byteLength = {packet[lengthIndex + 2], packet[lengthIndex + 1]};
-        BigInteger length = new BigInteger(byteLength);
-        return length.intValue();
+    /**
+     * @return bytes of the Message attribute in the last response, -1 if none was received
+     */
+    public int getMessageLength() {
+        return messageLength;
     }
 
-    public static byte[] concat(byte[] a, byte[] b) {
-        int aLen = a.length;
-        int bLen = b.length;
-        byte[] c = new byte[aLen+bLen];
-        System.arraycopy(a, 0, c, 0, aLen);
-        System.arraycopy(b, 0, c, aLen, bLen);
-        return c;
+    public boolean hasFinishedProcessing() {
+        return processingStatus == PacketProcessingStatus.Finished || notificationData == null;
     }
 
-    private void updateProcessingStatus() {
-        switch (processingStatus) {
-            case Init:
-                processingStatus = PacketProcessingStatus.Title;
-                break;
-            case AppId:
-                processingStatus = PacketProcessingStatus.Title;
-                try {
-                    notificationData.setAppId(new String(processingAttribute.toByteArray(), "UTF-8"));
-                    processingAttribute.reset();
-                    Log.d(LOG_TAG, "App ID: " + notificationData.getAppId());
-                } catch (UnsupportedEncodingException e) {
-                    e.printStackTrace();
-                }
-                break;
-            case Title:
-                processingStatus = PacketProcessingStatus.Message;
-                try {
-                    notificationData.setTitle(new String(processingAttribute.toByteArray(), "UTF-8"));
-                    processingAttribute.reset();
-                    Log.d(LOG_TAG, "Title: " + notificationData.getTitle());
-                } catch (UnsupportedEncodingException e) {
-                    e.printStackTrace();
-                }
-                break;
-            case Message:
-                if (notificationData.hasPositiveAction()) {
-                    processingStatus = PacketProcessingStatus.PositiveAction;
-                }
-                else if (notificationData.hasNegativeAction()) {
-                    processingStatus = PacketProcessingStatus.NegativeAction;
-                }
-                else {
-                    processingStatus = PacketProcessingStatus.Finished;
-
-                    NotificationDataExpander.updateData(notificationData);
-                }
-
-                try {
-                    notificationData.setMessage(new String(processingAttribute.toByteArray(), "UTF-8"));
-                    processingAttribute.reset();
-                    Log.d(LOG_TAG, "Message: " + notificationData.getMessage());
-                } catch (UnsupportedEncodingException e) {
-                    e.printStackTrace();
-                }
-                break;
-            case PositiveAction:
-                if (notificationData.hasNegativeAction()) {
-                    processingStatus = PacketProcessingStatus.NegativeAction;
-                }
-                else {
-                    processingStatus = PacketProcessingStatus.Finished;
-
-                    NotificationDataExpander.updateData(notificationData);
-                }
-
-                try {
-                    notificationData.setPositiveAction(new String(processingAttribute.toByteArray(), "UTF-8"));
-                    processingAttribute.reset();
-                    Log.d(LOG_TAG, "Positive Action: " + notificationData.getPositiveAction());
-                } catch (UnsupportedEncodingException e) {
-                    e.printStackTrace();
-                }
-                break;
-            case NegativeAction:
-                processingStatus = PacketProcessingStatus.Finished;
-
-                NotificationDataExpander.updateData(notificationData);
-
-                try {
-                    notificationData.setNegativeAction(new String(processingAttribute.toByteArray(), "UTF-8"));
-                    processingAttribute.reset();
-                    Log.d(LOG_TAG, "Negative Action: " + notificationData.getNegativeAction());
-                } catch (UnsupportedEncodingException e) {
-                    e.printStackTrace();
-                }
-                break;
+    public void process(byte[] packet) {
+        if (hasFinishedProcessing()) {
+            return;
         }
-    }
 
-    public void process(byte[] packet) {
-        // Get size of received data
-        packet = concat(bytesFromPreviousPacket, packet);
-        bytesLeftToProcess = packet.length;
-        bytesFromPreviousPacket = new byte[] {};
+        // Index of the next byte of the packet to process
+        int cursor = 0;
 
-        int attributeIndex;
+        while (cursor < packet.length && processingStatus != PacketProcessingStatus.Finished) {
+            switch (processingStatus) {
+                case ResponseHeader:
+                    cursor = fillHeader(packet, cursor, RESPONSE_HEADER_LENGTH);
 
-        while (bytesLeftToProcess > 0) {
-            if (attributeBytesInNextPacket > 0) {
-                // Still processing attribute started in a previous packet
+                    if (headerBufferLength == RESPONSE_HEADER_LENGTH) {
+                        // CommandID and UID are already known, the attributes come next
+                        headerBufferLength = 0;
+                        processingStatus = PacketProcessingStatus.AttributeHeader;
+                    }
 
-                if (bytesLeftToProcess < attributeBytesInNextPacket) {
-                    // The attribute is still not finished with this packet
+                    break;
+                case AttributeHeader:
+                    cursor = fillHeader(packet, cursor, ATTRIBUTE_HEADER_LENGTH);
 
-                    // Save attribute data
-                    processingAttribute.write(packet, 0, bytesLeftToProcess);
+                    if (headerBufferLength == ATTRIBUTE_HEADER_LENGTH) {
+                        headerBufferLength = 0;
 
-                    // Update bytes left of current attribute
-                    attributeBytesInNextPacket -= bytesLeftToProcess;
+                        attributeId = headerBuffer[0];
+                        // Attribute length is little endian
+                        attributeLength = (headerBuffer[1] & 0xff) | ((headerBuffer[2] & 0xff) << 8);
+                        attributeBufferLength = 0;
 
-                    // All bytes have been processed
-                    bytesLeftToProcess = 0;
-                }
-                else {
-                    // The attribute ends in this packet
+                        if (attributeBuffer.length < attributeLength) {
+                            attributeBuffer = new byte[Math.max(attributeLength, attributeBuffer.length * 2)];
+                        }
 
-                    // Save attribute data
-                    processingAttribute.write(packet, 0, attributeBytesInNextPacket);
+                        if (attributeLength == 0) {
+                            onAttributeProcessed();
+                        }
+                        else {
+                            processingStatus = PacketProcessingStatus.AttributeValue;
+                        }
+                    }
 
-                    // There may be bytes of another attribute left in this packet
-                    bytesLeftToProcess -= attributeBytesInNextPacket;
+                    break;
+                case AttributeValue:
+                    int bytesToCopy = Math.min(attributeLength - attributeBufferLength, packet.length - cursor);
 
-                    if (bytesLeftToProcess > 0 && bytesLeftToProcess <= 2) {
-                        // Not enough bytes to start processing next attribute
+                    System.arraycopy(packet, cursor, attributeBuffer, attributeBufferLength, bytesToCopy);
+                    attributeBufferLength += bytesToCopy;
+                    cursor += bytesToCopy;
 
-                        // Save bytes for next packet
-                        bytesFromPreviousPacket = Arrays.copyOfRange(packet, attributeBytesInNextPacket, packet.length);
-                        bytesLeftToProcess = 0;
+                    if (attributeBufferLength == attributeLength) {
+                        onAttributeProcessed();
                     }
 
-                    // This attribute's bytes have been processed
-                    attributeBytesInNextPacket = 0;
-
-                    updateProcessingStatus();
-                }
+                    break;
             }
-            else if (bytesLeftToProcess > 0) {
-                // Attribute index
-                if (processingStatus == PacketProcessingStatus.Init) {
-                    // Previous bytes' data is already known
-                    attributeIndex = 5;
-                    processingStatus = PacketProcessingStatus.AppId;
-                }
-                else {
-                    attributeIndex = packet.length - bytesLeftToProcess;
-                }
-
-                // Length of attribute to read
-                int attributeLength = getAttributeLength(packet, attributeIndex);
+        }
+    }
 
-                // Not counting bytes offering attribute length info
-                int bytesInCurrentPacket = packet.length - (attributeIndex + 3);
+    /**
+     * Copies header bytes from the packet until the header is complete or the packet ends
+     *
+     * @return the index of the first byte of the packet that was not used
+     */
+    private int fillHeader(byte[] packet, int cursor, int headerLength) {
+        int bytesToCopy = Math.min(headerLength - headerBufferLength, packet.length - cursor);
 
-                if (bytesInCurrentPacket < attributeLength) {
-                    // The attribute is divided
+        System.arraycopy(packet, cursor, headerBuffer, headerBufferLength, bytesToCopy);
+        headerBufferLength += bytesToCopy;
 
-                    // Save attribute data
-                    processingAttribute.write(packet, attributeIndex + 3, bytesInCurrentPacket);
+        return cursor + bytesToCopy;
+    }
 
-                    // Update bytes left of current attribute
-                    attributeBytesInNextPacket = attributeLength - bytesInCurrentPacket;
+    private void onAttributeProcessed() {
+        String value = new String(attributeBuffer, 0, attributeLength, UTF8);
 
-                    // All bytes have been processed
-                    bytesLeftToProcess = 0;
+        switch (attributeId) {
+            case ANCSConstants.NotificationAttributeIDAppIdentifier:
+                notificationData.setAppId(value);
+                Log.d(LOG_TAG, "App ID: " + value);
+                break;
+            case ANCSConstants.NotificationAttributeIDTitle:
+                notificationData.setTitle(value);
+                Log.d(LOG_TAG, "Title: " + value);
+                break;
+            case ANCSConstants.NotificationAttributeIDMessage:
+                notificationData.setMessage(value);
+                messageLength = attributeLength;
+                Log.d(LOG_TAG, "Message: " + value);
+                break;
+            case ANCSConstants.NotificationAttributeIDMessageSize:
+                try {
+                    notificationData.setMessageSize(Integer.parseInt(value.trim()));
                 }
-                else {
-                    // The attribute ends in this packet
-
-                    // Save attribute data
-                    processingAttribute.write(packet, attributeIndex + 3, attributeLength);
-
-                    // This attribute's bytes have been processed
-                    attributeBytesInNextPacket = 0;
-
-                    // There may be bytes of another attribute left in this packet
-                    bytesLeftToProcess = bytesInCurrentPacket - attributeLength;
-
-                    if (bytesLeftToProcess > 0 && bytesLeftToProcess <= 2) {
-                        // Not enough bytes to start processing next attribute
+                catch (NumberFormatException e) {
+                    Log.w(LOG_TAG, "Invalid Message Size: " + value);
+                }
+                break;
+            case ANCSConstants.NotificationAttributeIDPositiveActionLabel:
+                notificationData.setPositiveAction(value);
+                Log.d(LOG_TAG, "Positive Action: " + value);
+                break;
+            case ANCSConstants.NotificationAttributeIDNegativeActionLabel:
+                notificationData.setNegativeAction(value);
+                Log.d(LOG_TAG, "Negative Action: " + value);
+                break;
+            default:
+                Log.w(LOG_TAG, "Unexpected attribute: " + attributeId);
+                break;
+        }
 
-                        // Offset of processed bytes
-                        int offset = attributeIndex + 3 + attributeLength;
+        attributeLength = 0;
+        attributeBufferLength = 0;
+        attributesLeft--;
 
-                        // Save bytes for next packet
-                        bytesFromPreviousPacket = Arrays.copyOfRange(packet, offset, packet.length);
-                        bytesLeftToProcess = 0;
-                    }
+        if (attributesLeft <= 0) {
+            processingStatus = PacketProcessingStatus.Finished;
 
-                    updateProcessingStatus();
-                }
-            }
+            appProfiles.apply(notificationData);
+        }
+        else {
+            processingStatus = PacketProcessingStatus.AttributeHeader;
         }
     }
 
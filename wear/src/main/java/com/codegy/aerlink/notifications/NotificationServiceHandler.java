@@ -2,17 +2,20 @@ package com.codegy.aerlink.notifications;
 
 import android.app.Notification;
 import android.app.PendingIntent;
-import android.bluetooth.BluetoothGattCharacteristic;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.SparseArray;
 import com.codegy.aerlink.Constants;
 import com.codegy.aerlink.R;
 import com.codegy.aerlink.connection.Command;
+import com.codegy.aerlink.utils.BitmapCache;
+import com.codegy.aerlink.utils.PowerBudget;
 import com.codegy.aerlink.utils.ScheduledTask;
 import com.codegy.aerlink.utils.ServiceHandler;
 import com.codegy.aerlink.utils.ServiceUtils;
@@ -30,28 +33,69 @@ public class NotificationServiceHandler extends ServiceHandler {
     private static final String LOG_TAG = NotificationServiceHandler.class.getSimpleName();
 
     private static final int NOTIFICATION_REGULAR = 1000;
+    private static final int NOTIFICATION_SUMMARY = 1004;
+    private static final int SUMMARY_MAX_LINES = 5;
     private static final long VIBRATION_PATTERN[] = { 100, 400, 200, 40, 40, 40, 70, 200 };
     private static final long SILENT_VIBRATION_PATTERN[] = { 200, 110 };
 
+    // The notification is shown with a preview, the rest of the message is requested when it's opened
+    private static final int TITLE_MAX_LENGTH = 64;
+    private static final int MESSAGE_PREVIEW_LENGTH = 256;
+    // Largest value of the 2-bytes max length parameter
+    private static final int MESSAGE_MAX_LENGTH = 0xffff;
+
 
     private Context mContext;
     private ServiceUtils mServiceUtils;
 
-    private NotificationPacketProcessor mPacketProcessor;
+    private final NotificationPacketProcessor mPacketProcessor;
     private int mNotificationNumber = 0;
 
-    private List<NotificationData> mPendingNotifications = new ArrayList<>();
+    private NotificationAttributesFetcher mAttributesFetcher;
+    private final NotificationAttributesCache mAttributesCache = new NotificationAttributesCache();
+    // Bytes received for the response being processed, including the ATT header of every packet
+    private int mResponseBytes;
+    // Notifications shown with part of their message, by UID
+    private final SparseArray<NotificationData> mTruncatedNotifications = new SparseArray<>();
+    private NotificationStore mNotificationStore;
+    private final NotificationCoalescer mCoalescer;
+    // Flushes the coalescer when its next window ends
+    private ScheduledTask mFlushTask;
 
 
     public NotificationServiceHandler(Context context, ServiceUtils serviceUtils) {
         this.mContext = context;
         this.mServiceUtils = serviceUtils;
 
+        mNotificationStore = NotificationStore.getInstance(context);
+        mPacketProcessor = new NotificationPacketProcessor(AppProfileRegistry.getInstance(context));
+
+        mCoalescer = new NotificationCoalescer(new NotificationCoalescer.Callback() {
+            @Override
+            public void onPost(NotificationData notificationData, boolean alert) {
+                postNotification(notificationData, alert);
+            }
+
+            @Override
+            public void onSummaryChanged(String appId, List<NotificationData> notifications) {
+                postSummary(appId, notifications);
+            }
+        });
+
+        mAttributesFetcher = new NotificationAttributesFetcher(serviceUtils.getLooper(), new NotificationAttributesFetcher.FetcherCallback() {
+            @Override
+            public void onRequestAttributes(NotificationData notificationData) {
+                requestAttributes(notificationData);
+            }
+        });
+
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(Constants.IA_POSITIVE);
         intentFilter.addAction(Constants.IA_NEGATIVE);
         intentFilter.addAction(Constants.IA_DELETE);
-        context.registerReceiver(mBroadcastReceiver, intentFilter);
+        intentFilter.addAction(Constants.IA_EXPAND);
+        // Received on the service handler thread like the packets
+        context.registerReceiver(mBroadcastReceiver, intentFilter, null, new Handler(serviceUtils.getLooper()));
     }
 
 
@@ -59,16 +103,25 @@ public class NotificationServiceHandler extends ServiceHandler {
     public void close() {
         mNotificationNumber = 0;
         reset();
+        mAttributesCache.clear();
+        mTruncatedNotifications.clear();
+        mCoalescer.clear();
+        cancelFlushTask();
 
         mContext.unregisterReceiver(mBroadcastReceiver);
     }
 
     @Override
     public void reset() {
-        mPacketProcessor = null;
-        mPendingNotifications.clear();
+        mPacketProcessor.reset(null);
+        mAttributesFetcher.clear();
+        mAttributesCache.startSession();
 
-        cancelClearOldNotificationsTask();
+        cancelDataTimeoutTask();
+
+        // Nothing waits for the window once the connection is gone
+        mCoalescer.flush(Long.MAX_VALUE);
+        cancelFlushTask();
     }
 
     @Override
@@ -87,143 +140,193 @@ public class NotificationServiceHandler extends ServiceHandler {
     }
 
     @Override
-    public boolean canHandleCharacteristic(BluetoothGattCharacteristic characteristic) {
-        String characteristicUUID = characteristic.getUuid().toString().toLowerCase();
-        return characteristicUUID.equals(ANCSConstants.CHARACTERISTIC_DATA_SOURCE) || characteristicUUID.equals(ANCSConstants.CHARACTERISTIC_NOTIFICATION_SOURCE);
-    }
-
-    @Override
-    public void handleCharacteristic(BluetoothGattCharacteristic characteristic) {
-        // Get notification packet from iOS
-        byte[] packet = characteristic.getValue();
-
-        switch (characteristic.getUuid().toString().toLowerCase()) {
-            case ANCSConstants.CHARACTERISTIC_DATA_SOURCE:
-                if (mPacketProcessor == null && packet.length >= 5) {
-                    byte[] notificationUID = new byte[] { packet[1], packet[2], packet[3], packet[4] };
-                    int notificationIndex = -1;
-
-                    for (int i = 0; i < mPendingNotifications.size(); i++) {
-                        NotificationData notificationData = mPendingNotifications.get(i);
-
-                        if (notificationData.compareUID(notificationUID)) {
-                            notificationIndex = i;
-                            break;
-                        }
-                    }
-
-                    if (notificationIndex != -1) {
-                        mPacketProcessor = new NotificationPacketProcessor(mPendingNotifications.get(notificationIndex));
-                        mPendingNotifications.remove(notificationIndex);
-                    }
+    public void handleCharacteristic(UUID characteristicUUID, byte[] packet) {
+        if (characteristicUUID.equals(ANCSConstants.DATA_SOURCE_UUID)) {
+            if (mPacketProcessor.hasFinishedProcessing() && packet.length >= 5) {
+                // First packet of a response, find the notification it belongs to
+                NotificationData notificationData = mAttributesFetcher.take(NotificationData.readUID(packet, 1));
+
+                if (notificationData != null) {
+                    mPacketProcessor.reset(notificationData);
+                    mResponseBytes = 0;
                 }
+            }
 
-                if (mPacketProcessor != null) {
-                    // Only remove callback if we are getting useful data
-                    cancelClearOldNotificationsTask();
+            if (!mPacketProcessor.hasFinishedProcessing()) {
+                mPacketProcessor.process(packet);
+                mResponseBytes += packet.length + 3;
 
-                    mPacketProcessor.process(packet);
+                if (mPacketProcessor.hasFinishedProcessing()) {
+                    cancelDataTimeoutTask();
 
-                    if (mPacketProcessor.hasFinishedProcessing()) {
-                        NotificationData notificationData = mPacketProcessor.getNotificationData();
+                    NotificationData notificationData = mPacketProcessor.getNotificationData();
 
-                        if (notificationData != null) {
-                            if (notificationData.isIncomingCall()) {
-                                onIncomingCall(notificationData);
-                            }
-                            else {
-                                onNotificationReceived(notificationData);
-                            }
+                    if (notificationData != null) {
+                        if (notificationData.isIncomingCall()) {
+                            onIncomingCall(notificationData);
                         }
+                        else {
+                            if (notificationData.isExpansion() && mPacketProcessor.getMessageLength() >= notificationData.getMessageSize()) {
+                                // The whole message is here, a cached copy doesn't need to be expanded again
+                                notificationData.setMessageSize(-1);
+                            }
+
+                            mAttributesCache.put(notificationData, getRequestLength(notificationData) + mResponseBytes);
 
-                        mPacketProcessor = null;
+                            onNotificationReceived(notificationData);
+                        }
                     }
-                }
 
-                if (mPendingNotifications.size() > 0 || mPacketProcessor != null) {
-                    // Clear notifications in case data never arrives
-                    scheduleClearOldNotificationsTask();
+                    mPacketProcessor.reset(null);
                 }
+                else {
+                    // Discard the response in case the rest of it never arrives
+                    scheduleDataTimeoutTask();
+                }
+            }
+        }
+        else if (characteristicUUID.equals(ANCSConstants.NOTIFICATION_SOURCE_UUID)) {
+            try {
+                switch (packet[0]) {
+                    case ANCSConstants.EventIDNotificationAdded:
+                    case ANCSConstants.EventIDNotificationModified:
+                        NotificationData notificationData = new NotificationData(packet);
+
+                        if (packet[0] == ANCSConstants.EventIDNotificationAdded && notificationData.isPreExisting()
+                                && !notificationData.isIncomingCall() && mAttributesCache.restore(notificationData)) {
+                            // Sent again after reconnecting, the attributes didn't change
+                            onNotificationReceived(notificationData);
+                        }
+                        else {
+                            // New or modified, the cached attributes are not valid anymore
+                            mAttributesCache.remove(notificationData.getUIDValue());
 
-                break;
-            case ANCSConstants.CHARACTERISTIC_NOTIFICATION_SOURCE:
-                try {
-                    switch (packet[0]) {
-                        case ANCSConstants.EventIDNotificationAdded:
-                        case ANCSConstants.EventIDNotificationModified:
                             // Request attributes for the new notification
-                            byte[] getAttributesPacket = new byte[] {
-                                    ANCSConstants.CommandIDGetNotificationAttributes,
+                            mAttributesFetcher.add(notificationData);
+                        }
 
-                                    // UID
-                                    packet[4], packet[5], packet[6], packet[7],
+                        break;
+                    case ANCSConstants.EventIDNotificationRemoved:
+                        if (packet[2] == 1) {
+                            // Call ended
+                            onCallEnded();
+                        }
+                        else {
+                            mAttributesFetcher.remove(NotificationData.readUID(packet, 4));
+                            mAttributesCache.remove(NotificationData.readUID(packet, 4));
+                            mTruncatedNotifications.remove(NotificationData.readUID(packet, 4));
+
+                            // Cancel notification in watch
+                            String notificationId = new String(Arrays.copyOfRange(packet, 4, 8));
+                            onNotificationCanceled(notificationId, NotificationData.readUID(packet, 4));
+                        }
 
-                                    // App Identifier - NotificationAttributeIDAppIdentifier
-                                    ANCSConstants.NotificationAttributeIDAppIdentifier,
+                        break;
+                }
+            }
+            catch(Exception e) {
+                Log.d(LOG_TAG, "error");
+                e.printStackTrace();
+            }
+        }
+    }
 
-                                    // Title - NotificationAttributeIDTitle
-                                    // Followed by a 2-bytes max length parameter
-                                    ANCSConstants.NotificationAttributeIDTitle,
-                                    (byte) 0xff,
-                                    (byte) 0xff,
 
-                                    // Message - NotificationAttributeIDMessage
-                                    // Followed by a 2-bytes max length parameter
-                                    ANCSConstants.NotificationAttributeIDMessage,
-                                    (byte) 0xff,
-                                    (byte) 0xff,
-                            };
+    private int getActionAttributes(NotificationData notificationData) {
+        return (notificationData.hasPositiveAction() ? 1 : 0) + (notificationData.hasNegativeAction() ? 1 : 0);
+    }
 
+    /**
+     * @return bytes of the Get Notification Attributes write, including the ATT header
+     */
+    private int getRequestLength(NotificationData notificationData) {
+        return 3 + (notificationData.isExpansion() ? 9 : 13 + getActionAttributes(notificationData));
+    }
 
-                            NotificationData notificationData = new NotificationData(packet);
-                            mPendingNotifications.add(notificationData);
+    private void requestAttributes(NotificationData notificationData) {
+        if (notificationData.isExpansion()) {
+            requestFullMessage(notificationData);
+            return;
+        }
 
+        int actionAttributes = getActionAttributes(notificationData);
+        byte[] UID = notificationData.getUID();
 
-                            if (notificationData.hasPositiveAction()) {
-                                getAttributesPacket = NotificationPacketProcessor.concat(getAttributesPacket, new byte[]{
-                                        // Positive Action Label - NotificationAttributeIDPositiveActionLabel
-                                        ANCSConstants.NotificationAttributeIDPositiveActionLabel
-                                });
-                            }
-                            if (notificationData.hasNegativeAction()) {
-                                getAttributesPacket = NotificationPacketProcessor.concat(getAttributesPacket, new byte[]{
-                                        // Negative Action Label - NotificationAttributeIDNegativeActionLabel
-                                        ANCSConstants.NotificationAttributeIDNegativeActionLabel
-                                });
-                            }
+        byte[] getAttributesPacket = new byte[13 + actionAttributes];
+        int index = 0;
 
-                            Command getAttributesCommand = new Command(ANCSConstants.SERVICE_UUID, ANCSConstants.CHARACTERISTIC_CONTROL_POINT, getAttributesPacket);
+        getAttributesPacket[index++] = ANCSConstants.CommandIDGetNotificationAttributes;
 
-                            mServiceUtils.addCommandToQueue(getAttributesCommand);
+        // UID
+        getAttributesPacket[index++] = UID[0];
+        getAttributesPacket[index++] = UID[1];
+        getAttributesPacket[index++] = UID[2];
+        getAttributesPacket[index++] = UID[3];
 
+        // App Identifier - NotificationAttributeIDAppIdentifier
+        getAttributesPacket[index++] = ANCSConstants.NotificationAttributeIDAppIdentifier;
 
-                            // Clear notifications in case data never arrives
-                            scheduleClearOldNotificationsTask();
+        // Title - NotificationAttributeIDTitle
+        // Followed by a 2-bytes max length parameter
+        getAttributesPacket[index++] = ANCSConstants.NotificationAttributeIDTitle;
+        getAttributesPacket[index++] = (byte) (TITLE_MAX_LENGTH & 0xff);
+        getAttributesPacket[index++] = (byte) ((TITLE_MAX_LENGTH >> 8) & 0xff);
 
-                            break;
-                        case ANCSConstants.EventIDNotificationRemoved:
-                            if (packet[2] == 1) {
-                                // Call ended
-                                onCallEnded();
-                            }
-                            else {
-                                // Cancel notification in watch
-                                String notificationId = new String(Arrays.copyOfRange(packet, 4, 8));
-                                onNotificationCanceled(notificationId);
-                            }
+        // Message - NotificationAttributeIDMessage
+        // Followed by a 2-bytes max length parameter
+        getAttributesPacket[index++] = ANCSConstants.NotificationAttributeIDMessage;
+        getAttributesPacket[index++] = (byte) (MESSAGE_PREVIEW_LENGTH & 0xff);
+        getAttributesPacket[index++] = (byte) ((MESSAGE_PREVIEW_LENGTH >> 8) & 0xff);
 
-                            break;
-                    }
-                }
-                catch(Exception e) {
-                    Log.d(LOG_TAG, "error");
-                    e.printStackTrace();
-                }
+        // Message Size - NotificationAttributeIDMessageSize
+        // Tells if the message was cut
+        getAttributesPacket[index++] = ANCSConstants.NotificationAttributeIDMessageSize;
 
-                break;
+        if (notificationData.hasPositiveAction()) {
+            // Positive Action Label - NotificationAttributeIDPositiveActionLabel
+            getAttributesPacket[index++] = ANCSConstants.NotificationAttributeIDPositiveActionLabel;
+        }
+        if (notificationData.hasNegativeAction()) {
+            // Negative Action Label - NotificationAttributeIDNegativeActionLabel
+            getAttributesPacket[index] = ANCSConstants.NotificationAttributeIDNegativeActionLabel;
         }
+
+        Command getAttributesCommand = new Command(ANCSConstants.SERVICE_UUID, ANCSConstants.CHARACTERISTIC_CONTROL_POINT, getAttributesPacket);
+
+        mServiceUtils.addCommandToQueue(getAttributesCommand);
     }
 
+    private void requestFullMessage(NotificationData notificationData) {
+        byte[] UID = notificationData.getUID();
+
+        // Message Size of the preview, the whole message
+        int messageMaxLength = notificationData.getMessageSize();
+        if (messageMaxLength <= 0 || messageMaxLength > MESSAGE_MAX_LENGTH) {
+            messageMaxLength = MESSAGE_MAX_LENGTH;
+        }
+
+        byte[] getAttributesPacket = {
+                ANCSConstants.CommandIDGetNotificationAttributes,
+
+                // Notification UID
+                UID[0], UID[1], UID[2], UID[3],
+
+                // App Identifier, needed to find the sender in messaging apps
+                ANCSConstants.NotificationAttributeIDAppIdentifier,
+
+                // Message with a 2-bytes max length parameter
+                ANCSConstants.NotificationAttributeIDMessage,
+                (byte) (messageMaxLength & 0xff),
+                (byte) ((messageMaxLength >> 8) & 0xff)
+        };
+
+        Command getAttributesCommand = new Command(ANCSConstants.SERVICE_UUID, ANCSConstants.CHARACTERISTIC_CONTROL_POINT, getAttributesPacket);
+
+        // The user is waiting for it
+        getAttributesCommand.setPriority(Command.PRIORITY_USER_ACTION);
+
+        mServiceUtils.addCommandToQueue(getAttributesCommand);
+    }
 
     private void onIncomingCall(NotificationData notificationData) {
         Log.d(LOG_TAG, "Incoming call");
@@ -244,19 +347,54 @@ public class NotificationServiceHandler extends ServiceHandler {
     private void onNotificationReceived(NotificationData notificationData) {
         Log.d(LOG_TAG, "Notification received");
 
+        // Pre existing notifications are sent again on every connection, they are already in the history
+        if (!notificationData.isPreExisting() && !notificationData.isExpansion()) {
+            mNotificationStore.append(notificationData, System.currentTimeMillis());
+        }
+
+        if (isTruncated(notificationData)) {
+            mTruncatedNotifications.put(notificationData.getUIDValue(), notificationData);
+        }
+        else {
+            mTruncatedNotifications.remove(notificationData.getUIDValue());
+        }
+
+        if (notificationData.isExpansion()) {
+            // The full message replaces a notification that already alerted, the user is waiting for it
+            postNotification(notificationData, false);
+        }
+        else {
+            // Pre existing notifications alerted before the connection was lost
+            boolean alert = !notificationData.isPreExisting();
+
+            mCoalescer.offer(notificationData, alert, SystemClock.uptimeMillis());
+            scheduleFlushTask();
+        }
+    }
+
+    private boolean isTruncated(NotificationData notificationData) {
+        if (notificationData.isExpansion()) {
+            // Message Size is cleared once the whole message arrived
+            return notificationData.getMessageSize() != -1;
+        }
+
+        return notificationData.getMessageSize() > MESSAGE_PREVIEW_LENGTH;
+    }
+
+    private void postNotification(NotificationData notificationData, boolean alert) {
+        boolean truncated = isTruncated(notificationData);
+
         Bitmap background;
         if (mServiceUtils.getColorBackgrounds()) {
             if (notificationData.getBackground() != -1) {
-                background = BitmapFactory.decodeResource(mContext.getResources(), notificationData.getBackground());
+                background = BitmapCache.getResource(mContext, notificationData.getBackground());
             }
             else {
-                background = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
-                background.eraseColor(notificationData.getBackgroundColor());
+                background = BitmapCache.getSolidColor(notificationData.getBackgroundColor());
             }
         }
         else {
-            background = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
-            background.eraseColor(0);
+            background = BitmapCache.getSolidColor(0);
         }
 
         // Build pending intent for when the user swipes the card away
@@ -276,6 +414,19 @@ public class NotificationServiceHandler extends ServiceHandler {
                 .setPriority(Notification.PRIORITY_MAX)
                 .extend(wearableExtender);
 
+        if (truncated) {
+            // Opening the notification gets the rest of the message
+            Intent expandIntent = new Intent(Constants.IA_EXPAND);
+            expandIntent.putExtra(Constants.IE_NOTIFICATION_UID, notificationData.getUID());
+            PendingIntent expandAction = PendingIntent.getBroadcast(mContext, mNotificationNumber, expandIntent, 0);
+
+            notificationBuilder.setContentIntent(expandAction);
+        }
+
+        if (notificationData.isExpansion()) {
+            notificationBuilder.setStyle(new Notification.BigTextStyle().bigText(notificationData.getMessage()));
+        }
+
         // Build positive action intent only if available
         if (notificationData.getPositiveAction() != null) {
             Intent positiveIntent = new Intent(Constants.IA_POSITIVE);
@@ -293,15 +444,16 @@ public class NotificationServiceHandler extends ServiceHandler {
             notificationBuilder.addAction(R.drawable.ic_action_remove, notificationData.getNegativeAction(), negativeAction);
         }
 
-        if (!notificationData.isPreExisting()) {
+        if (alert) {
             if (!notificationData.isSilent()) {
-                //mServiceUtils.vibrate(VIBRATION_PATTERN, -1);
-                mServiceUtils.wakeScreen();
+                mServiceUtils.wakeScreen(PowerBudget.Reason.Notification);
 
-                notificationBuilder.setVibrate(VIBRATION_PATTERN);
+                if (mServiceUtils.requestVibration(PowerBudget.Reason.Notification, VIBRATION_PATTERN)) {
+                    notificationBuilder.setVibrate(VIBRATION_PATTERN);
+                }
             }
             else {
-                mServiceUtils.vibrate(SILENT_VIBRATION_PATTERN, -1);
+                mServiceUtils.vibrate(PowerBudget.Reason.Notification, SILENT_VIBRATION_PATTERN);
             }
         }
 
@@ -314,39 +466,104 @@ public class NotificationServiceHandler extends ServiceHandler {
         mNotificationNumber++;
     }
 
+    private void postSummary(String appId, List<NotificationData> notifications) {
+        if (notifications.size() < 2) {
+            mServiceUtils.cancelNotification(appId, NOTIFICATION_SUMMARY);
+            return;
+        }
+
+        NotificationData newest = notifications.get(notifications.size() - 1);
+        String summary = mContext.getString(R.string.notification_summary, notifications.size());
+
+        // Newest first
+        Notification.InboxStyle inboxStyle = new Notification.InboxStyle().setSummaryText(summary);
+        for (int i = notifications.size() - 1; i >= Math.max(0, notifications.size() - SUMMARY_MAX_LINES); i--) {
+            NotificationData notificationData = notifications.get(i);
+
+            if (notificationData.getTitle() != null && notificationData.getTitle().length() > 0) {
+                inboxStyle.addLine(notificationData.getTitle() + ": " + notificationData.getMessage());
+            }
+            else {
+                inboxStyle.addLine(notificationData.getMessage());
+            }
+        }
+
+        Notification notification = new Notification.Builder(mContext)
+                .setContentTitle(newest.getTitle())
+                .setContentText(summary)
+                .setSmallIcon(newest.getAppIcon())
+                .setGroup(appId)
+                .setGroupSummary(true)
+                .setNumber(notifications.size())
+                .setStyle(inboxStyle)
+                .build();
+
+        mServiceUtils.notify(appId, NOTIFICATION_SUMMARY, notification);
+    }
+
     private void onCallEnded() {
         Log.d(LOG_TAG, "Call ended");
         mContext.sendBroadcast(new Intent(Constants.IA_END_CALL));
     }
 
-    private void onNotificationCanceled(String notificationId) {
+    private void onNotificationCanceled(String notificationId, int UID) {
         Log.d(LOG_TAG, "Notification canceled");
         mServiceUtils.cancelNotification(notificationId, NOTIFICATION_REGULAR);
+        mCoalescer.remove(UID);
     }
 
-    private ScheduledTask mClearOldNotificationsTask;
+    private void scheduleFlushTask() {
+        long flushTime = mCoalescer.getNextFlushTime();
 
-    private void scheduleClearOldNotificationsTask() {
-        if (mClearOldNotificationsTask == null) {
-            mClearOldNotificationsTask = new ScheduledTask(700, mContext.getMainLooper(), new Runnable() {
+        if (flushTime == -1) {
+            return;
+        }
+
+        if (mFlushTask == null) {
+            mFlushTask = new ScheduledTask(0, mServiceUtils.getLooper(), new Runnable() {
                 @Override
                 public void run() {
-                    Log.i(LOG_TAG, "Clear old notifications");
-                    mPacketProcessor = null;
-                    mPendingNotifications.clear();
+                    mCoalescer.flush(SystemClock.uptimeMillis());
+                    scheduleFlushTask();
                 }
             });
         }
         else {
-            mClearOldNotificationsTask.cancel();
+            mFlushTask.cancel();
         }
 
-        mClearOldNotificationsTask.schedule();
+        mFlushTask.setDelay(Math.max(0, flushTime - SystemClock.uptimeMillis()));
+        mFlushTask.schedule();
     }
 
-    private void cancelClearOldNotificationsTask() {
-        if (mClearOldNotificationsTask != null) {
-            mClearOldNotificationsTask.cancel();
+    private void cancelFlushTask() {
+        if (mFlushTask != null) {
+            mFlushTask.cancel();
+        }
+    }
+
+    private ScheduledTask mDataTimeoutTask;
+
+    private void scheduleDataTimeoutTask() {
+        if (mDataTimeoutTask == null) {
+            mDataTimeoutTask = new ScheduledTask(700, mServiceUtils.getLooper(), new Runnable() {
+                @Override
+                public void run() {
+                    Log.i(LOG_TAG, "Discard incomplete notification");
+                    mPacketProcessor.reset(null);
+                }
+            });
+        }
+        else {
+            mDataTimeoutTask.cancel();
+        }
+
+        mDataTimeoutTask.schedule();
+    }
+
+    private void cancelDataTimeoutTask() {
+        if (mDataTimeoutTask != null) {
+            mDataTimeoutTask.cancel();
         }
     }
 
@@ -360,10 +577,21 @@ public class NotificationServiceHandler extends ServiceHandler {
                 String action = intent.getAction();
 
                 byte[] UID = intent.getByteArrayExtra(Constants.IE_NOTIFICATION_UID);
+
+                if (action.equals(Constants.IA_EXPAND)) {
+                    NotificationData notificationData = mTruncatedNotifications.get(NotificationData.readUID(UID, 0));
+
+                    if (notificationData != null) {
+                        mAttributesFetcher.add(notificationData.createExpansion());
+                    }
+
+                    return;
+                }
                 String notificationId = new String(UID);
 
                 // Dismiss notification
                 mServiceUtils.cancelNotification(notificationId, NOTIFICATION_REGULAR);
+                mCoalescer.remove(NotificationData.readUID(UID, 0));
 
                 byte actionId = ANCSConstants.ActionIDPositive;
                 if (action.equals(Constants.IA_NEGATIVE) | action.equals(Constants.IA_DELETE)) {
@@ -383,6 +611,8 @@ public class NotificationServiceHandler extends ServiceHandler {
 
                 Command performActionCommand = new Command(ANCSConstants.SERVICE_UUID, ANCSConstants.CHARACTERISTIC_CONTROL_POINT, performActionPacket);
 
+                performActionCommand.setPriority(Command.PRIORITY_USER_ACTION);
+
                 mServiceUtils.addCommandToQueue(performActionCommand);
             }
             catch (Exception e) {
@@ -0,0 +1,567 @@
+package com.codegy.aerlink.notifications;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * History of received notifications kept on flash.
+ *
+ * Records are appended to a log file and never modified. A memory-mapped index with one fixed size
+ * entry per record (time, offset, length and App ID hash) is what gets searched, so pages of the
+ * history are read without loading the rest. Expired records are dropped from the index and the
+ * log is only rewritten once at least half of it is expired.
+ *
+ * Both files carry the generation of the log, increased by every compaction. An index of another
+ * generation than the log, or an unreadable one, is rebuilt from the log records.
+ */
+public class NotificationStore {
+
+    public static class Record {
+        private long sequence;
+        private long time;
+        private int UID;
+        private String appId;
+        private String title;
+        private String message;
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public int getUID() {
+            return UID;
+        }
+
+        public String getAppId() {
+            return appId;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    private static final String LOG_TAG = NotificationStore.class.getSimpleName();
+
+    private static final String LOG_FILE = "notifications.log";
+    private static final String INDEX_FILE = "notifications.idx";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int LOG_MAGIC = 0x414c4c32;
+    // Magic (4 bytes) + Generation (4 bytes)
+    private static final int LOG_HEADER_LENGTH = 8;
+    private static final int INDEX_MAGIC = 0x414c4e32;
+    // Magic (4 bytes) + Count (4 bytes) + First live entry (4 bytes) + Log generation (4 bytes) + Base sequence (8 bytes)
+    private static final int INDEX_HEADER_LENGTH = 24;
+    // Time (8 bytes) + Log offset (8 bytes) + Record length (4 bytes) + App ID hash (4 bytes)
+    private static final int INDEX_ENTRY_LENGTH = 24;
+    private static final int INITIAL_CAPACITY = 256;
+
+    public static final int MAX_RECORDS = 5000;
+    public static final long MAX_AGE = 7 * 24 * 60 * 60 * 1000L;
+    // Compaction waits for this many expired records, so small appends never rewrite the log
+    private static final int MIN_EXPIRED_TO_COMPACT = 256;
+
+
+    private static NotificationStore sInstance;
+
+    private File mDirectory;
+    private RandomAccessFile mLogFile;
+    private FileChannel mLogChannel;
+    private long mLogLength;
+    private int mLogGeneration;
+    private RandomAccessFile mIndexFile;
+    private FileChannel mIndexChannel;
+    private MappedByteBuffer mIndex;
+    private int mCapacity;
+
+    // Entries in the index, the ones before mFirstLive are expired
+    private int mCount;
+    private int mFirstLive;
+    // Sequence number of the first entry in the index, it grows as compactions remove entries
+    private long mBaseSequence;
+
+    private final ByteArrayOutputStream mRecordBuffer = new ByteArrayOutputStream(512);
+
+    private long mBytesWritten;
+    private int mCompactions;
+
+
+    public static synchronized NotificationStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new NotificationStore(context.getFilesDir());
+        }
+
+        return sInstance;
+    }
+
+    public NotificationStore(File directory) {
+        this.mDirectory = directory;
+
+        try {
+            openFiles();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+
+            // Start over rather than losing new notifications too
+            new File(mDirectory, LOG_FILE).delete();
+            new File(mDirectory, INDEX_FILE).delete();
+
+            try {
+                openFiles();
+            }
+            catch (IOException e1) {
+                e1.printStackTrace();
+            }
+        }
+    }
+
+    public synchronized void close() {
+        closeFiles();
+    }
+
+
+    /**
+     * @return the sequence number of the new record, -1 if it couldn't be stored
+     */
+    public synchronized long append(NotificationData notificationData, long time) {
+        if (mIndex == null) {
+            return -1;
+        }
+
+        try {
+            mRecordBuffer.reset();
+            DataOutputStream output = new DataOutputStream(mRecordBuffer);
+            output.writeLong(time);
+            output.writeInt(notificationData.getUIDValue());
+            output.writeUTF(valueOf(notificationData.getAppId()));
+            output.writeUTF(valueOf(notificationData.getTitle()));
+            output.writeUTF(valueOf(notificationData.getMessage()));
+            output.flush();
+
+            int length = mRecordBuffer.size();
+            long offset = mLogLength;
+
+            // Log first, an index entry never points to data that is not written
+            mLogChannel.write(ByteBuffer.wrap(mRecordBuffer.toByteArray(), 0, length), offset);
+            mLogLength += length;
+
+            if (mCount == mCapacity) {
+                mapIndex(mCapacity * 2);
+            }
+
+            writeEntry(mIndex, mCount, time, offset, length, appIdHash(notificationData.getAppId()));
+            mCount++;
+            mIndex.putInt(4, mCount);
+
+            mBytesWritten += length + INDEX_ENTRY_LENGTH;
+
+            expire(time);
+
+            return mBaseSequence + mCount - 1;
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return -1;
+    }
+
+    public synchronized int getCount() {
+        return mCount - mFirstLive;
+    }
+
+    /**
+     * @return the sequence number the next record will have, use it to get the newest page
+     */
+    public synchronized long getEndSequence() {
+        return mBaseSequence + mCount;
+    }
+
+    /**
+     * Newest records first
+     *
+     * @param beforeSequence only records older than this one, getEndSequence() for the newest
+     * @param appId only records of this app, null for all
+     */
+    public synchronized List<Record> getPage(long beforeSequence, int limit, String appId) {
+        List<Record> records = new ArrayList<>(limit);
+
+        if (mIndex == null) {
+            return records;
+        }
+
+        int hash = appIdHash(appId);
+        int position = (int) Math.min(mCount, beforeSequence - mBaseSequence) - 1;
+
+        for (; position >= mFirstLive && records.size() < limit; position--) {
+            int entry = INDEX_HEADER_LENGTH + position * INDEX_ENTRY_LENGTH;
+
+            if (appId != null && mIndex.getInt(entry + 20) != hash) {
+                continue;
+            }
+
+            Record record = readRecord(position);
+
+            // Hashes can collide
+            if (record != null && (appId == null || appId.equals(record.appId))) {
+                records.add(record);
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * @return the sequence number of the first record received at or after the time, getEndSequence() if there is none
+     */
+    public synchronized long getFirstSequenceAfter(long time) {
+        int low = mFirstLive;
+        int high = mCount;
+
+        // Records are appended in time order
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+
+            if (mIndex.getLong(INDEX_HEADER_LENGTH + middle * INDEX_ENTRY_LENGTH) < time) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+
+        return mBaseSequence + low;
+    }
+
+    public synchronized long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    public synchronized int getCompactions() {
+        return mCompactions;
+    }
+
+
+    private Record readRecord(int position) {
+        int entry = INDEX_HEADER_LENGTH + position * INDEX_ENTRY_LENGTH;
+        long offset = mIndex.getLong(entry + 8);
+        int length = mIndex.getInt(entry + 16);
+
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+
+            while (buffer.hasRemaining()) {
+                if (mLogChannel.read(buffer, offset + buffer.position()) < 0) {
+                    return null;
+                }
+            }
+
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(buffer.array()));
+
+            Record record = new Record();
+            record.sequence = mBaseSequence + position;
+            record.time = input.readLong();
+            record.UID = input.readInt();
+            record.appId = input.readUTF();
+            record.title = input.readUTF();
+            record.message = input.readUTF();
+
+            return record;
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    /**
+     * Drops records over the retention limits and compacts when enough of them are expired
+     */
+    private void expire(long now) throws IOException {
+        while (mFirstLive < mCount) {
+            long time = mIndex.getLong(INDEX_HEADER_LENGTH + mFirstLive * INDEX_ENTRY_LENGTH);
+
+            if (mCount - mFirstLive > MAX_RECORDS || now - time > MAX_AGE) {
+                mFirstLive++;
+            }
+            else {
+                break;
+            }
+        }
+
+        mIndex.putInt(8, mFirstLive);
+
+        // Every record is rewritten at most once per half of the log expiring
+        if (mFirstLive >= MIN_EXPIRED_TO_COMPACT && mFirstLive * 2 >= mCount) {
+            compact();
+        }
+    }
+
+    private void compact() throws IOException {
+        Log.i(LOG_TAG, "Compacting, expired: " + mFirstLive + " live: " + (mCount - mFirstLive));
+
+        File tempLog = new File(mDirectory, LOG_FILE + TEMP_SUFFIX);
+        File tempIndex = new File(mDirectory, INDEX_FILE + TEMP_SUFFIX);
+        tempLog.delete();
+        tempIndex.delete();
+
+        int liveCount = mCount - mFirstLive;
+        int capacity = Math.max(INITIAL_CAPACITY, Integer.highestOneBit(Math.max(1, liveCount)) * 2);
+
+        RandomAccessFile newLogFile = new RandomAccessFile(tempLog, "rw");
+        RandomAccessFile newIndexFile = new RandomAccessFile(tempIndex, "rw");
+
+        try {
+            FileChannel newLogChannel = newLogFile.getChannel();
+            MappedByteBuffer newIndex = newIndexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER_LENGTH + capacity * INDEX_ENTRY_LENGTH);
+
+            long firstOffset = liveCount > 0 ? mIndex.getLong(INDEX_HEADER_LENGTH + mFirstLive * INDEX_ENTRY_LENGTH + 8) : mLogLength;
+            int generation = mLogGeneration + 1;
+
+            writeLogHeader(newLogChannel, generation);
+
+            // Live records are contiguous at the end of the log, copied in one go
+            long liveLength = mLogLength - firstOffset;
+            long copied = 0;
+            newLogChannel.position(LOG_HEADER_LENGTH);
+            while (copied < liveLength) {
+                copied += mLogChannel.transferTo(firstOffset + copied, liveLength - copied, newLogChannel);
+            }
+
+            for (int i = 0; i < liveCount; i++) {
+                int entry = INDEX_HEADER_LENGTH + (mFirstLive + i) * INDEX_ENTRY_LENGTH;
+
+                writeEntry(newIndex, i,
+                        mIndex.getLong(entry),
+                        mIndex.getLong(entry + 8) - firstOffset + LOG_HEADER_LENGTH,
+                        mIndex.getInt(entry + 16),
+                        mIndex.getInt(entry + 20));
+            }
+
+            newIndex.putInt(0, INDEX_MAGIC);
+            newIndex.putInt(4, liveCount);
+            newIndex.putInt(8, 0);
+            newIndex.putInt(12, generation);
+            newIndex.putLong(16, mBaseSequence + mFirstLive);
+            newIndex.force();
+            newLogChannel.force(false);
+
+            mBytesWritten += LOG_HEADER_LENGTH + liveLength + liveCount * INDEX_ENTRY_LENGTH;
+        }
+        finally {
+            newLogFile.close();
+            newIndexFile.close();
+        }
+
+        closeFiles();
+
+        // The log is replaced first, a crash in between leaves the old index with the old generation,
+        // which openFiles() doesn't trust and rebuilds from the new log
+        if (!tempLog.renameTo(new File(mDirectory, LOG_FILE)) || !tempIndex.renameTo(new File(mDirectory, INDEX_FILE))) {
+            Log.e(LOG_TAG, "Compaction rename failed");
+        }
+
+        mCompactions++;
+
+        openFiles();
+    }
+
+    private void openFiles() throws IOException {
+        mLogFile = new RandomAccessFile(new File(mDirectory, LOG_FILE), "rw");
+        mLogChannel = mLogFile.getChannel();
+        mLogLength = mLogChannel.size();
+
+        ByteBuffer logHeader = ByteBuffer.allocate(LOG_HEADER_LENGTH);
+        mLogChannel.read(logHeader, 0);
+        boolean newLog = mLogLength < LOG_HEADER_LENGTH || logHeader.getInt(0) != LOG_MAGIC;
+
+        if (newLog) {
+            // New or unreadable log, nothing in it can be used
+            mLogGeneration = 0;
+            mLogChannel.truncate(0);
+            writeLogHeader(mLogChannel, mLogGeneration);
+            mLogLength = LOG_HEADER_LENGTH;
+        }
+        else {
+            mLogGeneration = logHeader.getInt(4);
+        }
+
+        mIndexFile = new RandomAccessFile(new File(mDirectory, INDEX_FILE), "rw");
+        mIndexChannel = mIndexFile.getChannel();
+
+        long indexSize = mIndexChannel.size();
+        mapIndex(Math.max(INITIAL_CAPACITY, (int) ((indexSize - INDEX_HEADER_LENGTH) / INDEX_ENTRY_LENGTH)));
+
+        boolean indexValid = indexSize >= INDEX_HEADER_LENGTH && mIndex.getInt(0) == INDEX_MAGIC;
+
+        if (newLog || !indexValid || mIndex.getInt(12) != mLogGeneration) {
+            // Sequence numbers continue where the old index ended, so after a crash during compaction they stay the same
+            long endSequence = indexValid ? mIndex.getLong(16) + mIndex.getInt(4) : 0;
+
+            rebuildIndex(endSequence);
+        }
+
+        mCount = Math.min(mIndex.getInt(4), mCapacity);
+        mFirstLive = mIndex.getInt(8);
+        mBaseSequence = mIndex.getLong(16);
+
+        // Entries whose record didn't make it to the log before a crash are dropped
+        while (mCount > 0) {
+            int entry = INDEX_HEADER_LENGTH + (mCount - 1) * INDEX_ENTRY_LENGTH;
+            long end = mIndex.getLong(entry + 8) + mIndex.getInt(entry + 16);
+
+            if (end <= mLogLength) {
+                // Anything after the last record is a partial write
+                if (end < mLogLength) {
+                    mLogChannel.truncate(end);
+                    mLogLength = end;
+                }
+
+                break;
+            }
+
+            mCount--;
+        }
+
+        if (mCount == 0) {
+            mLogChannel.truncate(LOG_HEADER_LENGTH);
+            mLogLength = LOG_HEADER_LENGTH;
+        }
+
+        mFirstLive = Math.max(0, Math.min(mFirstLive, mCount));
+        mIndex.putInt(4, mCount);
+        mIndex.putInt(8, mFirstLive);
+
+        Log.i(LOG_TAG, "Opened, records: " + (mCount - mFirstLive) + " log size: " + mLogLength);
+    }
+
+    /**
+     * Replaces the index with one entry for each complete record in the log
+     */
+    private void rebuildIndex(long endSequence) throws IOException {
+        Log.w(LOG_TAG, "Rebuilding index for log generation " + mLogGeneration);
+
+        int count = 0;
+        long offset = LOG_HEADER_LENGTH;
+        ByteBuffer log = mLogChannel.map(FileChannel.MapMode.READ_ONLY, 0, mLogLength);
+        log.position(LOG_HEADER_LENGTH);
+
+        try {
+            while (log.hasRemaining()) {
+                long time = log.getLong();
+                log.getInt();
+                String appId = readUTF(log);
+                readUTF(log);
+                readUTF(log);
+
+                if (count == mCapacity) {
+                    mapIndex(mCapacity * 2);
+                }
+
+                writeEntry(mIndex, count, time, offset, (int) (log.position() - offset), appIdHash(appId));
+                count++;
+                offset = log.position();
+            }
+        }
+        catch (BufferUnderflowException e) {
+            // A partial write at the end, openFiles() truncates it
+        }
+        catch (UTFDataFormatException e) {
+            Log.w(LOG_TAG, "Unreadable record at " + offset + ", dropping the rest of the log");
+        }
+
+        mIndex.putInt(0, INDEX_MAGIC);
+        mIndex.putInt(4, count);
+        mIndex.putInt(8, 0);
+        mIndex.putInt(12, mLogGeneration);
+        mIndex.putLong(16, Math.max(0, endSequence - count));
+    }
+
+    private void closeFiles() {
+        try {
+            if (mLogFile != null) {
+                mLogFile.close();
+            }
+            if (mIndexFile != null) {
+                mIndexFile.close();
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        mLogFile = null;
+        mLogChannel = null;
+        mIndexFile = null;
+        mIndexChannel = null;
+        mIndex = null;
+    }
+
+    private void mapIndex(int capacity) throws IOException {
+        mCapacity = capacity;
+        mIndex = mIndexChannel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER_LENGTH + (long) capacity * INDEX_ENTRY_LENGTH);
+    }
+
+    private static void writeLogHeader(FileChannel channel, int generation) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_LENGTH);
+        header.putInt(LOG_MAGIC);
+        header.putInt(generation);
+        header.flip();
+
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    private static String readUTF(ByteBuffer buffer) throws IOException {
+        int length = buffer.getShort() & 0xffff;
+
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+
+        // Same modified UTF-8 DataOutputStream wrote, length included
+        byte[] data = new byte[2 + length];
+        buffer.position(buffer.position() - 2);
+        buffer.get(data);
+
+        return new DataInputStream(new ByteArrayInputStream(data)).readUTF();
+    }
+
+    private static void writeEntry(ByteBuffer index, int position, long time, long offset, int length, int appIdHash) {
+        int entry = INDEX_HEADER_LENGTH + position * INDEX_ENTRY_LENGTH;
+
+        index.putLong(entry, time);
+        index.putLong(entry + 8, offset);
+        index.putInt(entry + 16, length);
+        index.putInt(entry + 20, appIdHash);
+    }
+
+    private static int appIdHash(String appId) {
+        return appId != null ? appId.hashCode() : 0;
+    }
+
+    private static String valueOf(String value) {
+        return value != null ? value : "";
+    }
+
+}
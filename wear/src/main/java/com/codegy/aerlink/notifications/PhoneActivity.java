@@ -6,13 +6,12 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
-import android.os.PowerManager;
-import android.os.Vibrator;
 import android.support.wearable.view.WatchViewStub;
 import android.view.View;
 import android.widget.TextView;
 import com.codegy.aerlink.Constants;
 import com.codegy.aerlink.R;
+import com.codegy.aerlink.utils.PowerBudget;
 
 public class PhoneActivity extends Activity {
 
@@ -21,8 +20,7 @@ public class PhoneActivity extends Activity {
     private byte[] callUID;
     private TextView mCallerIdTextView;
     private TextView mMessageTextView;
-    private Vibrator vibrator;
-    private PowerManager.WakeLock wakeLock;
+    private PowerBudget mPowerBudget;
 
     private final BroadcastReceiver mEndCallReceiver = new BroadcastReceiver() {
         @Override
@@ -55,17 +53,10 @@ public class PhoneActivity extends Activity {
         });
 
 
-        PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
-
-        if (powerManager != null) {
-            wakeLock = powerManager.newWakeLock((PowerManager.SCREEN_BRIGHT_WAKE_LOCK | PowerManager.FULL_WAKE_LOCK | PowerManager.ACQUIRE_CAUSES_WAKEUP), "PhoneActivity_TAG");
-            wakeLock.acquire();
-        }
-
-        vibrator = (Vibrator) getSystemService(VIBRATOR_SERVICE);
-        if (vibrator != null) {
-            vibrator.vibrate(CALL_VIBRATION_PATTERN, 0);
-        }
+        // Calls are never rate limited
+        mPowerBudget = PowerBudget.getInstance(this);
+        mPowerBudget.acquireScreen(PowerBudget.Reason.Call);
+        mPowerBudget.startVibration(PowerBudget.Reason.Call, CALL_VIBRATION_PATTERN);
     }
 
     @Override
@@ -89,14 +80,8 @@ public class PhoneActivity extends Activity {
     protected void onDestroy() {
         super.onDestroy();
 
-        if (vibrator != null) {
-            vibrator.cancel();
-            vibrator = null;
-        }
-
-        if (wakeLock != null) {
-            wakeLock.release();
-        }
+        mPowerBudget.stopVibration(PowerBudget.Reason.Call);
+        mPowerBudget.releaseScreen(PowerBudget.Reason.Call);
     }
 
     @Override
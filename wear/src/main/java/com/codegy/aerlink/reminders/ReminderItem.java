@@ -5,6 +5,8 @@ package com.codegy.aerlink.reminders;
  */
 public class ReminderItem {
 
+    // Given by the phone, the position for lists received as JSON
+    private int id;
     private String title;
     private boolean completed;
     private int position;
@@ -13,12 +15,32 @@ public class ReminderItem {
         this.completed = title.charAt(0) == 'X';
         this.title = title.substring(1);
         this.position = position;
+        this.id = position;
+    }
+
+    public ReminderItem(int id, String title, boolean completed, int position) {
+        this.id = id;
+        this.title = title;
+        this.completed = completed;
+        this.position = position;
+    }
+
+    public ReminderItem(ReminderItem item) {
+        this(item.id, item.title, item.completed, item.position);
+    }
+
+    public int getId() {
+        return id;
     }
 
     public String getTitle() {
         return title;
     }
 
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
     public boolean isCompleted() {
         return completed;
     }
@@ -27,6 +49,10 @@ public class ReminderItem {
         return position;
     }
 
+    public void setPosition(int position) {
+        this.position = position;
+    }
+
     public void setCompleted(boolean completed) {
         this.completed = completed;
     }
@@ -0,0 +1,329 @@
+package com.codegy.aerlink.reminders;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The reminder list shown on the watch, kept up to date with deltas from the phone.
+ *
+ * Delta format, numbers are unsigned LEB128 varints so most take a single byte:
+ * Format (1 byte, FORMAT_DELTA) + Base version (0 for the whole list) + Version + Flags (1 byte)
+ * + [Title length + Title] if FLAG_TITLE
+ * + Removed count + ID of each
+ * + Record count + for each ID + Flags (1 byte) + [Position] if RECORD_POSITION + [Title length + Title] if RECORD_TITLE
+ *
+ * A record without RECORD_POSITION goes right after the previous record, and one without RECORD_TITLE
+ * keeps its title. The whole list is the same with base version 0, it is also how the list is saved,
+ * with FLAG_LEGACY if it came as JSON. Not thread safe.
+ */
+public class ReminderList {
+
+    // First byte of the data, the old JSON list starts with '['
+    public static final byte FORMAT_DELTA = 0x01;
+
+    private static final int FLAG_TITLE = 1;
+    // Only in saved lists, never sent by the phone
+    private static final int FLAG_LEGACY = 1 << 1;
+    private static final int RECORD_COMPLETED = 1;
+    private static final int RECORD_TITLE = 1 << 1;
+    private static final int RECORD_POSITION = 1 << 2;
+
+    private static final Comparator<ReminderItem> ORDER = new Comparator<ReminderItem>() {
+        @Override
+        public int compare(ReminderItem lhs, ReminderItem rhs) {
+            // Uncompleted first, in the phone's order
+            if (lhs.isCompleted() != rhs.isCompleted()) {
+                return lhs.isCompleted() ? 1 : -1;
+            }
+
+            return lhs.getPosition() - rhs.getPosition();
+        }
+    };
+
+
+    // 0 until a delta was applied
+    private int mVersion;
+    private String mTitle;
+    // By ID, a TreeMap so the codec runs on the JVM
+    private final Map<Integer, ReminderItem> mItems = new TreeMap<>();
+    // Received as JSON from a phone that doesn't send deltas, IDs are positions
+    private boolean mLegacy;
+
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    public String getTitle() {
+        return mTitle;
+    }
+
+    public int size() {
+        return mItems.size();
+    }
+
+    public boolean isLegacy() {
+        return mLegacy;
+    }
+
+    /**
+     * @return copies of the items in the order they are shown
+     */
+    public List<ReminderItem> getItems() {
+        List<ReminderItem> items = new ArrayList<>(mItems.size());
+
+        for (ReminderItem item : mItems.values()) {
+            items.add(new ReminderItem(item));
+        }
+
+        Collections.sort(items, ORDER);
+
+        return items;
+    }
+
+    /**
+     * Changes an item before the phone confirms it in a delta
+     */
+    public void setCompleted(int id, boolean completed) {
+        ReminderItem item = mItems.get(id);
+
+        if (item != null) {
+            item.setCompleted(completed);
+        }
+    }
+
+    /**
+     * The whole delta is read before anything changes, so a malformed one leaves the list as it was
+     *
+     * @return false if the delta is for another version of the list, the list is left as it was
+     * @throws IllegalArgumentException if the data is malformed, the list is left as it was
+     */
+    public boolean applyDelta(byte[] data, int length) {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+
+        int baseVersion;
+        int version;
+        int flags;
+        String title = null;
+        int[] removedIds;
+        int[] recordIds;
+        int[] recordFlags;
+        int[] recordPositions;
+        String[] recordTitles;
+
+        try {
+            if (buffer.get() != FORMAT_DELTA) {
+                throw new IllegalArgumentException("Unknown format");
+            }
+
+            baseVersion = readVarint(buffer);
+            version = readVarint(buffer);
+
+            if (baseVersion != 0 && (baseVersion != mVersion || mLegacy)) {
+                return false;
+            }
+
+            flags = buffer.get();
+
+            if ((flags & FLAG_TITLE) != 0) {
+                title = readString(buffer);
+            }
+
+            // Every ID takes at least a byte
+            removedIds = new int[readCount(buffer, 1)];
+            for (int i = 0; i < removedIds.length; i++) {
+                removedIds[i] = readVarint(buffer);
+            }
+
+            // And every record an ID and its flags
+            int recordCount = readCount(buffer, 2);
+            recordIds = new int[recordCount];
+            recordFlags = new int[recordCount];
+            recordPositions = new int[recordCount];
+            recordTitles = new String[recordCount];
+
+            int position = -1;
+            for (int i = 0; i < recordCount; i++) {
+                recordIds[i] = readVarint(buffer);
+                recordFlags[i] = buffer.get();
+                position = (recordFlags[i] & RECORD_POSITION) != 0 ? readVarint(buffer) : position + 1;
+                recordPositions[i] = position;
+                recordTitles[i] = (recordFlags[i] & RECORD_TITLE) != 0 ? readString(buffer) : null;
+            }
+        }
+        catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated delta");
+        }
+
+        if (baseVersion == 0) {
+            mItems.clear();
+            mTitle = null;
+        }
+
+        mVersion = version;
+        mLegacy = (flags & FLAG_LEGACY) != 0;
+
+        if (title != null) {
+            mTitle = title;
+        }
+
+        for (int id : removedIds) {
+            mItems.remove(id);
+        }
+
+        for (int i = 0; i < recordIds.length; i++) {
+            ReminderItem item = mItems.get(recordIds[i]);
+
+            if (item == null) {
+                item = new ReminderItem(recordIds[i], recordTitles[i] != null ? recordTitles[i] : "", false, recordPositions[i]);
+                mItems.put(recordIds[i], item);
+            }
+            else if (recordTitles[i] != null) {
+                item.setTitle(recordTitles[i]);
+            }
+
+            item.setPosition(recordPositions[i]);
+            item.setCompleted((recordFlags[i] & RECORD_COMPLETED) != 0);
+        }
+
+        return true;
+    }
+
+    /**
+     * Replaces everything with a list in the old JSON format, a title and then every item prefixed with 'X' if completed
+     */
+    public void applyJson(String data) throws JSONException {
+        JSONArray jsonItems = new JSONArray(data);
+
+        mItems.clear();
+        mTitle = jsonItems.length() > 0 ? jsonItems.get(0).toString() : null;
+
+        for (int i = 1; i < jsonItems.length(); i++) {
+            ReminderItem item = new ReminderItem(jsonItems.get(i).toString(), i - 1);
+            mItems.put(item.getId(), item);
+        }
+
+        mVersion = 0;
+        mLegacy = true;
+    }
+
+    /**
+     * @return the whole list as a delta from version 0
+     */
+    public byte[] encode() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(64 + mItems.size() * 32);
+
+        output.write(FORMAT_DELTA);
+        writeVarint(output, 0);
+        writeVarint(output, mVersion);
+
+        output.write((mTitle != null ? FLAG_TITLE : 0) | (mLegacy ? FLAG_LEGACY : 0));
+        if (mTitle != null) {
+            writeString(output, mTitle);
+        }
+
+        writeVarint(output, 0);
+        writeVarint(output, mItems.size());
+
+        int position = -1;
+        for (ReminderItem item : mItems.values()) {
+            boolean next = item.getPosition() == position + 1;
+            position = item.getPosition();
+
+            writeVarint(output, item.getId());
+            output.write((item.isCompleted() ? RECORD_COMPLETED : 0) | RECORD_TITLE | (next ? 0 : RECORD_POSITION));
+            if (!next) {
+                writeVarint(output, position);
+            }
+            writeString(output, item.getTitle());
+        }
+
+        return output.toByteArray();
+    }
+
+
+    private static String readString(ByteBuffer buffer) {
+        int length = readVarint(buffer);
+
+        if (length < 0) {
+            throw new IllegalArgumentException("Negative length");
+        }
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+
+        try {
+            String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, "UTF-8");
+            buffer.position(buffer.position() + length);
+
+            return value;
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param minLength bytes each entry takes at least, a count that can't fit in what is left is malformed
+     */
+    private static int readCount(ByteBuffer buffer, int minLength) {
+        int count = readVarint(buffer);
+
+        if (count < 0) {
+            throw new IllegalArgumentException("Negative count");
+        }
+        if (count > buffer.remaining() / minLength) {
+            throw new BufferUnderflowException();
+        }
+
+        return count;
+    }
+
+    private static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = buffer.get();
+            value |= (b & 0x7f) << shift;
+
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    private static void writeString(ByteArrayOutputStream output, String value) {
+        try {
+            byte[] bytes = value.getBytes("UTF-8");
+
+            writeVarint(output, bytes.length);
+            output.write(bytes, 0, bytes.length);
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream output, int value) {
+        while ((value & ~0x7f) != 0) {
+            output.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+
+        output.write(value);
+    }
+
+}
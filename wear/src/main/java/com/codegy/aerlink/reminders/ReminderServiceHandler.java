@@ -1,61 +1,135 @@
 package com.codegy.aerlink.reminders;
 
-import android.bluetooth.BluetoothGattCharacteristic;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
 import android.preference.PreferenceManager;
+import android.util.Log;
 import com.codegy.aerlink.ALSConstants;
 import com.codegy.aerlink.Constants;
 import com.codegy.aerlink.connection.Command;
 import com.codegy.aerlink.utils.PacketProcessor;
+import com.codegy.aerlink.utils.ScheduledTask;
 import com.codegy.aerlink.utils.ServiceHandler;
 import com.codegy.aerlink.utils.ServiceUtils;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
 /**
  * Created by Guiye on 20/5/15.
+ *
+ * Keeps a ReminderList in sync with the phone, asking only for what changed since the version it has.
+ * Phones that don't answer with a delta get the whole list requested as JSON, like before.
  */
 public class ReminderServiceHandler extends ServiceHandler {
 
     public interface RemindersCallback {
-        void onRemindersUpdated(String remindersData);
+        // Called on the service handler thread, the items are copies
+        void onRemindersUpdated(String title, List<ReminderItem> items);
     }
 
     private static final String LOG_TAG = ReminderServiceHandler.class.getSimpleName();
 
+    // Actions written to the reminders action characteristic
+    private static final byte ACTION_GET_LIST = 0x01;
+    // Completed (1 byte) + Position (2 bytes)
+    private static final byte ACTION_SET_COMPLETED = 0x02;
+    // Version the watch has (4 bytes), answered with a delta
+    private static final byte ACTION_SYNC = 0x03;
+    // Completed (1 byte) + ID (4 bytes)
+    private static final byte ACTION_SET_COMPLETED_BY_ID = 0x04;
+
+    // Time to answer a sync before the phone is considered to only send JSON
+    private static final long SYNC_TIMEOUT = 3000;
+    // Whole lists asked for after bad answers before giving up until the next connection, waiting twice as long each time
+    private static final int MAX_RESYNCS = 3;
+    private static final long RESYNC_DELAY = 1000;
+
+    private static final String LIST_FILE = "reminders.bin";
+    private static final String TEMP_SUFFIX = ".tmp";
+
     private Context mContext;
     private ServiceUtils mServiceUtils;
     private RemindersCallback remindersCallback;
+    // Runs on the service handler thread
+    private final Handler mHandler;
 
     private PacketProcessor mPacketProcessor;
 
+    private final ReminderList mList;
+    private boolean mDeltasSupported;
+    private boolean mDeltasUnsupported;
+    private ScheduledTask mSyncTimeoutTask;
+    private ScheduledTask mResyncTask;
+    private int mResyncCount;
+
+    // Metrics
+    private int mSyncCount;
+    private long mBytesReceived;
+
 
     public ReminderServiceHandler(Context context, ServiceUtils serviceUtils) {
         this.mContext = context;
         this.mServiceUtils = serviceUtils;
+
+        mHandler = new Handler(serviceUtils.getLooper());
+        mList = loadList(context);
     }
 
 
     public void requestDataUpdate() {
-        Command reminderCommand = new Command(ALSConstants.SERVICE_UUID, ALSConstants.CHARACTERISTIC_REMINDERS_ACTION, new byte[] {
-                (byte) 0x01
-        });
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // What is known so far is shown while the phone answers
+                notifyUpdated();
 
-        mServiceUtils.addCommandToQueue(reminderCommand);
+                sync(mList.getVersion());
+            }
+        });
     }
 
-    public void setReminderCompleted(ReminderItem reminderItem) {
-        Command reminderCommand = new Command(ALSConstants.SERVICE_UUID, ALSConstants.CHARACTERISTIC_REMINDERS_ACTION, new byte[] {
-                (byte) 0x02,
-                (byte) (reminderItem.isCompleted() ? 0x01 : 0x00),
-                (byte) (reminderItem.getPosition() & 0xff),
-                (byte) ((reminderItem.getPosition() >> 8) & 0xff)
-        });
+    public void setReminderCompleted(final ReminderItem reminderItem) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mList.setCompleted(reminderItem.getId(), reminderItem.isCompleted());
+                saveList(mContext, mList);
 
-        mServiceUtils.addCommandToQueue(reminderCommand);
+                Command reminderCommand;
+
+                if (mList.isLegacy()) {
+                    reminderCommand = new Command(ALSConstants.SERVICE_UUID, ALSConstants.CHARACTERISTIC_REMINDERS_ACTION, new byte[] {
+                            ACTION_SET_COMPLETED,
+                            (byte) (reminderItem.isCompleted() ? 0x01 : 0x00),
+                            (byte) (reminderItem.getPosition() & 0xff),
+                            (byte) ((reminderItem.getPosition() >> 8) & 0xff)
+                    });
+                }
+                else {
+                    int id = reminderItem.getId();
+
+                    reminderCommand = new Command(ALSConstants.SERVICE_UUID, ALSConstants.CHARACTERISTIC_REMINDERS_ACTION, new byte[] {
+                            ACTION_SET_COMPLETED_BY_ID,
+                            (byte) (reminderItem.isCompleted() ? 0x01 : 0x00),
+                            (byte) (id & 0xff),
+                            (byte) ((id >> 8) & 0xff),
+                            (byte) ((id >> 16) & 0xff),
+                            (byte) ((id >> 24) & 0xff)
+                    });
+                }
+
+                reminderCommand.setPriority(Command.PRIORITY_USER_ACTION);
+
+                mServiceUtils.addCommandToQueue(reminderCommand);
+            }
+        });
     }
 
     public void setRemindersCallback(RemindersCallback remindersCallback) {
@@ -63,9 +137,21 @@ public class ReminderServiceHandler extends ServiceHandler {
     }
 
 
+    @Override
+    public void close() {
+        Log.i(LOG_TAG, mSyncCount + " syncs, " + mBytesReceived + " bytes received");
+
+        cancelSyncTimeoutTask();
+        cancelResyncTask();
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
     @Override
     public void reset() {
         mPacketProcessor = null;
+
+        cancelResyncTask();
+        mResyncCount = 0;
     }
 
     @Override
@@ -83,15 +169,7 @@ public class ReminderServiceHandler extends ServiceHandler {
     }
 
     @Override
-    public boolean canHandleCharacteristic(BluetoothGattCharacteristic characteristic) {
-        String characteristicUUID = characteristic.getUuid().toString().toLowerCase();
-        return characteristicUUID.equals(ALSConstants.CHARACTERISTIC_REMINDERS_DATA);
-    }
-
-    @Override
-    public void handleCharacteristic(BluetoothGattCharacteristic characteristic) {
-        byte[] packet = characteristic.getValue();
-
+    public void handleCharacteristic(UUID characteristicUUID, byte[] packet) {
         if (mPacketProcessor == null) {
             mPacketProcessor = new PacketProcessor(packet);
 
@@ -104,18 +182,212 @@ public class ReminderServiceHandler extends ServiceHandler {
         }
 
         if (mPacketProcessor != null && mPacketProcessor.isFinished()) {
-            String remindersData = mPacketProcessor.getStringValue();
+            PacketProcessor packetProcessor = mPacketProcessor;
+            mPacketProcessor = null;
+
+            if (packetProcessor.getProcessedLength() > 0) {
+                onDataReceived(packetProcessor);
+            }
+        }
+    }
+
+    /**
+     * Reads the list saved on the watch, it does I/O
+     */
+    public static ReminderList loadList(Context context) {
+        ReminderList list = new ReminderList();
+        File file = new File(context.getFilesDir(), LIST_FILE);
 
-            if (remindersData != null) {
-                SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(mContext);
-                sp.edit().putString(Constants.SPK_REMINDERS_DATA, remindersData).apply();
+        try {
+            if (file.exists()) {
+                byte[] data = new byte[(int) file.length()];
+                FileInputStream input = new FileInputStream(file);
 
-                if (remindersCallback != null) {
-                    remindersCallback.onRemindersUpdated(remindersData);
+                try {
+                    int length = 0;
+                    int read;
+                    while (length < data.length && (read = input.read(data, length, data.length - length)) > 0) {
+                        length += read;
+                    }
+
+                    list.applyDelta(data, length);
+                }
+                finally {
+                    input.close();
                 }
             }
+            else {
+                // Saved by older versions
+                SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+                String remindersData = sp.getString(Constants.SPK_REMINDERS_DATA, null);
 
-            mPacketProcessor = null;
+                if (remindersData != null) {
+                    list.applyJson(remindersData);
+                }
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+
+            list = new ReminderList();
+        }
+
+        return list;
+    }
+
+    private static void saveList(Context context, ReminderList list) {
+        File file = new File(context.getFilesDir(), LIST_FILE);
+        File tempFile = new File(context.getFilesDir(), LIST_FILE + TEMP_SUFFIX);
+
+        try {
+            FileOutputStream output = new FileOutputStream(tempFile);
+
+            try {
+                output.write(list.encode());
+            }
+            finally {
+                output.close();
+            }
+
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Couldn't replace " + file);
+            }
+
+            SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+            if (sp.contains(Constants.SPK_REMINDERS_DATA)) {
+                sp.edit().remove(Constants.SPK_REMINDERS_DATA).apply();
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    private void sync(int version) {
+        Command reminderCommand;
+
+        if (mDeltasUnsupported) {
+            reminderCommand = new Command(ALSConstants.SERVICE_UUID, ALSConstants.CHARACTERISTIC_REMINDERS_ACTION, new byte[] {
+                    ACTION_GET_LIST
+            });
+        }
+        else {
+            reminderCommand = new Command(ALSConstants.SERVICE_UUID, ALSConstants.CHARACTERISTIC_REMINDERS_ACTION, new byte[] {
+                    ACTION_SYNC,
+                    (byte) (version & 0xff),
+                    (byte) ((version >> 8) & 0xff),
+                    (byte) ((version >> 16) & 0xff),
+                    (byte) ((version >> 24) & 0xff)
+            });
+
+            if (!mDeltasSupported) {
+                scheduleSyncTimeoutTask();
+            }
+        }
+
+        mServiceUtils.addCommandToQueue(reminderCommand);
+    }
+
+    private void onDataReceived(PacketProcessor packetProcessor) {
+        byte[] data = packetProcessor.getData();
+        int length = packetProcessor.getProcessedLength();
+
+        mSyncCount++;
+        mBytesReceived += length;
+
+        try {
+            if (data[0] == ReminderList.FORMAT_DELTA) {
+                mDeltasSupported = true;
+                cancelSyncTimeoutTask();
+
+                if (!mList.applyDelta(data, length)) {
+                    Log.i(LOG_TAG, "Delta for another version, asking for the whole list");
+                    resync();
+
+                    return;
+                }
+            }
+            else {
+                mList.applyJson(packetProcessor.getStringValue());
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+
+            resync();
+            return;
+        }
+
+        mResyncCount = 0;
+
+        Log.d(LOG_TAG, "Reminders version " + mList.getVersion() + ", " + mList.size() + " items from " + length + " bytes");
+
+        saveList(mContext, mList);
+        notifyUpdated();
+    }
+
+    private void resync() {
+        if (mResyncCount >= MAX_RESYNCS) {
+            Log.w(LOG_TAG, "Giving up on the reminders after " + mResyncCount + " bad answers");
+            return;
+        }
+
+        long delay = RESYNC_DELAY << mResyncCount;
+        mResyncCount++;
+
+        if (mResyncTask == null) {
+            mResyncTask = new ScheduledTask(delay, mServiceUtils.getLooper(), new Runnable() {
+                @Override
+                public void run() {
+                    sync(0);
+                }
+            });
+        }
+        else {
+            mResyncTask.cancel();
+            mResyncTask.setDelay(delay);
+        }
+
+        mResyncTask.schedule();
+    }
+
+    private void notifyUpdated() {
+        RemindersCallback remindersCallback = this.remindersCallback;
+
+        if (remindersCallback != null && (mList.size() > 0 || mList.getTitle() != null)) {
+            remindersCallback.onRemindersUpdated(mList.getTitle(), mList.getItems());
+        }
+    }
+
+    private void scheduleSyncTimeoutTask() {
+        if (mSyncTimeoutTask == null) {
+            mSyncTimeoutTask = new ScheduledTask(SYNC_TIMEOUT, mServiceUtils.getLooper(), new Runnable() {
+                @Override
+                public void run() {
+                    Log.i(LOG_TAG, "No delta received, asking for the whole list as JSON");
+
+                    mDeltasUnsupported = true;
+                    sync(0);
+                }
+            });
+        }
+        else {
+            mSyncTimeoutTask.cancel();
+        }
+
+        mSyncTimeoutTask.schedule();
+    }
+
+    private void cancelSyncTimeoutTask() {
+        if (mSyncTimeoutTask != null) {
+            mSyncTimeoutTask.cancel();
+        }
+    }
+
+    private void cancelResyncTask() {
+        if (mResyncTask != null) {
+            mResyncTask.cancel();
         }
     }
 
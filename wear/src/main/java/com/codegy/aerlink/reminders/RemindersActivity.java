@@ -1,20 +1,15 @@
 package com.codegy.aerlink.reminders;
 
-import android.content.SharedPreferences;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
 import android.support.wearable.view.WatchViewStub;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.CheckBox;
 import android.widget.ListView;
 import android.widget.TextView;
-import com.codegy.aerlink.Constants;
 import com.codegy.aerlink.R;
 import com.codegy.aerlink.utils.AerlinkActivity;
-import org.json.JSONArray;
 
-import java.util.ArrayList;
 import java.util.List;
 
 public class RemindersActivity extends AerlinkActivity implements ReminderServiceHandler.RemindersCallback, AdapterView.OnItemClickListener {
@@ -23,6 +18,8 @@ public class RemindersActivity extends AerlinkActivity implements ReminderServic
 
     private TextView mTitleTextView;
     private ListView mListView;
+    // Set once the list from the service is shown, the saved one is not shown after that
+    private boolean mUpdated;
 
 
     @Override
@@ -62,15 +59,27 @@ public class RemindersActivity extends AerlinkActivity implements ReminderServic
                     }
                 });
 
-                SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(RemindersActivity.this);
-                String remindersData = sp.getString(Constants.SPK_REMINDERS_DATA, null);
-                if (remindersData != null) {
-                    onRemindersUpdated(remindersData);
+                if (!mUpdated) {
+                    loadSavedList();
                 }
             }
         });
     }
 
+    private void loadSavedList() {
+        // Reading and decoding it doesn't belong on the UI thread
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ReminderList list = ReminderServiceHandler.loadList(RemindersActivity.this);
+
+                if (list.size() > 0) {
+                    showReminders(list.getTitle(), list.getItems(), false);
+                }
+            }
+        }).start();
+    }
+
     @Override
     public void tryToConnect() {
         if (getService() != null) {
@@ -101,35 +110,23 @@ public class RemindersActivity extends AerlinkActivity implements ReminderServic
     }
 
     @Override
-    public void onRemindersUpdated(final String remindersData) {
+    public void onRemindersUpdated(String title, List<ReminderItem> items) {
+        showReminders(title, items, true);
+    }
+
+    private void showReminders(final String title, final List<ReminderItem> items, final boolean fromService) {
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                try {
-                    JSONArray jsonItems = new JSONArray(remindersData);
-                    String title = jsonItems.get(0).toString();
-
-                    mTitleTextView.setText(title);
-
-                    List<ReminderItem> items = new ArrayList<>(jsonItems.length());
-
-                    int uncompleted = 0;
-                    for (int i = 1; i < jsonItems.length(); i++) {
-                        ReminderItem item = new ReminderItem(jsonItems.get(i).toString(), i - 1);
+                if (mListView == null || (!fromService && mUpdated)) {
+                    return;
+                }
 
-                        if (item.isCompleted()) {
-                            items.add(item);
-                        }
-                        else {
-                            items.add(uncompleted, item);
-                            uncompleted++;
-                        }
-                    }
+                mTitleTextView.setText(title);
+                ((ReminderListAdapter) mListView.getAdapter()).refresh(items);
 
-                    ((ReminderListAdapter) mListView.getAdapter()).refresh(items);
-                }
-                catch (Exception e) {
-                    e.printStackTrace();
+                if (fromService) {
+                    mUpdated = true;
                 }
             }
         });
@@ -0,0 +1,104 @@
+package com.codegy.aerlink.utils;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * Backgrounds and icons for the cards, decoded or filled once and shared by every notification.
+ *
+ * Keyed by resource id or by solid color. The Bitmaps are handed to notifications,
+ * so they are never modified or recycled, evicted ones are left to the garbage collector.
+ */
+public class BitmapCache {
+
+    private static final String LOG_TAG = BitmapCache.class.getSimpleName();
+
+    // Size in bytes, the connection background alone is 900x600 ARGB, about 2 MB
+    private static final int MAX_SIZE = 4 * 1024 * 1024;
+    // Solid colors are keyed with the color in the lower 32 bits, resources have this bit set on top
+    private static final long RESOURCE_KEY = 1L << 32;
+
+
+    private static final LruCache<Long, Bitmap> sBitmaps = new LruCache<Long, Bitmap>(MAX_SIZE) {
+        @Override
+        protected int sizeOf(Long key, Bitmap value) {
+            return value.getByteCount();
+        }
+    };
+
+
+    /**
+     * @return the decoded drawable, null if it couldn't be decoded
+     */
+    public static Bitmap getResource(Context context, int resId) {
+        Long key = RESOURCE_KEY | resId;
+        Bitmap bitmap = sBitmaps.get(key);
+
+        if (bitmap == null) {
+            try {
+                bitmap = BitmapFactory.decodeResource(context.getResources(), resId);
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+
+            if (bitmap != null) {
+                sBitmaps.put(key, bitmap);
+            }
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * @return a 1x1 Bitmap filled with the color, 0 for a transparent one
+     */
+    public static Bitmap getSolidColor(int color) {
+        Long key = color & 0xffffffffL;
+        Bitmap bitmap = sBitmaps.get(key);
+
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+            bitmap.eraseColor(color);
+
+            sBitmaps.put(key, bitmap);
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * Decodes ahead of time what the first cards need, call it off the main thread
+     */
+    public static void prewarm(Context context, int[] resIds, int[] colors) {
+        for (int resId : resIds) {
+            getResource(context, resId);
+        }
+
+        for (int color : colors) {
+            getSolidColor(color);
+        }
+    }
+
+    /**
+     * @param level one of the ComponentCallbacks2 trim levels
+     */
+    public static void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            sBitmaps.evictAll();
+        }
+        else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            sBitmaps.trimToSize(MAX_SIZE / 2);
+        }
+        else {
+            return;
+        }
+
+        Log.i(LOG_TAG, "Trimmed to " + sBitmaps.size() + " bytes, hits: " + sBitmaps.hitCount() + " misses: " + sBitmaps.missCount());
+    }
+
+}
@@ -0,0 +1,45 @@
+package com.codegy.aerlink.utils;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Finds the service handler of a characteristic with a single map lookup.
+ * UUIDs hash and compare their two longs, so routing a packet doesn't allocate anything.
+ */
+public class CharacteristicDispatcher {
+
+    private final HashMap<UUID, ServiceHandler> mHandlers = new HashMap<>();
+
+
+    public void clear() {
+        mHandlers.clear();
+    }
+
+    public void register(ServiceHandler serviceHandler) {
+        List<String> characteristics = serviceHandler.getCharacteristicsToHandle();
+
+        if (characteristics != null) {
+            for (String characteristic : characteristics) {
+                mHandlers.put(UUID.fromString(characteristic), serviceHandler);
+            }
+        }
+    }
+
+    /**
+     * @return false if no handler is registered for the characteristic
+     */
+    public boolean dispatch(UUID characteristicUUID, byte[] value) {
+        ServiceHandler serviceHandler = mHandlers.get(characteristicUUID);
+
+        if (serviceHandler == null) {
+            return false;
+        }
+
+        serviceHandler.handleCharacteristic(characteristicUUID, value);
+
+        return true;
+    }
+
+}
@@ -4,55 +4,89 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
-import java.math.BigInteger;
-
 /**
  * Created by Guiye on 20/5/15.
  */
 public class PacketProcessor {
 
-    private ByteArrayOutputStream processingData;
+    // Status (1 byte) + Length (2 bytes)
+    private static final int HEADER_LENGTH = 3;
+
+
+    // Allocated once with the length from the header, packets are copied straight into it
+    private byte[] processingData;
     private int status;
-    // The number of bytes left to process
-    private int bytesLeftToProcess;
+    // The number of bytes stored in processingData
+    private int processedLength;
+    // The number of packets received, lower when a bigger MTU is negotiated
+    private int packetCount;
 
     public PacketProcessor(byte[] packet) {
-        if (packet.length > 3) {
+        if (packet.length > HEADER_LENGTH) {
             status = packet[0];
 
             if (status == 0x01) {
-                byte[] byteLength = {packet[2], packet[1]};
-                BigInteger length = new BigInteger(byteLength);
-                bytesLeftToProcess = length.intValue();
+                // Length is little endian, the packet size depends on the MTU so it's not assumed
+                int length = (packet[1] & 0xff) | ((packet[2] & 0xff) << 8);
 
                 Log.d("PacketProcessor", "DATA length " + length);
 
-                processingData = new ByteArrayOutputStream();
-                processingData.write(packet, 3, packet.length - 3);
+                processingData = new byte[length];
+                packetCount = 0;
 
-                bytesLeftToProcess -= (packet.length - 3);
+                write(packet, HEADER_LENGTH);
             }
         }
     }
 
     public void process(byte[] packet) {
-        processingData.write(packet, 0, packet.length);
-        bytesLeftToProcess -= packet.length;
+        write(packet, 0);
+    }
+
+    private void write(byte[] packet, int offset) {
+        // Anything past the announced length is ignored
+        int bytesToCopy = Math.min(packet.length - offset, processingData.length - processedLength);
+
+        if (bytesToCopy > 0) {
+            System.arraycopy(packet, offset, processingData, processedLength, bytesToCopy);
+            processedLength += bytesToCopy;
+        }
+
+        packetCount++;
     }
 
     public int getStatus() {
         return status;
     }
 
+    public int getPacketCount() {
+        return packetCount;
+    }
+
     public boolean isFinished() {
-        return bytesLeftToProcess <= 0;
+        return processingData == null || processedLength >= processingData.length;
+    }
+
+    /**
+     * The buffer is shared, only the first getProcessedLength() bytes are valid
+     * and they won't change once written
+     */
+    public byte[] getData() {
+        return processingData;
+    }
+
+    public int getProcessedLength() {
+        return processedLength;
+    }
+
+    public int getLength() {
+        return processingData != null ? processingData.length : 0;
     }
 
     public String getStringValue() {
         String value = null;
         try {
-            value = new String(processingData.toByteArray(), "UTF-8");
+            value = new String(processingData, 0, processedLength, "UTF-8");
         }
         catch (Exception e) {
             e.printStackTrace();
@@ -64,7 +98,7 @@ public class PacketProcessor {
     public Bitmap getBitmapValue() {
         Bitmap value = null;
         try {
-            value = BitmapFactory.decodeByteArray(processingData.toByteArray(), 0, processingData.toByteArray().length);
+            value = BitmapFactory.decodeByteArray(processingData, 0, processedLength);
         }
         catch (Exception e) {
             e.printStackTrace();
@@ -0,0 +1,81 @@
+package com.codegy.aerlink.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands the packets received on the GATT I/O thread to the thread the service handlers run on, without locks.
+ * Packets keep their order and a single posted runnable drains everything that arrived in the meantime.
+ */
+public class PacketQueue {
+
+    private static class Packet {
+        private final UUID characteristicUUID;
+        private final byte[] value;
+
+        private Packet(UUID characteristicUUID, byte[] value) {
+            this.characteristicUUID = characteristicUUID;
+            this.value = value;
+        }
+    }
+
+
+    private static final String LOG_TAG = PacketQueue.class.getSimpleName();
+
+
+    private final ConcurrentLinkedQueue<Packet> mPackets = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+    private final Handler mHandler;
+    private final CharacteristicDispatcher mDispatcher;
+
+
+    /**
+     * @param looper looper of the thread the packets are dispatched on
+     */
+    public PacketQueue(Looper looper, CharacteristicDispatcher dispatcher) {
+        this.mHandler = new Handler(looper);
+        this.mDispatcher = dispatcher;
+    }
+
+    /**
+     * Can be called from any thread
+     */
+    public void offer(UUID characteristicUUID, byte[] value) {
+        mPackets.offer(new Packet(characteristicUUID, value));
+
+        // Only the first packet of a burst posts, the rest are picked up by the same drain
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            mHandler.post(mDrainRunnable);
+        }
+    }
+
+    public void clear() {
+        mPackets.clear();
+    }
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // Cleared before draining, a packet offered from now on posts again
+            mDrainScheduled.set(false);
+
+            Packet packet;
+            while ((packet = mPackets.poll()) != null) {
+                try {
+                    if (!mDispatcher.dispatch(packet.characteristicUUID, packet.value)) {
+                        Log.w(LOG_TAG, "Unhandled characteristic: " + packet.characteristicUUID);
+                    }
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    };
+
+}
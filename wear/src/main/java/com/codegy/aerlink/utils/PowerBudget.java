@@ -0,0 +1,540 @@
+package com.codegy.aerlink.utils;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.os.Vibrator;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Single owner of the screen wake lock and the vibrator.
+ *
+ * Screen wakes and vibrations are rate limited with token buckets, requests that arrive while the
+ * screen is already on or the call is ringing are merged into it instead of starting their own.
+ * Calls and the camera remote hold the screen for as long as they are open and are never limited.
+ * Time held and requests granted, merged and denied are accounted per reason.
+ */
+public class PowerBudget {
+
+    public enum Reason {
+        Notification,
+        Call,
+        Camera,
+        Battery,
+        Connection
+    }
+
+    /**
+     * Counters of a reason, a snapshot when returned by getAccounts()
+     */
+    public static class Account {
+        private final Reason reason;
+        private int wakeCount;
+        private int mergedWakeCount;
+        private int deniedWakeCount;
+        private long screenTime;
+        private int vibrationCount;
+        private int mergedVibrationCount;
+        private int deniedVibrationCount;
+        private long vibrationTime;
+
+        private final Interval screen = new Interval();
+
+        private Account(Reason reason) {
+            this.reason = reason;
+        }
+
+        private Account(Account account, long now) {
+            this.reason = account.reason;
+            this.wakeCount = account.wakeCount;
+            this.mergedWakeCount = account.mergedWakeCount;
+            this.deniedWakeCount = account.deniedWakeCount;
+            this.screenTime = account.screen.getTotal(now);
+            this.vibrationCount = account.vibrationCount;
+            this.mergedVibrationCount = account.mergedVibrationCount;
+            this.deniedVibrationCount = account.deniedVibrationCount;
+            this.vibrationTime = account.vibrationTime;
+        }
+
+        public Reason getReason() {
+            return reason;
+        }
+
+        public int getWakeCount() {
+            return wakeCount;
+        }
+
+        public int getMergedWakeCount() {
+            return mergedWakeCount;
+        }
+
+        public int getDeniedWakeCount() {
+            return deniedWakeCount;
+        }
+
+        /**
+         * @return milliseconds the screen was held for this reason, overlapping requests count once
+         */
+        public long getScreenTime() {
+            return screenTime;
+        }
+
+        public int getVibrationCount() {
+            return vibrationCount;
+        }
+
+        public int getMergedVibrationCount() {
+            return mergedVibrationCount;
+        }
+
+        public int getDeniedVibrationCount() {
+            return deniedVibrationCount;
+        }
+
+        /**
+         * @return milliseconds the motor was on for this reason
+         */
+        public long getVibrationTime() {
+            return vibrationTime;
+        }
+    }
+
+    // A span of time that can be extended while it lasts, closed spans are added to the total
+    private static class Interval {
+        private long since = -1;
+        private long until;
+        private long total;
+
+        private void hold(long now, long until) {
+            settle(now);
+
+            if (since == -1) {
+                since = now;
+            }
+
+            this.until = until;
+        }
+
+        private void release(long now) {
+            if (since != -1 && until > now) {
+                until = now;
+            }
+
+            settle(now);
+        }
+
+        private boolean isHeld(long now) {
+            settle(now);
+
+            return since != -1;
+        }
+
+        private long getTotal(long now) {
+            settle(now);
+
+            return total + (since != -1 ? now - since : 0);
+        }
+
+        private void settle(long now) {
+            if (since != -1 && until <= now) {
+                total += until - since;
+                since = -1;
+            }
+        }
+    }
+
+    /**
+     * The decisions and accounting of PowerBudget without the wake lock and the vibrator,
+     * time is passed in by the caller. Not thread safe.
+     */
+    static class Ledger {
+        private final TokenBucket mWakeBucket;
+        private final TokenBucket mVibrationBucket;
+
+        private final Account[] mAccounts;
+        // When the wake lock was actually held, less than the sum of the reasons if requests were merged
+        private final Interval mLock = new Interval();
+
+        // Reason of the repeating vibration, null if there is none
+        private Reason mRingReason;
+        private long[] mRingPattern;
+        private long mRingSince;
+        // Until when the last single vibration is running
+        private long mVibratingUntil;
+
+
+        Ledger(long now) {
+            mWakeBucket = new TokenBucket(WAKE_CAPACITY, WAKE_REFILL_INTERVAL, now);
+            mVibrationBucket = new TokenBucket(VIBRATION_CAPACITY, VIBRATION_REFILL_INTERVAL, now);
+
+            Reason[] reasons = Reason.values();
+            mAccounts = new Account[reasons.length];
+            for (Reason reason : reasons) {
+                mAccounts[reason.ordinal()] = new Account(reason);
+            }
+        }
+
+        /**
+         * @return false if the budget was exhausted
+         */
+        boolean wakeScreen(Reason reason, long duration, long now) {
+            Account account = mAccounts[reason.ordinal()];
+
+            if (mLock.isHeld(now)) {
+                account.mergedWakeCount++;
+
+                long until = Math.min(now + duration, mLock.since + MAX_MERGED_HOLD);
+                if (account.screen.isHeld(now)) {
+                    until = Math.max(until, account.screen.until);
+                }
+
+                if (until > now) {
+                    account.screen.hold(now, until);
+                    updateLock(now);
+                }
+
+                return true;
+            }
+
+            if (!mWakeBucket.tryAcquire(now)) {
+                account.deniedWakeCount++;
+                return false;
+            }
+
+            account.wakeCount++;
+            account.screen.hold(now, now + duration);
+            updateLock(now);
+
+            return true;
+        }
+
+        void acquireScreen(Reason reason, long now) {
+            Account account = mAccounts[reason.ordinal()];
+
+            if (!account.screen.isHeld(now) || account.screen.until != INDEFINITELY) {
+                account.wakeCount++;
+            }
+
+            account.screen.hold(now, INDEFINITELY);
+            updateLock(now);
+        }
+
+        void releaseScreen(Reason reason, long now) {
+            mAccounts[reason.ordinal()].screen.release(now);
+            updateLock(now);
+        }
+
+        /**
+         * @return until when the wake lock has to be held, INDEFINITELY for ever, now or before to release it
+         */
+        long getLockUntil(long now) {
+            return mLock.isHeld(now) ? mLock.until : now;
+        }
+
+        /**
+         * @return false if it was merged into a running vibration or the budget was exhausted
+         */
+        boolean requestVibration(Reason reason, long[] pattern, long now) {
+            Account account = mAccounts[reason.ordinal()];
+
+            if (mRingReason != null || mVibratingUntil > now) {
+                account.mergedVibrationCount++;
+                return false;
+            }
+
+            if (!mVibrationBucket.tryAcquire(now)) {
+                account.deniedVibrationCount++;
+                return false;
+            }
+
+            account.vibrationCount++;
+            account.vibrationTime += getOnTime(pattern);
+            mVibratingUntil = now + getLength(pattern);
+
+            return true;
+        }
+
+        void startVibration(Reason reason, long[] pattern, long now) {
+            settleRing(now);
+
+            mRingReason = reason;
+            mRingPattern = pattern;
+            mRingSince = now;
+            mAccounts[reason.ordinal()].vibrationCount++;
+        }
+
+        /**
+         * @return false if the repeating vibration is not the one of the reason
+         */
+        boolean stopVibration(Reason reason, long now) {
+            if (mRingReason != reason) {
+                return false;
+            }
+
+            settleRing(now);
+
+            return true;
+        }
+
+        Account[] getAccounts(long now) {
+            Account[] accounts = new Account[mAccounts.length];
+
+            for (int i = 0; i < mAccounts.length; i++) {
+                accounts[i] = new Account(mAccounts[i], now);
+            }
+
+            // The ring counts until now
+            if (mRingReason != null) {
+                accounts[mRingReason.ordinal()].vibrationTime += getRingOnTime(now);
+            }
+
+            return accounts;
+        }
+
+        long getScreenTime(long now) {
+            return mLock.getTotal(now);
+        }
+
+        // Holds the lock until the last reason ends
+        private void updateLock(long now) {
+            long until = now;
+
+            for (Account account : mAccounts) {
+                if (account.screen.isHeld(now)) {
+                    until = Math.max(until, account.screen.until);
+                }
+            }
+
+            if (until > now) {
+                mLock.hold(now, until);
+            }
+            else {
+                mLock.release(now);
+            }
+        }
+
+        private void settleRing(long now) {
+            if (mRingReason != null) {
+                mAccounts[mRingReason.ordinal()].vibrationTime += getRingOnTime(now);
+                mRingReason = null;
+                mRingPattern = null;
+            }
+        }
+
+        private long getRingOnTime(long now) {
+            long length = getLength(mRingPattern);
+
+            if (length == 0) {
+                return 0;
+            }
+
+            long elapsed = now - mRingSince;
+            long onTime = (elapsed / length) * getOnTime(mRingPattern);
+
+            // Part of the last repetition
+            long left = elapsed % length;
+            for (int i = 0; i < mRingPattern.length && left > 0; i++) {
+                if (i % 2 == 1) {
+                    onTime += Math.min(left, mRingPattern[i]);
+                }
+
+                left -= mRingPattern[i];
+            }
+
+            return onTime;
+        }
+    }
+
+    private static final String LOG_TAG = PowerBudget.class.getSimpleName();
+
+    // Until held for a call or the camera
+    static final long INDEFINITELY = Long.MAX_VALUE;
+    // Merged wakes keep the screen on for this long at most since it turned on
+    static final long MAX_MERGED_HOLD = 3000;
+
+    static final int WAKE_CAPACITY = 3;
+    static final long WAKE_REFILL_INTERVAL = 20000;
+    static final int VIBRATION_CAPACITY = 4;
+    static final long VIBRATION_REFILL_INTERVAL = 15000;
+
+    private static PowerBudget sInstance;
+
+
+    private final PowerManager.WakeLock mWakeLock;
+    private final Vibrator mVibrator;
+    private final Ledger mLedger;
+
+
+    public static synchronized PowerBudget getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PowerBudget(context.getApplicationContext());
+        }
+
+        return sInstance;
+    }
+
+    private PowerBudget(Context context) {
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        // FULL_WAKE_LOCK adds nothing on a watch, a screen lock is still the only way a service can turn it on
+        mWakeLock = powerManager.newWakeLock((PowerManager.SCREEN_BRIGHT_WAKE_LOCK | PowerManager.ACQUIRE_CAUSES_WAKEUP), "Aerlink_TAG");
+        mWakeLock.setReferenceCounted(false);
+
+        mVibrator = (Vibrator) context.getSystemService(Context.VIBRATOR_SERVICE);
+
+        mLedger = new Ledger(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Turns the screen on for a while, or keeps it on if it already is
+     *
+     * @return false if the budget was exhausted and the screen was left as it was
+     */
+    public synchronized boolean wakeScreen(Reason reason, long duration) {
+        long now = SystemClock.elapsedRealtime();
+
+        if (!mLedger.wakeScreen(reason, duration, now)) {
+            Log.d(LOG_TAG, "Screen wake denied: " + reason);
+            return false;
+        }
+
+        Log.i(LOG_TAG, "Waking Screen: " + reason);
+        updateWakeLock(now);
+
+        return true;
+    }
+
+    /**
+     * Keeps the screen on until releaseScreen() is called for the same reason
+     */
+    public synchronized void acquireScreen(Reason reason) {
+        long now = SystemClock.elapsedRealtime();
+
+        mLedger.acquireScreen(reason, now);
+        updateWakeLock(now);
+    }
+
+    public synchronized void releaseScreen(Reason reason) {
+        long now = SystemClock.elapsedRealtime();
+
+        mLedger.releaseScreen(reason, now);
+        updateWakeLock(now);
+    }
+
+    /**
+     * Vibrates once with the pattern
+     *
+     * @return false if it was merged into a running vibration or the budget was exhausted
+     */
+    public synchronized boolean vibrate(Reason reason, long[] pattern) {
+        if (!requestVibration(reason, pattern)) {
+            return false;
+        }
+
+        if (mVibrator != null) {
+            mVibrator.vibrate(pattern, -1);
+        }
+
+        return true;
+    }
+
+    /**
+     * Takes from the budget a vibration the caller plays itself, like the one of a notification
+     *
+     * @return false if the caller shouldn't vibrate
+     */
+    public synchronized boolean requestVibration(Reason reason, long[] pattern) {
+        if (!mLedger.requestVibration(reason, pattern, SystemClock.elapsedRealtime())) {
+            Log.d(LOG_TAG, "Vibration merged or denied: " + reason);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Repeats the pattern until stopVibration() is called for the same reason, replacing any other vibration
+     */
+    public synchronized void startVibration(Reason reason, long[] pattern) {
+        mLedger.startVibration(reason, pattern, SystemClock.elapsedRealtime());
+
+        if (mVibrator != null) {
+            mVibrator.vibrate(pattern, 0);
+        }
+    }
+
+    public synchronized void stopVibration(Reason reason) {
+        if (mLedger.stopVibration(reason, SystemClock.elapsedRealtime()) && mVibrator != null) {
+            mVibrator.cancel();
+        }
+    }
+
+    /**
+     * @return a snapshot of the accounts, indexed by Reason.ordinal()
+     */
+    public synchronized Account[] getAccounts() {
+        return mLedger.getAccounts(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * @return milliseconds the wake lock was held, overlapping reasons count once
+     */
+    public synchronized long getScreenTime() {
+        return mLedger.getScreenTime(SystemClock.elapsedRealtime());
+    }
+
+    public String getDiagnostics() {
+        StringBuilder builder = new StringBuilder();
+
+        for (Account account : getAccounts()) {
+            builder.append(String.format(Locale.US, "%s: %d wakes (%d merged, %d denied) %.1fs on, %d vibrations (%d merged, %d denied) %.1fs on\n",
+                    account.reason,
+                    account.wakeCount, account.mergedWakeCount, account.deniedWakeCount, account.screenTime / 1000f,
+                    account.vibrationCount, account.mergedVibrationCount, account.deniedVibrationCount, account.vibrationTime / 1000f));
+        }
+
+        builder.append(String.format(Locale.US, "Screen held %.1fs", getScreenTime() / 1000f));
+
+        return builder.toString();
+    }
+
+    private void updateWakeLock(long now) {
+        long until = mLedger.getLockUntil(now);
+
+        if (until > now) {
+            // Not reference counted, acquiring again only moves the timeout
+            if (until == INDEFINITELY) {
+                mWakeLock.acquire();
+            }
+            else {
+                mWakeLock.acquire(until - now);
+            }
+        }
+        else if (mWakeLock.isHeld()) {
+            mWakeLock.release();
+        }
+    }
+
+    // Patterns alternate off and on times, starting with off
+    private static long getOnTime(long[] pattern) {
+        long onTime = 0;
+
+        for (int i = 1; i < pattern.length; i += 2) {
+            onTime += pattern[i];
+        }
+
+        return onTime;
+    }
+
+    private static long getLength(long[] pattern) {
+        long length = 0;
+
+        for (long time : pattern) {
+            length += time;
+        }
+
+        return length;
+    }
+
+}
@@ -5,38 +5,90 @@ import android.os.Looper;
 
 /**
  * Created by Guiye on 18/5/15.
+ *
+ * Runs a Runnable on a looper after a delay, using the shared TimerService.
+ *
+ * The task is a reusable token: scheduling it again moves it, and once cancelled it doesn't run
+ * even if its timer already expired and is waiting on the looper.
  */
 public class ScheduledTask {
 
     private long delay;
-    private Handler mHandler;
-    private Runnable mRunnable;
+    // -1 lets the wheel pick it from the delay
+    private long mTolerance = -1;
+
+    private final TimerService mTimerService;
+    private final Handler mHandler;
+    private final Runnable mRunnable;
+    private final TimerWheel.Timer mTimer;
+
+    // Guarded by the timer service
+    private int mGeneration;
+    private int mExpiredGeneration;
+    private boolean mPending;
+
 
     public ScheduledTask(long delay, Looper looper, Runnable runnable) {
         this.delay = delay;
         this.mRunnable = runnable;
 
-        mHandler = new Handler(looper);
+        mTimerService = TimerService.getInstance();
+        mHandler = mTimerService.getHandler(looper);
+        mTimer = new TimerWheel.Timer(mExpiredRunnable);
     }
 
     public void schedule() {
-        mHandler.postDelayed(mRunnable, delay);
-        /*
-        Thread thread = new Thread() {
-            public void run() {
-                mHandler.postDelayed(mRunnable, mDelay);
-            }
-        };
-        thread.start();
-        */
+        synchronized (mTimerService) {
+            mGeneration++;
+            mPending = true;
+
+            mTimerService.schedule(mTimer, delay, mTolerance);
+        }
     }
 
     public void cancel() {
-        mHandler.removeCallbacksAndMessages(null);
+        synchronized (mTimerService) {
+            mGeneration++;
+            mPending = false;
+
+            mTimerService.cancel(mTimer);
+        }
     }
 
     public void setDelay(long delay) {
         this.delay = delay;
     }
 
+    /**
+     * @param tolerance how late the task can run so it shares a wake up with others, 0 for as soon as possible
+     */
+    public void setTolerance(long tolerance) {
+        this.mTolerance = tolerance;
+    }
+
+    // Runs on the timer thread with the timer service locked
+    private final Runnable mExpiredRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mExpiredGeneration = mGeneration;
+            mHandler.post(mRunRunnable);
+        }
+    };
+
+    private final Runnable mRunRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mTimerService) {
+                // Cancelled or scheduled again after it expired
+                if (!mPending || mExpiredGeneration != mGeneration) {
+                    return;
+                }
+
+                mPending = false;
+            }
+
+            mRunnable.run();
+        }
+    };
+
 }
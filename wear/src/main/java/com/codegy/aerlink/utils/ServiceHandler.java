@@ -1,7 +1,5 @@
 package com.codegy.aerlink.utils;
 
-import android.bluetooth.BluetoothGattCharacteristic;
-
 import java.util.List;
 import java.util.UUID;
 
@@ -14,6 +12,7 @@ public abstract class ServiceHandler {
     public void reset() {}
     public UUID getServiceUUID() { return null; }
     public List<String> getCharacteristicsToSubscribe() { return null; }
-    public boolean canHandleCharacteristic(BluetoothGattCharacteristic characteristic) { return false; }
-    public void handleCharacteristic(BluetoothGattCharacteristic characteristic) {}
+    // Characteristics routed to handleCharacteristic, notifications and reads
+    public List<String> getCharacteristicsToHandle() { return getCharacteristicsToSubscribe(); }
+    public void handleCharacteristic(UUID characteristicUUID, byte[] value) {}
 }
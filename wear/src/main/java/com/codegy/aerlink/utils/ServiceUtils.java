@@ -1,6 +1,7 @@
 package com.codegy.aerlink.utils;
 
 import android.app.Notification;
+import android.os.Looper;
 import com.codegy.aerlink.connection.Command;
 
 /**
@@ -9,10 +10,16 @@ import com.codegy.aerlink.connection.Command;
 public interface ServiceUtils {
 
     void addCommandToQueue(Command command);
+    void removeCommandFromQueue(Command command);
     void notify(String tag, int id, Notification notification);
     void cancelNotification(String tag, int id);
-    void vibrate(long[] pattern, int repeat);
-    void wakeScreen();
+    // Screen wakes and vibrations go through the power budget, false if it didn't allow them
+    boolean vibrate(PowerBudget.Reason reason, long[] pattern);
+    boolean requestVibration(PowerBudget.Reason reason, long[] pattern);
+    boolean wakeScreen(PowerBudget.Reason reason);
     boolean getColorBackgrounds();
+    int getMtu();
+    // Looper of the thread the service handlers run on, their timers and receivers use it
+    Looper getLooper();
 
 }
@@ -0,0 +1,123 @@
+package com.codegy.aerlink.utils;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Process wide timers on a single TimerWheel, driven by one thread that only wakes up when the next timer is due.
+ *
+ * Expired timers are posted to the looper they belong to with a Handler shared by every timer on that looper.
+ */
+public class TimerService {
+
+    private static final String LOG_TAG = TimerService.class.getSimpleName();
+
+    private static TimerService sInstance;
+
+
+    private final Handler mHandler;
+    // Guarded by this
+    private final TimerWheel mWheel;
+    private final HashMap<Looper, Handler> mLooperHandlers = new HashMap<>();
+    private long mWakeUpTime = -1;
+
+
+    public static synchronized TimerService getInstance() {
+        if (sInstance == null) {
+            sInstance = new TimerService();
+        }
+
+        return sInstance;
+    }
+
+    private TimerService() {
+        HandlerThread thread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_FOREGROUND);
+        thread.start();
+
+        mHandler = new Handler(thread.getLooper());
+        mWheel = new TimerWheel(SystemClock.uptimeMillis());
+    }
+
+    /**
+     * @param tolerance how late the timer can fire, -1 for the default of the wheel
+     */
+    public synchronized void schedule(TimerWheel.Timer timer, long delay, long tolerance) {
+        long now = SystemClock.uptimeMillis();
+
+        if (tolerance < 0) {
+            mWheel.schedule(timer, now, delay);
+        }
+        else {
+            mWheel.schedule(timer, now, delay, tolerance);
+        }
+
+        updateWakeUp();
+    }
+
+    public synchronized void cancel(TimerWheel.Timer timer) {
+        mWheel.cancel(timer);
+
+        if (mWheel.getCount() == 0 && mWakeUpTime != -1) {
+            mHandler.removeCallbacks(mWakeUpRunnable);
+            mWakeUpTime = -1;
+        }
+    }
+
+    public synchronized Handler getHandler(Looper looper) {
+        Handler handler = mLooperHandlers.get(looper);
+
+        if (handler == null) {
+            // Connections and services come and go with their threads, forget the ones that finished
+            Iterator<Map.Entry<Looper, Handler>> iterator = mLooperHandlers.entrySet().iterator();
+            while (iterator.hasNext()) {
+                if (!iterator.next().getKey().getThread().isAlive()) {
+                    iterator.remove();
+                }
+            }
+
+            handler = new Handler(looper);
+            mLooperHandlers.put(looper, handler);
+        }
+
+        return handler;
+    }
+
+    public synchronized long getExpiredCount() {
+        return mWheel.getExpiredCount();
+    }
+
+    public synchronized long getWakeUpCount() {
+        return mWheel.getTicksWithExpirations();
+    }
+
+    private void updateWakeUp() {
+        long wakeUpTime = mWheel.getNextWakeUpTime();
+
+        // Only moved when a timer is due earlier, otherwise the posted wake up handles it
+        if (wakeUpTime != -1 && (mWakeUpTime == -1 || wakeUpTime < mWakeUpTime)) {
+            mHandler.removeCallbacks(mWakeUpRunnable);
+            mHandler.postAtTime(mWakeUpRunnable, wakeUpTime);
+            mWakeUpTime = wakeUpTime;
+        }
+    }
+
+    private final Runnable mWakeUpRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (TimerService.this) {
+                mWakeUpTime = -1;
+
+                mWheel.advance(SystemClock.uptimeMillis());
+                updateWakeUp();
+            }
+        }
+    };
+
+}
@@ -0,0 +1,250 @@
+package com.codegy.aerlink.utils;
+
+/**
+ * Hierarchical timer wheel, schedule and cancel are O(1) and a timer doesn't allocate once created.
+ *
+ * Time is whatever clock the caller passes in milliseconds, so it can be driven by a virtual clock.
+ * There are four levels of 64 slots, the first one with a slot per tick and every other one with
+ * a slot per full turn of the level below, which is cascaded down when its turn comes.
+ * Each timer may fire up to its tolerance late, deadlines are rounded up so timers that end
+ * close to each other share a tick and wake up the driver once.
+ * Not thread safe.
+ */
+public class TimerWheel {
+
+    public static class Timer {
+        private final Runnable mRunnable;
+
+        private Timer mPrevious;
+        private Timer mNext;
+        private long mExpirationTick;
+
+        public Timer(Runnable runnable) {
+            this.mRunnable = runnable;
+        }
+
+        public boolean isScheduled() {
+            return mNext != null;
+        }
+
+        private void unlink() {
+            mPrevious.mNext = mNext;
+            mNext.mPrevious = mPrevious;
+            mPrevious = null;
+            mNext = null;
+        }
+    }
+
+    public static final long TICK = 10;
+
+    private static final int LEVELS = 4;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final long MAX_TICKS = (1L << (LEVELS * SLOT_BITS)) - 1;
+    // Used when no tolerance is given, like the timer slack of the kernel
+    private static final int DEFAULT_TOLERANCE_SHIFT = 4;
+    private static final long MAX_DEFAULT_TOLERANCE = 1000;
+
+
+    // Circular lists with a sentinel per slot, so a timer can unlink itself without knowing where it is
+    private final Timer[][] mSlots = new Timer[LEVELS][SLOTS];
+    // Next tick to be processed, every scheduled timer expires on it or later
+    private long mNextTick;
+    private int mCount;
+
+    private long mExpiredCount;
+    private long mTicksWithExpirations;
+
+
+    public TimerWheel(long now) {
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                Timer sentinel = new Timer(null);
+                sentinel.mPrevious = sentinel;
+                sentinel.mNext = sentinel;
+                mSlots[level][slot] = sentinel;
+            }
+        }
+
+        mNextTick = now / TICK;
+    }
+
+    /**
+     * Schedules the timer with the default tolerance, a sixteenth of the delay up to a second
+     */
+    public void schedule(Timer timer, long now, long delay) {
+        schedule(timer, now, delay, Math.min(Math.max(delay, 0) >> DEFAULT_TOLERANCE_SHIFT, MAX_DEFAULT_TOLERANCE));
+    }
+
+    /**
+     * Schedules the timer, or moves it if it was already scheduled
+     *
+     * @param tolerance how late it can fire, 0 to fire on the first tick after the delay
+     */
+    public void schedule(Timer timer, long now, long delay, long tolerance) {
+        cancel(timer);
+
+        long deadline = now + Math.max(delay, 0);
+        // Never early, the tick is rounded up
+        long tick = (deadline + TICK - 1) / TICK;
+
+        long toleranceTicks = tolerance / TICK;
+        if (toleranceTicks > 1) {
+            // Rounded up to the largest power of two that fits in the tolerance,
+            // timers with different delays and similar deadlines end up on the same tick
+            long granularity = Long.highestOneBit(toleranceTicks);
+            tick = (tick + granularity - 1) & -granularity;
+        }
+
+        timer.mExpirationTick = tick;
+        insert(timer);
+        mCount++;
+    }
+
+    public void cancel(Timer timer) {
+        if (timer.isScheduled()) {
+            timer.unlink();
+            mCount--;
+        }
+    }
+
+    /**
+     * Runs the timers that expired up to now, a timer can schedule itself or others again while it runs
+     *
+     * @return number of timers that fired
+     */
+    public int advance(long now) {
+        long lastTick = now / TICK;
+        int expired = 0;
+
+        while (mNextTick <= lastTick) {
+            if (mCount == 0) {
+                // Nothing to cascade or run, skip the rest of the ticks
+                mNextTick = lastTick + 1;
+                break;
+            }
+
+            int index = (int) (mNextTick & SLOT_MASK);
+
+            // Starting a new turn of a level, bring the timers of its next slot down
+            for (int level = 1; level < LEVELS && index == 0; level++) {
+                index = (int) ((mNextTick >>> (level * SLOT_BITS)) & SLOT_MASK);
+                cascade(mSlots[level][index]);
+            }
+
+            Timer sentinel = mSlots[0][(int) (mNextTick & SLOT_MASK)];
+            mNextTick++;
+
+            if (sentinel.mNext != sentinel) {
+                mTicksWithExpirations++;
+            }
+
+            while (sentinel.mNext != sentinel) {
+                Timer timer = sentinel.mNext;
+                timer.unlink();
+                mCount--;
+                expired++;
+                mExpiredCount++;
+
+                timer.mRunnable.run();
+            }
+        }
+
+        return expired;
+    }
+
+    /**
+     * @return when advance() has to be called next, -1 if there are no timers.
+     * Timers on the upper levels report when they are cascaded, which can be before they expire.
+     */
+    public long getNextWakeUpTime() {
+        if (mCount == 0) {
+            return -1;
+        }
+
+        long tick = mNextTick;
+        long nextTick = Long.MAX_VALUE;
+
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = level * SLOT_BITS;
+            long turn = tick >>> shift;
+
+            // One past the last slot is the current one again, a full turn of the level later
+            for (int i = 0; i <= SLOTS; i++) {
+                // The current slot of an upper level is cascaded on the first tick of its turn only
+                if (level > 0 && i == 0 && (tick & ((1L << shift) - 1)) != 0) {
+                    continue;
+                }
+
+                Timer sentinel = mSlots[level][(int) ((turn + i) & SLOT_MASK)];
+
+                if (sentinel.mNext != sentinel) {
+                    // Expiration for the first level, start of the turn that cascades the slot for the rest
+                    nextTick = Math.min(nextTick, (turn + i) << shift);
+                    break;
+                }
+            }
+        }
+
+        return nextTick * TICK;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public long getExpiredCount() {
+        return mExpiredCount;
+    }
+
+    /**
+     * Every tick that runs timers is a wake up, fewer than expired timers means they were coalesced
+     */
+    public long getTicksWithExpirations() {
+        return mTicksWithExpirations;
+    }
+
+    private void insert(Timer timer) {
+        long tick = Math.max(timer.mExpirationTick, mNextTick);
+        long ticksLeft = tick - mNextTick;
+
+        if (ticksLeft > MAX_TICKS) {
+            // Further than the wheel reaches, it waits on the last level and gets placed again then
+            tick = mNextTick + MAX_TICKS;
+            ticksLeft = MAX_TICKS;
+        }
+
+        int level = 0;
+        while (level < LEVELS - 1 && ticksLeft >= 1L << ((level + 1) * SLOT_BITS)) {
+            level++;
+        }
+
+        Timer sentinel = mSlots[level][(int) ((tick >>> (level * SLOT_BITS)) & SLOT_MASK)];
+
+        timer.mPrevious = sentinel.mPrevious;
+        timer.mNext = sentinel;
+        sentinel.mPrevious.mNext = timer;
+        sentinel.mPrevious = timer;
+    }
+
+    private void cascade(Timer sentinel) {
+        if (sentinel.mNext == sentinel) {
+            return;
+        }
+
+        Timer timer = sentinel.mNext;
+
+        // Detached first, insert may put a timer back on this same slot
+        sentinel.mPrevious.mNext = null;
+        sentinel.mPrevious = sentinel;
+        sentinel.mNext = sentinel;
+
+        while (timer != null) {
+            Timer next = timer.mNext;
+            insert(timer);
+            timer = next;
+        }
+    }
+
+}
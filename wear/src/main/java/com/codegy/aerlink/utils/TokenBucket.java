@@ -0,0 +1,61 @@
+package com.codegy.aerlink.utils;
+
+/**
+ * Allows bursts of up to capacity events, then one every refill interval.
+ *
+ * Time is passed in by the caller, not thread safe.
+ */
+public class TokenBucket {
+
+    private final int mCapacity;
+    private final long mRefillInterval;
+
+    private int mTokens;
+    private long mLastRefill;
+
+
+    public TokenBucket(int capacity, long refillInterval, long now) {
+        this.mCapacity = capacity;
+        this.mRefillInterval = refillInterval;
+
+        mTokens = capacity;
+        mLastRefill = now;
+    }
+
+    /**
+     * @return true if there was a token, which is taken
+     */
+    public boolean tryAcquire(long now) {
+        refill(now);
+
+        if (mTokens == 0) {
+            return false;
+        }
+
+        mTokens--;
+
+        return true;
+    }
+
+    public int getTokens(long now) {
+        refill(now);
+
+        return mTokens;
+    }
+
+    private void refill(long now) {
+        if (mTokens >= mCapacity) {
+            mLastRefill = now;
+            return;
+        }
+
+        long intervals = (now - mLastRefill) / mRefillInterval;
+
+        if (intervals > 0) {
+            mTokens = (int) Math.min(mCapacity, mTokens + intervals);
+            // Keeps the part of the interval that already passed
+            mLastRefill = mTokens == mCapacity ? now : mLastRefill + intervals * mRefillInterval;
+        }
+    }
+
+}
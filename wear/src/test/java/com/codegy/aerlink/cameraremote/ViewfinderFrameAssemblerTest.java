@@ -0,0 +1,232 @@
+package com.codegy.aerlink.cameraremote;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ViewfinderFrameAssemblerTest {
+
+    private static final int PACKET_LENGTH = 20;
+
+
+    private final List<Integer> mSequences = new ArrayList<>();
+    private final List<byte[]> mFrames = new ArrayList<>();
+    private final List<byte[]> mBuffers = new ArrayList<>();
+    private final List<Long> mFirstPacketTimes = new ArrayList<>();
+
+    private ViewfinderStats mStats;
+    private ViewfinderFrameAssembler mAssembler;
+
+
+    @Before
+    public void setUp() {
+        mStats = new ViewfinderStats();
+        mAssembler = new ViewfinderFrameAssembler(mStats, new ViewfinderFrameAssembler.FrameListener() {
+            @Override
+            public void onFrameAssembled(int sequence, byte[] data, int length, long firstPacketTime) {
+                mSequences.add(sequence);
+                mFrames.add(Arrays.copyOf(data, length));
+                mBuffers.add(data);
+                mFirstPacketTimes.add(firstPacketTime);
+            }
+        });
+    }
+
+    @Test
+    public void framesAreAssembledFromTheirPackets() {
+        byte[] frame = createFrame(100, 1);
+        List<byte[]> packets = packetize(7, frame);
+
+        for (int i = 0; i < packets.size(); i++) {
+            assertTrue(mAssembler.process(packets.get(i), 1000 + i));
+            assertEquals(i < packets.size() - 1, mAssembler.isAssembling());
+        }
+
+        assertEquals(Arrays.asList(7), mSequences);
+        assertArrayEquals(frame, mFrames.get(0));
+        assertEquals(1000, (long) mFirstPacketTimes.get(0));
+        assertEquals(1, mStats.getFramesReceived());
+        assertEquals(0, mStats.getFramesDropped());
+    }
+
+    @Test
+    public void frameThatFitsInTheHeaderPacket() {
+        byte[] frame = createFrame(10, 2);
+
+        assertTrue(mAssembler.process(packetize(1, frame).get(0), 0));
+
+        assertFalse(mAssembler.isAssembling());
+        assertArrayEquals(frame, mFrames.get(0));
+    }
+
+    @Test
+    public void pictureHeaderGivesUpThePartialFrame() {
+        List<byte[]> packets = packetize(1, createFrame(100, 1));
+        mAssembler.process(packets.get(0), 0);
+        mAssembler.process(packets.get(1), 0);
+
+        // The 0x01 header of a picture is not part of the frame, it's left to the caller
+        byte[] pictureHeader = { 0x01, 0x10, 0x00, 1, 2, 3 };
+        assertFalse(mAssembler.process(pictureHeader, 0));
+
+        assertFalse(mAssembler.isAssembling());
+        assertEquals(1, mStats.getFramesDropped());
+
+        // The rest of the lost frame is ignored
+        for (int i = 2; i < packets.size(); i++) {
+            assertTrue(mAssembler.process(packets.get(i), 0));
+        }
+
+        assertTrue(mFrames.isEmpty());
+        assertEquals(0, mStats.getFramesReceived());
+    }
+
+    @Test
+    public void nextHeaderResyncsAfterALostPacket() {
+        List<byte[]> lost = packetize(1, createFrame(100, 1));
+        byte[] frame = createFrame(60, 2);
+
+        mAssembler.process(lost.get(0), 0);
+        mAssembler.process(lost.get(1), 10);
+        // Third packet and the rest lost, the next frame comes
+        for (byte[] packet : packetize(2, frame)) {
+            assertTrue(mAssembler.process(packet, 50));
+        }
+
+        assertEquals(1, mStats.getFramesDropped());
+        assertEquals(Arrays.asList(2), mSequences);
+        assertArrayEquals(frame, mFrames.get(0));
+        assertEquals(50, (long) mFirstPacketTimes.get(0));
+    }
+
+    @Test
+    public void dataWithoutHeaderIsIgnored() {
+        List<byte[]> packets = packetize(1, createFrame(100, 1));
+
+        for (int i = 1; i < packets.size(); i++) {
+            assertTrue(mAssembler.process(packets.get(i), 0));
+        }
+
+        assertFalse(mAssembler.isAssembling());
+        assertTrue(mFrames.isEmpty());
+        assertEquals(0, mStats.getFramesDropped());
+    }
+
+    @Test
+    public void otherPacketsAreNotFrames() {
+        assertFalse(mAssembler.process(null, 0));
+        assertFalse(mAssembler.process(new byte[0], 0));
+        // Too short for a header
+        assertFalse(mAssembler.process(new byte[] { 0x02, 0, 0 }, 0));
+        assertFalse(mAssembler.process(new byte[] { 0x01, 4, 0, 1, 2, 3, 4 }, 0));
+    }
+
+    @Test
+    public void olderFramesAreDropped() {
+        deliver(10);
+        deliver(9);
+        // Same one again
+        deliver(10);
+        deliver(11);
+
+        assertEquals(Arrays.asList(10, 11), mSequences);
+        assertEquals(4, mStats.getFramesReceived());
+        assertEquals(2, mStats.getFramesDropped());
+    }
+
+    @Test
+    public void sequenceWrapsAround() {
+        deliver(0xfffe);
+        deliver(0xffff);
+        deliver(0);
+        deliver(1);
+        // Half the range behind
+        deliver(0x8001);
+
+        assertEquals(Arrays.asList(0xfffe, 0xffff, 0, 1), mSequences);
+        assertEquals(1, mStats.getFramesDropped());
+    }
+
+    @Test
+    public void resetDropsThePartialFrameAndForgetsTheSequence() {
+        deliver(100);
+
+        mAssembler.process(packetize(101, createFrame(100, 1)).get(0), 0);
+        mAssembler.reset();
+
+        assertFalse(mAssembler.isAssembling());
+        assertEquals(1, mStats.getFramesDropped());
+
+        // A new stream starts from any sequence
+        deliver(3);
+        assertEquals(Arrays.asList(100, 3), mSequences);
+    }
+
+    @Test
+    public void recycledBuffersAreReused() {
+        deliver(1);
+        byte[] buffer = mBuffers.get(0);
+        mAssembler.recycleBuffer(buffer);
+
+        deliver(2);
+        assertSame(buffer, mBuffers.get(1));
+
+        // Not reused when the frame doesn't fit
+        mAssembler.recycleBuffer(mBuffers.get(1));
+        for (byte[] packet : packetize(3, createFrame(buffer.length + 1, 3))) {
+            mAssembler.process(packet, 0);
+        }
+        assertNotSame(buffer, mBuffers.get(2));
+    }
+
+
+    private void deliver(int sequence) {
+        for (byte[] packet : packetize(sequence, createFrame(50, sequence))) {
+            mAssembler.process(packet, 0);
+        }
+    }
+
+    private static byte[] createFrame(int length, int seed) {
+        byte[] frame = new byte[length];
+
+        for (int i = 0; i < length; i++) {
+            frame[i] = (byte) (i * 7 + seed);
+        }
+
+        return frame;
+    }
+
+    /**
+     * Splits a frame the way the phone does, the header and then packets starting with 0x03
+     */
+    private static List<byte[]> packetize(int sequence, byte[] frame) {
+        List<byte[]> packets = new ArrayList<>();
+
+        int length = Math.min(frame.length, PACKET_LENGTH - 5);
+        byte[] header = new byte[5 + length];
+        header[0] = ViewfinderFrameAssembler.STATUS_FRAME;
+        header[1] = (byte) sequence;
+        header[2] = (byte) (sequence >> 8);
+        header[3] = (byte) frame.length;
+        header[4] = (byte) (frame.length >> 8);
+        System.arraycopy(frame, 0, header, 5, length);
+        packets.add(header);
+
+        for (int offset = length; offset < frame.length; offset += length) {
+            length = Math.min(frame.length - offset, PACKET_LENGTH - 1);
+
+            byte[] packet = new byte[1 + length];
+            packet[0] = ViewfinderFrameAssembler.STATUS_FRAME_DATA;
+            System.arraycopy(frame, offset, packet, 1, length);
+            packets.add(packet);
+        }
+
+        return packets;
+    }
+
+}
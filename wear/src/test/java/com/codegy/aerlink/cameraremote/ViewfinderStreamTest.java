@@ -0,0 +1,133 @@
+package com.codegy.aerlink.cameraremote;
+
+import com.codegy.aerlink.ALSConstants;
+import com.codegy.aerlink.connection.GattTransport;
+import com.codegy.aerlink.connection.simulation.SimulatedCentral;
+import com.codegy.aerlink.connection.simulation.SimulatedGattTransport;
+import com.codegy.aerlink.utils.ServiceHandler;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * The viewfinder stream at each MTU: the simulated phone offers 3000 byte frames at 30 fps with 4 ms
+ * between packets and skips a frame when the link is behind, the watch assembles them and counts
+ * each one as displayed when it's complete. Decoding is left out, it runs on its own thread.
+ */
+public class ViewfinderStreamTest {
+
+    private static final int FRAME_LENGTH = 3000;
+    private static final int FRAMES_PER_SECOND = 30;
+    private static final long DURATION = 6000;
+
+
+    private static class Result {
+        float mFramesPerSecond;
+        long mLatency;
+        int mFramesOffered;
+        int mFramesSent;
+    }
+
+
+    @Test
+    public void defaultMtu() {
+        Result result = stream(GattTransport.DEFAULT_MTU);
+
+        // 159 packets a frame, the phone skips most frames
+        assertEquals(1.5f, result.mFramesPerSecond, 0.01f);
+        // From the first packet of a frame to the last one
+        assertEquals(158 * 4, result.mLatency);
+        assertTrue(result.mFramesSent < result.mFramesOffered / 10);
+    }
+
+    @Test
+    public void mediumMtu() {
+        Result result = stream(185);
+
+        assertEquals(15f, result.mFramesPerSecond, 0.01f);
+        assertEquals(16 * 4, result.mLatency);
+    }
+
+    @Test
+    public void maxMtu() {
+        Result result = stream(GattTransport.MAX_MTU);
+
+        // Every frame, in 6 packets
+        assertEquals(30f, result.mFramesPerSecond, 0.01f);
+        assertEquals(5 * 4, result.mLatency);
+        assertEquals(result.mFramesOffered, result.mFramesSent);
+    }
+
+
+    private static Result stream(int maxMtu) {
+        final SimulatedGattTransport transport = new SimulatedGattTransport(1);
+        transport.addService(ALSConstants.SERVICE_UUID);
+        transport.setMaxMtu(maxMtu);
+        transport.setPacketInterval(4);
+
+        final Result result = new Result();
+        final ViewfinderStats stats = new ViewfinderStats();
+        final ViewfinderFrameAssembler[] assembler = new ViewfinderFrameAssembler[1];
+        assembler[0] = new ViewfinderFrameAssembler(stats, new ViewfinderFrameAssembler.FrameListener() {
+            @Override
+            public void onFrameAssembled(int sequence, byte[] data, int length, long firstPacketTime) {
+                stats.onFrameDisplayed(firstPacketTime, transport.getCurrentTime());
+                assembler[0].recycleBuffer(data);
+            }
+        });
+
+        SimulatedCentral central = new SimulatedCentral(transport, GattTransport.MAX_MTU);
+        central.addServiceHandler(new ServiceHandler() {
+            @Override
+            public UUID getServiceUUID() {
+                return ALSConstants.SERVICE_UUID;
+            }
+
+            @Override
+            public List<String> getCharacteristicsToSubscribe() {
+                return Arrays.asList(ALSConstants.CHARACTERISTIC_CAMERA_REMOTE_DATA);
+            }
+
+            @Override
+            public void handleCharacteristic(UUID characteristicUUID, byte[] value) {
+                assertTrue(assembler[0].process(value, transport.getCurrentTime()));
+            }
+        });
+
+        central.connect();
+        transport.runUntilIdle();
+        assertEquals(maxMtu, central.getMtu());
+
+        final byte[] frame = new byte[FRAME_LENGTH];
+
+        // Offered for longer than measured, so the window ends with the stream still running
+        for (int i = 0; i < (DURATION + 1000) * FRAMES_PER_SECOND / 1000; i++) {
+            final int sequence = i;
+
+            transport.schedule(i * 1000 / FRAMES_PER_SECOND, new Runnable() {
+                @Override
+                public void run() {
+                    if (transport.sendCameraFrame(ALSConstants.CAMERA_REMOTE_DATA_UUID, sequence, frame)) {
+                        result.mFramesSent++;
+                    }
+
+                    result.mFramesOffered++;
+                }
+            });
+        }
+
+        transport.advance(DURATION);
+
+        result.mFramesPerSecond = stats.getFramesPerSecond(transport.getCurrentTime());
+        result.mLatency = stats.getAverageLatency();
+
+        assertEquals(0, stats.getFramesDropped());
+
+        return result;
+    }
+
+}
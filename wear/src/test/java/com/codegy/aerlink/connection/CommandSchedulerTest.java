@@ -0,0 +1,243 @@
+package com.codegy.aerlink.connection;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class CommandSchedulerTest {
+
+    private static final UUID SERVICE_UUID = UUID.fromString("89d3502b-0f36-433a-8ef4-c502ad55f8dc");
+    private static final String CHARACTERISTIC = "9b3c81d8-57b1-4a8a-b8df-0e56f7ca51c2";
+
+
+    @Test
+    public void coalescesEqualCommandsOutsideTheUserActionLane() {
+        CommandScheduler scheduler = new CommandScheduler(new Random(0));
+
+        assertTrue(scheduler.add(createCommand(Command.PRIORITY_MEDIA), 0));
+        assertFalse(scheduler.add(createCommand(Command.PRIORITY_MEDIA), 0));
+
+        assertEquals(1, scheduler.getQueueDepth());
+        assertEquals(1, scheduler.getCoalescedCount());
+    }
+
+    @Test
+    public void keepsTrackOfDuplicateUserActions() {
+        CommandScheduler scheduler = new CommandScheduler(new Random(0));
+        Command first = createCommand(Command.PRIORITY_USER_ACTION);
+        Command second = createCommand(Command.PRIORITY_USER_ACTION);
+
+        assertTrue(scheduler.add(first, 0));
+        assertTrue(scheduler.add(second, 0));
+
+        assertSame(first, scheduler.next(0));
+        assertFalse(scheduler.isEmpty());
+
+        assertTrue(scheduler.remove(second));
+        assertTrue(scheduler.isEmpty());
+        assertEquals(0, scheduler.getQueueDepth());
+        assertFalse(scheduler.remove(second));
+    }
+
+    @Test
+    public void drainsLanesInPriorityOrder() {
+        CommandScheduler scheduler = new CommandScheduler(new Random(0));
+        Command media = createCommand(Command.PRIORITY_MEDIA);
+        Command userAction = createCommand(Command.PRIORITY_USER_ACTION);
+
+        scheduler.add(media, 0);
+        scheduler.add(userAction, 0);
+
+        assertSame(userAction, scheduler.next(0));
+        assertSame(media, scheduler.next(0));
+        assertNull(scheduler.next(0));
+        assertEquals(-1, scheduler.getDelayUntilNextCommand(0));
+    }
+
+    @Test
+    public void backoffDoublesFromTheBaseWithJitter() {
+        long[] minBackoff = new long[6];
+        long[] maxBackoff = new long[6];
+        // Shared, the first values of seeds next to each other are close
+        Random random = new Random(0);
+
+        for (int run = 0; run < 100; run++) {
+            CommandScheduler scheduler = new CommandScheduler(random);
+            Command command = createCommand(Command.PRIORITY_NOTIFICATION);
+            command.setImportance(Command.IMPORTANCE_MAX);
+
+            scheduler.add(command, 0);
+            long now = 0;
+
+            for (int retry = 0; retry < minBackoff.length; retry++) {
+                assertSame(command, scheduler.next(now));
+                assertTrue(scheduler.retry(command, now));
+
+                long backoff = command.getNotBeforeTime() - now;
+                // 100, 200, 400, 800 and then the max
+                long limit = Math.min(CommandScheduler.BACKOFF_BASE << retry, CommandScheduler.BACKOFF_MAX);
+                assertTrue(backoff + " for retry " + retry, backoff >= limit / 2 && backoff < limit);
+
+                if (run == 0 || backoff < minBackoff[retry]) {
+                    minBackoff[retry] = backoff;
+                }
+                maxBackoff[retry] = Math.max(maxBackoff[retry], backoff);
+
+                now += backoff;
+            }
+        }
+
+        // Spread over the whole range
+        for (int retry = 0; retry < minBackoff.length; retry++) {
+            long limit = Math.min(CommandScheduler.BACKOFF_BASE << retry, CommandScheduler.BACKOFF_MAX);
+            assertTrue(minBackoff[retry] + " for retry " + retry, minBackoff[retry] < limit / 2 + limit / 8);
+            assertTrue(maxBackoff[retry] + " for retry " + retry, maxBackoff[retry] > limit - limit / 8);
+        }
+    }
+
+    @Test
+    public void retriesRunOut() {
+        CommandScheduler scheduler = new CommandScheduler(new Random(0));
+        Command command = createCommand(Command.PRIORITY_NOTIFICATION);
+        command.setImportance(Command.IMPORTANCE_MIN);
+
+        scheduler.add(command, 0);
+        assertSame(command, scheduler.next(0));
+        assertTrue(scheduler.retry(command, 0));
+
+        assertSame(command, scheduler.next(CommandScheduler.BACKOFF_BASE));
+        assertFalse(scheduler.retry(command, CommandScheduler.BACKOFF_BASE));
+        assertTrue(scheduler.isEmpty());
+    }
+
+    @Test
+    public void retryIsDroppedForAnEqualQueuedCommand() {
+        CommandScheduler scheduler = new CommandScheduler(new Random(0));
+        Command command = createCommand(Command.PRIORITY_MEDIA);
+
+        scheduler.add(command, 0);
+        assertSame(command, scheduler.next(0));
+
+        // Queued while the first one was being written
+        Command newer = createCommand(Command.PRIORITY_MEDIA);
+        scheduler.add(newer, 10);
+
+        assertTrue(scheduler.retry(command, 20));
+        assertEquals(1, scheduler.getQueueDepth());
+        assertEquals(1, scheduler.getCoalescedCount());
+        // Without a backoff
+        assertSame(newer, scheduler.next(20));
+    }
+
+    @Test
+    public void commandWaitingItsBackoffDoesntBlockOthers() {
+        CommandScheduler scheduler = new CommandScheduler(new Random(0));
+        Command userAction = createCommand(Command.PRIORITY_USER_ACTION);
+
+        scheduler.add(userAction, 0);
+        assertSame(userAction, scheduler.next(0));
+        scheduler.retry(userAction, 0);
+        long readyTime = userAction.getNotBeforeTime();
+        assertTrue(readyTime > 0);
+
+        // Behind it in its own lane and in a lower one
+        Command otherUserAction = createCommand(Command.PRIORITY_USER_ACTION, 2);
+        Command media = createCommand(Command.PRIORITY_MEDIA, 3);
+        scheduler.add(otherUserAction, 0);
+        scheduler.add(media, 0);
+
+        assertSame(otherUserAction, scheduler.next(0));
+        assertSame(media, scheduler.next(0));
+        assertNull(scheduler.next(readyTime - 1));
+        assertEquals(1, scheduler.getDelayUntilNextCommand(readyTime - 1));
+
+        // Once ready it goes before the lower lanes again
+        Command notification = createCommand(Command.PRIORITY_NOTIFICATION, 4);
+        scheduler.add(notification, readyTime - 1);
+
+        assertEquals(0, scheduler.getDelayUntilNextCommand(readyTime - 1));
+        assertSame(notification, scheduler.next(readyTime - 1));
+
+        scheduler.add(notification, readyTime);
+        assertSame(userAction, scheduler.next(readyTime));
+        assertSame(notification, scheduler.next(readyTime));
+    }
+
+    @Test
+    public void retryKeepsItsTurnInTheLane() {
+        CommandScheduler scheduler = new CommandScheduler(new Random(0));
+        Command first = createCommand(Command.PRIORITY_NOTIFICATION);
+        Command second = createCommand(Command.PRIORITY_NOTIFICATION, 2);
+
+        scheduler.add(first, 0);
+        scheduler.add(second, 0);
+        assertSame(first, scheduler.next(0));
+        scheduler.retry(first, 0);
+
+        // Both ready, the retried one is first
+        scheduler.add(createCommand(Command.PRIORITY_MEDIA, 3), 0);
+        long now = CommandScheduler.BACKOFF_BASE;
+        assertSame(first, scheduler.next(now));
+        assertSame(second, scheduler.next(now));
+    }
+
+    @Test
+    public void queueDepthAndWaitTimeByLane() {
+        CommandScheduler scheduler = new CommandScheduler(new Random(0));
+
+        scheduler.add(createCommand(Command.PRIORITY_USER_ACTION), 0);
+        scheduler.add(createCommand(Command.PRIORITY_USER_ACTION), 10);
+        scheduler.add(createCommand(Command.PRIORITY_MEDIA, 2), 20);
+
+        assertEquals(3, scheduler.getQueueDepth());
+        assertEquals(2, scheduler.getQueueDepth(Command.PRIORITY_USER_ACTION));
+        assertEquals(0, scheduler.getQueueDepth(Command.PRIORITY_NOTIFICATION));
+        assertEquals(1, scheduler.getQueueDepth(Command.PRIORITY_MEDIA));
+
+        scheduler.next(50);
+        scheduler.next(60);
+        scheduler.next(100);
+
+        assertEquals(0, scheduler.getQueueDepth());
+        assertEquals(2, scheduler.getSentCount(Command.PRIORITY_USER_ACTION));
+        // Waited 50 and 50
+        assertEquals(50, scheduler.getAverageWaitTime(Command.PRIORITY_USER_ACTION));
+        assertEquals(50, scheduler.getMaxWaitTime(Command.PRIORITY_USER_ACTION));
+        assertEquals(80, scheduler.getAverageWaitTime(Command.PRIORITY_MEDIA));
+        assertEquals(0, scheduler.getSentCount(Command.PRIORITY_NOTIFICATION));
+        assertEquals(0, scheduler.getAverageWaitTime(Command.PRIORITY_NOTIFICATION));
+    }
+
+    @Test
+    public void waitTimeOfARetryCountsFromTheFirstQueue() {
+        CommandScheduler scheduler = new CommandScheduler(new Random(0));
+        Command command = createCommand(Command.PRIORITY_NOTIFICATION);
+
+        scheduler.add(command, 0);
+        scheduler.next(30);
+        scheduler.retry(command, 40);
+        long readyTime = command.getNotBeforeTime();
+        scheduler.next(readyTime);
+
+        // Each send counted
+        assertEquals(2, scheduler.getSentCount(Command.PRIORITY_NOTIFICATION));
+        assertEquals(readyTime, scheduler.getMaxWaitTime(Command.PRIORITY_NOTIFICATION));
+        assertEquals((30 + readyTime) / 2, scheduler.getAverageWaitTime(Command.PRIORITY_NOTIFICATION));
+    }
+
+
+    private static Command createCommand(int priority) {
+        return createCommand(priority, 1);
+    }
+
+    private static Command createCommand(int priority, int value) {
+        Command command = new Command(SERVICE_UUID, CHARACTERISTIC, new byte[] { (byte) value });
+        command.setPriority(priority);
+
+        return command;
+    }
+
+}
@@ -0,0 +1,250 @@
+package com.codegy.aerlink.connection;
+
+import com.codegy.aerlink.connection.simulation.SimulatedCentral;
+import com.codegy.aerlink.connection.simulation.SimulatedGattTransport;
+import com.codegy.aerlink.notifications.ANCSConstants;
+import com.codegy.aerlink.utils.ServiceHandler;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Recovery stages driven by connection attempts to the simulated phone that never complete,
+ * with the connecting timeout of ConnectionHandler on the simulator's virtual clock
+ */
+public class ConnectionRecoveryTest {
+
+    // Connect and discover, then subscribe to two characteristics, 15 ms each way
+    private static final long CONNECTION_TIME = 15 + 3 * 30;
+
+
+    /**
+     * Does what ConnectionHandler does while connecting: every attempt gets the timeout of the
+     * current stage, and an attempt that times out moves the recovery on
+     */
+    private static class Link implements ConnectionRecovery.Actions {
+        final SimulatedGattTransport mTransport;
+        final SimulatedCentral mCentral;
+        final ConnectionRecovery mRecovery;
+        final List<ConnectionRecovery.Stage> mActions = new ArrayList<>();
+        long mLastTimeToRecover = -1;
+
+        Link(SimulatedGattTransport transport) {
+            mTransport = transport;
+            mCentral = new SimulatedCentral(transport, GattTransport.DEFAULT_MTU);
+            mCentral.addServiceHandler(new ServiceHandler() {
+                @Override
+                public UUID getServiceUUID() {
+                    return ANCSConstants.SERVICE_UUID;
+                }
+
+                @Override
+                public List<String> getCharacteristicsToSubscribe() {
+                    return Arrays.asList(ANCSConstants.CHARACTERISTIC_NOTIFICATION_SOURCE, ANCSConstants.CHARACTERISTIC_DATA_SOURCE);
+                }
+            });
+            mRecovery = new ConnectionRecovery(this);
+        }
+
+        void connect() {
+            mCentral.connect();
+            scheduleConnectingTimeout();
+        }
+
+        private void scheduleConnectingTimeout() {
+            mTransport.schedule(mRecovery.getTimeout(), new Runnable() {
+                @Override
+                public void run() {
+                    if (mCentral.isReady()) {
+                        // Credited when it got ready, not when the timeout noticed it
+                        mLastTimeToRecover = mRecovery.onRecovered(mCentral.getReadyTime());
+                        return;
+                    }
+
+                    mRecovery.onFailure(mTransport.getCurrentTime());
+                    scheduleConnectingTimeout();
+                }
+            });
+        }
+
+        @Override
+        public void retryGatt() {
+            mActions.add(ConnectionRecovery.Stage.RetryGatt);
+
+            mTransport.close();
+            mCentral.connect();
+        }
+
+        @Override
+        public void refreshCache() {
+            mActions.add(ConnectionRecovery.Stage.RefreshCache);
+
+            mTransport.refreshServices();
+            mTransport.close();
+            mCentral.connect();
+        }
+
+        @Override
+        public void recreateBond() {
+            mActions.add(ConnectionRecovery.Stage.RecreateBond);
+
+            // The attempt goes on once the phone accepts the bond
+            mTransport.recreateBond();
+        }
+
+        @Override
+        public void toggleAdapter() {
+            mActions.add(ConnectionRecovery.Stage.ToggleAdapter);
+
+            mTransport.close();
+            mCentral.connect();
+        }
+    }
+
+
+    @Test
+    public void firstConnectionIsNotARecovery() {
+        Link link = new Link(new SimulatedGattTransport(1));
+
+        link.connect();
+        link.mTransport.runUntilIdle();
+
+        assertTrue(link.mCentral.isReady());
+        assertTrue(link.mActions.isEmpty());
+        assertEquals(0, link.mLastTimeToRecover);
+        assertEquals(0, link.mRecovery.getFailureCount());
+        assertArrayEquals(new int[4], link.mRecovery.getRecoveredHistogram());
+    }
+
+    @Test
+    public void retryRecoversAStuckAttempt() {
+        Link link = new Link(new SimulatedGattTransport(1));
+        link.mTransport.failConnections(1);
+
+        link.connect();
+        link.mTransport.runUntilIdle();
+
+        assertTrue(link.mCentral.isReady());
+        assertEquals(Arrays.asList(ConnectionRecovery.Stage.RetryGatt), link.mActions);
+        assertEquals(ConnectionRecovery.DEFAULT_TIMEOUT + CONNECTION_TIME, link.mCentral.getReadyTime());
+        // From the first failure
+        assertEquals(CONNECTION_TIME, link.mLastTimeToRecover);
+        assertArrayEquals(new int[] { 1, 0, 0, 0 }, link.mRecovery.getRecoveredHistogram());
+        assertFalse(link.mRecovery.isRecovering());
+    }
+
+    @Test
+    public void cacheIsRefreshedAfterThreeRetries() {
+        Link link = new Link(new SimulatedGattTransport(1));
+        link.mTransport.failConnections(4);
+
+        link.connect();
+        link.mTransport.runUntilIdle();
+
+        assertTrue(link.mCentral.isReady());
+        assertEquals(Arrays.asList(
+                ConnectionRecovery.Stage.RetryGatt,
+                ConnectionRecovery.Stage.RetryGatt,
+                ConnectionRecovery.Stage.RetryGatt,
+                ConnectionRecovery.Stage.RefreshCache
+        ), link.mActions);
+        // Timed out at 5, 10, 15 and 20 s
+        assertEquals(20000 + CONNECTION_TIME, link.mCentral.getReadyTime());
+        assertEquals(15000 + CONNECTION_TIME, link.mLastTimeToRecover);
+        assertEquals(4, link.mRecovery.getFailureCount());
+        assertArrayEquals(new int[] { 0, 1, 0, 0 }, link.mRecovery.getRecoveredHistogram());
+    }
+
+    @Test
+    public void adapterToggleRepeatsUntilItConnects() {
+        Link link = new Link(new SimulatedGattTransport(1));
+        // The first attempt, three retries, the refresh and the first toggle
+        link.mTransport.failConnections(6);
+
+        link.connect();
+        link.mTransport.runUntilIdle();
+
+        assertTrue(link.mCentral.isReady());
+        assertEquals(Arrays.asList(
+                ConnectionRecovery.Stage.RetryGatt,
+                ConnectionRecovery.Stage.RetryGatt,
+                ConnectionRecovery.Stage.RetryGatt,
+                ConnectionRecovery.Stage.RefreshCache,
+                ConnectionRecovery.Stage.RecreateBond,
+                ConnectionRecovery.Stage.ToggleAdapter,
+                ConnectionRecovery.Stage.ToggleAdapter
+        ), link.mActions);
+        // 5 s for each retry, 8 s for the refresh, 30 s for the bond and 15 s for the first toggle
+        long lastToggle = 20000 + 8000 + 30000 + 15000;
+        assertEquals(lastToggle + CONNECTION_TIME, link.mCentral.getReadyTime());
+        assertEquals(lastToggle - 5000 + CONNECTION_TIME, link.mLastTimeToRecover);
+        assertEquals(7, link.mRecovery.getFailureCount());
+        assertArrayEquals(new int[] { 0, 0, 0, 1 }, link.mRecovery.getRecoveredHistogram());
+    }
+
+    @Test
+    public void histogramAndTimesAddUpAcrossRecoveries() {
+        Link link = new Link(new SimulatedGattTransport(1));
+        link.mTransport.failConnections(1);
+        link.connect();
+        link.mTransport.runUntilIdle();
+
+        // Out of range, and the phone is stuck when it comes back
+        link.mTransport.disconnect();
+        link.mTransport.runUntilIdle();
+        link.mTransport.close();
+        link.mTransport.failConnections(4);
+        link.connect();
+        link.mTransport.runUntilIdle();
+
+        long first = CONNECTION_TIME;
+        long second = 15000 + CONNECTION_TIME;
+
+        assertArrayEquals(new int[] { 1, 1, 0, 0 }, link.mRecovery.getRecoveredHistogram());
+        assertEquals(5, link.mRecovery.getFailureCount());
+        assertEquals((first + second) / 2, link.mRecovery.getMeanTimeToRecover());
+        assertEquals(second, link.mRecovery.getMaxTimeToRecover());
+    }
+
+    @Test
+    public void timeoutFollowsTheStage() {
+        ConnectionRecovery recovery = new ConnectionRecovery(new Link(new SimulatedGattTransport(1)));
+        recovery.setStage(ConnectionRecovery.Stage.RetryGatt, 1000, 1);
+        recovery.setStage(ConnectionRecovery.Stage.RefreshCache, 2000, 0);
+
+        assertEquals(ConnectionRecovery.DEFAULT_TIMEOUT, recovery.getTimeout());
+
+        assertEquals(ConnectionRecovery.Stage.RetryGatt, recovery.onFailure(0));
+        assertEquals(1000, recovery.getTimeout());
+
+        // At least one attempt for every stage
+        assertEquals(ConnectionRecovery.Stage.RefreshCache, recovery.onFailure(1000));
+        assertEquals(2000, recovery.getTimeout());
+        assertEquals(ConnectionRecovery.Stage.RecreateBond, recovery.onFailure(3000));
+    }
+
+    @Test
+    public void cancelDoesNotCount() {
+        ConnectionRecovery recovery = new ConnectionRecovery(new Link(new SimulatedGattTransport(1)));
+
+        recovery.onFailure(0);
+        recovery.onFailure(5000);
+        recovery.cancel();
+
+        assertFalse(recovery.isRecovering());
+        assertNull(recovery.getStage());
+        assertEquals(0, recovery.onRecovered(10000));
+        assertArrayEquals(new int[4], recovery.getRecoveredHistogram());
+        assertEquals(0, recovery.getMeanTimeToRecover());
+
+        // Starts over from the first stage
+        assertEquals(ConnectionRecovery.Stage.RetryGatt, recovery.onFailure(20000));
+        assertEquals(5000, recovery.onRecovered(25000));
+    }
+
+}
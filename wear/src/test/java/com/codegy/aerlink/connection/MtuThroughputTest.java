@@ -0,0 +1,126 @@
+package com.codegy.aerlink.connection;
+
+import com.codegy.aerlink.ALSConstants;
+import com.codegy.aerlink.connection.simulation.SimulatedCentral;
+import com.codegy.aerlink.connection.simulation.SimulatedGattTransport;
+import com.codegy.aerlink.utils.PacketProcessor;
+import com.codegy.aerlink.utils.ServiceHandler;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * A camera frame sent by the simulated phone over ALS at each MTU, received with PacketProcessor
+ * the way CameraRemoteServiceHandler does. Time is the simulator's, 15 ms of latency and 8 ms between packets.
+ */
+public class MtuThroughputTest {
+
+    private static final int FRAME_LENGTH = 12000;
+
+
+    /**
+     * Reassembles one transfer and keeps when it finished
+     */
+    private static class TransferHandler extends ServiceHandler {
+        private final SimulatedGattTransport mTransport;
+        PacketProcessor mPacketProcessor;
+        long mFinishedAt = -1;
+
+        TransferHandler(SimulatedGattTransport transport) {
+            mTransport = transport;
+        }
+
+        @Override
+        public UUID getServiceUUID() {
+            return ALSConstants.SERVICE_UUID;
+        }
+
+        @Override
+        public List<String> getCharacteristicsToSubscribe() {
+            return Arrays.asList(ALSConstants.CHARACTERISTIC_CAMERA_REMOTE_DATA);
+        }
+
+        @Override
+        public void handleCharacteristic(UUID characteristicUUID, byte[] value) {
+            if (mPacketProcessor == null) {
+                mPacketProcessor = new PacketProcessor(value);
+            }
+            else {
+                mPacketProcessor.process(value);
+            }
+
+            if (mPacketProcessor.isFinished()) {
+                mFinishedAt = mTransport.getCurrentTime();
+            }
+        }
+    }
+
+
+    @Test
+    public void defaultMtu() {
+        TransferHandler handler = transfer(GattTransport.DEFAULT_MTU);
+
+        // 20 bytes of each packet, header included
+        assertEquals(601, handler.mPacketProcessor.getPacketCount());
+        assertEquals(15 + 600 * 8, handler.mFinishedAt);
+    }
+
+    @Test
+    public void mediumMtu() {
+        TransferHandler handler = transfer(185);
+
+        assertEquals(66, handler.mPacketProcessor.getPacketCount());
+        assertEquals(15 + 65 * 8, handler.mFinishedAt);
+    }
+
+    @Test
+    public void maxMtu() {
+        TransferHandler handler = transfer(GattTransport.MAX_MTU);
+
+        assertEquals(24, handler.mPacketProcessor.getPacketCount());
+        assertEquals(15 + 23 * 8, handler.mFinishedAt);
+    }
+
+
+    /**
+     * Connects asking for the largest MTU to a phone that accepts up to maxMtu and sends a frame once ready
+     */
+    private static TransferHandler transfer(int maxMtu) {
+        SimulatedGattTransport transport = new SimulatedGattTransport(1);
+        transport.addService(ALSConstants.SERVICE_UUID);
+        transport.setMaxMtu(maxMtu);
+
+        SimulatedCentral central = new SimulatedCentral(transport, GattTransport.MAX_MTU);
+        TransferHandler handler = new TransferHandler(transport);
+        central.addServiceHandler(handler);
+
+        central.connect();
+        transport.runUntilIdle();
+
+        assertTrue(central.isReady());
+        assertEquals(maxMtu, central.getMtu());
+
+        byte[] frame = new byte[FRAME_LENGTH];
+        for (int i = 0; i < frame.length; i++) {
+            frame[i] = (byte) (i * 31);
+        }
+
+        long start = transport.getCurrentTime();
+        transport.sendAerlinkData(ALSConstants.CAMERA_REMOTE_DATA_UUID, frame);
+        transport.runUntilIdle();
+
+        assertNotNull(handler.mPacketProcessor);
+        assertTrue(handler.mPacketProcessor.isFinished());
+        assertEquals(FRAME_LENGTH, handler.mPacketProcessor.getProcessedLength());
+        assertArrayEquals(frame, Arrays.copyOf(handler.mPacketProcessor.getData(), FRAME_LENGTH));
+
+        handler.mFinishedAt -= start;
+
+        return handler;
+    }
+
+}
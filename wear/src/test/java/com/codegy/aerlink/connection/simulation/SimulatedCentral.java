@@ -0,0 +1,288 @@
+package com.codegy.aerlink.connection.simulation;
+
+import com.codegy.aerlink.connection.CharacteristicIdentifier;
+import com.codegy.aerlink.connection.Command;
+import com.codegy.aerlink.connection.CommandScheduler;
+import com.codegy.aerlink.connection.GattTransport;
+import com.codegy.aerlink.utils.CharacteristicDispatcher;
+import com.codegy.aerlink.utils.ServiceHandler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * The watch side of a simulated link, doing what ConnectionHandler and MainService do with a transport:
+ * services are discovered unless they are cached, the MTU is negotiated, the characteristics of every
+ * handler are subscribed one at a time, commands are written one at a time through a CommandScheduler
+ * and packets are routed through a CharacteristicDispatcher.
+ *
+ * ConnectionHandler runs on a HandlerThread and opens a GATT server, which the android.jar of JVM tests
+ * can't do, so the tests drive the same steps from here on the simulator's virtual clock.
+ */
+public class SimulatedCentral implements GattTransport.Callback {
+
+    private final SimulatedGattTransport mTransport;
+    private final int mRequestedMtu;
+
+    private final List<ServiceHandler> mHandlers = new ArrayList<>();
+    private final CharacteristicDispatcher mDispatcher = new CharacteristicDispatcher();
+    private final CommandScheduler mCommandScheduler = new CommandScheduler(new Random(0));
+    private final ArrayDeque<CharacteristicIdentifier> mSubscribeRequests = new ArrayDeque<>();
+
+    private boolean mReady;
+    private int mMtu = GattTransport.DEFAULT_MTU;
+    private Command mCurrentCommand;
+    private boolean mReadingCommandResponse;
+    private boolean mSendScheduled;
+
+    // Metrics
+    private int mConnectionCount;
+    private int mDisconnectionCount;
+    private int mDiscoveryCount;
+    private long mReadyTime = -1;
+    private int mWriteCount;
+    private int mPacketCount;
+
+
+    /**
+     * @param requestedMtu MTU asked for after discovering services, DEFAULT_MTU to keep the default one
+     */
+    public SimulatedCentral(SimulatedGattTransport transport, int requestedMtu) {
+        this.mTransport = transport;
+        this.mRequestedMtu = requestedMtu;
+    }
+
+    public void addServiceHandler(ServiceHandler serviceHandler) {
+        mHandlers.add(serviceHandler);
+        mDispatcher.register(serviceHandler);
+    }
+
+    public void connect() {
+        mTransport.connect(this);
+    }
+
+    public boolean reconnect() {
+        return mTransport.reconnect();
+    }
+
+    public void addCommand(Command command) {
+        mCommandScheduler.add(command, mTransport.getCurrentTime());
+
+        sendNextCommand();
+    }
+
+    public boolean isReady() {
+        return mReady;
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    public CommandScheduler getCommandScheduler() {
+        return mCommandScheduler;
+    }
+
+    public int getConnectionCount() {
+        return mConnectionCount;
+    }
+
+    public int getDisconnectionCount() {
+        return mDisconnectionCount;
+    }
+
+    public int getDiscoveryCount() {
+        return mDiscoveryCount;
+    }
+
+    /**
+     * @return virtual time the last connection finished subscribing, -1 if none did
+     */
+    public long getReadyTime() {
+        return mReadyTime;
+    }
+
+    public int getWriteCount() {
+        return mWriteCount;
+    }
+
+    public int getPacketCount() {
+        return mPacketCount;
+    }
+
+
+    @Override
+    public void onConnectionStateChange(int status, int newState) {
+        if (newState == GattTransport.STATE_CONNECTED) {
+            mConnectionCount++;
+
+            if (mTransport.hasCachedServices()) {
+                negotiateMtu();
+            }
+            else {
+                mDiscoveryCount++;
+                mTransport.discoverServices();
+            }
+        }
+        else {
+            mDisconnectionCount++;
+
+            mReady = false;
+            mMtu = GattTransport.DEFAULT_MTU;
+            mCurrentCommand = null;
+            mReadingCommandResponse = false;
+            mSubscribeRequests.clear();
+            mCommandScheduler.clear();
+
+            for (ServiceHandler serviceHandler : mHandlers) {
+                serviceHandler.reset();
+            }
+        }
+    }
+
+    @Override
+    public void onServicesDiscovered(int status) {
+        negotiateMtu();
+    }
+
+    @Override
+    public void onMtuChanged(int mtu, int status) {
+        if (status == GattTransport.STATUS_SUCCESS) {
+            mMtu = mtu;
+        }
+
+        subscribe();
+    }
+
+    @Override
+    public void onDescriptorWrite(UUID characteristicUUID, int status) {
+        subscribeNextRequest();
+    }
+
+    @Override
+    public void onCharacteristicWrite(UUID characteristicUUID, int status) {
+        long now = mTransport.getCurrentTime();
+
+        if (status == GattTransport.STATUS_SUCCESS) {
+            if (mCurrentCommand != null && mCurrentCommand.shouldReadAfterWrite()) {
+                mReadingCommandResponse = mTransport.readCharacteristic(mCurrentCommand.getServiceUUID(), characteristicUUID);
+
+                if (mReadingCommandResponse) {
+                    return;
+                }
+
+                mCommandScheduler.retry(mCurrentCommand, now);
+            }
+        }
+        else if (mCurrentCommand != null) {
+            mCommandScheduler.retry(mCurrentCommand, now);
+        }
+
+        mCurrentCommand = null;
+
+        sendNextCommand();
+    }
+
+    @Override
+    public void onCharacteristicRead(UUID characteristicUUID, byte[] value, int status) {
+        if (status == GattTransport.STATUS_SUCCESS) {
+            mDispatcher.dispatch(characteristicUUID, value);
+        }
+        else if (mReadingCommandResponse && mCurrentCommand != null) {
+            mCommandScheduler.retry(mCurrentCommand, mTransport.getCurrentTime());
+        }
+
+        if (mReadingCommandResponse) {
+            mReadingCommandResponse = false;
+            mCurrentCommand = null;
+
+            sendNextCommand();
+        }
+    }
+
+    @Override
+    public void onCharacteristicChanged(UUID characteristicUUID, byte[] value) {
+        mPacketCount++;
+
+        mDispatcher.dispatch(characteristicUUID, value);
+    }
+
+
+    private void negotiateMtu() {
+        if (mRequestedMtu <= GattTransport.DEFAULT_MTU || !mTransport.requestMtu(mRequestedMtu)) {
+            subscribe();
+        }
+    }
+
+    private void subscribe() {
+        mSubscribeRequests.clear();
+
+        for (ServiceHandler serviceHandler : mHandlers) {
+            UUID serviceUUID = serviceHandler.getServiceUUID();
+            List<String> characteristics = serviceHandler.getCharacteristicsToSubscribe();
+
+            if (serviceUUID == null || characteristics == null || !mTransport.hasService(serviceUUID)) {
+                continue;
+            }
+
+            for (String characteristic : characteristics) {
+                mSubscribeRequests.add(new CharacteristicIdentifier(serviceUUID, characteristic));
+            }
+        }
+
+        subscribeNextRequest();
+    }
+
+    private void subscribeNextRequest() {
+        CharacteristicIdentifier request = mSubscribeRequests.poll();
+
+        if (request != null) {
+            mTransport.setCharacteristicNotification(request.getServiceUUID(), UUID.fromString(request.getCharacteristicUUID()), true);
+            return;
+        }
+
+        mReady = true;
+        mReadyTime = mTransport.getCurrentTime();
+
+        sendNextCommand();
+    }
+
+    private void sendNextCommand() {
+        if (!mReady || mCurrentCommand != null) {
+            return;
+        }
+
+        long now = mTransport.getCurrentTime();
+        Command command = mCommandScheduler.next(now);
+
+        if (command == null) {
+            long delay = mCommandScheduler.getDelayUntilNextCommand(now);
+
+            if (delay > 0 && !mSendScheduled) {
+                // Wake up when the next backoff ends
+                mSendScheduled = true;
+                mTransport.schedule(delay, new Runnable() {
+                    @Override
+                    public void run() {
+                        mSendScheduled = false;
+                        sendNextCommand();
+                    }
+                });
+            }
+
+            return;
+        }
+
+        if (mTransport.writeCharacteristic(command.getServiceUUID(), UUID.fromString(command.getCharacteristic()), command.getPacket())) {
+            mCurrentCommand = command;
+            mWriteCount++;
+        }
+        else if (mCommandScheduler.retry(command, now)) {
+            sendNextCommand();
+        }
+    }
+
+}
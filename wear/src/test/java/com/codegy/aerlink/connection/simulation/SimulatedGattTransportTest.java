@@ -0,0 +1,407 @@
+package com.codegy.aerlink.connection.simulation;
+
+import com.codegy.aerlink.connection.Command;
+import com.codegy.aerlink.connection.GattTransport;
+import com.codegy.aerlink.media.AMSConstants;
+import com.codegy.aerlink.notifications.ANCSConstants;
+import com.codegy.aerlink.utils.ServiceHandler;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Connection scenarios replayed against the simulated phone on its virtual clock
+ */
+public class SimulatedGattTransportTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final UUID NOTIFICATION_SOURCE = UUID.fromString(ANCSConstants.CHARACTERISTIC_NOTIFICATION_SOURCE);
+    private static final UUID DATA_SOURCE = UUID.fromString(ANCSConstants.CHARACTERISTIC_DATA_SOURCE);
+    private static final UUID ENTITY_UPDATE = UUID.fromString(AMSConstants.CHARACTERISTIC_ENTITY_UPDATE);
+    private static final UUID ENTITY_ATTRIBUTE = UUID.fromString(AMSConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE);
+
+    private static final String LONG_MESSAGE = "Running a few minutes late, the train stopped between stations "
+            + "and nobody knows for how long. Start without me and order the usual for me please";
+
+
+    /**
+     * Keeps every packet of its characteristics
+     */
+    private static class RecordingHandler extends ServiceHandler {
+        private final UUID mServiceUUID;
+        private final List<String> mCharacteristics;
+        final List<UUID> mCharacteristicUUIDs = new ArrayList<>();
+        final List<byte[]> mPackets = new ArrayList<>();
+        int mResetCount;
+
+        RecordingHandler(UUID serviceUUID, String... characteristics) {
+            mServiceUUID = serviceUUID;
+            mCharacteristics = Arrays.asList(characteristics);
+        }
+
+        @Override
+        public void reset() {
+            mResetCount++;
+        }
+
+        @Override
+        public UUID getServiceUUID() {
+            return mServiceUUID;
+        }
+
+        @Override
+        public List<String> getCharacteristicsToSubscribe() {
+            return mCharacteristics;
+        }
+
+        @Override
+        public void handleCharacteristic(UUID characteristicUUID, byte[] value) {
+            mCharacteristicUUIDs.add(characteristicUUID);
+            mPackets.add(value);
+        }
+
+        List<byte[]> getPackets(UUID characteristicUUID) {
+            List<byte[]> packets = new ArrayList<>();
+
+            for (int i = 0; i < mPackets.size(); i++) {
+                if (mCharacteristicUUIDs.get(i).equals(characteristicUUID)) {
+                    packets.add(mPackets.get(i));
+                }
+            }
+
+            return packets;
+        }
+    }
+
+
+    @Test
+    public void firstConnectionDiscoversAndNegotiatesTheMtu() {
+        SimulatedGattTransport transport = new SimulatedGattTransport(1);
+        transport.setMaxMtu(185);
+        SimulatedCentral central = new SimulatedCentral(transport, GattTransport.MAX_MTU);
+        central.addServiceHandler(createAncsHandler());
+
+        central.connect();
+        transport.runUntilIdle();
+
+        assertTrue(central.isReady());
+        assertEquals(1, central.getDiscoveryCount());
+        assertEquals(185, central.getMtu());
+        // Connect, discover, MTU and two subscriptions, 15 ms each way
+        assertEquals(15 + 4 * 30, central.getReadyTime());
+    }
+
+    @Test
+    public void reconnectionKeepsTheServices() {
+        SimulatedGattTransport transport = new SimulatedGattTransport(1);
+        transport.setMaxMtu(185);
+        SimulatedCentral central = new SimulatedCentral(transport, GattTransport.MAX_MTU);
+        RecordingHandler handler = createAncsHandler();
+        central.addServiceHandler(handler);
+
+        central.connect();
+        transport.runUntilIdle();
+        transport.disconnect();
+        transport.runUntilIdle();
+
+        assertFalse(central.isReady());
+        assertEquals(1, handler.mResetCount);
+
+        assertTrue(central.reconnect());
+        transport.runUntilIdle();
+
+        assertTrue(central.isReady());
+        assertEquals(2, central.getConnectionCount());
+        assertEquals(1, central.getDiscoveryCount());
+        // The MTU goes back to the default with the link, it's negotiated again
+        assertEquals(185, central.getMtu());
+    }
+
+    @Test
+    public void closedTransportDiscoversAgain() {
+        SimulatedGattTransport transport = new SimulatedGattTransport(1);
+        SimulatedCentral central = new SimulatedCentral(transport, GattTransport.DEFAULT_MTU);
+        central.addServiceHandler(createAncsHandler());
+
+        central.connect();
+        transport.runUntilIdle();
+        transport.close();
+
+        assertFalse(central.reconnect());
+
+        central.connect();
+        transport.runUntilIdle();
+
+        assertTrue(central.isReady());
+        assertEquals(2, central.getDiscoveryCount());
+        assertEquals(GattTransport.DEFAULT_MTU, central.getMtu());
+    }
+
+    @Test
+    public void preExistingNotificationsAreSentOnSubscribe() {
+        SimulatedGattTransport transport = new SimulatedGattTransport(1);
+        SimulatedCentral central = new SimulatedCentral(transport, GattTransport.DEFAULT_MTU);
+        RecordingHandler handler = createAncsHandler();
+        central.addServiceHandler(handler);
+
+        int first = transport.postNotification("com.apple.MobileSMS", "Alice", "Hi", "Reply", "Clear");
+        int second = transport.postNotification("com.apple.mobilemail", "Bob", "Invoice", null, "Clear");
+
+        central.connect();
+        transport.runUntilIdle();
+
+        List<byte[]> events = handler.getPackets(NOTIFICATION_SOURCE);
+        assertEquals(2, events.size());
+
+        assertEquals(ANCSConstants.EventIDNotificationAdded, events.get(0)[0]);
+        // Pre-existing, positive and negative action
+        assertEquals(4 | 8 | 16, events.get(0)[1]);
+        assertEquals(first, readInt(events.get(0), 4));
+        assertEquals(4 | 16, events.get(1)[1]);
+        assertEquals(second, readInt(events.get(1), 4));
+
+        // Only new notifications after that
+        transport.postNotification("com.apple.MobileSMS", "Alice", "Are you there?", "Reply", "Clear");
+        transport.runUntilIdle();
+
+        events = handler.getPackets(NOTIFICATION_SOURCE);
+        assertEquals(3, events.size());
+        assertEquals(8 | 16, events.get(2)[1]);
+    }
+
+    @Test
+    public void responsesAreFragmentedToTheMtu() {
+        int[] mtus = { GattTransport.DEFAULT_MTU, 185 };
+
+        for (int mtu : mtus) {
+            SimulatedGattTransport transport = new SimulatedGattTransport(1);
+            transport.setMaxMtu(mtu);
+            SimulatedCentral central = new SimulatedCentral(transport, GattTransport.MAX_MTU);
+            RecordingHandler handler = createAncsHandler();
+            central.addServiceHandler(handler);
+
+            central.connect();
+            transport.runUntilIdle();
+
+            int UID = transport.postNotification("com.apple.MobileSMS", "Alice", LONG_MESSAGE, null, null);
+            central.addCommand(createGetAttributesCommand(UID, 0xffff));
+            transport.runUntilIdle();
+
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            List<byte[]> packets = handler.getPackets(DATA_SOURCE);
+
+            for (byte[] packet : packets) {
+                assertTrue("Packet of " + packet.length + " bytes at MTU " + mtu, packet.length <= mtu - 3);
+                response.write(packet, 0, packet.length);
+            }
+
+            byte[] message = LONG_MESSAGE.getBytes(UTF8);
+            // Response header, App Identifier, then the message
+            int messageOffset = 5 + 3 + "com.apple.MobileSMS".length() + 3;
+            byte[] data = response.toByteArray();
+
+            assertEquals(messageOffset + message.length, data.length);
+            assertArrayEquals(message, Arrays.copyOfRange(data, messageOffset, data.length));
+            assertEquals((data.length + mtu - 4) / (mtu - 3), packets.size());
+        }
+    }
+
+    @Test
+    public void requestsForUnknownNotificationsFail() {
+        SimulatedGattTransport transport = new SimulatedGattTransport(1);
+        SimulatedCentral central = new SimulatedCentral(transport, GattTransport.DEFAULT_MTU);
+        RecordingHandler handler = createAncsHandler();
+        central.addServiceHandler(handler);
+
+        central.connect();
+        transport.runUntilIdle();
+
+        Command command = createGetAttributesCommand(42, 64);
+        // Written once, the error isn't retried
+        command.setImportance(0);
+        central.addCommand(command);
+        transport.runUntilIdle();
+
+        assertEquals(1, central.getWriteCount());
+        assertTrue(handler.getPackets(DATA_SOURCE).isEmpty());
+    }
+
+    @Test
+    public void lossIsTheSameForTheSameSeed() {
+        List<Integer> received = replayWithLoss(7);
+
+        assertEquals(received, replayWithLoss(7));
+        assertTrue(received.size() < 50);
+        assertTrue(received.size() > 25);
+    }
+
+    @Test
+    public void entityUpdatesAreTruncatedToTheMtu() {
+        int[] mtus = { GattTransport.DEFAULT_MTU, 185 };
+
+        for (int mtu : mtus) {
+            SimulatedGattTransport transport = new SimulatedGattTransport(1);
+            transport.setMaxMtu(mtu);
+            SimulatedCentral central = new SimulatedCentral(transport, GattTransport.MAX_MTU);
+            RecordingHandler handler = createAmsHandler();
+            central.addServiceHandler(handler);
+
+            String title = "A track title longer than what fits in a single default packet";
+            transport.setMediaAttribute(AMSConstants.EntityIDTrack, AMSConstants.TrackAttributeIDTitle, title);
+
+            central.connect();
+            transport.runUntilIdle();
+
+            central.addCommand(new Command(AMSConstants.SERVICE_UUID, AMSConstants.CHARACTERISTIC_ENTITY_UPDATE, new byte[] {
+                    AMSConstants.EntityIDTrack, AMSConstants.TrackAttributeIDTitle
+            }));
+            transport.runUntilIdle();
+
+            List<byte[]> updates = handler.getPackets(ENTITY_UPDATE);
+            assertEquals(1, updates.size());
+
+            byte[] update = updates.get(0);
+            boolean truncated = (update[2] & AMSConstants.EntityUpdateFlagTruncated) != 0;
+            String value = new String(update, 3, update.length - 3, UTF8);
+
+            assertEquals(mtu == GattTransport.DEFAULT_MTU, truncated);
+            assertTrue(title.startsWith(value));
+            assertEquals(truncated ? mtu - 6 : title.length(), value.length());
+
+            // Changes are sent once registered
+            transport.setMediaAttribute(AMSConstants.EntityIDTrack, AMSConstants.TrackAttributeIDTitle, "Next");
+            transport.runUntilIdle();
+
+            updates = handler.getPackets(ENTITY_UPDATE);
+            assertEquals(2, updates.size());
+            assertEquals("Next", new String(updates.get(1), 3, updates.get(1).length - 3, UTF8));
+        }
+    }
+
+    @Test
+    public void entityAttributeIsReadAfterTheWrite() {
+        SimulatedGattTransport transport = new SimulatedGattTransport(1);
+        SimulatedCentral central = new SimulatedCentral(transport, GattTransport.DEFAULT_MTU);
+        RecordingHandler handler = createAmsHandler();
+        central.addServiceHandler(handler);
+
+        String title = "A track title longer than what fits in a single default packet";
+        transport.setMediaAttribute(AMSConstants.EntityIDTrack, AMSConstants.TrackAttributeIDTitle, title);
+
+        central.connect();
+        transport.runUntilIdle();
+
+        Command command = new Command(AMSConstants.SERVICE_UUID, AMSConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE, new byte[] {
+                AMSConstants.EntityIDTrack, AMSConstants.TrackAttributeIDTitle
+        });
+        command.setReadAfterWrite(true);
+        central.addCommand(command);
+        transport.runUntilIdle();
+
+        List<byte[]> values = handler.getPackets(ENTITY_ATTRIBUTE);
+        assertEquals(1, values.size());
+        assertEquals(title, new String(values.get(0), UTF8));
+    }
+
+    @Test
+    public void commandsWaitForTheLink() {
+        SimulatedGattTransport transport = new SimulatedGattTransport(1);
+        SimulatedCentral central = new SimulatedCentral(transport, GattTransport.DEFAULT_MTU);
+        RecordingHandler handler = createAncsHandler();
+        central.addServiceHandler(handler);
+
+        int UID = transport.postNotification("com.apple.MobileSMS", "Alice", "Hi", null, null);
+
+        // Queued before connecting, written once subscribed
+        central.addCommand(createGetAttributesCommand(UID, 64));
+        central.connect();
+        transport.runUntilIdle();
+
+        assertEquals(1, central.getWriteCount());
+        assertFalse(handler.getPackets(DATA_SOURCE).isEmpty());
+
+        // Dropped with the link
+        transport.disconnect();
+        central.addCommand(createGetAttributesCommand(UID, 64));
+        transport.runUntilIdle();
+
+        assertEquals(1, central.getWriteCount());
+        assertEquals(0, central.getCommandScheduler().getQueueDepth());
+    }
+
+
+    /**
+     * @return UIDs of the events received out of 50 notifications, with a fifth of the fragments lost
+     */
+    private static List<Integer> replayWithLoss(long seed) {
+        SimulatedGattTransport transport = new SimulatedGattTransport(seed);
+        transport.setLossRate(0.2);
+        SimulatedCentral central = new SimulatedCentral(transport, GattTransport.DEFAULT_MTU);
+        RecordingHandler handler = createAncsHandler();
+        central.addServiceHandler(handler);
+
+        central.connect();
+        transport.runUntilIdle();
+
+        for (int i = 0; i < 50; i++) {
+            transport.postNotification("com.apple.MobileSMS", "Contact " + i, "Message " + i, null, null);
+            transport.advance(20);
+        }
+        transport.runUntilIdle();
+
+        List<Integer> received = new ArrayList<>();
+        for (byte[] event : handler.getPackets(NOTIFICATION_SOURCE)) {
+            received.add(readInt(event, 4));
+        }
+
+        assertEquals(50, received.size() + transport.getFragmentsDropped());
+
+        return received;
+    }
+
+    private static RecordingHandler createAncsHandler() {
+        return new RecordingHandler(ANCSConstants.SERVICE_UUID,
+                ANCSConstants.CHARACTERISTIC_NOTIFICATION_SOURCE, ANCSConstants.CHARACTERISTIC_DATA_SOURCE);
+    }
+
+    private static RecordingHandler createAmsHandler() {
+        return new RecordingHandler(AMSConstants.SERVICE_UUID,
+                AMSConstants.CHARACTERISTIC_ENTITY_UPDATE, AMSConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE) {
+            @Override
+            public List<String> getCharacteristicsToSubscribe() {
+                // Entity Attribute is read, not subscribed
+                return Arrays.asList(AMSConstants.CHARACTERISTIC_ENTITY_UPDATE);
+            }
+
+            @Override
+            public List<String> getCharacteristicsToHandle() {
+                return Arrays.asList(AMSConstants.CHARACTERISTIC_ENTITY_UPDATE, AMSConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE);
+            }
+        };
+    }
+
+    private static Command createGetAttributesCommand(int UID, int messageMaxLength) {
+        return new Command(ANCSConstants.SERVICE_UUID, ANCSConstants.CHARACTERISTIC_CONTROL_POINT, new byte[] {
+                ANCSConstants.CommandIDGetNotificationAttributes,
+                (byte) UID, (byte) (UID >> 8), (byte) (UID >> 16), (byte) (UID >> 24),
+                ANCSConstants.NotificationAttributeIDAppIdentifier,
+                ANCSConstants.NotificationAttributeIDMessage, (byte) messageMaxLength, (byte) (messageMaxLength >> 8)
+        });
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff)
+                | ((bytes[offset + 1] & 0xff) << 8)
+                | ((bytes[offset + 2] & 0xff) << 16)
+                | ((bytes[offset + 3] & 0xff) << 24);
+    }
+
+}
@@ -0,0 +1,172 @@
+package com.codegy.aerlink.media;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MediaStateTest {
+
+    private MediaModel mModel;
+    private MediaState mState;
+
+
+    @Before
+    public void setUp() {
+        mModel = new MediaModel();
+        update(AMSConstants.EntityIDPlayer, AMSConstants.PlayerAttributeIDName, "Music", 0);
+        update(AMSConstants.EntityIDPlayer, AMSConstants.PlayerAttributeIDPlaybackInfo, "1,1.0,12.5", 0);
+        update(AMSConstants.EntityIDPlayer, AMSConstants.PlayerAttributeIDVolume, "0.5", 0);
+        update(AMSConstants.EntityIDQueue, AMSConstants.QueueAttributeIDIndex, "2", 0);
+        update(AMSConstants.EntityIDQueue, AMSConstants.QueueAttributeIDCount, "10", 0);
+        update(AMSConstants.EntityIDTrack, AMSConstants.TrackAttributeIDArtist, "Artist", 0);
+        update(AMSConstants.EntityIDTrack, AMSConstants.TrackAttributeIDAlbum, "Album", 0);
+        update(AMSConstants.EntityIDTrack, AMSConstants.TrackAttributeIDTitle, "Title", 0);
+        update(AMSConstants.EntityIDTrack, AMSConstants.TrackAttributeIDDuration, "240.0", 0);
+
+        mState = new MediaState(mModel);
+    }
+
+    @Test
+    public void firstStateChangesEverything() {
+        assertEquals(MediaState.CHANGED_ALL, mState.diff(null));
+    }
+
+    @Test
+    public void sameModelChangesNothing() {
+        assertEquals(0, new MediaState(mModel).diff(mState));
+    }
+
+    @Test
+    public void stateIsTakenFromTheModel() {
+        assertEquals("Title", mState.getTitle());
+        assertEquals("Artist", mState.getArtist());
+        assertEquals("Album", mState.getAlbum());
+        assertEquals(240000, mState.getDuration());
+        // The queue index starts at 0
+        assertEquals(3, mState.getTrackNumber());
+        assertEquals(10, mState.getTrackCount());
+        assertEquals(AMSConstants.PlaybackStatePlaying, mState.getPlaybackState());
+        assertEquals(12500, mState.getElapsedTime());
+        assertTrue(mState.hasPlayer());
+        assertTrue(mState.isPlaying());
+    }
+
+    @Test
+    public void metadataChanges() {
+        String[][] updates = {
+                { String.valueOf(AMSConstants.EntityIDTrack), String.valueOf(AMSConstants.TrackAttributeIDTitle), "Another title" },
+                { String.valueOf(AMSConstants.EntityIDTrack), String.valueOf(AMSConstants.TrackAttributeIDArtist), "Another artist" },
+                { String.valueOf(AMSConstants.EntityIDTrack), String.valueOf(AMSConstants.TrackAttributeIDAlbum), "" },
+                { String.valueOf(AMSConstants.EntityIDTrack), String.valueOf(AMSConstants.TrackAttributeIDDuration), "180.5" },
+                { String.valueOf(AMSConstants.EntityIDQueue), String.valueOf(AMSConstants.QueueAttributeIDIndex), "3" },
+                { String.valueOf(AMSConstants.EntityIDQueue), String.valueOf(AMSConstants.QueueAttributeIDCount), "11" }
+        };
+
+        for (String[] update : updates) {
+            setUp();
+            update(Byte.parseByte(update[0]), Byte.parseByte(update[1]), update[2], 0);
+
+            assertEquals(update[2], MediaState.CHANGED_METADATA, new MediaState(mModel).diff(mState));
+        }
+    }
+
+    @Test
+    public void truncationChangesTheMetadata() {
+        mModel.update(AMSConstants.EntityIDTrack, AMSConstants.TrackAttributeIDTitle, AMSConstants.EntityUpdateFlagTruncated, "Title", 0);
+        MediaState truncated = new MediaState(mModel);
+
+        assertEquals("Title...", truncated.getTitle());
+        assertEquals(MediaState.CHANGED_METADATA, truncated.diff(mState));
+
+        // The full value read afterwards
+        mModel.setFullAttribute(AMSConstants.TrackAttributeIDTitle, "Title");
+        assertEquals(MediaState.CHANGED_METADATA, new MediaState(mModel).diff(truncated));
+    }
+
+    @Test
+    public void unknownQueuePositionHasNoTrackNumber() {
+        update(AMSConstants.EntityIDQueue, AMSConstants.QueueAttributeIDCount, "0", 0);
+        MediaState state = new MediaState(mModel);
+
+        assertEquals(-1, state.getTrackNumber());
+        assertEquals(-1, state.getTrackCount());
+        assertEquals(MediaState.CHANGED_METADATA, state.diff(mState));
+    }
+
+    @Test
+    public void seekChangesThePlayback() {
+        update(AMSConstants.EntityIDPlayer, AMSConstants.PlayerAttributeIDPlaybackInfo, "1,1.0,60.0", 1000);
+
+        assertEquals(MediaState.CHANGED_PLAYBACK, new MediaState(mModel).diff(mState));
+    }
+
+    @Test
+    public void rateChangesThePlayback() {
+        update(AMSConstants.EntityIDPlayer, AMSConstants.PlayerAttributeIDPlaybackInfo, "3,2.0,12.5", 0);
+
+        // Fast forwarding is still playing
+        assertEquals(MediaState.CHANGED_PLAYBACK, new MediaState(mModel).diff(mState));
+    }
+
+    @Test
+    public void sameInfoLaterMovesThePosition() {
+        // The reference point of the position is new, the session has to get it
+        update(AMSConstants.EntityIDPlayer, AMSConstants.PlayerAttributeIDPlaybackInfo, "1,1.0,12.5", 5000);
+
+        assertEquals(MediaState.CHANGED_PLAYBACK, new MediaState(mModel).diff(mState));
+    }
+
+    @Test
+    public void pauseChangesThePlayer() {
+        update(AMSConstants.EntityIDPlayer, AMSConstants.PlayerAttributeIDPlaybackInfo, "0,0.0,20.0", 7500);
+        MediaState paused = new MediaState(mModel);
+
+        assertFalse(paused.isPlaying());
+        assertTrue(paused.hasPlayer());
+        assertEquals(MediaState.CHANGED_PLAYBACK | MediaState.CHANGED_PLAYER, paused.diff(mState));
+        assertEquals(MediaState.CHANGED_PLAYBACK | MediaState.CHANGED_PLAYER, mState.diff(paused));
+    }
+
+    @Test
+    public void playerGoingAwayChangesThePlayer() {
+        update(AMSConstants.EntityIDPlayer, AMSConstants.PlayerAttributeIDPlaybackInfo, "", 1000);
+        MediaState gone = new MediaState(mModel);
+
+        assertFalse(gone.hasPlayer());
+        assertEquals(MediaState.CHANGED_PLAYBACK | MediaState.CHANGED_PLAYER, gone.diff(mState));
+    }
+
+    @Test
+    public void clearedModelChangesEverything() {
+        mModel.clear();
+
+        assertEquals(MediaState.CHANGED_ALL, new MediaState(mModel).diff(mState));
+    }
+
+    @Test
+    public void updatesOutsideTheStateChangeNothing() {
+        // Not shown, or shown somewhere else
+        update(AMSConstants.EntityIDPlayer, AMSConstants.PlayerAttributeIDName, "Podcasts", 0);
+        update(AMSConstants.EntityIDPlayer, AMSConstants.PlayerAttributeIDVolume, "0.8", 0);
+        update(AMSConstants.EntityIDQueue, AMSConstants.QueueAttributeIDShuffleMode, "1", 0);
+        update(AMSConstants.EntityIDQueue, AMSConstants.QueueAttributeIDRepeatMode, "2", 0);
+
+        assertEquals(0, new MediaState(mModel).diff(mState));
+    }
+
+    @Test
+    public void repeatedValuesChangeNothing() {
+        assertFalse(mModel.update(AMSConstants.EntityIDTrack, AMSConstants.TrackAttributeIDTitle, (byte) 0, "Title", 0));
+        assertFalse(mModel.update(AMSConstants.EntityIDTrack, AMSConstants.TrackAttributeIDDuration, (byte) 0, "240.0", 0));
+        assertFalse(mModel.update(AMSConstants.EntityIDQueue, AMSConstants.QueueAttributeIDIndex, (byte) 0, "2", 0));
+
+        assertEquals(0, new MediaState(mModel).diff(mState));
+    }
+
+
+    private void update(byte entityId, byte attributeId, String value, long now) {
+        mModel.update(entityId, attributeId, (byte) 0, value, now);
+    }
+
+}
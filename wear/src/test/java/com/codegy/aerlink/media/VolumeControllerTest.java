@@ -0,0 +1,209 @@
+package com.codegy.aerlink.media;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VolumeControllerTest {
+
+    private static final float STEP = VolumeController.STEP;
+
+
+    // Direction of every step sent, in order
+    private final List<Boolean> mSteps = new ArrayList<>();
+    private final List<Float> mPredictions = new ArrayList<>();
+
+    private VolumeController mController;
+
+
+    @Before
+    public void setUp() {
+        mController = new VolumeController(new VolumeController.Callback() {
+            @Override
+            public void onSendStep(boolean up) {
+                mSteps.add(up);
+            }
+
+            @Override
+            public void onVolumePredicted(float volume) {
+                mPredictions.add(volume);
+            }
+        });
+    }
+
+    @Test
+    public void nothingIsPredictedBeforeAVolumeIsReported() {
+        mController.onAdjust(true, 0);
+
+        assertEquals(-1, mController.getPredictedVolume(), 0);
+        assertTrue(mPredictions.isEmpty());
+
+        // Still sent, the phone knows where the volume is
+        mController.send(VolumeController.WINDOW);
+        assertEquals(Arrays.asList(true), mSteps);
+
+        // Without a volume before it the step can't be told apart, it's counted until it times out
+        mController.onVolumeReported(8 * STEP, 100);
+        assertEquals(9 * STEP, mPredictions.get(0), 0.001f);
+    }
+
+    @Test
+    public void ticksInTheWindowAreSentOneStepAtATime() {
+        mController.onVolumeReported(8 * STEP, 0);
+
+        mController.onAdjust(true, 0);
+        mController.onAdjust(true, 10);
+        mController.onAdjust(true, 30);
+
+        // Predicted right away
+        assertEquals(11 * STEP, mController.getPredictedVolume(), 0.001f);
+        // Not moved by the later ticks
+        assertEquals(VolumeController.WINDOW, mController.getNextSendTime());
+
+        mController.send(VolumeController.WINDOW - 1);
+        assertTrue(mSteps.isEmpty());
+
+        mController.send(VolumeController.WINDOW);
+        assertEquals(Arrays.asList(true), mSteps);
+        assertEquals(VolumeController.WINDOW + VolumeController.STEP_TIMEOUT, mController.getNextSendTime());
+
+        // Each step waits for the one before to be reported
+        mController.onVolumeReported(9 * STEP, 100);
+        assertEquals(Arrays.asList(true, true), mSteps);
+        mController.onVolumeReported(10 * STEP, 150);
+        assertEquals(Arrays.asList(true, true, true), mSteps);
+        mController.onVolumeReported(11 * STEP, 200);
+
+        assertEquals(-1, mController.getNextSendTime());
+        assertEquals(3, mController.getTickCount());
+        assertEquals(3, mController.getStepCount());
+        assertEquals(0, mController.getTimeoutCount());
+        // From the last tick
+        assertEquals(170, mController.getAverageLatency());
+        assertEquals(11 * STEP, mController.getPredictedVolume(), 0.001f);
+    }
+
+    @Test
+    public void oppositeTicksCancelStepsNotSent() {
+        mController.onVolumeReported(8 * STEP, 0);
+
+        mController.onAdjust(true, 0);
+        mController.onAdjust(true, 10);
+        mController.onAdjust(false, 20);
+        mController.onAdjust(false, 30);
+
+        assertEquals(8 * STEP, mController.getPredictedVolume(), 0.001f);
+
+        mController.send(VolumeController.WINDOW);
+        assertTrue(mSteps.isEmpty());
+        assertEquals(-1, mController.getNextSendTime());
+    }
+
+    @Test
+    public void oppositeTicksAfterAStepWasSent() {
+        mController.onVolumeReported(8 * STEP, 0);
+
+        mController.onAdjust(true, 0);
+        mController.onAdjust(true, 10);
+        mController.send(VolumeController.WINDOW);
+
+        // Cancels the second one, the first is on its way
+        mController.onAdjust(false, 50);
+        assertEquals(9 * STEP, mController.getPredictedVolume(), 0.001f);
+
+        mController.onVolumeReported(9 * STEP, 100);
+        assertEquals(Arrays.asList(true), mSteps);
+        assertEquals(-1, mController.getNextSendTime());
+    }
+
+    @Test
+    public void stepsPastTheEndsAreNotSent() {
+        mController.onVolumeReported(15 * STEP, 0);
+
+        mController.onAdjust(true, 0);
+        mController.onAdjust(true, 10);
+        mController.onAdjust(true, 20);
+
+        assertEquals(1, mController.getPredictedVolume(), 0.001f);
+        assertEquals(3, mController.getTickCount());
+
+        mController.send(VolumeController.WINDOW);
+        mController.onVolumeReported(1, 100);
+        assertEquals(Arrays.asList(true), mSteps);
+        assertEquals(-1, mController.getNextSendTime());
+
+        // At the bottom
+        mController.onVolumeReported(0, 1000);
+        mController.onAdjust(false, 1000);
+        assertEquals(-1, mController.getNextSendTime());
+        assertEquals(0, mController.getPredictedVolume(), 0.001f);
+    }
+
+    @Test
+    public void volumeBetweenStepsCanStillReachTheEnd() {
+        // Set on the phone to something that isn't a whole step
+        mController.onVolumeReported(0.95f, 0);
+
+        mController.onAdjust(true, 0);
+        assertEquals(1, mController.getPredictedVolume(), 0.001f);
+
+        mController.onAdjust(true, 10);
+        mController.send(VolumeController.WINDOW);
+        assertEquals(1, mSteps.size());
+    }
+
+    @Test
+    public void stepNotReportedTimesOut() {
+        mController.onVolumeReported(8 * STEP, 0);
+
+        mController.onAdjust(false, 0);
+        mController.onAdjust(false, 10);
+        mController.send(VolumeController.WINDOW);
+
+        long timeout = VolumeController.WINDOW + VolumeController.STEP_TIMEOUT;
+        mController.send(timeout - 1);
+        assertEquals(1, mSteps.size());
+
+        // The next one is sent anyway
+        mController.send(timeout);
+        assertEquals(Arrays.asList(false, false), mSteps);
+        assertEquals(1, mController.getTimeoutCount());
+
+        // An input with a timeout has no latency
+        mController.onVolumeReported(6 * STEP, timeout + 50);
+        assertEquals(-1, mController.getNextSendTime());
+        assertEquals(0, mController.getAverageLatency());
+    }
+
+    @Test
+    public void volumeMovedTheOtherWayIsNotTheStep() {
+        mController.onVolumeReported(8 * STEP, 0);
+
+        mController.onAdjust(true, 0);
+        mController.send(VolumeController.WINDOW);
+
+        // Moved down on the phone, the step is still waited for
+        mController.onVolumeReported(4 * STEP, 100);
+        assertEquals(VolumeController.WINDOW + VolumeController.STEP_TIMEOUT, mController.getNextSendTime());
+        assertEquals(5 * STEP, mController.getPredictedVolume(), 0.001f);
+    }
+
+    @Test
+    public void clearForgetsTheVolume() {
+        mController.onVolumeReported(8 * STEP, 0);
+        mController.onAdjust(true, 0);
+        mController.clear();
+
+        assertEquals(-1, mController.getNextSendTime());
+        assertEquals(-1, mController.getPredictedVolume(), 0);
+
+        mController.send(VolumeController.WINDOW);
+        assertTrue(mSteps.isEmpty());
+    }
+
+}
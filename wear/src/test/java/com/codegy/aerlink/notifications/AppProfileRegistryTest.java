@@ -0,0 +1,163 @@
+package com.codegy.aerlink.notifications;
+
+import com.codegy.aerlink.notifications.AppProfileRegistry.AppProfile;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class AppProfileRegistryTest {
+
+    // Unit tests run from the module directory
+    private static final String ASSET_PATH = "src/main/assets/app_profiles.json";
+    // org.json does nothing on the JVM, the bundle ids are the only strings in the "appIds" arrays
+    private static final Pattern APP_IDS = Pattern.compile("\"appIds\"\\s*:\\s*\\[([^\\]]*)\\]");
+    private static final Pattern STRING = Pattern.compile("\"([^\"]+)\"");
+
+
+    @Test
+    public void everyAssetEntryIsFound() throws IOException {
+        Map<String, AppProfile> profiles = readAssetProfiles();
+        assertTrue(profiles.size() > 20);
+
+        AppProfileRegistry registry = new AppProfileRegistry(profiles);
+
+        for (Map.Entry<String, AppProfile> entry : profiles.entrySet()) {
+            assertSame(entry.getKey(), entry.getValue(), registry.get(entry.getKey()));
+            // Found by value, not only by the same instance
+            assertSame(entry.getKey(), entry.getValue(), registry.get(new String(entry.getKey())));
+        }
+    }
+
+    @Test
+    public void unknownAppsAreNotFound() throws IOException {
+        AppProfileRegistry registry = new AppProfileRegistry(readAssetProfiles());
+
+        assertNull(registry.get(null));
+        assertNull(registry.get(""));
+        assertNull(registry.get("com.example.unknown"));
+        // Close to known ones
+        assertNull(registry.get("com.apple.MobileSMS2"));
+        assertNull(registry.get("com.apple.mobilesms"));
+
+        for (int i = 0; i < 10000; i++) {
+            assertNull(registry.get("com.example.app" + i));
+        }
+    }
+
+    @Test
+    public void emptyRegistry() {
+        AppProfileRegistry registry = new AppProfileRegistry(new HashMap<String, AppProfile>());
+
+        assertNull(registry.get("com.apple.MobileSMS"));
+    }
+
+    @Test
+    public void keysWithTheSameHashAreFound() {
+        // "Aa" and "BB" have the same String hash
+        AppProfile first = createProfile();
+        AppProfile second = createProfile();
+
+        Map<String, AppProfile> profiles = new HashMap<>();
+        profiles.put("Aa", first);
+        profiles.put("BB", second);
+        profiles.put("com.apple.MobileSMS", createProfile());
+
+        AppProfileRegistry registry = new AppProfileRegistry(profiles);
+
+        assertSame(first, registry.get("Aa"));
+        assertSame(second, registry.get("BB"));
+        assertNull(registry.get("C#"));
+    }
+
+    @Test
+    public void senderEndsAtColonAndSpace() {
+        assertEquals(4, AppProfileRegistry.findSenderEnd("John: hello"));
+        // The first one, the message can have more
+        assertEquals(4, AppProfileRegistry.findSenderEnd("John: see: this"));
+        // Preferred over an earlier ":\n"
+        assertEquals(11, AppProfileRegistry.findSenderEnd("Group:\nJohn: hello"));
+    }
+
+    @Test
+    public void senderEndsAtColonAndNewLineWithoutSpace() {
+        assertEquals(4, AppProfileRegistry.findSenderEnd("John:\nhello"));
+        assertEquals(4, AppProfileRegistry.findSenderEnd("John:\nsee:\nthis"));
+    }
+
+    @Test
+    public void noSender() {
+        assertEquals(-1, AppProfileRegistry.findSenderEnd(""));
+        assertEquals(-1, AppProfileRegistry.findSenderEnd(":"));
+        assertEquals(-1, AppProfileRegistry.findSenderEnd("hello"));
+        // A time isn't a sender
+        assertEquals(-1, AppProfileRegistry.findSenderEnd("at 10:30"));
+        // The sender can't be empty
+        assertEquals(-1, AppProfileRegistry.findSenderEnd(": hello"));
+        assertEquals(-1, AppProfileRegistry.findSenderEnd(":\nhello"));
+        // Nothing after the colon
+        assertEquals(-1, AppProfileRegistry.findSenderEnd("John:"));
+        assertEquals(-1, AppProfileRegistry.findSenderEnd("hello John:"));
+    }
+
+    @Test
+    public void leadingColonStillFindsALaterSender() {
+        assertEquals(5, AppProfileRegistry.findSenderEnd(":John: hello"));
+    }
+
+    @Test
+    public void colonAndSpaceAtTheEnd() {
+        // Sender with an empty message
+        assertEquals(4, AppProfileRegistry.findSenderEnd("John: "));
+    }
+
+
+    private static AppProfile createProfile() {
+        return new AppProfile(0, false, 0, AppProfileRegistry.SPLIT_NONE);
+    }
+
+    private static Map<String, AppProfile> readAssetProfiles() throws IOException {
+        Map<String, AppProfile> profiles = new HashMap<>();
+        Matcher entries = APP_IDS.matcher(readAsset());
+
+        while (entries.find()) {
+            // One profile for every entry, like parse()
+            AppProfile profile = createProfile();
+
+            Matcher appIds = STRING.matcher(entries.group(1));
+            while (appIds.find()) {
+                profiles.put(appIds.group(1), profile);
+            }
+        }
+
+        return profiles;
+    }
+
+    private static String readAsset() throws IOException {
+        InputStream inputStream = new FileInputStream(ASSET_PATH);
+
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int length;
+
+            while ((length = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, length);
+            }
+
+            return outputStream.toString("UTF-8");
+        }
+        finally {
+            inputStream.close();
+        }
+    }
+
+}
@@ -0,0 +1,223 @@
+package com.codegy.aerlink.notifications;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NotificationCoalescerTest {
+
+    private static final String MESSAGES = "com.apple.MobileSMS";
+    private static final String MAIL = "com.apple.mobilemail";
+
+
+    // "UID:alert:message" for every post, in order
+    private final List<String> mPosts = new ArrayList<>();
+    // App ID and UIDs on the watch for every summary change
+    private final List<String> mSummaryApps = new ArrayList<>();
+    private final List<List<Integer>> mSummaries = new ArrayList<>();
+
+    private NotificationCoalescer mCoalescer;
+
+
+    @Before
+    public void setUp() {
+        mCoalescer = new NotificationCoalescer(new NotificationCoalescer.Callback() {
+            @Override
+            public void onPost(NotificationData notificationData, boolean alert) {
+                mPosts.add(notificationData.getUIDValue() + ":" + alert + ":" + notificationData.getMessage());
+            }
+
+            @Override
+            public void onSummaryChanged(String appId, List<NotificationData> notifications) {
+                List<Integer> UIDs = new ArrayList<>();
+                for (NotificationData notificationData : notifications) {
+                    UIDs.add(notificationData.getUIDValue());
+                }
+
+                mSummaryApps.add(appId);
+                mSummaries.add(UIDs);
+            }
+        });
+    }
+
+    @Test
+    public void firstNotificationIsPostedRightAway() {
+        mCoalescer.offer(create(1, MESSAGES, "a"), true, 0);
+
+        assertEquals(Arrays.asList("1:true:a"), mPosts);
+        assertEquals(NotificationCoalescer.WINDOW, mCoalescer.getNextFlushTime());
+
+        // Alone, it needs no summary
+        mCoalescer.flush(NotificationCoalescer.WINDOW);
+        assertTrue(mSummaries.isEmpty());
+        assertEquals(-1, mCoalescer.getNextFlushTime());
+    }
+
+    @Test
+    public void notificationsInTheWindowWaitForIt() {
+        mCoalescer.offer(create(1, MESSAGES, "a"), true, 0);
+        mCoalescer.offer(create(2, MESSAGES, "b"), true, 500);
+        mCoalescer.offer(create(3, MESSAGES, "c"), true, 1000);
+
+        assertEquals(1, mPosts.size());
+
+        // Nothing before the window ends
+        mCoalescer.flush(NotificationCoalescer.WINDOW - 1);
+        assertEquals(1, mPosts.size());
+
+        mCoalescer.flush(NotificationCoalescer.WINDOW);
+
+        // The first one already alerted
+        assertEquals(Arrays.asList("1:true:a", "2:false:b", "3:false:c"), mPosts);
+        assertEquals(Arrays.asList(Arrays.asList(1, 2, 3)), mSummaries);
+        assertEquals(3, mCoalescer.getPostCount());
+        assertEquals(1, mCoalescer.getAlertCount());
+        assertEquals(1, mCoalescer.getSummaryCount());
+    }
+
+    @Test
+    public void onlyTheNewestQueuedNotificationAlerts() {
+        // The first one is silent, so one of the queued ones can alert
+        mCoalescer.offer(create(1, MESSAGES, "a"), false, 0);
+        mCoalescer.offer(create(2, MESSAGES, "b"), true, 100);
+        mCoalescer.offer(create(3, MESSAGES, "c"), true, 200);
+        mCoalescer.offer(create(4, MESSAGES, "d"), false, 300);
+
+        mCoalescer.flush(NotificationCoalescer.WINDOW);
+
+        assertEquals(Arrays.asList("1:false:a", "2:false:b", "3:true:c", "4:false:d"), mPosts);
+        assertEquals(1, mCoalescer.getAlertCount());
+    }
+
+    @Test
+    public void modifiedNotificationReplacesTheQueuedOne() {
+        mCoalescer.offer(create(1, MESSAGES, "a"), true, 0);
+        mCoalescer.offer(create(2, MESSAGES, "b"), false, 100);
+        mCoalescer.offer(create(3, MESSAGES, "c"), false, 200);
+        mCoalescer.offer(create(2, MESSAGES, "b2"), false, 300);
+
+        mCoalescer.flush(NotificationCoalescer.WINDOW);
+
+        // Posted once, with the last content, in the order it was last offered
+        assertEquals(Arrays.asList("1:true:a", "3:false:c", "2:false:b2"), mPosts);
+        assertEquals(Arrays.asList(Arrays.asList(1, 3, 2)), mSummaries);
+    }
+
+    @Test
+    public void appsHaveTheirOwnWindows() {
+        mCoalescer.offer(create(1, MESSAGES, "a"), true, 0);
+        mCoalescer.offer(create(2, MAIL, "b"), true, 1000);
+        mCoalescer.offer(create(3, MESSAGES, "c"), true, 1200);
+        mCoalescer.offer(create(4, MAIL, "d"), true, 1300);
+
+        // Each app's first one alerts
+        assertEquals(Arrays.asList("1:true:a", "2:true:b"), mPosts);
+        assertEquals(NotificationCoalescer.WINDOW, mCoalescer.getNextFlushTime());
+
+        mCoalescer.flush(NotificationCoalescer.WINDOW);
+        assertEquals(Arrays.asList("1:true:a", "2:true:b", "3:false:c"), mPosts);
+        assertEquals(1000 + NotificationCoalescer.WINDOW, mCoalescer.getNextFlushTime());
+
+        mCoalescer.flush(1000 + NotificationCoalescer.WINDOW);
+        assertEquals(Arrays.asList("1:true:a", "2:true:b", "3:false:c", "4:false:d"), mPosts);
+        assertEquals(Arrays.asList(MESSAGES, MAIL), mSummaryApps);
+        assertEquals(-1, mCoalescer.getNextFlushTime());
+    }
+
+    @Test
+    public void nextWindowAlertsAgain() {
+        mCoalescer.offer(create(1, MESSAGES, "a"), true, 0);
+        mCoalescer.offer(create(2, MESSAGES, "b"), true, 100);
+        mCoalescer.flush(NotificationCoalescer.WINDOW);
+
+        // Opens a new window, posted right away, and with two on the watch it changes the summary at its end
+        mCoalescer.offer(create(3, MESSAGES, "c"), true, 5000);
+        assertEquals("3:true:c", mPosts.get(mPosts.size() - 1));
+        assertEquals(1, mSummaries.size());
+
+        mCoalescer.flush(5000 + NotificationCoalescer.WINDOW);
+        assertEquals(Arrays.asList(1, 2, 3), mSummaries.get(1));
+        assertEquals(2, mCoalescer.getAlertCount());
+    }
+
+    @Test
+    public void summaryIsRemovedBelowTwoNotifications() {
+        mCoalescer.offer(create(1, MESSAGES, "a"), true, 0);
+        mCoalescer.offer(create(2, MESSAGES, "b"), true, 100);
+        mCoalescer.flush(NotificationCoalescer.WINDOW);
+
+        // Outside a window the summary changes right away
+        mCoalescer.remove(1);
+        assertEquals(Arrays.asList(2), mSummaries.get(mSummaries.size() - 1));
+
+        mCoalescer.remove(2);
+        assertEquals(Arrays.<Integer>asList(), mSummaries.get(mSummaries.size() - 1));
+        assertEquals(3, mSummaries.size());
+
+        // The app is forgotten, the next one is alone again
+        mCoalescer.offer(create(3, MESSAGES, "c"), true, 5000);
+        mCoalescer.flush(5000 + NotificationCoalescer.WINDOW);
+        assertEquals(3, mSummaries.size());
+    }
+
+    @Test
+    public void removeDuringTheWindow() {
+        mCoalescer.offer(create(1, MESSAGES, "a"), true, 0);
+        mCoalescer.offer(create(2, MESSAGES, "b"), true, 100);
+        mCoalescer.offer(create(3, MESSAGES, "c"), true, 200);
+
+        // A queued one is never posted, a posted one waits for the window to update the summary
+        mCoalescer.remove(2);
+        mCoalescer.remove(1);
+        assertTrue(mSummaries.isEmpty());
+
+        mCoalescer.flush(NotificationCoalescer.WINDOW);
+
+        assertEquals(Arrays.asList("1:true:a", "3:false:c"), mPosts);
+        assertEquals(Arrays.asList(Arrays.asList(3)), mSummaries);
+    }
+
+    @Test
+    public void removingTheOnlyPostedOneDuringTheWindow() {
+        mCoalescer.offer(create(1, MESSAGES, "a"), true, 0);
+        mCoalescer.remove(1);
+
+        mCoalescer.flush(NotificationCoalescer.WINDOW);
+
+        assertEquals(Arrays.asList(Arrays.<Integer>asList()), mSummaries);
+        assertEquals(-1, mCoalescer.getNextFlushTime());
+    }
+
+    @Test
+    public void unknownRemovesAreIgnored() {
+        mCoalescer.offer(create(1, MESSAGES, "a"), true, 0);
+        mCoalescer.remove(42);
+        mCoalescer.flush(NotificationCoalescer.WINDOW);
+
+        assertTrue(mSummaries.isEmpty());
+    }
+
+    @Test
+    public void clearForgetsEverything() {
+        mCoalescer.offer(create(1, MESSAGES, "a"), true, 0);
+        mCoalescer.offer(create(2, MESSAGES, "b"), true, 100);
+        mCoalescer.clear();
+
+        assertEquals(-1, mCoalescer.getNextFlushTime());
+        mCoalescer.flush(NotificationCoalescer.WINDOW);
+        assertEquals(1, mPosts.size());
+    }
+
+
+    private static NotificationData create(int UID, String appId, String message) {
+        byte[] UIDBytes = { (byte) UID, (byte) (UID >> 8), (byte) (UID >> 16), (byte) (UID >> 24) };
+
+        return new NotificationData(UIDBytes, appId, "Title", message, "", "");
+    }
+
+}
@@ -0,0 +1,245 @@
+package com.codegy.aerlink.notifications;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds Get Notification Attributes responses to the processor cut at every fragment boundary
+ */
+public class NotificationPacketProcessorTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Default ATT MTU, 20 bytes of payload per notification
+    private static final int PACKET_LENGTH = 20;
+
+    private static final byte[] UID = { 0x2a, 0x01, 0x00, 0x00 };
+    private static final String APP_ID = "com.apple.MobileSMS";
+    private static final String TITLE = "Alice";
+    private static final String MESSAGE = "Are we still on for lunch tomorrow? I can book the usual place";
+
+
+    private NotificationPacketProcessor mProcessor;
+
+
+    @Before
+    public void setUp() {
+        mProcessor = new NotificationPacketProcessor(new AppProfileRegistry(new HashMap<String, AppProfileRegistry.AppProfile>()));
+    }
+
+    @Test
+    public void singlePacket() {
+        NotificationData notificationData = createNotification(false);
+        mProcessor.reset(notificationData);
+
+        mProcessor.process(createResponse(false));
+
+        assertTrue(mProcessor.hasFinishedProcessing());
+        assertAttributes(notificationData, false);
+    }
+
+    @Test
+    public void mtuFragments() {
+        NotificationData notificationData = createNotification(true);
+        mProcessor.reset(notificationData);
+
+        byte[] response = createResponse(true);
+        for (int offset = 0; offset < response.length; offset += PACKET_LENGTH) {
+            assertFalse(mProcessor.hasFinishedProcessing());
+
+            mProcessor.process(Arrays.copyOfRange(response, offset, Math.min(response.length, offset + PACKET_LENGTH)));
+        }
+
+        assertTrue(mProcessor.hasFinishedProcessing());
+        assertAttributes(notificationData, true);
+    }
+
+    @Test
+    public void everySplitPoint() {
+        byte[] response = createResponse(true);
+
+        // Covers splits inside the response header, every attribute header and every value
+        for (int split = 1; split < response.length; split++) {
+            NotificationData notificationData = createNotification(true);
+            mProcessor.reset(notificationData);
+
+            mProcessor.process(Arrays.copyOfRange(response, 0, split));
+            assertFalse("split at " + split, mProcessor.hasFinishedProcessing());
+
+            mProcessor.process(Arrays.copyOfRange(response, split, response.length));
+            assertTrue("split at " + split, mProcessor.hasFinishedProcessing());
+            assertAttributes(notificationData, true);
+        }
+    }
+
+    @Test
+    public void oneBytePackets() {
+        NotificationData notificationData = createNotification(true);
+        mProcessor.reset(notificationData);
+
+        for (byte b : createResponse(true)) {
+            mProcessor.process(new byte[] { b });
+        }
+
+        assertTrue(mProcessor.hasFinishedProcessing());
+        assertAttributes(notificationData, true);
+    }
+
+    @Test
+    public void splitResponseHeader() {
+        NotificationData notificationData = createNotification(false);
+        mProcessor.reset(notificationData);
+
+        byte[] response = createResponse(false);
+        // CommandID and two bytes of the UID, then the rest
+        mProcessor.process(Arrays.copyOfRange(response, 0, 3));
+        mProcessor.process(Arrays.copyOfRange(response, 3, 4));
+        mProcessor.process(Arrays.copyOfRange(response, 4, response.length));
+
+        assertTrue(mProcessor.hasFinishedProcessing());
+        assertAttributes(notificationData, false);
+    }
+
+    @Test
+    public void splitAttributeHeader() {
+        NotificationData notificationData = createNotification(false);
+        mProcessor.reset(notificationData);
+
+        byte[] response = createResponse(false);
+        // Response header, then the App Identifier ID and the first byte of its length
+        mProcessor.process(Arrays.copyOfRange(response, 0, 7));
+        mProcessor.process(Arrays.copyOfRange(response, 7, response.length));
+
+        assertTrue(mProcessor.hasFinishedProcessing());
+        assertAttributes(notificationData, false);
+    }
+
+    @Test
+    public void emptyAttributesAndLongMessage() {
+        NotificationData notificationData = createNotification(false);
+        mProcessor.reset(notificationData);
+
+        char[] longMessage = new char[1000];
+        Arrays.fill(longMessage, 'a');
+
+        ByteArrayOutputStream response = createResponseHeader();
+        writeAttribute(response, ANCSConstants.NotificationAttributeIDAppIdentifier, APP_ID);
+        writeAttribute(response, ANCSConstants.NotificationAttributeIDTitle, "");
+        writeAttribute(response, ANCSConstants.NotificationAttributeIDMessage, new String(longMessage));
+        writeAttribute(response, ANCSConstants.NotificationAttributeIDMessageSize, "1000");
+        byte[] data = response.toByteArray();
+
+        for (int offset = 0; offset < data.length; offset += PACKET_LENGTH) {
+            mProcessor.process(Arrays.copyOfRange(data, offset, Math.min(data.length, offset + PACKET_LENGTH)));
+        }
+
+        assertTrue(mProcessor.hasFinishedProcessing());
+        assertEquals("", notificationData.getTitle());
+        assertEquals(new String(longMessage), notificationData.getMessage());
+        assertEquals(1000, notificationData.getMessageSize());
+    }
+
+    @Test
+    public void expansion() {
+        NotificationData expansion = createNotification(false).createExpansion();
+        mProcessor.reset(expansion);
+
+        ByteArrayOutputStream response = createResponseHeader();
+        writeAttribute(response, ANCSConstants.NotificationAttributeIDAppIdentifier, APP_ID);
+        writeAttribute(response, ANCSConstants.NotificationAttributeIDMessage, MESSAGE);
+        mProcessor.process(response.toByteArray());
+
+        assertTrue(mProcessor.hasFinishedProcessing());
+        assertEquals(MESSAGE, expansion.getMessage());
+        // Compared with the Message Size to know if the whole message arrived
+        assertEquals(MESSAGE.getBytes(UTF8).length, mProcessor.getMessageLength());
+
+        mProcessor.reset(null);
+        assertEquals(-1, mProcessor.getMessageLength());
+    }
+
+    @Test
+    public void reusedForTheNextResponse() {
+        byte[] response = createResponse(false);
+
+        for (int i = 0; i < 3; i++) {
+            NotificationData notificationData = createNotification(false);
+            mProcessor.reset(notificationData);
+
+            mProcessor.process(Arrays.copyOfRange(response, 0, 11));
+            mProcessor.process(Arrays.copyOfRange(response, 11, response.length));
+
+            assertTrue(mProcessor.hasFinishedProcessing());
+            assertAttributes(notificationData, false);
+        }
+
+        mProcessor.reset(null);
+        assertTrue(mProcessor.hasFinishedProcessing());
+    }
+
+
+    private static NotificationData createNotification(boolean withActions) {
+        // Notification Added, Social category
+        return new NotificationData(new byte[] {
+                ANCSConstants.EventIDNotificationAdded,
+                (byte) (withActions ? 8 | 16 : 0),
+                4,
+                1,
+                UID[0], UID[1], UID[2], UID[3]
+        });
+    }
+
+    private static byte[] createResponse(boolean withActions) {
+        ByteArrayOutputStream response = createResponseHeader();
+
+        writeAttribute(response, ANCSConstants.NotificationAttributeIDAppIdentifier, APP_ID);
+        writeAttribute(response, ANCSConstants.NotificationAttributeIDTitle, TITLE);
+        writeAttribute(response, ANCSConstants.NotificationAttributeIDMessage, MESSAGE);
+        writeAttribute(response, ANCSConstants.NotificationAttributeIDMessageSize, String.valueOf(MESSAGE.length()));
+
+        if (withActions) {
+            writeAttribute(response, ANCSConstants.NotificationAttributeIDPositiveActionLabel, "Reply");
+            writeAttribute(response, ANCSConstants.NotificationAttributeIDNegativeActionLabel, "Clear");
+        }
+
+        return response.toByteArray();
+    }
+
+    private static ByteArrayOutputStream createResponseHeader() {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        response.write(ANCSConstants.CommandIDGetNotificationAttributes);
+        response.write(UID, 0, UID.length);
+
+        return response;
+    }
+
+    private static void writeAttribute(ByteArrayOutputStream response, byte attributeId, String value) {
+        byte[] bytes = value.getBytes(UTF8);
+
+        response.write(attributeId);
+        // Little endian
+        response.write(bytes.length & 0xff);
+        response.write((bytes.length >> 8) & 0xff);
+        response.write(bytes, 0, bytes.length);
+    }
+
+    private static void assertAttributes(NotificationData notificationData, boolean withActions) {
+        assertEquals(APP_ID, notificationData.getAppId());
+        assertEquals(TITLE, notificationData.getTitle());
+        assertEquals(MESSAGE, notificationData.getMessage());
+        assertEquals(MESSAGE.length(), notificationData.getMessageSize());
+
+        if (withActions) {
+            assertEquals("Reply", notificationData.getPositiveAction());
+            assertEquals("Clear", notificationData.getNegativeAction());
+        }
+    }
+
+}
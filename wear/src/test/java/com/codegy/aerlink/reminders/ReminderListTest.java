@@ -0,0 +1,251 @@
+package com.codegy.aerlink.reminders;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReminderListTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int FLAG_TITLE = 1;
+    private static final int RECORD_COMPLETED = 1;
+    private static final int RECORD_TITLE = 1 << 1;
+    private static final int RECORD_POSITION = 1 << 2;
+
+
+    @Test
+    public void wholeList() {
+        ReminderList list = new ReminderList();
+
+        assertTrue(list.applyDelta(createWholeList(), createWholeList().length));
+
+        assertEquals(3, list.getVersion());
+        assertEquals("Groceries", list.getTitle());
+        assertFalse(list.isLegacy());
+        assertItems(list, "0 Milk", "1 Eggs", "X 2 Bread");
+    }
+
+    @Test
+    public void roundTrip() {
+        ReminderList list = new ReminderList();
+        list.applyDelta(createWholeList(), createWholeList().length);
+
+        byte[] encoded = list.encode();
+        ReminderList decoded = new ReminderList();
+
+        assertTrue(decoded.applyDelta(encoded, encoded.length));
+        assertEquals(list.getVersion(), decoded.getVersion());
+        assertEquals(list.getTitle(), decoded.getTitle());
+        assertItems(decoded, "0 Milk", "1 Eggs", "X 2 Bread");
+        assertArrayEquals(encoded, decoded.encode());
+    }
+
+    @Test
+    public void incrementalDelta() {
+        ReminderList list = new ReminderList();
+        list.applyDelta(createWholeList(), createWholeList().length);
+
+        ByteArrayOutputStream delta = createHeader(3, 4, 0);
+        // Eggs removed
+        writeVarint(delta, 1);
+        writeVarint(delta, 11);
+        // Milk completed keeping its title, Butter added at the end
+        writeVarint(delta, 2);
+        writeVarint(delta, 10);
+        delta.write(RECORD_COMPLETED);
+        writeVarint(delta, 13);
+        delta.write(RECORD_TITLE | RECORD_POSITION);
+        writeVarint(delta, 3);
+        writeString(delta, "Butter");
+        byte[] data = delta.toByteArray();
+
+        assertTrue(list.applyDelta(data, data.length));
+
+        assertEquals(4, list.getVersion());
+        assertEquals("Groceries", list.getTitle());
+        assertItems(list, "3 Butter", "X 0 Milk", "X 2 Bread");
+    }
+
+    @Test
+    public void wrongBaseVersion() {
+        ReminderList list = new ReminderList();
+        list.applyDelta(createWholeList(), createWholeList().length);
+        byte[] before = list.encode();
+
+        ByteArrayOutputStream delta = createHeader(2, 4, 0);
+        writeVarint(delta, 1);
+        writeVarint(delta, 10);
+        writeVarint(delta, 0);
+        byte[] data = delta.toByteArray();
+
+        assertFalse(list.applyDelta(data, data.length));
+        assertArrayEquals(before, list.encode());
+    }
+
+    @Test
+    public void truncatedDelta() {
+        byte[] data = createWholeList();
+
+        for (int length = 1; length < data.length; length++) {
+            ReminderList list = new ReminderList();
+            list.applyDelta(createWholeList(), data.length);
+
+            // Another version, so anything applied from a cut delta would show
+            byte[] changed = Arrays.copyOf(data, data.length);
+            changed[2] = 7;
+            byte[] before = list.encode();
+
+            try {
+                list.applyDelta(changed, length);
+                fail("Applied " + length + " of " + data.length + " bytes");
+            }
+            catch (IllegalArgumentException e) {
+                assertArrayEquals("Changed by " + length + " bytes", before, list.encode());
+            }
+        }
+    }
+
+    @Test
+    public void unknownFormat() {
+        ReminderList list = new ReminderList();
+        byte[] data = "[\"Groceries\"]".getBytes(UTF8);
+
+        try {
+            list.applyDelta(data, data.length);
+            fail();
+        }
+        catch (IllegalArgumentException e) {
+            assertEquals(0, list.getVersion());
+            assertEquals(0, list.size());
+        }
+    }
+
+    @Test
+    public void varintTooLong() {
+        ReminderList list = new ReminderList();
+        list.applyDelta(createWholeList(), createWholeList().length);
+        byte[] before = list.encode();
+
+        // Base version 0, then a version in six bytes
+        byte[] data = { ReminderList.FORMAT_DELTA, 0, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01, 0, 0, 0 };
+
+        try {
+            list.applyDelta(data, data.length);
+            fail();
+        }
+        catch (IllegalArgumentException e) {
+            assertEquals(3, list.getVersion());
+            assertArrayEquals(before, list.encode());
+        }
+    }
+
+    @Test
+    public void negativeLength() {
+        ReminderList list = new ReminderList();
+        list.applyDelta(createWholeList(), createWholeList().length);
+        byte[] before = list.encode();
+
+        ByteArrayOutputStream delta = createHeader(0, 5, FLAG_TITLE);
+        // Title length -1 in five bytes
+        delta.write(new byte[] { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f }, 0, 5);
+        delta.write(new byte[8], 0, 8);
+        byte[] data = delta.toByteArray();
+
+        try {
+            list.applyDelta(data, data.length);
+            fail();
+        }
+        catch (IllegalArgumentException e) {
+            assertArrayEquals(before, list.encode());
+        }
+    }
+
+    @Test
+    public void countLargerThanData() {
+        ReminderList list = new ReminderList();
+
+        ByteArrayOutputStream delta = createHeader(0, 1, 0);
+        writeVarint(delta, 0);
+        writeVarint(delta, Integer.MAX_VALUE);
+        byte[] data = delta.toByteArray();
+
+        try {
+            list.applyDelta(data, data.length);
+            fail();
+        }
+        catch (IllegalArgumentException e) {
+            assertEquals(0, list.getVersion());
+        }
+    }
+
+
+    private static byte[] createWholeList() {
+        ByteArrayOutputStream delta = createHeader(0, 3, FLAG_TITLE);
+        writeString(delta, "Groceries");
+
+        writeVarint(delta, 0);
+        writeVarint(delta, 3);
+
+        // IDs don't follow positions, Bread is completed
+        writeVarint(delta, 10);
+        delta.write(RECORD_TITLE | RECORD_POSITION);
+        writeVarint(delta, 0);
+        writeString(delta, "Milk");
+        writeVarint(delta, 11);
+        delta.write(RECORD_TITLE);
+        writeString(delta, "Eggs");
+        writeVarint(delta, 12);
+        delta.write(RECORD_TITLE | RECORD_COMPLETED);
+        writeString(delta, "Bread");
+
+        return delta.toByteArray();
+    }
+
+    private static ByteArrayOutputStream createHeader(int baseVersion, int version, int flags) {
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        delta.write(ReminderList.FORMAT_DELTA);
+        writeVarint(delta, baseVersion);
+        writeVarint(delta, version);
+        delta.write(flags);
+
+        return delta;
+    }
+
+    private static void writeString(ByteArrayOutputStream output, String value) {
+        byte[] bytes = value.getBytes(UTF8);
+
+        writeVarint(output, bytes.length);
+        output.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream output, int value) {
+        while ((value & ~0x7f) != 0) {
+            output.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+
+        output.write(value);
+    }
+
+    /**
+     * @param expected every item in the order shown, as position and title, prefixed with "X " if completed
+     */
+    private static void assertItems(ReminderList list, String... expected) {
+        List<ReminderItem> items = list.getItems();
+        String[] actual = new String[items.size()];
+
+        for (int i = 0; i < items.size(); i++) {
+            ReminderItem item = items.get(i);
+            actual[i] = (item.isCompleted() ? "X " : "") + item.getPosition() + " " + item.getTitle();
+        }
+
+        assertArrayEquals(expected, actual);
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.codegy.aerlink.utils;
+
+import com.codegy.aerlink.ALSConstants;
+import com.codegy.aerlink.battery.BASConstants;
+import com.codegy.aerlink.media.AMSConstants;
+import com.codegy.aerlink.notifications.ANCSConstants;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Routing of CharacteristicDispatcher, its cost is measured on the watch by CharacteristicDispatcherBenchmark
+ */
+public class CharacteristicDispatcherTest {
+
+    private static class CountingHandler extends ServiceHandler {
+        private final List<String> mCharacteristics;
+        private final List<String> mExtraCharacteristics;
+        int mHandled;
+
+        CountingHandler(String... characteristics) {
+            this(Arrays.asList(characteristics), null);
+        }
+
+        CountingHandler(List<String> characteristics, List<String> extraCharacteristics) {
+            mCharacteristics = characteristics;
+            mExtraCharacteristics = extraCharacteristics;
+        }
+
+        @Override
+        public List<String> getCharacteristicsToSubscribe() {
+            return mCharacteristics;
+        }
+
+        @Override
+        public List<String> getCharacteristicsToHandle() {
+            return mExtraCharacteristics != null ? mExtraCharacteristics : super.getCharacteristicsToHandle();
+        }
+
+        @Override
+        public void handleCharacteristic(UUID characteristicUUID, byte[] value) {
+            mHandled++;
+        }
+    }
+
+
+    @Test
+    public void routesEveryCharacteristic() {
+        CountingHandler[] handlers = {
+                new CountingHandler(ANCSConstants.CHARACTERISTIC_DATA_SOURCE, ANCSConstants.CHARACTERISTIC_NOTIFICATION_SOURCE),
+                new CountingHandler(BASConstants.CHARACTERISTIC_BATTERY_LEVEL),
+                new CountingHandler(ALSConstants.CHARACTERISTIC_CAMERA_REMOTE_DATA, ALSConstants.CHARACTERISTIC_CAMERA_REMOTE_ACTION)
+        };
+        CharacteristicDispatcher dispatcher = new CharacteristicDispatcher();
+
+        for (CountingHandler handler : handlers) {
+            dispatcher.register(handler);
+        }
+
+        for (CountingHandler handler : handlers) {
+            for (String characteristic : handler.getCharacteristicsToSubscribe()) {
+                int handled = handler.mHandled;
+
+                // Android gives upper case UUIDs for some devices, UUID equality doesn't care
+                assertTrue(dispatcher.dispatch(UUID.fromString(characteristic.toUpperCase(Locale.US)), new byte[20]));
+                assertEquals(handled + 1, handler.mHandled);
+            }
+        }
+
+        assertFalse(dispatcher.dispatch(UUID.fromString(ANCSConstants.CHARACTERISTIC_CONTROL_POINT), new byte[20]));
+    }
+
+    @Test
+    public void routesCharacteristicsThatAreOnlyRead() {
+        CountingHandler handler = new CountingHandler(
+                Arrays.asList(AMSConstants.CHARACTERISTIC_ENTITY_UPDATE),
+                Arrays.asList(AMSConstants.CHARACTERISTIC_ENTITY_UPDATE, AMSConstants.CHARACTERISTIC_ENTITY_ATTRIBUTE));
+        CharacteristicDispatcher dispatcher = new CharacteristicDispatcher();
+        dispatcher.register(handler);
+
+        assertTrue(dispatcher.dispatch(AMSConstants.ENTITY_ATTRIBUTE_UUID, new byte[0]));
+        assertEquals(1, handler.mHandled);
+    }
+
+    @Test
+    public void handlersWithoutCharacteristicsAreSkipped() {
+        CharacteristicDispatcher dispatcher = new CharacteristicDispatcher();
+        dispatcher.register(new ServiceHandler() {});
+
+        assertFalse(dispatcher.dispatch(ANCSConstants.DATA_SOURCE_UUID, new byte[20]));
+    }
+
+    @Test
+    public void clearRemovesEveryHandler() {
+        CountingHandler handler = new CountingHandler(ANCSConstants.CHARACTERISTIC_DATA_SOURCE);
+        CharacteristicDispatcher dispatcher = new CharacteristicDispatcher();
+        dispatcher.register(handler);
+        dispatcher.clear();
+
+        assertFalse(dispatcher.dispatch(ANCSConstants.DATA_SOURCE_UUID, new byte[20]));
+        assertEquals(0, handler.mHandled);
+    }
+
+}
@@ -0,0 +1,165 @@
+package com.codegy.aerlink.utils;
+
+import com.codegy.aerlink.utils.PowerBudget.Reason;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Decisions and accounting of PowerBudget, through its ledger with the time passed in
+ */
+public class PowerBudgetTest {
+
+    private static final long[] PATTERN = { 100, 400, 200, 300 };
+
+
+    @Test
+    public void wakesAreLimitedAndRefilled() {
+        PowerBudget.Ledger ledger = new PowerBudget.Ledger(0);
+        long now = 0;
+
+        // Each wake ends before the next one, so none is merged
+        for (int i = 0; i < PowerBudget.WAKE_CAPACITY; i++) {
+            assertTrue(ledger.wakeScreen(Reason.Notification, 1000, now));
+            now += 2000;
+        }
+
+        assertFalse(ledger.wakeScreen(Reason.Notification, 1000, now));
+        assertEquals(now, ledger.getLockUntil(now));
+
+        assertTrue(ledger.wakeScreen(Reason.Notification, 1000, PowerBudget.WAKE_REFILL_INTERVAL));
+
+        PowerBudget.Account account = ledger.getAccounts(60000)[Reason.Notification.ordinal()];
+        assertEquals(4, account.getWakeCount());
+        assertEquals(1, account.getDeniedWakeCount());
+        assertEquals(0, account.getMergedWakeCount());
+        assertEquals(4000, account.getScreenTime());
+        assertEquals(4000, ledger.getScreenTime(60000));
+    }
+
+    @Test
+    public void wakesWhileTheScreenIsOnAreMerged() {
+        PowerBudget.Ledger ledger = new PowerBudget.Ledger(0);
+
+        assertTrue(ledger.wakeScreen(Reason.Notification, 2000, 0));
+        assertTrue(ledger.wakeScreen(Reason.Battery, 2000, 1000));
+
+        // Extended, but not past the merge window since the screen turned on
+        assertEquals(PowerBudget.MAX_MERGED_HOLD, ledger.getLockUntil(1000));
+
+        // Merged wakes don't take from the budget
+        for (int i = 0; i < 10; i++) {
+            assertTrue(ledger.wakeScreen(Reason.Notification, 2000, 1500));
+        }
+        assertEquals(PowerBudget.MAX_MERGED_HOLD, ledger.getLockUntil(1500));
+
+        PowerBudget.Account[] accounts = ledger.getAccounts(10000);
+        assertEquals(1, accounts[Reason.Notification.ordinal()].getWakeCount());
+        assertEquals(10, accounts[Reason.Notification.ordinal()].getMergedWakeCount());
+        assertEquals(1, accounts[Reason.Battery.ordinal()].getMergedWakeCount());
+        // Each reason from its own request, the screen once
+        assertEquals(PowerBudget.MAX_MERGED_HOLD, accounts[Reason.Notification.ordinal()].getScreenTime());
+        assertEquals(PowerBudget.MAX_MERGED_HOLD - 1000, accounts[Reason.Battery.ordinal()].getScreenTime());
+        assertEquals(PowerBudget.MAX_MERGED_HOLD, ledger.getScreenTime(10000));
+
+        // The window is over, the next wake is a new one
+        assertTrue(ledger.wakeScreen(Reason.Notification, 2000, 10000));
+        assertEquals(2, ledger.getAccounts(10000)[Reason.Notification.ordinal()].getWakeCount());
+    }
+
+    @Test
+    public void mergedWakeNeverShortensTheScreen() {
+        PowerBudget.Ledger ledger = new PowerBudget.Ledger(0);
+
+        assertTrue(ledger.wakeScreen(Reason.Notification, 2500, 0));
+        assertTrue(ledger.wakeScreen(Reason.Notification, 100, 500));
+
+        assertEquals(2500, ledger.getLockUntil(500));
+    }
+
+    @Test
+    public void screenHeldForACallIsNeverLimited() {
+        PowerBudget.Ledger ledger = new PowerBudget.Ledger(0);
+
+        ledger.acquireScreen(Reason.Call, 0);
+        assertEquals(PowerBudget.INDEFINITELY, ledger.getLockUntil(0));
+
+        // Acquired again while held it's the same wake
+        ledger.acquireScreen(Reason.Call, 1000);
+
+        // Notifications during the call are merged into it
+        assertTrue(ledger.wakeScreen(Reason.Notification, 1000, 2000));
+        assertEquals(PowerBudget.INDEFINITELY, ledger.getLockUntil(2000));
+
+        ledger.releaseScreen(Reason.Call, 60000);
+        assertEquals(60000, ledger.getLockUntil(60000));
+
+        PowerBudget.Account call = ledger.getAccounts(70000)[Reason.Call.ordinal()];
+        assertEquals(1, call.getWakeCount());
+        assertEquals(60000, call.getScreenTime());
+        assertEquals(60000, ledger.getScreenTime(70000));
+    }
+
+    @Test
+    public void releaseKeepsOtherReasons() {
+        PowerBudget.Ledger ledger = new PowerBudget.Ledger(0);
+
+        ledger.acquireScreen(Reason.Camera, 0);
+        ledger.acquireScreen(Reason.Call, 1000);
+        ledger.releaseScreen(Reason.Camera, 2000);
+
+        assertEquals(PowerBudget.INDEFINITELY, ledger.getLockUntil(2000));
+
+        ledger.releaseScreen(Reason.Call, 5000);
+        assertEquals(5000, ledger.getLockUntil(5000));
+        assertEquals(5000, ledger.getScreenTime(5000));
+    }
+
+    @Test
+    public void vibrationsAreLimitedAndMerged() {
+        PowerBudget.Ledger ledger = new PowerBudget.Ledger(0);
+        long now = 0;
+
+        assertTrue(ledger.requestVibration(Reason.Notification, PATTERN, now));
+        // While the pattern is playing
+        assertFalse(ledger.requestVibration(Reason.Battery, PATTERN, now + 999));
+
+        for (int i = 1; i < PowerBudget.VIBRATION_CAPACITY; i++) {
+            now += 1000;
+            assertTrue(ledger.requestVibration(Reason.Notification, PATTERN, now));
+        }
+
+        now += 1000;
+        assertFalse(ledger.requestVibration(Reason.Notification, PATTERN, now));
+        assertTrue(ledger.requestVibration(Reason.Notification, PATTERN, PowerBudget.VIBRATION_REFILL_INTERVAL));
+
+        PowerBudget.Account[] accounts = ledger.getAccounts(now);
+        PowerBudget.Account notification = accounts[Reason.Notification.ordinal()];
+        assertEquals(5, notification.getVibrationCount());
+        assertEquals(1, notification.getDeniedVibrationCount());
+        assertEquals(5 * 700, notification.getVibrationTime());
+        assertEquals(1, accounts[Reason.Battery.ordinal()].getMergedVibrationCount());
+    }
+
+    @Test
+    public void ringMergesVibrationsAndCountsItsOnTime() {
+        PowerBudget.Ledger ledger = new PowerBudget.Ledger(0);
+
+        ledger.startVibration(Reason.Call, PATTERN, 0);
+        assertFalse(ledger.requestVibration(Reason.Notification, PATTERN, 500));
+
+        // Two full repetitions and 300 ms of the third, 200 of them on
+        assertEquals(2 * 700 + 200, ledger.getAccounts(2300)[Reason.Call.ordinal()].getVibrationTime());
+
+        // Only the reason that started it stops it
+        assertFalse(ledger.stopVibration(Reason.Notification, 2500));
+        assertTrue(ledger.stopVibration(Reason.Call, 2500));
+
+        PowerBudget.Account call = ledger.getAccounts(10000)[Reason.Call.ordinal()];
+        assertEquals(1, call.getVibrationCount());
+        assertEquals(2 * 700 + 400, call.getVibrationTime());
+
+        assertTrue(ledger.requestVibration(Reason.Notification, PATTERN, 3000));
+    }
+
+}
@@ -0,0 +1,321 @@
+package com.codegy.aerlink.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+
+    /**
+     * Keeps the times it fired at, the clock is the one the test drives the wheel with
+     */
+    private static class RecordingTimer implements Runnable {
+        final long[] mClock;
+        final List<Long> mFiredAt = new ArrayList<>();
+        final TimerWheel.Timer mTimer = new TimerWheel.Timer(this);
+        long mDeadline;
+        long mTolerance;
+
+        RecordingTimer(long[] clock) {
+            mClock = clock;
+        }
+
+        @Override
+        public void run() {
+            mFiredAt.add(mClock[0]);
+        }
+
+        void schedule(TimerWheel wheel, long delay, long tolerance) {
+            mDeadline = mClock[0] + delay;
+            mTolerance = tolerance;
+            wheel.schedule(mTimer, mClock[0], delay, tolerance);
+        }
+    }
+
+
+    @Test
+    public void timersNeverFireEarly() {
+        Random random = new Random(42);
+        long[] clock = { 12345 };
+        TimerWheel wheel = new TimerWheel(clock[0]);
+        List<RecordingTimer> timers = new ArrayList<>();
+
+        for (int i = 0; i < 2000; i++) {
+            RecordingTimer timer = new RecordingTimer(clock);
+            // From the first level to the last one
+            long delay = (long) Math.pow(10, random.nextDouble() * 8);
+            timer.schedule(wheel, delay, random.nextInt(3) == 0 ? 0 : random.nextInt(2000));
+            timers.add(timer);
+        }
+
+        runUntilIdle(wheel, clock);
+
+        assertEquals(0, wheel.getCount());
+        assertEquals(timers.size(), wheel.getExpiredCount());
+
+        for (RecordingTimer timer : timers) {
+            assertEquals(1, timer.mFiredAt.size());
+
+            long firedAt = timer.mFiredAt.get(0);
+            assertTrue(firedAt >= timer.mDeadline);
+            // Rounded up to the tick, and then to a granularity that fits in the tolerance
+            assertTrue(firedAt < timer.mDeadline + timer.mTolerance + TimerWheel.TICK);
+        }
+    }
+
+    @Test
+    public void timersNeverFireEarlyWithCoarseAdvances() {
+        long[] clock = { 0 };
+        TimerWheel wheel = new TimerWheel(clock[0]);
+        RecordingTimer timer = new RecordingTimer(clock);
+        timer.schedule(wheel, 995, 0);
+
+        clock[0] = 990;
+        assertEquals(0, wheel.advance(clock[0]));
+        assertTrue(timer.mFiredAt.isEmpty());
+
+        // Still before the deadline, even on the tick it belongs to
+        clock[0] = 999;
+        assertEquals(0, wheel.advance(clock[0]));
+
+        clock[0] = 1000;
+        assertEquals(1, wheel.advance(clock[0]));
+        assertEquals(1, timer.mFiredAt.size());
+    }
+
+    @Test
+    public void cancelledTimersDoNotFire() {
+        long[] clock = { 0 };
+        TimerWheel wheel = new TimerWheel(clock[0]);
+        RecordingTimer first = new RecordingTimer(clock);
+        RecordingTimer second = new RecordingTimer(clock);
+
+        first.schedule(wheel, 100, 0);
+        second.schedule(wheel, 100, 0);
+        wheel.cancel(first.mTimer);
+
+        assertFalse(first.mTimer.isScheduled());
+        assertEquals(1, wheel.getCount());
+
+        // Cancelling again does nothing
+        wheel.cancel(first.mTimer);
+        assertEquals(1, wheel.getCount());
+
+        runUntilIdle(wheel, clock);
+
+        assertTrue(first.mFiredAt.isEmpty());
+        assertEquals(1, second.mFiredAt.size());
+    }
+
+    @Test
+    public void reschedulingMovesTheTimer() {
+        long[] clock = { 0 };
+        TimerWheel wheel = new TimerWheel(clock[0]);
+        RecordingTimer timer = new RecordingTimer(clock);
+
+        // Moved from the second level to the first one and back, it only fires at the last deadline
+        timer.schedule(wheel, 5000, 0);
+        timer.schedule(wheel, 50, 0);
+        timer.schedule(wheel, 3000, 0);
+
+        assertEquals(1, wheel.getCount());
+
+        runUntilIdle(wheel, clock);
+
+        assertEquals(1, timer.mFiredAt.size());
+        assertEquals(3000, (long) timer.mFiredAt.get(0));
+    }
+
+    @Test
+    public void timerCanRescheduleItselfWhileRunning() {
+        final long[] clock = { 0 };
+        final TimerWheel wheel = new TimerWheel(clock[0]);
+        final List<Long> firedAt = new ArrayList<>();
+        final TimerWheel.Timer[] timer = new TimerWheel.Timer[1];
+
+        timer[0] = new TimerWheel.Timer(new Runnable() {
+            @Override
+            public void run() {
+                firedAt.add(clock[0]);
+
+                if (firedAt.size() < 5) {
+                    wheel.schedule(timer[0], clock[0], 1000, 0);
+                }
+            }
+        });
+        wheel.schedule(timer[0], clock[0], 1000, 0);
+
+        runUntilIdle(wheel, clock);
+
+        assertEquals(5, firedAt.size());
+        for (int i = 0; i < firedAt.size(); i++) {
+            assertEquals((i + 1) * 1000, (long) firedAt.get(i));
+        }
+    }
+
+    @Test
+    public void upperLevelsCascadeOnTime() {
+        long[] clock = { 0 };
+        TimerWheel wheel = new TimerWheel(clock[0]);
+        // Second, third and fourth level
+        long[] delays = { 64 * TimerWheel.TICK * 5 + 30, 64 * 64 * TimerWheel.TICK * 2 + 70, 64 * 64 * 64 * TimerWheel.TICK * 3 + 10 };
+        List<RecordingTimer> timers = new ArrayList<>();
+
+        for (long delay : delays) {
+            RecordingTimer timer = new RecordingTimer(clock);
+            timer.schedule(wheel, delay, 0);
+            timers.add(timer);
+        }
+
+        // Advanced a tick at a time, so any late cascade would show
+        while (wheel.getCount() > 0) {
+            clock[0] += TimerWheel.TICK;
+            wheel.advance(clock[0]);
+        }
+
+        for (RecordingTimer timer : timers) {
+            assertEquals(1, timer.mFiredAt.size());
+            assertEquals(timer.mDeadline, (long) timer.mFiredAt.get(0));
+        }
+    }
+
+    @Test
+    public void farFutureTimersWaitOnTheLastLevel() {
+        long[] clock = { 0 };
+        TimerWheel wheel = new TimerWheel(clock[0]);
+        RecordingTimer timer = new RecordingTimer(clock);
+        // Beyond the 46 hours the wheel reaches
+        timer.schedule(wheel, 100 * HOUR, 0);
+
+        int wakeUps = runUntilIdle(wheel, clock);
+
+        assertEquals(1, timer.mFiredAt.size());
+        assertEquals(100 * HOUR, (long) timer.mFiredAt.get(0));
+        // Placed again a few times on the way, not woken up on every turn of the first level
+        assertTrue(wakeUps < 20);
+    }
+
+    @Test
+    public void toleranceCoalescesNearbyDeadlines() {
+        long[] clock = { 0 };
+        TimerWheel wheel = new TimerWheel(clock[0]);
+        List<RecordingTimer> timers = new ArrayList<>();
+
+        for (int i = 0; i < 10; i++) {
+            RecordingTimer timer = new RecordingTimer(clock);
+            timer.schedule(wheel, 1000 + i * 10, 200);
+            timers.add(timer);
+        }
+
+        runUntilIdle(wheel, clock);
+
+        assertEquals(10, wheel.getExpiredCount());
+        assertEquals(1, wheel.getTicksWithExpirations());
+
+        long firedAt = timers.get(0).mFiredAt.get(0);
+        for (RecordingTimer timer : timers) {
+            assertEquals(firedAt, (long) timer.mFiredAt.get(0));
+        }
+    }
+
+    @Test
+    public void zeroToleranceKeepsDeadlinesApart() {
+        long[] clock = { 0 };
+        TimerWheel wheel = new TimerWheel(clock[0]);
+
+        for (int i = 0; i < 10; i++) {
+            new RecordingTimer(clock).schedule(wheel, 1000 + i * 10, 0);
+        }
+
+        runUntilIdle(wheel, clock);
+
+        assertEquals(10, wheel.getExpiredCount());
+        assertEquals(10, wheel.getTicksWithExpirations());
+    }
+
+    @Test
+    public void defaultToleranceIsASixteenthOfTheDelay() {
+        long[] clock = { 0 };
+        TimerWheel wheel = new TimerWheel(clock[0]);
+        RecordingTimer timer = new RecordingTimer(clock);
+
+        wheel.schedule(timer.mTimer, clock[0], 16000);
+        runUntilIdle(wheel, clock);
+
+        long firedAt = timer.mFiredAt.get(0);
+        assertTrue(firedAt >= 16000);
+        assertTrue(firedAt <= 16000 + 1000);
+    }
+
+    @Test
+    public void nextWakeUpTime() {
+        long[] clock = { 0 };
+        TimerWheel wheel = new TimerWheel(clock[0]);
+
+        assertEquals(-1, wheel.getNextWakeUpTime());
+
+        RecordingTimer near = new RecordingTimer(clock);
+        near.schedule(wheel, 125, 0);
+        // Rounded up to the tick
+        assertEquals(130, wheel.getNextWakeUpTime());
+
+        // A timer on an upper level reports when it cascades, never after it expires
+        RecordingTimer far = new RecordingTimer(clock);
+        far.schedule(wheel, 64 * 64 * TimerWheel.TICK + 500, 0);
+        assertEquals(130, wheel.getNextWakeUpTime());
+
+        // Alone, it wakes the driver when its slot of the third level cascades, not every turn of the first one
+        wheel.cancel(near.mTimer);
+        long wakeUp = wheel.getNextWakeUpTime();
+        assertEquals(64 * 64 * TimerWheel.TICK, wakeUp);
+
+        // Nothing fires before the reported time
+        assertEquals(0, wheel.advance(wakeUp - 1));
+
+        wheel.cancel(far.mTimer);
+        assertEquals(-1, wheel.getNextWakeUpTime());
+    }
+
+    @Test
+    public void advanceWithoutTimersSkipsAhead() {
+        TimerWheel wheel = new TimerWheel(0);
+
+        assertEquals(0, wheel.advance(HOUR));
+
+        // Scheduled after the jump, relative to the new time
+        long[] clock = { HOUR };
+        RecordingTimer timer = new RecordingTimer(clock);
+        timer.schedule(wheel, 50, 0);
+        assertEquals(HOUR + 50, wheel.getNextWakeUpTime());
+    }
+
+
+    /**
+     * Moves the clock to every wake up time the wheel reports, the way TimerService does
+     *
+     * @return number of wake ups
+     */
+    private static int runUntilIdle(TimerWheel wheel, long[] clock) {
+        int wakeUps = 0;
+
+        while (wheel.getCount() > 0) {
+            long wakeUp = wheel.getNextWakeUpTime();
+
+            assertTrue(wakeUp >= 0);
+            clock[0] = Math.max(clock[0], wakeUp);
+            wheel.advance(clock[0]);
+
+            wakeUps++;
+        }
+
+        return wakeUps;
+    }
+
+}
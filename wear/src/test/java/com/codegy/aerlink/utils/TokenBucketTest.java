@@ -0,0 +1,86 @@
+package com.codegy.aerlink.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+
+    @Test
+    public void burstUpToCapacity() {
+        TokenBucket bucket = new TokenBucket(3, 1000, 0);
+
+        assertTrue(bucket.tryAcquire(0));
+        assertTrue(bucket.tryAcquire(0));
+        assertTrue(bucket.tryAcquire(0));
+        assertFalse(bucket.tryAcquire(0));
+        assertEquals(0, bucket.getTokens(0));
+    }
+
+    @Test
+    public void oneTokenEveryInterval() {
+        TokenBucket bucket = new TokenBucket(3, 1000, 0);
+        drain(bucket, 0);
+
+        assertFalse(bucket.tryAcquire(999));
+        assertTrue(bucket.tryAcquire(1000));
+        assertFalse(bucket.tryAcquire(1000));
+
+        assertEquals(2, bucket.getTokens(3000));
+    }
+
+    @Test
+    public void refillStopsAtCapacity() {
+        TokenBucket bucket = new TokenBucket(3, 1000, 0);
+        drain(bucket, 0);
+
+        assertEquals(3, bucket.getTokens(60000));
+        drain(bucket, 60000);
+        assertEquals(0, bucket.getTokens(60000));
+    }
+
+    @Test
+    public void partOfAnIntervalCarriesOver() {
+        TokenBucket bucket = new TokenBucket(3, 1000, 0);
+        drain(bucket, 0);
+
+        // A token at 1000, 500 ms of the next interval already passed
+        assertTrue(bucket.tryAcquire(1500));
+        assertFalse(bucket.tryAcquire(1999));
+        // The next one at 2000, not 2500
+        assertTrue(bucket.tryAcquire(2000));
+    }
+
+    @Test
+    public void fullBucketDoesNotBankTime() {
+        TokenBucket bucket = new TokenBucket(2, 1000, 0);
+
+        // Idle and full for a long time, the interval starts again when a token is taken
+        assertEquals(2, bucket.getTokens(10500));
+        drain(bucket, 10500);
+
+        assertFalse(bucket.tryAcquire(11000));
+        assertTrue(bucket.tryAcquire(11500));
+    }
+
+    @Test
+    public void refillWhileNotEmpty() {
+        TokenBucket bucket = new TokenBucket(3, 1000, 0);
+
+        assertTrue(bucket.tryAcquire(0));
+        assertTrue(bucket.tryAcquire(400));
+        assertEquals(1, bucket.getTokens(400));
+
+        // Counted from the first token taken while full
+        assertEquals(2, bucket.getTokens(1000));
+        assertEquals(3, bucket.getTokens(2000));
+    }
+
+
+    private static void drain(TokenBucket bucket, long now) {
+        while (bucket.tryAcquire(now)) {
+            // Taking every token
+        }
+    }
+
+}